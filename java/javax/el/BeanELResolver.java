@@ -55,10 +55,12 @@
 
 package javax.el;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
-import java.lang.ref.SoftReference;
 import java.beans.FeatureDescriptor;
 import java.beans.BeanInfo;
 import java.beans.Introspector;
@@ -68,7 +70,6 @@ import java.util.Iterator;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Defines property resolution behavior on objects using the JavaBeans
@@ -111,9 +112,23 @@ public class BeanELResolver extends ELResolver {
 
     private boolean isReadOnly;
 
-     private static final int CACHE_SIZE = 1024;
-     private static final ConcurrentHashMap<Class, BeanProperties> properties =
-         new ConcurrentHashMap<Class, BeanProperties>(CACHE_SIZE);
+    /*
+     * The properties of the bean classes. They are stored with each class,
+     * so that they are released together with its class loader when a web
+     * application is undeployed, without a manual purge.
+     */
+    private static final ClassValue<BeanProperties> properties =
+        new ClassValue<BeanProperties>() {
+            protected BeanProperties computeValue(Class<?> type) {
+                return new BeanProperties(type);
+            }
+        };
+
+    private static final MethodType READ_TYPE =
+        MethodType.methodType(Object.class, Object.class);
+
+    private static final MethodType WRITE_TYPE =
+        MethodType.methodType(void.class, Object.class, Object.class);
 
     /*
      * Defines a property for a bean.
@@ -123,12 +138,24 @@ public class BeanELResolver extends ELResolver {
         private Method readMethod;
         private Method writeMethod;
         private PropertyDescriptor descriptor;
+        // Handles on the methods, or null if they cannot be called directly
+        private MethodHandle readHandle;
+        private MethodHandle writeHandle;
+        private Class<?> writeType;
+        private boolean writePrimitive;
                                                                                 
         public BeanProperty(Class<?> baseClass,
                             PropertyDescriptor descriptor) {
             this.descriptor = descriptor;
             readMethod = getMethod(baseClass, descriptor.getReadMethod());
             writeMethod = getMethod(baseClass, descriptor.getWriteMethod());
+            readHandle = getHandle(readMethod, READ_TYPE);
+            writeHandle = getHandle(writeMethod, WRITE_TYPE);
+            if (writeHandle != null) {
+                Class<?> type = writeMethod.getParameterTypes()[0];
+                writeType = getWrapperType(type);
+                writePrimitive = type.isPrimitive();
+            }
         }
                                                                                 
         public Class getPropertyType() {
@@ -146,6 +173,17 @@ public class BeanELResolver extends ELResolver {
         public Method getWriteMethod() {
             return writeMethod;
         }
+
+        /*
+         * Return true if the value can be passed to the write handle as is,
+         * without the conversions Method.invoke would do.
+         */
+        boolean isWritable(Object value) {
+            if (value == null) {
+                return !writePrimitive;
+            }
+            return writeType.isInstance(value);
+        }
     }
                                                                                 
     /*
@@ -298,6 +336,17 @@ public class BeanELResolver extends ELResolver {
         }
 
         Object value;
+        MethodHandle handle = bp.readHandle;
+        if (handle != null) {
+            try {
+                value = handle.invokeExact(base);
+            } catch (Throwable t) {
+                // Same as the cause of an InvocationTargetException
+                throw new ELException(t);
+            }
+            context.setPropertyResolved(true);
+            return value;
+        }
         try {
             value = method.invoke(base, new Object[0]);
             context.setPropertyResolved(true);
@@ -377,6 +426,17 @@ public class BeanELResolver extends ELResolver {
                                            property.toString()}));
         }
 
+        MethodHandle handle = bp.writeHandle;
+        if (handle != null && bp.isWritable(val)) {
+            try {
+                handle.invokeExact(base, val);
+            } catch (Throwable t) {
+                // Same as the cause of an InvocationTargetException
+                throw new ELException(t);
+            }
+            context.setPropertyResolved(true);
+            return;
+        }
         try {
             method.invoke(base, new Object[] {val});
             context.setPropertyResolved(true);
@@ -645,18 +705,56 @@ public class BeanELResolver extends ELResolver {
         return null;
     }
 
+    /*
+     * Return a handle of the given type on a method, or null if it cannot
+     * be called through a handle.
+     */
+    static private MethodHandle getHandle(Method method, MethodType type) {
+        if (method == null) {
+            return null;
+        }
+        try {
+            return MethodHandles.publicLookup().unreflect(method).asType(type);
+        } catch (IllegalAccessException ex) {
+            return null;
+        }
+    }
+
+    /*
+     * Return the type of the objects accepted for a parameter of the given
+     * type, using void for primitive types without an exact wrapper, so that
+     * a handle is only used when no conversion is needed.
+     */
+    static private Class<?> getWrapperType(Class<?> type) {
+        if (!type.isPrimitive()) {
+            return type;
+        } else if (type == Boolean.TYPE) {
+            return Boolean.class;
+        } else if (type == Character.TYPE) {
+            return Character.class;
+        } else if (type == Byte.TYPE) {
+            return Byte.class;
+        } else if (type == Short.TYPE) {
+            return Short.class;
+        } else if (type == Integer.TYPE) {
+            return Integer.class;
+        } else if (type == Long.TYPE) {
+            return Long.class;
+        } else if (type == Float.TYPE) {
+            return Float.class;
+        } else if (type == Double.TYPE) {
+            return Double.class;
+        }
+        return Void.TYPE;
+    }
+
     private BeanProperty getBeanProperty(ELContext context,
                                          Object base,
                                          Object prop) {
 
         String property = prop.toString();
         Class baseClass = base.getClass();
-        BeanProperties bps = properties.get(baseClass);
-        if (bps == null) {
-            bps = new BeanProperties(baseClass);
-            properties.putIfAbsent(baseClass, bps);
-        }
-        BeanProperty bp = bps.getBeanProperty(property);
+        BeanProperty bp = properties.get(baseClass).getBeanProperty(property);
         if (bp == null) {
             throw new PropertyNotFoundException(
                         ELUtil.getExceptionMessageString(context,
@@ -667,31 +765,17 @@ public class BeanELResolver extends ELResolver {
         return bp;
     }
 
-    private void removeFromMap(Map<Class, BeanProperties> map,
-                               ClassLoader classloader) {
-        Iterator<Class> iter = map.keySet().iterator();
-        while (iter.hasNext()) {
-            Class mbeanClass = iter.next();
-            if (classloader.equals(mbeanClass.getClassLoader())) {
-                iter.remove();
-            }
-        }
-
-    }
-
     /*
      * This method is not part of the API, though it can be used (reflectively)
      * by clients of this class to remove entries from the cache when the beans
      * are being unloaded.
      *
-     * A note about why WeakHashMap is not used.  Measurements has shown 
-     * that ConcurrentHashMap is much more scalable than synchronized
-     * WeakHashMap.  A manual purge seems to be a good compromise.
+     * The properties are now stored with the bean classes, and are released
+     * together with their class loader, so there is nothing to purge.
      *
      * @param classloader The classLoader used to load the beans.
      */
     private void purgeBeanClasses(ClassLoader classloader) {
-        removeFromMap(properties, classloader);
     }
 
     private Method findMethod(Object base, String method,
@@ -45,7 +45,7 @@ import org.apache.catalina.connector.Request;
 import org.apache.catalina.connector.Response;
 import org.apache.catalina.deploy.LoginConfig;
 import org.apache.catalina.deploy.SecurityConstraint;
-import org.apache.catalina.session.ManagerBase;
+import org.apache.catalina.session.SessionIdGenerator;
 import org.apache.catalina.util.DateTool;
 import org.apache.catalina.util.LifecycleSupport;
 import org.apache.catalina.util.StringManager;
@@ -99,6 +99,15 @@ public abstract class AuthenticatorBase
     protected static final int SESSION_ID_BYTES = 18;
 
 
+    /**
+     * The generator of the session identifiers, which draws from several
+     * random generators so that concurrent authentications do not wait on
+     * each other.
+     */
+    protected SessionIdGenerator sessionIdGenerator =
+        new SessionIdGenerator(SESSION_ID_BYTES, 0, 0);
+
+
     /**
      * Should we cache authenticated Principals if the request is part of
      * an HTTP session?
@@ -535,13 +544,9 @@ public abstract class AuthenticatorBase
      * Generate and return a new session identifier for the cookie that
      * identifies an SSO principal.
      */
-    protected synchronized String generateSessionId(Random random) {
+    protected String generateSessionId(Random random) {
 
-        byte[] bytes = new byte[SESSION_ID_BYTES];
-        random.nextBytes(bytes);
-        // Encode the result
-        char[] id = ManagerBase.encode(bytes);
-        return String.valueOf(id);
+        return sessionIdGenerator.generateSessionId(random, null);
 
     }
 
@@ -20,8 +20,6 @@ package org.apache.catalina.authenticator;
 
 
 import java.io.IOException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.Principal;
 import java.security.SecureRandom;
 import java.util.LinkedHashMap;
@@ -39,6 +37,7 @@ import org.apache.catalina.Realm;
 import org.apache.catalina.connector.Request;
 import org.apache.catalina.deploy.LoginConfig;
 import org.apache.catalina.util.MD5Encoder;
+import org.apache.catalina.util.ThreadLocalDigest;
 import org.jboss.logging.Logger;
 
 
@@ -82,12 +81,6 @@ public class DigestAuthenticator
 
     public DigestAuthenticator() {
         super();
-        try {
-            if (md5Helper == null)
-                md5Helper = MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException e) {
-            throw new IllegalStateException(e);
-        }
     }
 
 
@@ -97,7 +90,8 @@ public class DigestAuthenticator
     /**
      * MD5 message digest provider.
      */
-    protected static MessageDigest md5Helper;
+    protected static final ThreadLocalDigest md5Helper =
+        new ThreadLocalDigest("MD5");
 
 
     /**
@@ -372,10 +366,7 @@ public class DigestAuthenticator
         String ipTimeKey =
             request.getRemoteAddr() + ":" + currentTime + ":" + getKey();
 
-        byte[] buffer;
-        synchronized (md5Helper) {
-            buffer = md5Helper.digest(ipTimeKey.getBytes());
-        }
+        byte[] buffer = md5Helper.digest(ipTimeKey.getBytes());
 
         return currentTime + ":" + md5Encoder.encode(buffer);
     }
@@ -626,10 +617,7 @@ public class DigestAuthenticator
             }
             String serverIpTimeKey =
                 request.getRemoteAddr() + ":" + nonceTime + ":" + key;
-            byte[] buffer = null;
-            synchronized (md5Helper) {
-                buffer = md5Helper.digest(serverIpTimeKey.getBytes());
-            }
+            byte[] buffer = md5Helper.digest(serverIpTimeKey.getBytes());
             String md5ServerIpTimeKey = md5Encoder.encode(buffer);
             if (!md5ServerIpTimeKey.equals(md5clientIpTimeKey)) {
                 return false;
@@ -688,10 +676,7 @@ public class DigestAuthenticator
             // MD5(Method + ":" + uri)
             String a2 = method + ":" + uri;
 
-            byte[] buffer;
-            synchronized (md5Helper) {
-                buffer = md5Helper.digest(a2.getBytes());
-            }
+            byte[] buffer = md5Helper.digest(a2.getBytes());
             String md5a2 = md5Encoder.encode(buffer);
 
             return realm.authenticate(userName, response, nonce, nc, cnonce,
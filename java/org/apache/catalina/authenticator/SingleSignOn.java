@@ -21,15 +21,24 @@ package org.apache.catalina.authenticator;
 
 import java.io.IOException;
 import java.security.Principal;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.Cookie;
 
+import org.apache.catalina.Container;
+import org.apache.catalina.ContainerEvent;
+import org.apache.catalina.ContainerListener;
+import org.apache.catalina.Context;
 import org.apache.catalina.Lifecycle;
+import org.apache.catalina.LifecycleEvent;
 import org.apache.catalina.LifecycleException;
 import org.apache.catalina.LifecycleListener;
+import org.apache.catalina.Manager;
 import org.apache.catalina.Realm;
 import org.apache.catalina.Session;
 import org.apache.catalina.SessionEvent;
@@ -57,6 +66,13 @@ import org.apache.catalina.valves.ValveBase;
  *     Authenticators found in the
  *     <code>org.apache.catalina.authenticator</code> package.</li>
  * </ul>
+ * <p>
+ * The entries are held in concurrent maps, so that looking up the entry of
+ * a request does not lock. The number of entries may be bounded with
+ * <code>maxEntries</code>, and entries which have not been used for
+ * <code>maxIdleTime</code> seconds are removed, without expiring the
+ * associated sessions. The sessions of a web application are deregistered
+ * in bulk when it is stopped or removed.
  *
  * @author Craig R. McClanahan
  * @version $Revision: 1542 $ $Date: 2010-08-25 15:00:37 +0200 (Wed, 25 Aug 2010) $
@@ -64,7 +80,7 @@ import org.apache.catalina.valves.ValveBase;
 
 public class SingleSignOn
     extends ValveBase
-    implements Lifecycle, SessionListener {
+    implements Lifecycle, SessionListener, ContainerListener, LifecycleListener {
 
 
     // ----------------------------------------------------- Instance Variables
@@ -74,8 +90,8 @@ public class SingleSignOn
      * The cache of SingleSignOnEntry instances for authenticated Principals,
      * keyed by the cookie value that is used to select them.
      */
-    protected Map<String,SingleSignOnEntry> cache =
-        new HashMap<String,SingleSignOnEntry>();
+    protected ConcurrentHashMap<String,SingleSignOnEntry> cache =
+        new ConcurrentHashMap<String,SingleSignOnEntry>();
 
 
     /**
@@ -101,7 +117,28 @@ public class SingleSignOn
      * The cache of single sign on identifiers, keyed by the Session that is
      * associated with them.
      */
-    protected Map<Session,String> reverse = new HashMap<Session,String>();
+    protected ConcurrentHashMap<Session,String> reverse =
+        new ConcurrentHashMap<Session,String>();
+
+
+    /**
+     * The maximum number of single sign on entries, or -1 for no limit. When
+     * the limit is reached, the least recently used entries are removed.
+     */
+    protected int maxEntries = -1;
+
+
+    /**
+     * The time in seconds after which an unused single sign on entry is
+     * removed, or -1 to keep it as long as it has sessions.
+     */
+    protected int maxIdleTime = -1;
+
+
+    /**
+     * Flag set while the least recently used entries are being removed.
+     */
+    protected AtomicBoolean evicting = new AtomicBoolean(false);
 
 
     /**
@@ -128,6 +165,48 @@ public class SingleSignOn
 
     // ------------------------------------------------------------- Properties
 
+    /**
+     * Return the maximum number of single sign on entries, or -1 for no
+     * limit.
+     */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Set the maximum number of single sign on entries, or -1 for no limit.
+     *
+     * @param maxEntries The new maximum number of entries
+     */
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Return the time in seconds after which an unused single sign on entry
+     * is removed, or -1 if unused entries are kept.
+     */
+    public int getMaxIdleTime() {
+        return maxIdleTime;
+    }
+
+    /**
+     * Set the time in seconds after which an unused single sign on entry
+     * is removed, or -1 to keep unused entries.
+     *
+     * @param maxIdleTime The new idle time
+     */
+    public void setMaxIdleTime(int maxIdleTime) {
+        this.maxIdleTime = maxIdleTime;
+    }
+
+    /**
+     * Return the current number of single sign on entries.
+     */
+    public int getEntryCount() {
+        return cache.size();
+    }
+
     public boolean isCookieHttpOnly() {
         return cookieHttpOnly;
     }
@@ -282,6 +361,17 @@ public class SingleSignOn
         lifecycle.fireLifecycleEvent(START_EVENT, null);
         started = true;
 
+        // Listen to the web applications to deregister their sessions
+        // when they are stopped
+        if (container != null) {
+            container.addContainerListener(this);
+            Container children[] = container.findChildren();
+            for (int i = 0; i < children.length; i++) {
+                if (children[i] instanceof Lifecycle)
+                    ((Lifecycle) children[i]).addLifecycleListener(this);
+            }
+        }
+
     }
 
 
@@ -302,6 +392,15 @@ public class SingleSignOn
         lifecycle.fireLifecycleEvent(STOP_EVENT, null);
         started = false;
 
+        if (container != null) {
+            container.removeContainerListener(this);
+            Container children[] = container.findChildren();
+            for (int i = 0; i < children.length; i++) {
+                if (children[i] instanceof Lifecycle)
+                    ((Lifecycle) children[i]).removeLifecycleListener(this);
+            }
+        }
+
     }
 
 
@@ -323,10 +422,7 @@ public class SingleSignOn
         // Look up the single session id associated with this session (if any)
         Session session = event.getSession();
 
-        String ssoId = null;
-        synchronized (reverse) {
-            ssoId = (String) reverse.get(session);
-        }
+        String ssoId = reverse.get(session);
         if (ssoId == null)
             return;
 
@@ -349,6 +445,48 @@ public class SingleSignOn
     }
 
 
+    // ---------------------------------------------- ContainerListener Methods
+
+
+    /**
+     * Listen to the web applications added to the host, and deregister the
+     * sessions of the web applications which are removed.
+     *
+     * @param event ContainerEvent that has occurred
+     */
+    public void containerEvent(ContainerEvent event) {
+
+        Object child = event.getData();
+        if (Container.ADD_CHILD_EVENT.equals(event.getType())) {
+            if (child instanceof Lifecycle)
+                ((Lifecycle) child).addLifecycleListener(this);
+        } else if (Container.REMOVE_CHILD_EVENT.equals(event.getType())) {
+            if (child instanceof Lifecycle)
+                ((Lifecycle) child).removeLifecycleListener(this);
+            if (child instanceof Context)
+                deregister((Context) child);
+        }
+
+    }
+
+
+    // ---------------------------------------------- LifecycleListener Methods
+
+
+    /**
+     * Deregister the sessions of a web application before it is stopped.
+     *
+     * @param event LifecycleEvent that has occurred
+     */
+    public void lifecycleEvent(LifecycleEvent event) {
+
+        if (Lifecycle.BEFORE_STOP_EVENT.equals(event.getType())
+                && event.getLifecycle() instanceof Context)
+            deregister((Context) event.getLifecycle());
+
+    }
+
+
     // ---------------------------------------------------------- Valve Methods
 
 
@@ -362,6 +500,26 @@ public class SingleSignOn
     }
 
 
+    /**
+     * Remove the single sign on entries which have not been used for
+     * <code>maxIdleTime</code> seconds.
+     */
+    public void backgroundProcess() {
+
+        if (maxIdleTime < 0)
+            return;
+        long timeNow = System.currentTimeMillis();
+        Iterator<Map.Entry<String,SingleSignOnEntry>> entries =
+            cache.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String,SingleSignOnEntry> entry = entries.next();
+            if (isIdle(entry.getValue(), timeNow))
+                evict(entry.getKey(), entry.getValue());
+        }
+
+    }
+
+
     /**
      * Perform single-sign-on support processing for this request.
      *
@@ -450,9 +608,8 @@ public class SingleSignOn
     public void associate(String ssoId, Session session) {
 
         SingleSignOnEntry sso = lookup(ssoId);
-        if (sso != null)
+        if (sso != null) {
             sso.addSession(this, session);
-        synchronized (reverse) {
             reverse.put(session, ssoId);
         }
 
@@ -467,11 +624,9 @@ public class SingleSignOn
      */
     protected void deregister(String ssoId, Session session) {
 
-        synchronized (reverse) {
-            reverse.remove(session);
-        }
+        reverse.remove(session);
 
-        SingleSignOnEntry sso = lookup(ssoId);
+        SingleSignOnEntry sso = cache.get(ssoId);
         if ( sso == null )
             return;
 
@@ -480,9 +635,7 @@ public class SingleSignOn
         // see if we are the last session, if so blow away ssoId
         Session sessions[] = sso.findSessions();
         if ( sessions == null || sessions.length == 0 ) {
-            synchronized (cache) {
-                sso = (SingleSignOnEntry) cache.remove(ssoId);
-            }
+            cache.remove(ssoId);
         }
 
     }
@@ -497,10 +650,7 @@ public class SingleSignOn
     public void deregister(String ssoId) {
 
         // Look up and remove the corresponding SingleSignOnEntry
-        SingleSignOnEntry sso = null;
-        synchronized (cache) {
-            sso = (SingleSignOnEntry) cache.remove(ssoId);
-        }
+        SingleSignOnEntry sso = cache.remove(ssoId);
 
         if (sso == null)
             return;
@@ -509,9 +659,7 @@ public class SingleSignOn
         Session sessions[] = sso.findSessions();
         for (int i = 0; i < sessions.length; i++) {
             // Remove from reverse cache first to avoid recursion
-            synchronized (reverse) {
-                reverse.remove(sessions[i]);
-            }
+            reverse.remove(sessions[i]);
             // Invalidate this session
             sessions[i].expire();
         }
@@ -523,6 +671,40 @@ public class SingleSignOn
     }
 
 
+    /**
+     * Deregister all the sessions of the specified web application, without
+     * invalidating them, in a single pass over the registered sessions. The
+     * single sign on entries which are left without sessions are removed,
+     * while the sessions of other web applications remain signed on.
+     *
+     * @param context Web application which is stopped or removed
+     */
+    public void deregister(Context context) {
+
+        Manager manager = context.getManager();
+        if (manager == null)
+            return;
+
+        Iterator<Map.Entry<Session,String>> entries =
+            reverse.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Session,String> entry = entries.next();
+            Session session = entry.getKey();
+            if (session.getManager() != manager)
+                continue;
+            entries.remove();
+            session.removeSessionListener(this);
+            SingleSignOnEntry sso = cache.get(entry.getValue());
+            if (sso != null) {
+                sso.removeSession(session);
+                if (sso.findSessions().length == 0)
+                    cache.remove(entry.getValue());
+            }
+        }
+
+    }
+
+
     /**
      * Attempts reauthentication to the given <code>Realm</code> using
      * the credentials associated with the single sign-on session
@@ -586,10 +768,10 @@ public class SingleSignOn
     public void register(String ssoId, Principal principal, String authType,
                   String username, String password) {
 
-        synchronized (cache) {
-            cache.put(ssoId, new SingleSignOnEntry(principal, authType,
-                                                   username, password));
-        }
+        cache.put(ssoId, new SingleSignOnEntry(principal, authType,
+                                               username, password));
+        if (maxEntries >= 0 && cache.size() > maxEntries)
+            evict(ssoId);
 
     }
 
@@ -640,8 +822,92 @@ public class SingleSignOn
      */
     protected SingleSignOnEntry lookup(String ssoId) {
 
-        synchronized (cache) {
-            return ((SingleSignOnEntry) cache.get(ssoId));
+        SingleSignOnEntry sso = cache.get(ssoId);
+        if (sso != null) {
+            long timeNow = System.currentTimeMillis();
+            if (isIdle(sso, timeNow)) {
+                evict(ssoId, sso);
+                return null;
+            }
+            sso.access(timeNow);
+        }
+        return sso;
+
+    }
+
+
+    /**
+     * Return <code>true</code> if the specified entry has not been used
+     * for <code>maxIdleTime</code> seconds.
+     *
+     * @param sso Single sign on entry
+     * @param timeNow Current time
+     */
+    protected boolean isIdle(SingleSignOnEntry sso, long timeNow) {
+
+        return (maxIdleTime >= 0
+                && timeNow - sso.getLastAccessedTime() >= maxIdleTime * 1000L);
+
+    }
+
+
+    /**
+     * Remove the specified single sign on entry, and stop tracking its
+     * sessions, which are not invalidated. Clients presenting the single
+     * sign on cookie will have to authenticate again.
+     *
+     * @param ssoId Single sign on identifier
+     * @param sso Single sign on entry to remove
+     */
+    protected void evict(String ssoId, SingleSignOnEntry sso) {
+
+        if (!cache.remove(ssoId, sso))
+            return;
+        Session sessions[] = sso.findSessions();
+        for (int i = 0; i < sessions.length; i++) {
+            reverse.remove(sessions[i], ssoId);
+            sessions[i].removeSessionListener(this);
+        }
+
+    }
+
+
+    /**
+     * Remove the least recently used single sign on entries, so that about a
+     * tenth of <code>maxEntries</code> is available for new entries. Only one
+     * thread removes entries at a time, others continue without waiting.
+     *
+     * @param keepId Single sign on identifier which was just registered, and
+     *  which is kept
+     */
+    protected void evict(String keepId) {
+
+        if (!evicting.compareAndSet(false, true))
+            return;
+        try {
+            // Snapshot the access times, which keep changing while sorting
+            Object entries[] = cache.entrySet().toArray();
+            int count = entries.length - maxEntries + maxEntries / 10;
+            if (count <= 0)
+                return;
+            long times[] = new long[entries.length];
+            for (int i = 0; i < entries.length; i++) {
+                times[i] = ((SingleSignOnEntry) ((Map.Entry<?,?>) entries[i])
+                        .getValue()).getLastAccessedTime();
+            }
+            long sorted[] = times.clone();
+            Arrays.sort(sorted);
+            long threshold = sorted[Math.min(count, sorted.length) - 1];
+            for (int i = 0; i < entries.length && count > 0; i++) {
+                Map.Entry<?,?> entry = (Map.Entry<?,?>) entries[i];
+                if (times[i] <= threshold && !entry.getKey().equals(keepId)) {
+                    evict((String) entry.getKey(),
+                            (SingleSignOnEntry) entry.getValue());
+                    count--;
+                }
+            }
+        } finally {
+            evicting.set(false);
         }
 
     }
@@ -665,9 +931,7 @@ public class SingleSignOn
         entry.removeSession(session);
 
         // Remove the inactive session from the 'reverse' Map.
-        synchronized(reverse) {
-            reverse.remove(session);
-        }
+        reverse.remove(session);
 
         // If there are not sessions left in the SingleSignOnEntry,
         // deregister the entry.
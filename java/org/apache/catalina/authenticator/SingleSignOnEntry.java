@@ -50,6 +50,8 @@ public class SingleSignOnEntry
 
     protected boolean canReauthenticate = false;
 
+    protected volatile long lastAccessedTime = System.currentTimeMillis();
+
     // ---------------------------------------------------------  Constructors
 
     /**
@@ -100,6 +102,15 @@ public class SingleSignOnEntry
      * @param session  the <code>Session</code> to remove.
      */
     public synchronized void removeSession(Session session) {
+        boolean found = false;
+        for (int i = 0; i < sessions.length; i++) {
+            if (session == sessions[i]) {
+                found = true;
+                break;
+            }
+        }
+        if (!found)
+            return;
         Session[] nsessions = new Session[sessions.length - 1];
         for (int i = 0, j = 0; i < sessions.length; i++) {
             if (session == sessions[i])
@@ -116,6 +127,25 @@ public class SingleSignOnEntry
         return (this.sessions);
     }
 
+    /**
+     * Gets the time, in milliseconds, of the last request which used this
+     * SSO. The time is only updated when it changed by more than a second,
+     * to avoid writing it on every request.
+     */
+    public long getLastAccessedTime() {
+        return (this.lastAccessedTime);
+    }
+
+    /**
+     * Records a request using this SSO.
+     *
+     * @param timeNow  the current time, in milliseconds
+     */
+    public void access(long timeNow) {
+        if (timeNow - lastAccessedTime >= 1000L)
+            lastAccessedTime = timeNow;
+    }
+
     /**
      * Gets the name of the authentication type originally used to authenticate
      * the user associated with the SSO.
@@ -19,6 +19,7 @@
 package org.apache.catalina.connector;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import javax.servlet.ServletOutputStream;
 
@@ -90,6 +91,16 @@ public class CoyoteOutputStream
     }
 
 
+    /**
+     * Write the remaining content of the given buffer, which may be a
+     * mapped file, without going through an intermediate byte array.
+     */
+    public void write(ByteBuffer b)
+        throws IOException {
+        ob.write(b);
+    }
+
+
     /**
      * Will send the buffer to the client.
      */
@@ -21,13 +21,15 @@ package org.apache.catalina.connector;
 import java.io.IOException;
 import java.io.PrintWriter;
 
+import org.apache.tomcat.EncodedWriter;
+
 /**
  * Coyote implementation of the servlet writer.
  * 
  * @author Remy Maucherat
  */
 public class CoyoteWriter
-    extends PrintWriter {
+    extends PrintWriter implements EncodedWriter {
 
 
     // -------------------------------------------------------------- Constants
@@ -172,6 +174,21 @@ public class CoyoteWriter
     }
 
 
+    public boolean writeEncoded(byte[] b, int off, int len, String encoding) {
+
+        if (error)
+            return true;
+
+        try {
+            return ob.writeEncoded(b, off, len, encoding);
+        } catch (IOException e) {
+            error = true;
+        }
+        return true;
+
+    }
+
+
     // ---------------------------------------------------- PrintWriter Methods
 
 
@@ -20,6 +20,7 @@ package org.apache.catalina.connector;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.security.AccessController;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
@@ -435,6 +436,35 @@ public class OutputBuffer extends Writer
     }
 
 
+    /**
+     * Write the remaining content of the given buffer, without intermediate
+     * copies.
+     * 
+     * @param src Buffer containing the data to write
+     * 
+     * @throws IOException An underlying IOException occurred
+     */
+    public void write(ByteBuffer src) 
+        throws IOException {
+
+        if (suspended)
+            return;
+        if (closed)
+            return;
+
+        int len = src.remaining();
+        bb.append(src);
+        bytesWritten += len;
+
+        // if called from within flush(), then immediately flush
+        // remaining bytes
+        if (doFlush) {
+            bb.flushBuffer();
+        }
+
+    }
+
+
     public void writeByte(int b)
         throws IOException {
 
@@ -535,6 +565,39 @@ public class OutputBuffer extends Writer
     } 
 
 
+    /**
+     * Write text which has already been encoded, if it has been encoded
+     * using the character encoding of the response.
+     * 
+     * @param b Encoded text
+     * @param off Offset
+     * @param len Length
+     * @param encoding Character encoding of the bytes
+     * @return <code>false</code> if the character encoding is different
+     *  from the one of the response, in which case nothing is written
+     * 
+     * @throws IOException An underlying IOException occurred
+     */
+    public boolean writeEncoded(byte b[], int off, int len, String encoding)
+        throws IOException {
+
+        if (suspended)
+            return true;
+
+        checkConverter();
+        if (!enc.equalsIgnoreCase(encoding))
+            return false;
+
+        // Keep the order of the content
+        if (cb.getLength() > 0) {
+            cb.flushBuffer();
+        }
+        writeBytes(b, off, len);
+        return true;
+
+    }
+
+
     public void setEncoding(String s) {
         enc = s;
     }
@@ -86,6 +86,7 @@ import org.apache.catalina.deploy.SecurityCollection;
 import org.apache.catalina.deploy.SecurityConstraint;
 import org.apache.catalina.deploy.SessionCookie;
 import org.apache.catalina.deploy.jsp.TagLibraryInfo;
+import org.apache.catalina.realm.SecurityConstraintMatcher;
 import org.apache.catalina.session.StandardManager;
 import org.apache.catalina.util.CharsetMapper;
 import org.apache.catalina.util.RequestUtil;
@@ -280,6 +281,18 @@ public class StandardContext
     protected SecurityConstraint constraints[] = new SecurityConstraint[0];
 
 
+    /**
+     * The compiled security constraints, or <code>null</code>.
+     */
+    protected volatile SecurityConstraintMatcher constraintMatcher = null;
+
+
+    /**
+     * The security constraints which were last compiled.
+     */
+    protected volatile SecurityConstraint compiledConstraints[] = null;
+
+
     /**
      * The ServletContext implementation associated with this Context.
      */
@@ -626,6 +639,21 @@ public class StandardContext
     protected int cacheTTL = 5000;
 
 
+    /**
+     * Use filesystem notifications to invalidate the cache instead of
+     * revalidating entries after the TTL.
+     */
+    protected boolean cacheWatched = false;
+
+
+    /**
+     * Interval in ms between the revalidations of the cache entries when
+     * the cache is invalidated using filesystem notifications, in case some
+     * changes are not notified.
+     */
+    protected int cacheWatchedTTL = 60000;
+
+
     /**
      * Non proxied resources.
      */
@@ -738,6 +766,40 @@ public class StandardContext
     }
 
 
+    /**
+     * Set if the cache is invalidated using filesystem notifications.
+     */
+    public void setCacheWatched(boolean cacheWatched) {
+        this.cacheWatched = cacheWatched;
+    }
+
+
+    /**
+     * Is the cache invalidated using filesystem notifications ?
+     */
+    public boolean isCacheWatched() {
+        return cacheWatched;
+    }
+
+
+    /**
+     * Set the revalidation interval of the cache when using filesystem
+     * notifications.
+     */
+    public void setCacheWatchedTTL(int cacheWatchedTTL) {
+        this.cacheWatchedTTL = cacheWatchedTTL;
+    }
+
+
+    /**
+     * Get the revalidation interval of the cache when using filesystem
+     * notifications.
+     */
+    public int getCacheWatchedTTL() {
+        return cacheWatchedTTL;
+    }
+
+
     /**
      * Return the maximum size of the cache in KB.
      */
@@ -1634,6 +1696,8 @@ public class StandardContext
         if (resources instanceof BaseDirContext) {
             ((BaseDirContext) resources).setCached(isCachingAllowed());
             ((BaseDirContext) resources).setCacheTTL(getCacheTTL());
+            ((BaseDirContext) resources).setWatched(isCacheWatched());
+            ((BaseDirContext) resources).setWatchedTTL(getCacheWatchedTTL());
             ((BaseDirContext) resources).setCacheMaxSize(getCacheMaxSize());
             ((BaseDirContext) resources).setCacheObjectMaxSize(getCacheObjectMaxSize());
         }
@@ -2450,6 +2514,21 @@ public class StandardContext
     }
 
 
+    /**
+     * Return the index of the current security constraints of this web
+     * application, compiling it if the constraints changed, or
+     * <code>null</code> if they cannot be compiled.
+     */
+    public SecurityConstraintMatcher getConstraintMatcher() {
+        SecurityConstraint constraints[] = this.constraints;
+        if (compiledConstraints != constraints) {
+            constraintMatcher = SecurityConstraintMatcher.compile(constraints);
+            compiledConstraints = constraints;
+        }
+        return constraintMatcher;
+    }
+
+
     /**
      * Return the error page entry for the specified HTTP error code,
      * if any; otherwise return <code>null</code>.
@@ -3872,6 +3951,11 @@ public class StandardContext
             if (ok) {
                 loadOnStartup(findChildren());
             }
+
+            // Compile the security constraints
+            if (ok) {
+                getConstraintMatcher();
+            }
             
             if (ok) {
                 if (!listenerStart()) {
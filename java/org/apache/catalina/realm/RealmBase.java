@@ -24,10 +24,13 @@ import java.beans.PropertyChangeSupport;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.Principal;
+import java.security.SecureRandom;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.management.Attribute;
 import javax.management.MBeanRegistration;
@@ -49,6 +52,7 @@ import org.apache.catalina.Service;
 import org.apache.catalina.connector.Request;
 import org.apache.catalina.connector.Response;
 import org.apache.catalina.core.ContainerBase;
+import org.apache.catalina.core.StandardContext;
 import org.apache.catalina.deploy.LoginConfig;
 import org.apache.catalina.deploy.SecurityCollection;
 import org.apache.catalina.deploy.SecurityConstraint;
@@ -56,6 +60,7 @@ import org.apache.catalina.util.HexUtils;
 import org.apache.catalina.util.LifecycleSupport;
 import org.apache.catalina.util.MD5Encoder;
 import org.apache.catalina.util.StringManager;
+import org.apache.catalina.util.ThreadLocalDigest;
 import org.apache.tomcat.util.modeler.Registry;
 import org.jboss.logging.Logger;
 
@@ -116,9 +121,10 @@ public abstract class RealmBase
 
 
     /**
-     * The MessageDigest object for digesting user credentials (passwords).
+     * The per thread MessageDigest objects for digesting user credentials
+     * (passwords).
      */
-    protected MessageDigest md = null;
+    protected ThreadLocalDigest md = null;
 
 
     /**
@@ -130,7 +136,15 @@ public abstract class RealmBase
     /**
      * MD5 message digest provider.
      */
-    protected static MessageDigest md5Helper;
+    protected static final ThreadLocalDigest md5Helper =
+        new ThreadLocalDigest("MD5");
+
+
+    /**
+     * Message digest provider for the keys of the authentication cache.
+     */
+    protected static final ThreadLocalDigest cacheKeyHelper =
+        new ThreadLocalDigest("SHA-256");
 
 
     /**
@@ -162,7 +176,53 @@ public abstract class RealmBase
      * The all role mode.
      */
     protected AllRolesMode allRolesMode = AllRolesMode.STRICT_MODE;
-    
+
+
+    /**
+     * The maximum number of successful authentications which are cached,
+     * or 0 to disable the authentication cache.
+     */
+    protected int authenticationCacheSize = 0;
+
+
+    /**
+     * The time in seconds during which a cached authentication is used.
+     */
+    protected int authenticationCacheTTL = 60;
+
+
+    /**
+     * The cache of successful authentications, keyed by a salted digest of
+     * the username and credentials.
+     */
+    protected ConcurrentHashMap<String, CachedPrincipal> authenticationCache =
+        new ConcurrentHashMap<String, CachedPrincipal>();
+
+
+    /**
+     * The random salt of the authentication cache keys.
+     */
+    protected byte[] authenticationCacheSalt = null;
+
+
+    /**
+     * The last time the expired authentications were removed from the
+     * cache.
+     */
+    protected volatile long authenticationCacheExpired = 0;
+
+
+    /**
+     * The number of authentications found in the cache.
+     */
+    protected AtomicLong authenticationCacheHits = new AtomicLong();
+
+
+    /**
+     * The number of authentications which were not found in the cache.
+     */
+    protected AtomicLong authenticationCacheMisses = new AtomicLong();
+
 
     // ------------------------------------------------------------- Properties
 
@@ -282,6 +342,92 @@ public abstract class RealmBase
     }
 
 
+    /**
+     * Return the maximum number of cached authentications, or 0 if the
+     * authentication cache is disabled.
+     */
+    public int getAuthenticationCacheSize() {
+
+        return (this.authenticationCacheSize);
+
+    }
+
+
+    /**
+     * Set the maximum number of cached authentications. Successful
+     * authentications with a username and password are then cached for
+     * <code>authenticationCacheTTL</code> seconds, during which the
+     * credentials are not checked again against the backing store.
+     *
+     * @param authenticationCacheSize The new maximum number of cached
+     *  authentications, or 0 to disable the cache
+     */
+    public void setAuthenticationCacheSize(int authenticationCacheSize) {
+
+        this.authenticationCacheSize = authenticationCacheSize;
+        if (authenticationCacheSize <= 0)
+            authenticationCache.clear();
+
+    }
+
+
+    /**
+     * Return the time in seconds during which a cached authentication is
+     * used.
+     */
+    public int getAuthenticationCacheTTL() {
+
+        return (this.authenticationCacheTTL);
+
+    }
+
+
+    /**
+     * Set the time in seconds during which a cached authentication is used.
+     *
+     * @param authenticationCacheTTL The new time to live
+     */
+    public void setAuthenticationCacheTTL(int authenticationCacheTTL) {
+
+        this.authenticationCacheTTL = authenticationCacheTTL;
+
+    }
+
+
+    /**
+     * Return the number of authentications found in the cache.
+     */
+    public long getAuthenticationCacheHits() {
+
+        return authenticationCacheHits.get();
+
+    }
+
+
+    /**
+     * Return the number of authentications which were not found in the
+     * cache.
+     */
+    public long getAuthenticationCacheMisses() {
+
+        return authenticationCacheMisses.get();
+
+    }
+
+
+    /**
+     * Return the ratio of authentications found in the cache, between 0
+     * and 1.
+     */
+    public double getAuthenticationCacheHitRatio() {
+
+        long hits = authenticationCacheHits.get();
+        long total = hits + authenticationCacheMisses.get();
+        return (total == 0) ? 0 : ((double) hits) / total;
+
+    }
+
+
     // --------------------------------------------------------- Public Methods
 
 
@@ -308,6 +454,22 @@ public abstract class RealmBase
      */
     public Principal authenticate(String username, String credentials) {
 
+        // Check the authentication cache first
+        String cacheKey = null;
+        if (authenticationCacheSize > 0 && username != null
+                && credentials != null && authenticationCacheSalt != null) {
+            cacheKey = getCacheKey(username, credentials);
+            CachedPrincipal cached = authenticationCache.get(cacheKey);
+            if (cached != null && cached.username.equals(username)) {
+                if (System.currentTimeMillis() < cached.expires) {
+                    authenticationCacheHits.incrementAndGet();
+                    return cached.principal;
+                }
+                authenticationCache.remove(cacheKey, cached);
+            }
+            authenticationCacheMisses.incrementAndGet();
+        }
+
         String serverCredentials = getPassword(username);
 
         boolean validated ;
@@ -330,7 +492,11 @@ public abstract class RealmBase
                                             username));
         }
 
-        return getPrincipal(username);
+        Principal principal = getPrincipal(username);
+        if (cacheKey != null && principal != null) {
+            cachePrincipal(cacheKey, username, principal);
+        }
+        return principal;
     }
 
 
@@ -390,11 +556,7 @@ public abstract class RealmBase
             }
         }
 
-        String serverDigest = null;
-        // Bugzilla 32137
-        synchronized(md5Helper) {
-            serverDigest = md5Encoder.encode(md5Helper.digest(valueBytes));
-        }
+        String serverDigest = md5Encoder.encode(md5Helper.digest(valueBytes));
 
         if (log.isDebugEnabled()) {
             log.debug("Digest : " + clientDigest + " Username:" + username 
@@ -454,6 +616,9 @@ public abstract class RealmBase
      * throwables will be caught and logged.
      */
     public void backgroundProcess() {
+
+        expireAuthenticationCache();
+
     }
 
 
@@ -467,7 +632,6 @@ public abstract class RealmBase
     public SecurityConstraint [] findSecurityConstraints(Request request,
                                                          Context context) {
 
-        ArrayList results = null;
         // Are there any defined security constraints?
         SecurityConstraint constraints[] = context.findConstraints();
         if ((constraints == null) || (constraints.length == 0)) {
@@ -476,10 +640,45 @@ public abstract class RealmBase
             return (null);
         }
 
-        // Check each defined security constraint
         String uri = request.getRequestPathMB().toString();
-        
         String method = request.getMethod();
+
+        // Use the constraints compiled by the context, if they are current
+        if (context instanceof StandardContext) {
+            SecurityConstraintMatcher matcher =
+                ((StandardContext) context).getConstraintMatcher();
+            if (matcher != null && matcher.getConstraints() == constraints) {
+                SecurityConstraint[] results = matcher.find(uri, method);
+                if (log.isDebugEnabled()) {
+                    if (results == null) {
+                        log.debug("  No applicable constraint located");
+                    } else {
+                        log.debug("  Found " + results.length
+                                + " constraints for " + method + " " + uri);
+                    }
+                }
+                return results;
+            }
+        }
+
+        return findSecurityConstraints(constraints, uri, method);
+
+    }
+
+
+    /**
+     * Return the SecurityConstraints among the specified ones which guard
+     * the specified request URI and method, or <code>null</code> if there is
+     * no such constraint.
+     *
+     * @param constraints Security constraints of the context
+     * @param uri Request URI, relative to the context
+     * @param method Request method
+     */
+    protected SecurityConstraint [] findSecurityConstraints(
+            SecurityConstraint[] constraints, String uri, String method) {
+
+        ArrayList results = null;
         int i;
         boolean found = false;
         for (i = 0; i < constraints.length; i++) {
@@ -565,14 +764,14 @@ public abstract class RealmBase
                             
                         if(pattern.length() == 2) {
                             matched = true;
-                            length = pattern.length();
+                            length = Math.max(length, pattern.length());
                         } else if(pattern.regionMatches(0,uri,0,
                                                         pattern.length()-1) ||
                                   (pattern.length()-2 == uri.length() &&
                                    pattern.regionMatches(0,uri,0,
                                                         pattern.length()-2))) {
                             matched = true;
-                            length = pattern.length();
+                            length = Math.max(length, pattern.length());
                         }
                     }
                 }
@@ -707,10 +906,11 @@ public abstract class RealmBase
     }
  
     /**
-     * Convert an ArrayList to a SecurityContraint [].
+     * Convert an ArrayList to a SecurityContraint [], or <code>null</code>
+     * if it is empty.
      */
     private SecurityConstraint [] resultsToArray(ArrayList results) {
-        if(results == null) {
+        if(results == null || results.size() == 0) {
             return null;
         }
         SecurityConstraint [] array = new SecurityConstraint[results.size()];
@@ -1053,16 +1253,20 @@ public abstract class RealmBase
         lifecycle.fireLifecycleEvent(START_EVENT, null);
         started = true;
 
-        // Create a MessageDigest instance for credentials, if desired
+        // Create the MessageDigest instances for credentials, if desired
         if (digest != null) {
             try {
-                md = MessageDigest.getInstance(digest);
-            } catch (NoSuchAlgorithmException e) {
+                md = new ThreadLocalDigest(digest);
+            } catch (IllegalStateException e) {
                 throw new LifecycleException
                     (sm.getString("realmBase.algorithm", digest), e);
             }
         }
 
+        // Salt the keys of the authentication cache
+        authenticationCacheSalt = new byte[16];
+        new SecureRandom().nextBytes(authenticationCacheSalt);
+
     }
 
 
@@ -1089,6 +1293,8 @@ public abstract class RealmBase
 
         // Clean up allocated resources
         md = null;
+        authenticationCache.clear();
+        authenticationCacheSalt = null;
         
         destroy();
     
@@ -1129,28 +1335,23 @@ public abstract class RealmBase
             return (credentials);
 
         // Digest the user credentials and return as hexadecimal
-        synchronized (this) {
-            try {
-                md.reset();
-    
-                byte[] bytes = null;
-                if(getDigestEncoding() == null) {
-                    bytes = credentials.getBytes();
-                } else {
-                    try {
-                        bytes = credentials.getBytes(getDigestEncoding());
-                    } catch (UnsupportedEncodingException uee) {
-                        log.error("Illegal digestEncoding: " + getDigestEncoding(), uee);
-                        throw new IllegalArgumentException(uee.getMessage());
-                    }
+        try {
+            byte[] bytes = null;
+            if(getDigestEncoding() == null) {
+                bytes = credentials.getBytes();
+            } else {
+                try {
+                    bytes = credentials.getBytes(getDigestEncoding());
+                } catch (UnsupportedEncodingException uee) {
+                    log.error("Illegal digestEncoding: " + getDigestEncoding(), uee);
+                    throw new IllegalArgumentException(uee.getMessage());
                 }
-                md.update(bytes);
-
-                return (HexUtils.convert(md.digest()));
-            } catch (Exception e) {
-                log.error(sm.getString("realmBase.digest"), e);
-                return (credentials);
             }
+
+            return (HexUtils.convert(md.digest(bytes)));
+        } catch (Exception e) {
+            log.error(sm.getString("realmBase.digest"), e);
+            return (credentials);
         }
 
     }
@@ -1163,15 +1364,6 @@ public abstract class RealmBase
      * Return the digest associated with given principal's user name.
      */
     protected String getDigest(String username, String realmName) {
-        if (md5Helper == null) {
-            try {
-                md5Helper = MessageDigest.getInstance("MD5");
-            } catch (NoSuchAlgorithmException e) {
-                log.error("Couldn't get MD5 digest: ", e);
-                throw new IllegalStateException(e.getMessage());
-            }
-        }
-
     	if (hasMessageDigest()) {
     		// Use pre-generated digest
     		return getPassword(username);
@@ -1192,13 +1384,67 @@ public abstract class RealmBase
             }
         }
 
-        byte[] digest = null;
-        // Bugzilla 32137
-        synchronized(md5Helper) {
-            digest = md5Helper.digest(valueBytes);
+        return md5Encoder.encode(md5Helper.digest(valueBytes));
+    }
+
+
+    /**
+     * Return the key of the authentication cache for the given username
+     * and credentials, which is a salted digest so that the credentials are
+     * not kept in memory.
+     */
+    protected String getCacheKey(String username, String credentials) {
+        byte[] usernameBytes;
+        byte[] credentialsBytes;
+        try {
+            usernameBytes = username.getBytes("UTF-8");
+            credentialsBytes = credentials.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e.getMessage());
         }
+        return HexUtils.convert(cacheKeyHelper.digest(authenticationCacheSalt,
+                usernameBytes, new byte[] { 0 }, credentialsBytes));
+    }
+
 
-        return md5Encoder.encode(digest);
+    /**
+     * Add a successful authentication to the cache. If the cache is full,
+     * the expired authentications are removed first, at most once per
+     * second, and then an arbitrary authentication is replaced.
+     */
+    protected void cachePrincipal(String cacheKey, String username,
+            Principal principal) {
+        long timeNow = System.currentTimeMillis();
+        if (authenticationCache.size() >= authenticationCacheSize) {
+            if (timeNow - authenticationCacheExpired > 1000L) {
+                authenticationCacheExpired = timeNow;
+                expireAuthenticationCache();
+            }
+            Iterator<String> keys = authenticationCache.keySet().iterator();
+            while (authenticationCache.size() >= authenticationCacheSize
+                    && keys.hasNext()) {
+                keys.next();
+                keys.remove();
+            }
+        }
+        authenticationCache.put(cacheKey, new CachedPrincipal(username,
+                principal, timeNow + authenticationCacheTTL * 1000L));
+    }
+
+
+    /**
+     * Remove the expired authentications from the cache.
+     */
+    protected void expireAuthenticationCache() {
+        if (!authenticationCache.isEmpty()) {
+            long timeNow = System.currentTimeMillis();
+            Iterator<CachedPrincipal> values =
+                authenticationCache.values().iterator();
+            while (values.hasNext()) {
+                if (values.next().expires <= timeNow)
+                    values.remove();
+            }
+        }
     }
 
 
@@ -1434,6 +1680,25 @@ public abstract class RealmBase
     }
 
 
+    /**
+     * Successful authentication kept in the authentication cache.
+     */
+    protected static class CachedPrincipal {
+
+        protected final String username;
+        protected final Principal principal;
+        protected final long expires;
+
+        protected CachedPrincipal(String username, Principal principal,
+                long expires) {
+            this.username = username;
+            this.principal = principal;
+            this.expires = expires;
+        }
+
+    }
+
+
     protected static class AllRolesMode {
         
         private String name;
@@ -0,0 +1,430 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.realm;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.catalina.deploy.SecurityCollection;
+import org.apache.catalina.deploy.SecurityConstraint;
+
+
+/**
+ * Index of the security constraints of a web application, which finds the
+ * constraints applicable to a request URI and method in the same way as
+ * <code>RealmBase.findSecurityConstraints</code>: exact patterns first, then
+ * the longest path prefix, then the extension, and finally the default
+ * pattern.
+ * <p>
+ * Like the <code>Mapper</code> does for servlet mappings, the patterns of
+ * each kind are kept in sorted arrays which are searched using the request
+ * URI without copying it. The HTTP methods named by the constraints are
+ * numbered, and all other methods share one more number, so that the
+ * constraints applicable to each pattern and method are merged once, when
+ * the index is compiled, and a lookup does not allocate.
+ * <p>
+ * The index is built from the constraints array returned by
+ * <code>Context.findConstraints</code>, which is replaced when constraints
+ * are added or removed, and must be compiled again in that case.
+ */
+public final class SecurityConstraintMatcher {
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    private SecurityConstraintMatcher(SecurityConstraint[] constraints,
+            String[] methods, Element[] exactElements,
+            Element[] prefixElements, Element[] extensionElements,
+            SecurityConstraint[] defaultConstraints) {
+        this.constraints = constraints;
+        this.methods = methods;
+        this.exactElements = exactElements;
+        this.prefixElements = prefixElements;
+        this.extensionElements = extensionElements;
+        this.defaultConstraints = defaultConstraints;
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * Maximum number of distinct methods, so that the methods, and one more
+     * for all others, fit in a <code>long</code> mask.
+     */
+    protected static final int MAX_METHODS = 63;
+
+
+    /**
+     * The constraints which have been compiled.
+     */
+    private final SecurityConstraint[] constraints;
+
+
+    /**
+     * The methods named in the constraints, by number.
+     */
+    private final String[] methods;
+
+
+    /**
+     * Exact patterns, sorted by name.
+     */
+    private final Element[] exactElements;
+
+
+    /**
+     * Path prefix patterns, without the trailing "/*", sorted by name.
+     */
+    private final Element[] prefixElements;
+
+
+    /**
+     * Extension patterns, without the leading "*.", sorted by name.
+     */
+    private final Element[] extensionElements;
+
+
+    /**
+     * Constraints of the default pattern, which apply to all methods.
+     */
+    private final SecurityConstraint[] defaultConstraints;
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Compile the specified security constraints.
+     *
+     * @param constraints Security constraints of the web application
+     * @return the index, or <code>null</code> if the constraints name too
+     *  many methods to be compiled
+     */
+    public static SecurityConstraintMatcher compile(
+            SecurityConstraint[] constraints) {
+
+        // Number the methods named by the collections
+        ArrayList<String> methodList = new ArrayList<String>();
+        for (int i = 0; i < constraints.length; i++) {
+            SecurityCollection[] collections = constraints[i].findCollections();
+            if (collections == null)
+                continue;
+            for (int j = 0; j < collections.length; j++) {
+                addMethods(methodList, collections[j].findMethods());
+                addMethods(methodList, collections[j].findMethodOmissions());
+            }
+        }
+        if (methodList.size() > MAX_METHODS - 1)
+            return null;
+        String[] methods = methodList.toArray(new String[methodList.size()]);
+        int slots = methods.length + 1;
+        long all = (1L << slots) - 1;
+
+        // Collect the collections matching each pattern
+        TreeMap<String, List<Match>> exacts = new TreeMap<String, List<Match>>();
+        TreeMap<String, List<Match>> prefixes = new TreeMap<String, List<Match>>();
+        TreeMap<String, List<Match>> extensions = new TreeMap<String, List<Match>>();
+        ArrayList<SecurityConstraint> defaults = new ArrayList<SecurityConstraint>();
+        HashSet<String> seen = new HashSet<String>();
+        for (int i = 0; i < constraints.length; i++) {
+            SecurityCollection[] collections = constraints[i].findCollections();
+            if (collections == null)
+                continue;
+            for (int j = 0; j < collections.length; j++) {
+                String[] patterns = collections[j].findPatterns();
+                if (patterns == null)
+                    continue;
+                Match match = new Match(i, constraints[i],
+                        mask(methods, collections[j].findMethods(), all),
+                        mask(methods, collections[j].findMethodOmissions(), 0));
+                seen.clear();
+                for (int k = 0; k < patterns.length; k++) {
+                    String pattern = patterns[k];
+                    // Every occurrence of an exact pattern counts
+                    add(exacts, pattern, match);
+                    if (!seen.add(pattern))
+                        continue;
+                    if (pattern.startsWith("/") && pattern.endsWith("/*")) {
+                        add(prefixes, pattern.substring(0, pattern.length() - 2),
+                                match);
+                    } else if (pattern.startsWith("*.")) {
+                        if (pattern.length() > 2)
+                            add(extensions, pattern.substring(2), match);
+                    } else if (pattern.equals("/")) {
+                        defaults.add(constraints[i]);
+                    }
+                }
+            }
+        }
+
+        return new SecurityConstraintMatcher(constraints, methods,
+                toElements(exacts, slots, false),
+                toElements(prefixes, slots, false),
+                toElements(extensions, slots, true),
+                toArray(defaults));
+
+    }
+
+
+    /**
+     * Return the constraints which have been compiled.
+     */
+    public SecurityConstraint[] getConstraints() {
+        return constraints;
+    }
+
+
+    /**
+     * Return the security constraints which apply to the specified request
+     * URI and method, or <code>null</code> if there are none. The returned
+     * array is shared and must not be modified.
+     *
+     * @param uri Request URI, relative to the context
+     * @param method Request method
+     */
+    public SecurityConstraint[] find(String uri, String method) {
+
+        int slot = methods.length;
+        for (int i = 0; i < methods.length; i++) {
+            if (methods[i].equals(method)) {
+                slot = i;
+                break;
+            }
+        }
+        long bit = 1L << slot;
+
+        // Exact match
+        Element element = find(exactElements, uri, 0, uri.length());
+        if (element != null && (element.found & bit) != 0)
+            return element.constraints[slot];
+
+        // Longest path prefix match
+        if (prefixElements.length > 0) {
+            int end = uri.length();
+            while (true) {
+                element = find(prefixElements, uri, 0, end);
+                if (element != null && (element.found & bit) != 0)
+                    return element.constraints[slot];
+                if (end == 0)
+                    break;
+                end = Math.max(uri.lastIndexOf('/', end - 1), 0);
+            }
+        }
+
+        // Extension match
+        if (extensionElements.length > 0) {
+            int slash = uri.lastIndexOf('/');
+            int dot = uri.lastIndexOf('.');
+            if (slash >= 0 && dot > slash && dot != uri.length() - 1) {
+                element = find(extensionElements, uri, dot + 1, uri.length());
+                if (element != null && (element.found & bit) != 0)
+                    return element.constraints[slot];
+            }
+        }
+
+        // Default pattern
+        return defaultConstraints;
+
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * Add the specified methods which are not yet numbered.
+     */
+    private static void addMethods(List<String> methodList, String[] names) {
+        if (names == null)
+            return;
+        for (int i = 0; i < names.length; i++) {
+            if (!methodList.contains(names[i]))
+                methodList.add(names[i]);
+        }
+    }
+
+
+    /**
+     * Return the mask of the specified methods, or the default value if
+     * there are none.
+     */
+    private static long mask(String[] methods, String[] names, long empty) {
+        if (names == null || names.length == 0)
+            return empty;
+        long mask = 0;
+        for (int i = 0; i < names.length; i++) {
+            mask |= 1L << Arrays.asList(methods).indexOf(names[i]);
+        }
+        return mask;
+    }
+
+
+    private static void add(Map<String, List<Match>> map, String name,
+            Match match) {
+        List<Match> matches = map.get(name);
+        if (matches == null) {
+            matches = new ArrayList<Match>();
+            map.put(name, matches);
+        }
+        matches.add(match);
+    }
+
+
+    /**
+     * Merge the constraints of each pattern for each method. A collection
+     * which omits a method is ignored for that method. For extension
+     * patterns, only the first such collection of each constraint is
+     * considered.
+     */
+    private static Element[] toElements(TreeMap<String, List<Match>> map,
+            int slots, boolean firstPerConstraint) {
+        Element[] elements = new Element[map.size()];
+        int n = 0;
+        Iterator<Map.Entry<String, List<Match>>> entries =
+            map.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, List<Match>> entry = entries.next();
+            List<Match> matches = entry.getValue();
+            Element element = new Element(entry.getKey(), slots);
+            ArrayList<SecurityConstraint> results =
+                new ArrayList<SecurityConstraint>();
+            for (int slot = 0; slot < slots; slot++) {
+                long bit = 1L << slot;
+                results.clear();
+                int lastConstraint = -1;
+                for (int i = 0; i < matches.size(); i++) {
+                    Match match = matches.get(i);
+                    if ((match.omitted & bit) != 0)
+                        continue;
+                    if (firstPerConstraint) {
+                        if (match.index == lastConstraint)
+                            continue;
+                        lastConstraint = match.index;
+                    }
+                    element.found |= bit;
+                    if ((match.methods & bit) != 0)
+                        results.add(match.constraint);
+                }
+                element.constraints[slot] = toArray(results);
+            }
+            elements[n++] = element;
+        }
+        return elements;
+    }
+
+
+    private static SecurityConstraint[] toArray(
+            List<SecurityConstraint> results) {
+        if (results.isEmpty())
+            return null;
+        return results.toArray(new SecurityConstraint[results.size()]);
+    }
+
+
+    /**
+     * Find the element with the specified name, given as a region of a
+     * string, in a sorted array of elements.
+     */
+    private static Element find(Element[] map, String name, int start,
+            int end) {
+        int a = 0;
+        int b = map.length - 1;
+        while (a <= b) {
+            int i = (a + b) >>> 1;
+            int result = compare(name, start, end, map[i].name);
+            if (result > 0) {
+                a = i + 1;
+            } else if (result < 0) {
+                b = i - 1;
+            } else {
+                return map[i];
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * Compare a region of a string with another string.
+     * Return a negative, zero or positive value if inferior, equal, or
+     * superior to the other string.
+     */
+    private static int compare(String name, int start, int end,
+            String compareTo) {
+        int length = end - start;
+        int len = Math.min(length, compareTo.length());
+        for (int i = 0; i < len; i++) {
+            int result = name.charAt(start + i) - compareTo.charAt(i);
+            if (result != 0)
+                return result;
+        }
+        return length - compareTo.length();
+    }
+
+
+    // ---------------------------------------------------------- Inner Classes
+
+
+    /**
+     * Collection of a constraint matching a pattern.
+     */
+    private static final class Match {
+
+        final int index;
+        final SecurityConstraint constraint;
+        final long methods;
+        final long omitted;
+
+        Match(int index, SecurityConstraint constraint, long methods,
+                long omitted) {
+            this.index = index;
+            this.constraint = constraint;
+            this.methods = methods;
+            this.omitted = omitted;
+        }
+
+    }
+
+
+    /**
+     * Pattern with its merged constraints, by method.
+     */
+    private static final class Element {
+
+        final String name;
+        long found = 0;
+        final SecurityConstraint[][] constraints;
+
+        Element(String name, int slots) {
+            this.name = name;
+            this.constraints = new SecurityConstraint[slots][];
+        }
+
+    }
+
+
+}
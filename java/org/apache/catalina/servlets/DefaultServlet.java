@@ -59,6 +59,7 @@ import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 
 import org.apache.catalina.Globals;
+import org.apache.catalina.connector.CoyoteOutputStream;
 import org.apache.catalina.connector.RequestFacade;
 import org.apache.catalina.connector.ResponseFacade;
 import org.apache.catalina.util.RequestUtil;
@@ -66,6 +67,7 @@ import org.apache.catalina.util.ServerInfo;
 import org.apache.catalina.util.StringManager;
 import org.apache.catalina.util.URLEncoder;
 import org.apache.naming.resources.CacheEntry;
+import org.apache.naming.resources.MappedResourceCache;
 import org.apache.naming.resources.ProxyDirContext;
 import org.apache.naming.resources.Resource;
 import org.apache.naming.resources.ResourceAttributes;
@@ -165,6 +167,23 @@ public class DefaultServlet
      */
     protected int sendfileSize = 48 * 1024;
     
+    /**
+     * Maximum total size in bytes of the memory mapped files used to serve
+     * resources which are too large to be cached on the heap. Mapping is
+     * disabled if 0.
+     */
+    protected long mappedCacheSize = 0;
+    
+    /**
+     * Maximum size in bytes of a memory mapped file.
+     */
+    protected long mappedObjectMaxSize = -1;
+    
+    /**
+     * Cache of memory mapped files.
+     */
+    protected MappedResourceCache mappedCache = null;
+    
     /**
      * Should the Accept-Ranges: bytes header be send with static resources?
      */
@@ -224,6 +243,10 @@ public class DefaultServlet
      * Finalize this servlet.
      */
     public void destroy() {
+        if (mappedCache != null) {
+            mappedCache.clear();
+            mappedCache = null;
+        }
     }
 
 
@@ -250,6 +273,14 @@ public class DefaultServlet
             sendfileSize = 
                 Integer.parseInt(getServletConfig().getInitParameter("sendfileSize")) * 1024;
 
+        if (getServletConfig().getInitParameter("mappedCacheSize") != null)
+            mappedCacheSize = 
+                Long.parseLong(getServletConfig().getInitParameter("mappedCacheSize")) * 1024;
+
+        if (getServletConfig().getInitParameter("mappedObjectMaxSize") != null)
+            mappedObjectMaxSize = 
+                Long.parseLong(getServletConfig().getInitParameter("mappedObjectMaxSize")) * 1024;
+
         fileEncoding = getServletConfig().getInitParameter("fileEncoding");
 
         globalXsltFile = getServletConfig().getInitParameter("globalXsltFile");
@@ -289,6 +320,13 @@ public class DefaultServlet
             throw new UnavailableException("No resources");
         }
 
+        if (mappedCacheSize > 0) {
+            if ((mappedObjectMaxSize < 0) || (mappedObjectMaxSize > mappedCacheSize)) {
+                mappedObjectMaxSize = mappedCacheSize / 8;
+            }
+            mappedCache = new MappedResourceCache(mappedCacheSize);
+        }
+
     }
 
 
@@ -1720,6 +1758,10 @@ public class DefaultServlet
                 ostream.write(buffer, 0, buffer.length);
                 return;
             }
+            if (copyMapped(cacheEntry, ostream, 0, 
+                    cacheEntry.attributes.getContentLength() - 1)) {
+                return;
+            }
             resourceInputStream = cacheEntry.resource.streamContent();
         } else {
             resourceInputStream = is;
@@ -1800,6 +1842,10 @@ public class DefaultServlet
 
         IOException exception = null;
 
+        if (copyMapped(cacheEntry, ostream, range.start, range.end)) {
+            return;
+        }
+
         InputStream resourceInputStream = cacheEntry.resource.streamContent();
         InputStream istream =
             new BufferedInputStream(resourceInputStream, input);
@@ -1872,10 +1918,6 @@ public class DefaultServlet
 
         while ( (exception == null) && (ranges.hasNext()) ) {
 
-            InputStream resourceInputStream = cacheEntry.resource.streamContent();
-            InputStream istream =
-                new BufferedInputStream(resourceInputStream, input);
-
             Range currentRange = ranges.next();
 
             // Writing MIME header.
@@ -1889,6 +1931,15 @@ public class DefaultServlet
             ostream.println();
 
             // Printing content
+            if (copyMapped(cacheEntry, ostream, currentRange.start, 
+                    currentRange.end)) {
+                continue;
+            }
+
+            InputStream resourceInputStream = cacheEntry.resource.streamContent();
+            InputStream istream =
+                new BufferedInputStream(resourceInputStream, input);
+
             exception = copyRange(istream, ostream, currentRange.start,
                                   currentRange.end);
 
@@ -1965,6 +2016,45 @@ public class DefaultServlet
     }
 
 
+    /**
+     * Write the specified range of the resource from a memory mapping of
+     * the file, if the resource is a file whose content is not cached on the
+     * heap, and the output stream is the one provided by the container.
+     *
+     * @param cacheEntry The resource
+     * @param ostream The output stream to write to
+     * @param start Position of the first byte to write
+     * @param end Position of the last byte to write (inclusive)
+     * @return true if the content has been written
+     * @exception IOException if an input/output error occurs
+     */
+    protected boolean copyMapped(CacheEntry cacheEntry, ServletOutputStream ostream,
+            long start, long end)
+        throws IOException {
+        if ((mappedCache == null) || !(ostream instanceof CoyoteOutputStream)
+                || (cacheEntry.resource == null) || (cacheEntry.attributes == null)
+                || (cacheEntry.resource.getContent() != null)) {
+            return false;
+        }
+        String canonicalPath = cacheEntry.attributes.getCanonicalPath();
+        long length = cacheEntry.attributes.getContentLength();
+        if ((canonicalPath == null) || (length > mappedObjectMaxSize)) {
+            return false;
+        }
+        MappedResourceCache.MappedEntry mappedEntry = mappedCache.acquire
+            (canonicalPath, cacheEntry.attributes.getLastModified(), length);
+        if (mappedEntry == null) {
+            return false;
+        }
+        try {
+            ((CoyoteOutputStream) ostream).write(mappedEntry.getBuffer(start, end));
+        } finally {
+            mappedEntry.release();
+        }
+        return true;
+    }
+
+
     /**
      * Copy the contents of the specified input stream to the specified
      * output stream, and ensure that both streams are closed before returning
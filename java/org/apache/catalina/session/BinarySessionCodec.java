@@ -0,0 +1,772 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.session;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.catalina.SessionListener;
+import org.apache.catalina.util.CustomObjectInputStream;
+import org.apache.catalina.util.StringManager;
+
+
+/**
+ * Compact binary session codec. The fixed fields of the session are written
+ * as variable length integers, the attribute names are written once per
+ * stream and then referenced by index, and String and primitive wrapper
+ * attributes are written directly. The other attributes of a session or of
+ * a delta are serialized together after its attribute names, using a single
+ * object stream which is compressed if it is large, so that their class
+ * descriptors are written once and the objects they share are still shared
+ * once they are read.
+ * <p>
+ * Streams written using Java serialization, by previous versions or by the
+ * {@link LegacySessionCodec}, are detected and can still be read.
+ */
+public class BinarySessionCodec implements SessionCodec {
+
+
+    // -------------------------------------------------------------- Constants
+
+
+    /**
+     * Default size above which attributes are compressed, in bytes. A
+     * negative value disables compression.
+     */
+    public static final int COMPRESSION_THRESHOLD =
+        Integer.parseInt(System.getProperty("org.apache.catalina.session.BinarySessionCodec.COMPRESSION_THRESHOLD", "8192"));
+
+
+    protected static final byte[] MAGIC = { 'J', 'W', 'S' };
+    protected static final int VERSION = 2;
+
+    protected static final int TYPE_REMOVED = 0;
+    protected static final int TYPE_STRING = 1;
+    protected static final int TYPE_DEFLATED_STRING = 2;
+    protected static final int TYPE_INTEGER = 3;
+    protected static final int TYPE_LONG = 4;
+    protected static final int TYPE_TRUE = 5;
+    protected static final int TYPE_FALSE = 6;
+    protected static final int TYPE_SHORT = 7;
+    protected static final int TYPE_BYTE = 8;
+    protected static final int TYPE_CHARACTER = 9;
+    protected static final int TYPE_FLOAT = 10;
+    protected static final int TYPE_DOUBLE = 11;
+    protected static final int TYPE_SERIALIZED = 12;
+    protected static final int TYPE_DEFLATED_SERIALIZED = 13;
+    protected static final int TYPE_OBJECT = 14;
+
+    protected static final int SESSION = 1;
+    protected static final int DELTA = 2;
+
+    protected static final int FLAG_NEW = 1;
+    protected static final int FLAG_VALID = 2;
+
+
+    /**
+     * The string manager for this package.
+     */
+    protected static StringManager sm =
+        StringManager.getManager(Constants.Package);
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * Size above which attributes are compressed, in bytes.
+     */
+    protected int compressionThreshold = COMPRESSION_THRESHOLD;
+
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    public SessionOutput createOutput(OutputStream stream, int count)
+        throws IOException {
+        DataOutputStream out =
+            new DataOutputStream(new BufferedOutputStream(stream));
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+        writeVarInt(out, (count < 0) ? 1 : count);
+        return new BinarySessionOutput(out);
+    }
+
+
+    public SessionInput createInput(InputStream stream, ClassLoader classLoader,
+            boolean multiple)
+        throws IOException {
+        if (!(stream instanceof BufferedInputStream)) {
+            stream = new BufferedInputStream(stream);
+        }
+        stream.mark(MAGIC.length + 1);
+        int b0 = stream.read();
+        int b1 = stream.read();
+        stream.reset();
+        if (b0 == 0xAC && b1 == 0xED) {
+            // Java serialization stream header
+            return new LegacySessionCodec().createInput(stream, classLoader, multiple);
+        }
+        DataInputStream in = new DataInputStream(stream);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (in.readByte() != MAGIC[i]) {
+                throw new IOException(sm.getString("binarySessionCodec.format"));
+            }
+        }
+        int version = in.readUnsignedByte();
+        if (version < 1 || version > VERSION) {
+            throw new IOException(sm.getString("binarySessionCodec.version",
+                    String.valueOf(version)));
+        }
+        return new BinarySessionInput(in, classLoader, readVarInt(in));
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+
+    /**
+     * Create an object stream reading the serialized attribute values.
+     */
+    protected ObjectInputStream createObjectInput(byte[] bytes,
+            ClassLoader classLoader)
+        throws IOException {
+        ByteArrayInputStream bis = new ByteArrayInputStream(bytes);
+        if (classLoader != null) {
+            return new CustomObjectInputStream(bis, classLoader);
+        } else {
+            return new ObjectInputStream(bis);
+        }
+    }
+
+
+    /**
+     * Deserialize an attribute value written separately, as done by the
+     * first version of the format.
+     */
+    protected Object deserialize(byte[] bytes, ClassLoader classLoader)
+        throws ClassNotFoundException, IOException {
+        ObjectInputStream ois = createObjectInput(bytes, classLoader);
+        try {
+            return ois.readObject();
+        } finally {
+            ois.close();
+        }
+    }
+
+
+    /**
+     * Compress the bytes, and return null if compression does not help.
+     */
+    protected byte[] deflate(byte[] bytes) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            byte[] buffer = new byte[bytes.length];
+            int length = 0;
+            while (!deflater.finished() && length < buffer.length) {
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+            if (!deflater.finished()) {
+                return null;
+            }
+            byte[] result = new byte[length];
+            System.arraycopy(buffer, 0, result, 0, length);
+            return result;
+        } finally {
+            deflater.end();
+        }
+    }
+
+
+    /**
+     * Decompress the bytes.
+     */
+    protected byte[] inflate(byte[] bytes, int length)
+        throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes);
+            byte[] result = new byte[length];
+            int pos = 0;
+            while (pos < length && !inflater.finished()) {
+                int n = inflater.inflate(result, pos, length - pos);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                pos += n;
+            }
+            if (pos != length) {
+                throw new IOException(sm.getString("binarySessionCodec.format"));
+            }
+            return result;
+        } catch (DataFormatException e) {
+            IOException ioe = new IOException(e.getMessage());
+            ioe.initCause(e);
+            throw ioe;
+        } finally {
+            inflater.end();
+        }
+    }
+
+
+    protected static void writeVarInt(DataOutputStream out, int value)
+        throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+
+    protected static void writeVarLong(DataOutputStream out, long value)
+        throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte(((int) value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+
+    protected static void writeSignedVarInt(DataOutputStream out, int value)
+        throws IOException {
+        writeVarInt(out, (value << 1) ^ (value >> 31));
+    }
+
+
+    protected static void writeBytes(DataOutputStream out, byte[] bytes)
+        throws IOException {
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+
+    protected static int readVarInt(DataInputStream in)
+        throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException(sm.getString("binarySessionCodec.format"));
+    }
+
+
+    protected static long readVarLong(DataInputStream in)
+        throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= ((long) (b & 0x7F)) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException(sm.getString("binarySessionCodec.format"));
+    }
+
+
+    protected static int readSignedVarInt(DataInputStream in)
+        throws IOException {
+        int value = readVarInt(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+
+    protected static byte[] readBytes(DataInputStream in)
+        throws IOException {
+        int length = readVarInt(in);
+        if (length < 0) {
+            throw new IOException(sm.getString("binarySessionCodec.format"));
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+
+    protected static void writeString(DataOutputStream out, String value)
+        throws IOException {
+        writeBytes(out, value.getBytes("UTF-8"));
+    }
+
+
+    protected static String readString(DataInputStream in)
+        throws IOException {
+        return new String(readBytes(in), "UTF-8");
+    }
+
+
+    // ------------------------------------------------ BinarySessionOutput Class
+
+
+    protected class BinarySessionOutput implements SessionOutput {
+
+        protected DataOutputStream out;
+
+        /**
+         * Attribute names already written to the stream, with their index.
+         */
+        protected HashMap<String, Integer> names = new HashMap<String, Integer>();
+
+        protected BinarySessionOutput(DataOutputStream out) {
+            this.out = out;
+        }
+
+        public void writeSession(StandardSession session)
+            throws IOException {
+
+            out.writeByte(SESSION);
+            writeVarLong(out, session.creationTime);
+            writeSignedVarInt(out, session.lastAccessedTime);
+            writeSignedVarInt(out, session.thisAccessedTime);
+            writeSignedVarInt(out, session.maxInactiveInterval);
+            out.writeByte((session.isNew ? FLAG_NEW : 0) | (session.isValid ? FLAG_VALID : 0));
+            writeString(out, session.id);
+            if (session.manager.getContainer().getLogger().isDebugEnabled())
+                session.manager.getContainer().getLogger().debug
+                    ("writeSession() storing session " + session.id);
+
+            // Encode the serializable attributes, and remove the others
+            String keys[] = session.keys();
+            ArrayList<String> saveNames = new ArrayList<String>();
+            ArrayList<Object> saveValues = new ArrayList<Object>();
+            for (int i = 0; i < keys.length; i++) {
+                Object value = session.attributes.get(keys[i]);
+                if (value == null) {
+                    continue;
+                } else if ((value instanceof Serializable) && (!session.exclude(keys[i]))) {
+                    saveNames.add(keys[i]);
+                    saveValues.add(value);
+                } else {
+                    session.removeAttributeInternal(keys[i], true);
+                }
+            }
+            String[] names = saveNames.toArray(new String[saveNames.size()]);
+            Object[] values = saveValues.toArray();
+            byte[] objects = serialize(session, names, values);
+
+            int n = 0;
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null) {
+                    n++;
+                }
+            }
+            writeVarInt(out, n);
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null) {
+                    writeName(names[i]);
+                    writeValue(values[i]);
+                }
+            }
+            writeObjects(objects);
+
+        }
+
+        public void writeDelta(StandardSession session)
+            throws IOException {
+
+            out.writeByte(DELTA);
+            writeSignedVarInt(out, session.lastAccessedTime);
+            writeSignedVarInt(out, session.thisAccessedTime);
+            writeSignedVarInt(out, session.maxInactiveInterval);
+            out.writeByte((session.isNew ? FLAG_NEW : 0) | (session.isValid ? FLAG_VALID : 0));
+            if (session.manager.getContainer().getLogger().isDebugEnabled())
+                session.manager.getContainer().getLogger().debug
+                    ("writeDelta() storing session " + session.id);
+
+            // Encode the changed attributes, a null value meaning that the
+            // attribute is not present once the delta is applied
+            String keys[] = session.drainDirtyAttributes();
+            Object values[] = new Object[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                Object value = session.attributes.get(keys[i]);
+                if (value == null) {
+                    continue;
+                } else if ((value instanceof Serializable) && (!session.exclude(keys[i]))) {
+                    values[i] = value;
+                } else {
+                    session.removeAttributeInternal(keys[i], true);
+                }
+            }
+            byte[] objects = serialize(session, keys, values);
+
+            writeVarInt(out, keys.length);
+            for (int i = 0; i < keys.length; i++) {
+                writeName(keys[i]);
+                if (values[i] == null) {
+                    out.writeByte(TYPE_REMOVED);
+                } else {
+                    writeValue(values[i]);
+                }
+            }
+            writeObjects(objects);
+
+        }
+
+        public void close()
+            throws IOException {
+            out.flush();
+            out.close();
+        }
+
+        protected void writeName(String name)
+            throws IOException {
+            Integer index = names.get(name);
+            if (index != null) {
+                writeVarInt(out, index.intValue() + 1);
+            } else {
+                writeVarInt(out, 0);
+                writeString(out, name);
+                names.put(name, Integer.valueOf(names.size()));
+            }
+        }
+
+        protected boolean isDirect(Object value) {
+            return (value instanceof String || value instanceof Integer
+                    || value instanceof Long || value instanceof Boolean
+                    || value instanceof Short || value instanceof Byte
+                    || value instanceof Character || value instanceof Float
+                    || value instanceof Double);
+        }
+
+        /**
+         * Serialize the values which are not written directly using a single
+         * object stream, and return <code>null</code> if there are none. The
+         * values which cannot be serialized are logged and set to
+         * <code>null</code>.
+         */
+        protected byte[] serialize(StandardSession session, String[] keys,
+                Object[] values)
+            throws IOException {
+            while (true) {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                ObjectOutputStream oos = null;
+                int i = 0;
+                try {
+                    for (i = 0; i < values.length; i++) {
+                        if (values[i] != null && !isDirect(values[i])) {
+                            if (oos == null) {
+                                oos = new ObjectOutputStream(bos);
+                            }
+                            oos.writeObject(values[i]);
+                        }
+                    }
+                    if (oos == null) {
+                        return null;
+                    }
+                    oos.close();
+                    return bos.toByteArray();
+                } catch (NotSerializableException e) {
+                    // The stream cannot be used anymore, so write the other
+                    // values again
+                    session.manager.getContainer().getLogger().warn
+                        (sm.getString("standardSession.notSerializable",
+                         keys[i], session.id), e);
+                    values[i] = null;
+                }
+            }
+        }
+
+        protected void writeObjects(byte[] objects)
+            throws IOException {
+            if (objects != null) {
+                writeCompressible(objects, TYPE_SERIALIZED, TYPE_DEFLATED_SERIALIZED);
+            }
+        }
+
+        protected void writeValue(Object value)
+            throws IOException {
+            if (value instanceof String) {
+                String string = (String) value;
+                if (compressionThreshold >= 0 && string.length() > compressionThreshold) {
+                    writeCompressible(string.getBytes("UTF-8"), TYPE_STRING, TYPE_DEFLATED_STRING);
+                } else {
+                    out.writeByte(TYPE_STRING);
+                    writeString(out, string);
+                }
+            } else if (value instanceof Integer) {
+                out.writeByte(TYPE_INTEGER);
+                writeSignedVarInt(out, ((Integer) value).intValue());
+            } else if (value instanceof Long) {
+                out.writeByte(TYPE_LONG);
+                long l = ((Long) value).longValue();
+                writeVarLong(out, (l << 1) ^ (l >> 63));
+            } else if (value instanceof Boolean) {
+                out.writeByte(((Boolean) value).booleanValue() ? TYPE_TRUE : TYPE_FALSE);
+            } else if (value instanceof Short) {
+                out.writeByte(TYPE_SHORT);
+                out.writeShort(((Short) value).shortValue());
+            } else if (value instanceof Byte) {
+                out.writeByte(TYPE_BYTE);
+                out.writeByte(((Byte) value).byteValue());
+            } else if (value instanceof Character) {
+                out.writeByte(TYPE_CHARACTER);
+                out.writeChar(((Character) value).charValue());
+            } else if (value instanceof Float) {
+                out.writeByte(TYPE_FLOAT);
+                out.writeFloat(((Float) value).floatValue());
+            } else if (value instanceof Double) {
+                out.writeByte(TYPE_DOUBLE);
+                out.writeDouble(((Double) value).doubleValue());
+            } else {
+                out.writeByte(TYPE_OBJECT);
+            }
+        }
+
+        protected void writeCompressible(byte[] bytes, int type, int deflatedType)
+            throws IOException {
+            if (compressionThreshold >= 0 && bytes.length > compressionThreshold) {
+                byte[] deflated = deflate(bytes);
+                if (deflated != null) {
+                    out.writeByte(deflatedType);
+                    writeVarInt(out, bytes.length);
+                    writeBytes(out, deflated);
+                    return;
+                }
+            }
+            out.writeByte(type);
+            writeBytes(out, bytes);
+        }
+
+    }
+
+
+    // ------------------------------------------------- BinarySessionInput Class
+
+
+    protected class BinarySessionInput implements SessionInput {
+
+        protected DataInputStream in;
+        protected ClassLoader classLoader;
+        protected int count;
+
+        /**
+         * Attribute names read from the stream, by index.
+         */
+        protected ArrayList<String> names = new ArrayList<String>();
+
+        protected BinarySessionInput(DataInputStream in, ClassLoader classLoader, int count) {
+            this.in = in;
+            this.classLoader = classLoader;
+            this.count = count;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public void readSession(StandardSession session)
+            throws ClassNotFoundException, IOException {
+
+            if (in.readByte() != SESSION) {
+                throw new IOException(sm.getString("binarySessionCodec.format"));
+            }
+            session.authType = null;        // Transient only
+            session.creationTime = readVarLong(in);
+            session.lastAccessedTime = readSignedVarInt(in);
+            session.thisAccessedTime = readSignedVarInt(in);
+            session.maxInactiveInterval = readSignedVarInt(in);
+            int flags = in.readUnsignedByte();
+            session.isNew = ((flags & FLAG_NEW) != 0);
+            session.isValid = ((flags & FLAG_VALID) != 0);
+            session.principal = null;       // Transient only
+            session.expiryIndexKey = -1;    // Transient only
+            session.id = readString(in);
+            if (session.manager.getContainer().getLogger().isDebugEnabled())
+                session.manager.getContainer().getLogger().debug
+                    ("readSession() loading session " + session.id);
+
+            if (session.attributes == null)
+                session.attributes = new ConcurrentHashMap<String, Object>();
+            int n = readVarInt(in);
+            ArrayList<String> objectNames = new ArrayList<String>();
+            for (int i = 0; i < n; i++) {
+                String name = readName();
+                int type = in.readUnsignedByte();
+                if (type == TYPE_OBJECT) {
+                    objectNames.add(name);
+                } else {
+                    session.attributes.put(name, readValue(type));
+                }
+            }
+            readObjects(session, objectNames);
+
+            if (session.listeners == null) {
+                session.listeners = new ArrayList<SessionListener>();
+            }
+            if (session.notes == null) {
+                session.notes = new ConcurrentHashMap<String, Object>();
+            }
+
+        }
+
+        public void readDelta(StandardSession session)
+            throws ClassNotFoundException, IOException {
+
+            if (in.readByte() != DELTA) {
+                throw new IOException(sm.getString("binarySessionCodec.format"));
+            }
+            session.lastAccessedTime = readSignedVarInt(in);
+            session.thisAccessedTime = readSignedVarInt(in);
+            session.maxInactiveInterval = readSignedVarInt(in);
+            int flags = in.readUnsignedByte();
+            session.isNew = ((flags & FLAG_NEW) != 0);
+            session.isValid = ((flags & FLAG_VALID) != 0);
+
+            int n = readVarInt(in);
+            ArrayList<String> objectNames = new ArrayList<String>();
+            for (int i = 0; i < n; i++) {
+                String name = readName();
+                int type = in.readUnsignedByte();
+                if (type == TYPE_REMOVED) {
+                    session.attributes.remove(name);
+                } else if (type == TYPE_OBJECT) {
+                    objectNames.add(name);
+                } else {
+                    session.attributes.put(name, readValue(type));
+                }
+            }
+            readObjects(session, objectNames);
+
+        }
+
+        public void close()
+            throws IOException {
+            in.close();
+        }
+
+        protected String readName()
+            throws IOException {
+            int index = readVarInt(in);
+            if (index == 0) {
+                String name = readString(in);
+                names.add(name);
+                return name;
+            } else if (index <= names.size()) {
+                return names.get(index - 1);
+            } else {
+                throw new IOException(sm.getString("binarySessionCodec.format"));
+            }
+        }
+
+        /**
+         * Read the serialized values of the given attributes, which follow
+         * the names of the attributes of a session or a delta.
+         */
+        protected void readObjects(StandardSession session, ArrayList<String> objectNames)
+            throws ClassNotFoundException, IOException {
+            if (objectNames.isEmpty()) {
+                return;
+            }
+            byte[] bytes = null;
+            int type = in.readUnsignedByte();
+            if (type == TYPE_SERIALIZED) {
+                bytes = readBytes(in);
+            } else if (type == TYPE_DEFLATED_SERIALIZED) {
+                int length = readVarInt(in);
+                bytes = inflate(readBytes(in), length);
+            } else {
+                throw new IOException(sm.getString("binarySessionCodec.format"));
+            }
+            ObjectInputStream ois = createObjectInput(bytes, classLoader);
+            try {
+                for (int i = 0; i < objectNames.size(); i++) {
+                    session.attributes.put(objectNames.get(i), ois.readObject());
+                }
+            } finally {
+                ois.close();
+            }
+        }
+
+        protected Object readValue(int type)
+            throws ClassNotFoundException, IOException {
+            switch (type) {
+            case TYPE_STRING:
+                return readString(in);
+            case TYPE_DEFLATED_STRING:
+                int stringLength = readVarInt(in);
+                return new String(inflate(readBytes(in), stringLength), "UTF-8");
+            case TYPE_INTEGER:
+                return Integer.valueOf(readSignedVarInt(in));
+            case TYPE_LONG:
+                long l = readVarLong(in);
+                return Long.valueOf((l >>> 1) ^ -(l & 1));
+            case TYPE_TRUE:
+                return Boolean.TRUE;
+            case TYPE_FALSE:
+                return Boolean.FALSE;
+            case TYPE_SHORT:
+                return Short.valueOf(in.readShort());
+            case TYPE_BYTE:
+                return Byte.valueOf(in.readByte());
+            case TYPE_CHARACTER:
+                return Character.valueOf(in.readChar());
+            case TYPE_FLOAT:
+                return Float.valueOf(in.readFloat());
+            case TYPE_DOUBLE:
+                return Double.valueOf(in.readDouble());
+            case TYPE_SERIALIZED:
+                return deserialize(readBytes(in), classLoader);
+            case TYPE_DEFLATED_SERIALIZED:
+                int length = readVarInt(in);
+                return deserialize(inflate(readBytes(in), length), classLoader);
+            default:
+                throw new IOException(sm.getString("binarySessionCodec.format"));
+            }
+        }
+
+    }
+
+
+}
@@ -0,0 +1,54 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.session;
+
+
+import java.io.IOException;
+
+import org.apache.catalina.Store;
+
+
+/**
+ * A <b>Store</b> which can save only the attributes of a session which have
+ * changed since it was last saved, in addition to the whole session.
+ * <p>
+ * The deltas are applied to the last full copy of the session when it is
+ * loaded. The number of deltas written since the last full save is kept in
+ * the <code>storedDeltas</code> field of the session, and is set by
+ * <code>load</code>.
+ */
+public interface DeltaStore extends Store {
+
+
+    /**
+     * Save the fixed fields of the session, and the attributes which have
+     * been set or removed since it was last saved.
+     *
+     * @param session Session to be saved
+     * @return <code>false</code> if this Store does not contain a full copy
+     *   of the session, in which case the session must be saved using
+     *   <code>save</code>
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    public boolean saveDelta(StandardSession session)
+        throws IOException;
+
+
+}
@@ -18,14 +18,11 @@
 package org.apache.catalina.session;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 
 import javax.servlet.ServletContext;
@@ -35,7 +32,6 @@ import org.apache.catalina.Context;
 import org.apache.catalina.Loader;
 import org.apache.catalina.Session;
 import org.apache.catalina.Store;
-import org.apache.catalina.util.CustomObjectInputStream;
 
 /**
  * Concrete implementation of the <b>Store</b> interface that utilizes a file
@@ -244,7 +240,7 @@ public final class FileStore extends StoreBase implements Store {
 		}
 
 		FileInputStream fis = null;
-		ObjectInputStream ois = null;
+		SessionCodec.SessionInput input = null;
 		Loader loader = null;
 		ClassLoader classLoader = null;
 		try {
@@ -255,39 +251,33 @@ public final class FileStore extends StoreBase implements Store {
 				loader = container.getLoader();
 			if (loader != null)
 				classLoader = loader.getClassLoader();
-			if (classLoader != null)
-				ois = new CustomObjectInputStream(bis, classLoader);
-			else
-				ois = new ObjectInputStream(bis);
+			input = getSessionCodec().createInput(bis, classLoader, false);
 		} catch (FileNotFoundException e) {
 			if (manager.getContainer().getLogger().isDebugEnabled())
 				manager.getContainer().getLogger().debug("No persisted data file found");
 			return (null);
 		} catch (IOException e) {
-			if (ois != null) {
+			if (fis != null) {
 				try {
-					ois.close();
+					fis.close();
 				} catch (IOException f) {
 					;
 				}
-				ois = null;
 			}
 			throw e;
 		}
 
 		try {
 			StandardSession session = (StandardSession) manager.createEmptySession();
-			session.readObjectData(ois);
+			input.readSession(session);
 			session.setManager(manager);
 			return (session);
 		} finally {
 			// Close the input stream
-			if (ois != null) {
-				try {
-					ois.close();
-				} catch (IOException f) {
-					;
-				}
+			try {
+				input.close();
+			} catch (IOException f) {
+				;
 			}
 		}
 	}
@@ -339,26 +329,17 @@ public final class FileStore extends StoreBase implements Store {
 					.debug(sm.getString(getStoreName() + ".saving", session.getIdInternal(),
 							file.getAbsolutePath()));
 		}
-		FileOutputStream fos = null;
-		ObjectOutputStream oos = null;
-		try {
-			fos = new FileOutputStream(file.getAbsolutePath());
-			oos = new ObjectOutputStream(new BufferedOutputStream(fos));
-		} catch (IOException e) {
-			if (oos != null) {
-				try {
-					oos.close();
-				} catch (IOException f) {
-					;
-				}
-			}
-			throw e;
-		}
-
+		FileOutputStream fos = new FileOutputStream(file.getAbsolutePath());
+		SessionCodec.SessionOutput output = null;
 		try {
-			((StandardSession) session).writeObjectData(oos);
+			output = getSessionCodec().createOutput(fos, -1);
+			output.writeSession((StandardSession) session);
 		} finally {
-			oos.close();
+			if (output != null) {
+				output.close();
+			} else {
+				fos.close();
+			}
 		}
 
 	}
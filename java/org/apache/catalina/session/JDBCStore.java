@@ -22,27 +22,41 @@ import org.apache.catalina.LifecycleException;
 import org.apache.catalina.Loader;
 import org.apache.catalina.Session;
 import org.apache.catalina.Store;
-import org.apache.catalina.util.CustomObjectInputStream;
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.sql.Connection;
 import java.sql.Driver;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.sql.DataSource;
 
 /**
  * Implementation of the <code>Store</code> interface that stores serialized
  * session objects in a database. Sessions that are saved are still subject to
  * being expired based on inactivity.
+ * <p>
+ * Connections are obtained from a DataSource, or from a small pool of
+ * connections opened using the driver, so that operations are not serialized.
+ * Saves are written in batches by a background thread, and a session saved
+ * several times before being written is only written once.
  * 
  * @author Bip Thelin
  * @version $Revision: 515 $, $Date: 2008-03-17 22:02:23 +0100 (Mon, 17 Mar
@@ -86,11 +100,6 @@ public class JDBCStore extends StoreBase implements Store {
 	 */
 	protected String connectionURL = null;
 
-	/**
-	 * The database connection.
-	 */
-	private Connection dbConnection = null;
-
 	/**
 	 * Instance of the JDBC Driver class we use as a connection factory.
 	 */
@@ -101,76 +110,122 @@ public class JDBCStore extends StoreBase implements Store {
 	 */
 	protected String driverName = null;
 
-	// ------------------------------------------------------------- Table &
-	// cols
+	/**
+	 * JNDI name of the DataSource providing the connections, if any.
+	 */
+	protected String dataSourceName = null;
 
 	/**
-	 * Table to use.
+	 * DataSource providing the connections. If there is no DataSource, the
+	 * connections are opened using the driver and kept in a small pool.
 	 */
-	protected String sessionTable = "tomcat$sessions";
+	protected DataSource dataSource = null;
 
 	/**
-	 * Column to use for /Engine/Host/Context name
+	 * Idle connections opened using the driver.
 	 */
-	protected String sessionAppCol = "app";
+	protected Queue<Connection> connections = new ConcurrentLinkedQueue<Connection>();
 
 	/**
-	 * Id column to use.
+	 * Maximum number of idle connections kept when no DataSource is used.
 	 */
-	protected String sessionIdCol = "id";
+	protected int maxIdleConnections = 8;
 
 	/**
-	 * Data column to use.
+	 * Delay in milliseconds during which saves are accumulated before being
+	 * written as a batch by the background thread. Saves are written
+	 * immediately if the delay is not positive.
 	 */
-	protected String sessionDataCol = "data";
+	protected int writeDelay = 1000;
 
 	/**
-	 * Is Valid column to use.
+	 * Maximum number of sessions written in a batch.
 	 */
-	protected String sessionValidCol = "valid";
+	protected int batchSize = 100;
 
 	/**
-	 * Max Inactive column to use.
+	 * Maximum number of saves waiting to be written. Once it is reached, the
+	 * sessions are written when they are saved.
 	 */
-	protected String sessionMaxInactiveCol = "maxinactive";
+	protected int maxPendingSaves = 10000;
 
 	/**
-	 * Last Accessed column to use.
+	 * Maximum delay in milliseconds between two attempts of the background
+	 * thread to write the pending saves, which grows while the writes fail.
 	 */
-	protected String sessionLastAccessedCol = "lastaccess";
+	protected int maxRetryDelay = 30000;
 
-	// ------------------------------------------------------------- SQL
-	// Variables
+	/**
+	 * Saves which have not been written yet, keyed by session id. A session
+	 * which is saved again before being written replaces the previous state.
+	 */
+	protected ConcurrentHashMap<String, PendingSave> pendingSaves = new ConcurrentHashMap<String, PendingSave>();
 
 	/**
-	 * Variable to hold the <code>getSize()</code> prepared statement.
+	 * Removals hold the read lock and batch writes hold the write lock, so
+	 * that a removed session is not written again by a batch in progress.
 	 */
-	protected PreparedStatement preparedSizeSql = null;
+	protected ReentrantReadWriteLock writeLock = new ReentrantReadWriteLock();
 
 	/**
-	 * Variable to hold the <code>keys()</code> prepared statement.
+	 * Background thread writing the pending saves.
 	 */
-	protected PreparedStatement preparedKeysSql = null;
+	protected Thread writer = null;
 
 	/**
-	 * Variable to hold the <code>save()</code> prepared statement.
+	 * Background thread running flag.
 	 */
-	protected PreparedStatement preparedSaveSql = null;
+	protected volatile boolean writerRunning = false;
 
 	/**
-	 * Variable to hold the <code>clear()</code> prepared statement.
+	 * Smallest maximum inactive interval of the stored sessions, used to
+	 * restrict the expiration query to a range of the last accessed column.
 	 */
-	protected PreparedStatement preparedClearSql = null;
+	protected AtomicInteger minMaxInactive = new AtomicInteger(Integer.MAX_VALUE);
 
 	/**
-	 * Variable to hold the <code>remove()</code> prepared statement.
+	 * True once the smallest maximum inactive interval has been read from the
+	 * database.
 	 */
-	protected PreparedStatement preparedRemoveSql = null;
+	protected volatile boolean minMaxInactiveLoaded = false;
+
+	// ------------------------------------------------------------- Table &
+	// cols
 
 	/**
-	 * Variable to hold the <code>load()</code> prepared statement.
+	 * Table to use.
 	 */
-	protected PreparedStatement preparedLoadSql = null;
+	protected String sessionTable = "tomcat$sessions";
+
+	/**
+	 * Column to use for /Engine/Host/Context name
+	 */
+	protected String sessionAppCol = "app";
+
+	/**
+	 * Id column to use.
+	 */
+	protected String sessionIdCol = "id";
+
+	/**
+	 * Data column to use.
+	 */
+	protected String sessionDataCol = "data";
+
+	/**
+	 * Is Valid column to use.
+	 */
+	protected String sessionValidCol = "valid";
+
+	/**
+	 * Max Inactive column to use.
+	 */
+	protected String sessionMaxInactiveCol = "maxinactive";
+
+	/**
+	 * Last Accessed column to use.
+	 */
+	protected String sessionLastAccessedCol = "lastaccess";
 
 	// ------------------------------------------------------------- Properties
 
@@ -427,6 +482,137 @@ public class JDBCStore extends StoreBase implements Store {
 		return (this.sessionLastAccessedCol);
 	}
 
+	/**
+	 * Set the JNDI name of the DataSource providing the connections.
+	 * 
+	 * @param dataSourceName
+	 *            The JNDI name
+	 */
+	public void setDataSourceName(String dataSourceName) {
+		String oldDataSourceName = this.dataSourceName;
+		this.dataSourceName = dataSourceName;
+		this.dataSource = null;
+		support.firePropertyChange("dataSourceName", oldDataSourceName, this.dataSourceName);
+	}
+
+	/**
+	 * Return the JNDI name of the DataSource providing the connections.
+	 */
+	public String getDataSourceName() {
+		return (this.dataSourceName);
+	}
+
+	/**
+	 * Set the DataSource providing the connections.
+	 * 
+	 * @param dataSource
+	 *            The DataSource
+	 */
+	public void setDataSource(DataSource dataSource) {
+		this.dataSource = dataSource;
+	}
+
+	/**
+	 * Return the maximum number of idle connections kept when no DataSource
+	 * is used.
+	 */
+	public int getMaxIdleConnections() {
+		return (this.maxIdleConnections);
+	}
+
+	/**
+	 * Set the maximum number of idle connections kept when no DataSource is
+	 * used.
+	 * 
+	 * @param maxIdleConnections
+	 *            The maximum number of idle connections
+	 */
+	public void setMaxIdleConnections(int maxIdleConnections) {
+		this.maxIdleConnections = maxIdleConnections;
+	}
+
+	/**
+	 * Return the delay in milliseconds during which saves are accumulated
+	 * before being written.
+	 */
+	public int getWriteDelay() {
+		return (this.writeDelay);
+	}
+
+	/**
+	 * Set the delay in milliseconds during which saves are accumulated before
+	 * being written. A value which is not positive disables the background
+	 * writes, and must be set before the Store is started.
+	 * 
+	 * @param writeDelay
+	 *            The delay
+	 */
+	public void setWriteDelay(int writeDelay) {
+		this.writeDelay = writeDelay;
+	}
+
+	/**
+	 * Return the maximum number of sessions written in a batch.
+	 */
+	public int getBatchSize() {
+		return (this.batchSize);
+	}
+
+	/**
+	 * Set the maximum number of sessions written in a batch.
+	 * 
+	 * @param batchSize
+	 *            The batch size
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize > 0) {
+			this.batchSize = batchSize;
+		}
+	}
+
+	/**
+	 * Return the maximum number of saves waiting to be written.
+	 */
+	public int getMaxPendingSaves() {
+		return (this.maxPendingSaves);
+	}
+
+	/**
+	 * Set the maximum number of saves waiting to be written.
+	 * 
+	 * @param maxPendingSaves
+	 *            The maximum number of pending saves
+	 */
+	public void setMaxPendingSaves(int maxPendingSaves) {
+		this.maxPendingSaves = maxPendingSaves;
+	}
+
+	/**
+	 * Return the maximum delay in milliseconds between two attempts to write
+	 * the pending saves.
+	 */
+	public int getMaxRetryDelay() {
+		return (this.maxRetryDelay);
+	}
+
+	/**
+	 * Set the maximum delay in milliseconds between two attempts to write the
+	 * pending saves.
+	 * 
+	 * @param maxRetryDelay
+	 *            The maximum delay
+	 */
+	public void setMaxRetryDelay(int maxRetryDelay) {
+		this.maxRetryDelay = maxRetryDelay;
+	}
+
+	/**
+	 * Return the number of saves which have not been written yet.
+	 */
+	public int getPendingSaves() {
+		return (pendingSaves.size());
+	}
+
 	// --------------------------------------------------------- Public Methods
 
 	/**
@@ -438,57 +624,47 @@ public class JDBCStore extends StoreBase implements Store {
 	 *                if an input/output error occurred
 	 */
 	public String[] keys() throws IOException {
-		ResultSet rst = null;
-		String keys[] = null;
-		synchronized (this) {
-			int numberOfTries = 2;
-			while (numberOfTries > 0) {
-
-				Connection _conn = getConnection();
-				if (_conn == null) {
-					return (new String[0]);
-				}
-				try {
-					if (preparedKeysSql == null) {
-						String keysSql = "SELECT " + sessionIdCol + " FROM " + sessionTable
-								+ " WHERE " + sessionAppCol + " = ?";
-						preparedKeysSql = _conn.prepareStatement(keysSql);
-					}
-
-					preparedKeysSql.setString(1, getName());
-					rst = preparedKeysSql.executeQuery();
-					ArrayList tmpkeys = new ArrayList();
-					if (rst != null) {
-						while (rst.next()) {
-							tmpkeys.add(rst.getString(1));
-						}
-					}
-					keys = (String[]) tmpkeys.toArray(new String[tmpkeys.size()]);
-					// Break out after the finally block
-					numberOfTries = 0;
-				} catch (SQLException e) {
-					manager.getContainer().getLogger()
-							.error(sm.getString(getStoreName() + ".SQLException", e));
-					keys = new String[0];
-					// Close the connection so that it gets reopened next time
-					if (dbConnection != null)
-						close(dbConnection);
-				} finally {
-					try {
-						if (rst != null) {
-							rst.close();
-						}
-					} catch (SQLException e) {
-						;
-					}
+		ArrayList<String> keys = new ArrayList<String>();
+		int numberOfTries = 2;
+		while (numberOfTries > 0) {
+			Connection _conn = getConnection();
+			if (_conn == null) {
+				break;
+			}
 
-					release(_conn);
+			PreparedStatement stmt = null;
+			ResultSet rst = null;
+			try {
+				String keysSql = "SELECT " + sessionIdCol + " FROM " + sessionTable + " WHERE "
+						+ sessionAppCol + " = ?";
+				stmt = _conn.prepareStatement(keysSql);
+				stmt.setString(1, getName());
+				rst = stmt.executeQuery();
+				while (rst.next()) {
+					keys.add(rst.getString(1));
 				}
-				numberOfTries--;
+				// Break out after the finally block
+				numberOfTries = 0;
+			} catch (SQLException e) {
+				manager.getContainer().getLogger()
+						.error(sm.getString(getStoreName() + ".SQLException", e));
+				keys.clear();
+				// Discard the connection so that a new one is used next time
+				close(_conn);
+				_conn = null;
+			} finally {
+				close(stmt, rst);
+				release(_conn);
 			}
+			numberOfTries--;
 		}
 
-		return (keys);
+		if (!pendingSaves.isEmpty()) {
+			LinkedHashSet<String> allKeys = new LinkedHashSet<String>(keys);
+			allKeys.addAll(pendingSaves.keySet());
+			return allKeys.toArray(new String[allKeys.size()]);
+		}
+		return keys.toArray(new String[keys.size()]);
 	}
 
 	/**
@@ -499,49 +675,42 @@ public class JDBCStore extends StoreBase implements Store {
 	 *                if an input/output error occurred
 	 */
 	public int getSize() throws IOException {
-		int size = 0;
-		ResultSet rst = null;
-
-		synchronized (this) {
-			int numberOfTries = 2;
-			while (numberOfTries > 0) {
-				Connection _conn = getConnection();
-
-				if (_conn == null) {
-					return (size);
-				}
-
-				try {
-					if (preparedSizeSql == null) {
-						String sizeSql = "SELECT COUNT(" + sessionIdCol + ") FROM " + sessionTable
-								+ " WHERE " + sessionAppCol + " = ?";
-						preparedSizeSql = _conn.prepareStatement(sizeSql);
-					}
+		if (!pendingSaves.isEmpty()) {
+			// Some of the pending sessions may not be in the database yet
+			return keys().length;
+		}
 
-					preparedSizeSql.setString(1, getName());
-					rst = preparedSizeSql.executeQuery();
-					if (rst.next()) {
-						size = rst.getInt(1);
-					}
-					// Break out after the finally block
-					numberOfTries = 0;
-				} catch (SQLException e) {
-					manager.getContainer().getLogger()
-							.error(sm.getString(getStoreName() + ".SQLException", e));
-					if (dbConnection != null)
-						close(dbConnection);
-				} finally {
-					try {
-						if (rst != null)
-							rst.close();
-					} catch (SQLException e) {
-						;
-					}
+		int size = 0;
+		int numberOfTries = 2;
+		while (numberOfTries > 0) {
+			Connection _conn = getConnection();
+			if (_conn == null) {
+				return (size);
+			}
 
-					release(_conn);
+			PreparedStatement stmt = null;
+			ResultSet rst = null;
+			try {
+				String sizeSql = "SELECT COUNT(" + sessionIdCol + ") FROM " + sessionTable
+						+ " WHERE " + sessionAppCol + " = ?";
+				stmt = _conn.prepareStatement(sizeSql);
+				stmt.setString(1, getName());
+				rst = stmt.executeQuery();
+				if (rst.next()) {
+					size = rst.getInt(1);
 				}
-				numberOfTries--;
+				// Break out after the finally block
+				numberOfTries = 0;
+			} catch (SQLException e) {
+				manager.getContainer().getLogger()
+						.error(sm.getString(getStoreName() + ".SQLException", e));
+				close(_conn);
+				_conn = null;
+			} finally {
+				close(stmt, rst);
+				release(_conn);
 			}
+			numberOfTries--;
 		}
 		return (size);
 	}
@@ -559,88 +728,56 @@ public class JDBCStore extends StoreBase implements Store {
 	 *                if an input/output error occurred
 	 */
 	public Session load(String id) throws ClassNotFoundException, IOException {
-		ResultSet rst = null;
-		StandardSession _session = null;
-		Loader loader = null;
-		ClassLoader classLoader = null;
-		ObjectInputStream ois = null;
-		BufferedInputStream bis = null;
-		Container container = manager.getContainer();
-
-		synchronized (this) {
-			int numberOfTries = 2;
-			while (numberOfTries > 0) {
-				Connection _conn = getConnection();
-				if (_conn == null) {
-					return (null);
-				}
-
-				try {
-					if (preparedLoadSql == null) {
-						String loadSql = "SELECT " + sessionIdCol + ", " + sessionDataCol
-								+ " FROM " + sessionTable + " WHERE " + sessionIdCol + " = ? AND "
-								+ sessionAppCol + " = ?";
-						preparedLoadSql = _conn.prepareStatement(loadSql);
-					}
-
-					preparedLoadSql.setString(1, id);
-					preparedLoadSql.setString(2, getName());
-					rst = preparedLoadSql.executeQuery();
-					if (rst.next()) {
-						bis = new BufferedInputStream(rst.getBinaryStream(2));
-
-						if (container != null) {
-							loader = container.getLoader();
-						}
-						if (loader != null) {
-							classLoader = loader.getClassLoader();
-						}
-						if (classLoader != null) {
-							ois = new CustomObjectInputStream(bis, classLoader);
-						} else {
-							ois = new ObjectInputStream(bis);
-						}
+		// A save which has not been written yet is the most recent state
+		PendingSave pending = pendingSaves.get(id);
+		if (pending != null) {
+			if (manager.getContainer().getLogger().isDebugEnabled()) {
+				manager.getContainer().getLogger()
+						.debug(sm.getString(getStoreName() + ".loading", id, sessionTable));
+			}
+			return readSession(new ByteArrayInputStream(pending.data));
+		}
 
-						if (manager.getContainer().getLogger().isDebugEnabled()) {
-							manager.getContainer()
-									.getLogger()
-									.debug(sm.getString(getStoreName() + ".loading", id,
-											sessionTable));
-						}
+		StandardSession _session = null;
+		int numberOfTries = 2;
+		while (numberOfTries > 0) {
+			Connection _conn = getConnection();
+			if (_conn == null) {
+				return (null);
+			}
 
-						_session = (StandardSession) manager.createEmptySession();
-						_session.readObjectData(ois);
-						_session.setManager(manager);
-					} else if (manager.getContainer().getLogger().isDebugEnabled()) {
+			PreparedStatement stmt = null;
+			ResultSet rst = null;
+			try {
+				String loadSql = "SELECT " + sessionIdCol + ", " + sessionDataCol + " FROM "
+						+ sessionTable + " WHERE " + sessionIdCol + " = ? AND " + sessionAppCol
+						+ " = ?";
+				stmt = _conn.prepareStatement(loadSql);
+				stmt.setString(1, id);
+				stmt.setString(2, getName());
+				rst = stmt.executeQuery();
+				if (rst.next()) {
+					if (manager.getContainer().getLogger().isDebugEnabled()) {
 						manager.getContainer().getLogger()
-								.debug(getStoreName() + ": No persisted data object found");
+								.debug(sm.getString(getStoreName() + ".loading", id, sessionTable));
 					}
-					// Break out after the finally block
-					numberOfTries = 0;
-				} catch (SQLException e) {
+					_session = readSession(rst.getBinaryStream(2));
+				} else if (manager.getContainer().getLogger().isDebugEnabled()) {
 					manager.getContainer().getLogger()
-							.error(sm.getString(getStoreName() + ".SQLException", e));
-					if (dbConnection != null)
-						close(dbConnection);
-				} finally {
-					try {
-						if (rst != null) {
-							rst.close();
-						}
-					} catch (SQLException e) {
-						;
-					}
-					if (ois != null) {
-						try {
-							ois.close();
-						} catch (IOException e) {
-							;
-						}
-					}
-					release(_conn);
+							.debug(getStoreName() + ": No persisted data object found");
 				}
-				numberOfTries--;
+				// Break out after the finally block
+				numberOfTries = 0;
+			} catch (SQLException e) {
+				manager.getContainer().getLogger()
+						.error(sm.getString(getStoreName() + ".SQLException", e));
+				close(_conn);
+				_conn = null;
+			} finally {
+				close(stmt, rst);
+				release(_conn);
 			}
+			numberOfTries--;
 		}
 
 		return (_session);
@@ -658,37 +795,39 @@ public class JDBCStore extends StoreBase implements Store {
 	 */
 	public void remove(String id) throws IOException {
 
-		synchronized (this) {
+		writeLock.readLock().lock();
+		try {
+			pendingSaves.remove(id);
 			int numberOfTries = 2;
 			while (numberOfTries > 0) {
 				Connection _conn = getConnection();
-
 				if (_conn == null) {
 					return;
 				}
 
+				PreparedStatement stmt = null;
 				try {
-					if (preparedRemoveSql == null) {
-						String removeSql = "DELETE FROM " + sessionTable + " WHERE " + sessionIdCol
-								+ " = ?  AND " + sessionAppCol + " = ?";
-						preparedRemoveSql = _conn.prepareStatement(removeSql);
-					}
-
-					preparedRemoveSql.setString(1, id);
-					preparedRemoveSql.setString(2, getName());
-					preparedRemoveSql.execute();
+					String removeSql = "DELETE FROM " + sessionTable + " WHERE " + sessionIdCol
+							+ " = ?  AND " + sessionAppCol + " = ?";
+					stmt = _conn.prepareStatement(removeSql);
+					stmt.setString(1, id);
+					stmt.setString(2, getName());
+					stmt.execute();
 					// Break out after the finally block
 					numberOfTries = 0;
 				} catch (SQLException e) {
 					manager.getContainer().getLogger()
 							.error(sm.getString(getStoreName() + ".SQLException", e));
-					if (dbConnection != null)
-						close(dbConnection);
+					close(_conn);
+					_conn = null;
 				} finally {
+					close(stmt, null);
 					release(_conn);
 				}
 				numberOfTries--;
 			}
+		} finally {
+			writeLock.readLock().unlock();
 		}
 
 		if (manager.getContainer().getLogger().isDebugEnabled()) {
@@ -705,7 +844,9 @@ public class JDBCStore extends StoreBase implements Store {
 	 */
 	public void clear() throws IOException {
 
-		synchronized (this) {
+		writeLock.readLock().lock();
+		try {
+			pendingSaves.clear();
 			int numberOfTries = 2;
 			while (numberOfTries > 0) {
 				Connection _conn = getConnection();
@@ -713,162 +854,462 @@ public class JDBCStore extends StoreBase implements Store {
 					return;
 				}
 
+				PreparedStatement stmt = null;
 				try {
-					if (preparedClearSql == null) {
-						String clearSql = "DELETE FROM " + sessionTable + " WHERE " + sessionAppCol
-								+ " = ?";
-						preparedClearSql = _conn.prepareStatement(clearSql);
-					}
-
-					preparedClearSql.setString(1, getName());
-					preparedClearSql.execute();
+					String clearSql = "DELETE FROM " + sessionTable + " WHERE " + sessionAppCol
+							+ " = ?";
+					stmt = _conn.prepareStatement(clearSql);
+					stmt.setString(1, getName());
+					stmt.execute();
 					// Break out after the finally block
 					numberOfTries = 0;
 				} catch (SQLException e) {
 					manager.getContainer().getLogger()
 							.error(sm.getString(getStoreName() + ".SQLException", e));
-					if (dbConnection != null)
-						close(dbConnection);
+					close(_conn);
+					_conn = null;
 				} finally {
+					close(stmt, null);
 					release(_conn);
 				}
 				numberOfTries--;
 			}
+		} finally {
+			writeLock.readLock().unlock();
 		}
 	}
 
 	/**
-	 * Save a session to the Store.
+	 * Save a session to the Store. The session is serialized immediately, and
+	 * written by the background thread with the other sessions saved during
+	 * the write delay, unless background writes are disabled or too many
+	 * saves are waiting to be written.
 	 * 
 	 * @param session
 	 *            the session to be stored
 	 * @exception IOException
-	 *                if an input/output error occurs
+	 *                if an input/output error occurs, or if the session
+	 *                cannot be written while too many saves are waiting
 	 */
 	public void save(Session session) throws IOException {
-		ObjectOutputStream oos = null;
-		ByteArrayOutputStream bos = null;
-		ByteArrayInputStream bis = null;
-		InputStream in = null;
-
-		synchronized (this) {
-			int numberOfTries = 2;
-			while (numberOfTries > 0) {
-				Connection _conn = getConnection();
-				if (_conn == null) {
-					return;
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		SessionCodec.SessionOutput output = getSessionCodec().createOutput(bos, -1);
+		try {
+			output.writeSession((StandardSession) session);
+		} finally {
+			output.close();
+		}
+		PendingSave pending = new PendingSave(session.getIdInternal(), bos.toByteArray(),
+				session.isValid(), session.getMaxInactiveInterval(), session.getLastAccessedTime());
+		updateMinMaxInactive(pending.maxInactive);
+
+		if (writerRunning
+				&& (pendingSaves.size() < maxPendingSaves || pendingSaves.containsKey(pending.id))) {
+			pendingSaves.put(pending.id, pending);
+			if (pendingSaves.size() >= batchSize) {
+				synchronized (pendingSaves) {
+					pendingSaves.notifyAll();
 				}
+			}
+		} else if (writerRunning) {
+			// Too many saves are waiting, so the caller waits for the write
+			ArrayList<PendingSave> saves = new ArrayList<PendingSave>(1);
+			saves.add(pending);
+			if (!write(saves)) {
+				throw new IOException(sm.getString(getStoreName() + ".pendingSavesFull",
+						pending.id));
+			}
+		} else {
+			ArrayList<PendingSave> saves = new ArrayList<PendingSave>(1);
+			saves.add(pending);
+			write(saves);
+		}
 
-				// If sessions already exist in DB, remove and insert again.
-				// TODO:
-				// * Check if ID exists in database and if so use UPDATE.
-				remove(session.getIdInternal());
+		if (manager.getContainer().getLogger().isDebugEnabled()) {
+			manager.getContainer()
+					.getLogger()
+					.debug(sm.getString(getStoreName() + ".saving", session.getIdInternal(),
+							sessionTable));
+		}
+	}
 
+	/**
+	 * Write all the pending saves to the database.
+	 * 
+	 * @return <code>true</code> if all the pending saves have been written
+	 */
+	public boolean flush() {
+		ArrayList<PendingSave> batch = new ArrayList<PendingSave>();
+		Iterator<PendingSave> iterator = pendingSaves.values().iterator();
+		while (iterator.hasNext()) {
+			batch.add(iterator.next());
+			if (batch.size() >= batchSize || !iterator.hasNext()) {
+				writeLock.writeLock().lock();
 				try {
-					bos = new ByteArrayOutputStream();
-					oos = new ObjectOutputStream(new BufferedOutputStream(bos));
-
-					((StandardSession) session).writeObjectData(oos);
-					oos.close();
-					oos = null;
-					byte[] obs = bos.toByteArray();
-					int size = obs.length;
-					bis = new ByteArrayInputStream(obs, 0, size);
-					in = new BufferedInputStream(bis, size);
-
-					if (preparedSaveSql == null) {
-						String saveSql = "INSERT INTO " + sessionTable + " (" + sessionIdCol + ", "
-								+ sessionAppCol + ", " + sessionDataCol + ", " + sessionValidCol
-								+ ", " + sessionMaxInactiveCol + ", " + sessionLastAccessedCol
-								+ ") VALUES (?, ?, ?, ?, ?, ?)";
-						preparedSaveSql = _conn.prepareStatement(saveSql);
+					// Skip the sessions removed since they were collected
+					Iterator<PendingSave> batchIterator = batch.iterator();
+					while (batchIterator.hasNext()) {
+						PendingSave pending = batchIterator.next();
+						if (pendingSaves.get(pending.id) != pending) {
+							batchIterator.remove();
+						}
 					}
+					if (!batch.isEmpty()) {
+						if (write(batch)) {
+							for (int i = 0; i < batch.size(); i++) {
+								PendingSave pending = batch.get(i);
+								pendingSaves.remove(pending.id, pending);
+							}
+						} else {
+							// The database is not available
+							return false;
+						}
+					}
+				} finally {
+					writeLock.writeLock().unlock();
+				}
+				batch.clear();
+			}
+		}
+		return true;
+	}
 
-					preparedSaveSql.setString(1, session.getIdInternal());
-					preparedSaveSql.setString(2, getName());
-					preparedSaveSql.setBinaryStream(3, in, size);
-					preparedSaveSql.setString(4, session.isValid() ? "1" : "0");
-					preparedSaveSql.setInt(5, session.getMaxInactiveInterval());
-					preparedSaveSql.setLong(6, session.getLastAccessedTime());
-					preparedSaveSql.execute();
-					// Break out after the finally block
-					numberOfTries = 0;
+	// --------------------------------------------------------- Protected
+	// Methods
+
+	/**
+	 * Read a session using the codec of the manager.
+	 */
+	protected StandardSession readSession(InputStream stream) throws ClassNotFoundException,
+			IOException {
+		Loader loader = null;
+		ClassLoader classLoader = null;
+		Container container = manager.getContainer();
+		if (container != null) {
+			loader = container.getLoader();
+		}
+		if (loader != null) {
+			classLoader = loader.getClassLoader();
+		}
+		SessionCodec.SessionInput input = getSessionCodec().createInput(
+				new BufferedInputStream(stream), classLoader, false);
+		try {
+			StandardSession session = (StandardSession) manager.createEmptySession();
+			input.readSession(session);
+			session.setManager(manager);
+			return session;
+		} finally {
+			try {
+				input.close();
+			} catch (IOException e) {
+				;
+			}
+		}
+	}
+
+	/**
+	 * Write the sessions to the database, retrying once with a new connection.
+	 * 
+	 * @return <code>true</code> if the sessions have been written
+	 */
+	protected boolean write(List<PendingSave> saves) {
+		int numberOfTries = 2;
+		while (numberOfTries > 0) {
+			Connection _conn = getConnection();
+			if (_conn == null) {
+				return false;
+			}
+
+			try {
+				upsert(_conn, saves);
+				return true;
+			} catch (SQLException e) {
+				manager.getContainer().getLogger()
+						.error(sm.getString(getStoreName() + ".SQLException", e));
+				close(_conn);
+				_conn = null;
+			} finally {
+				release(_conn);
+			}
+			numberOfTries--;
+		}
+		return false;
+	}
+
+	/**
+	 * Update the rows of the sessions, and insert the rows which do not exist.
+	 * The statements are executed as batches in a single transaction.
+	 * 
+	 * @exception SQLException
+	 *                if a database error occurs
+	 */
+	protected void upsert(Connection _conn, List<PendingSave> saves) throws SQLException {
+		PreparedStatement update = null;
+		PreparedStatement insert = null;
+		boolean transaction = (saves.size() > 1) && _conn.getAutoCommit();
+		if (transaction) {
+			_conn.setAutoCommit(false);
+		}
+		try {
+			String updateSql = "UPDATE " + sessionTable + " SET " + sessionDataCol + " = ?, "
+					+ sessionValidCol + " = ?, " + sessionMaxInactiveCol + " = ?, "
+					+ sessionLastAccessedCol + " = ? WHERE " + sessionIdCol + " = ? AND "
+					+ sessionAppCol + " = ?";
+			update = _conn.prepareStatement(updateSql);
+			for (int i = 0; i < saves.size(); i++) {
+				bindUpdate(update, saves.get(i));
+				update.addBatch();
+			}
+			int[] counts = update.executeBatch();
+
+			ArrayList<PendingSave> inserts = new ArrayList<PendingSave>();
+			for (int i = 0; i < saves.size(); i++) {
+				PendingSave pending = saves.get(i);
+				if (i >= counts.length || counts[i] == 0) {
+					inserts.add(pending);
+				} else if (counts[i] == Statement.SUCCESS_NO_INFO) {
+					// The driver does not report the count for batches
+					bindUpdate(update, pending);
+					if (update.executeUpdate() == 0) {
+						inserts.add(pending);
+					}
+				}
+			}
+
+			if (!inserts.isEmpty()) {
+				String saveSql = "INSERT INTO " + sessionTable + " (" + sessionIdCol + ", "
+						+ sessionAppCol + ", " + sessionDataCol + ", " + sessionValidCol + ", "
+						+ sessionMaxInactiveCol + ", " + sessionLastAccessedCol
+						+ ") VALUES (?, ?, ?, ?, ?, ?)";
+				insert = _conn.prepareStatement(saveSql);
+				for (int i = 0; i < inserts.size(); i++) {
+					PendingSave pending = inserts.get(i);
+					insert.setString(1, pending.id);
+					insert.setString(2, getName());
+					insert.setBinaryStream(3, new ByteArrayInputStream(pending.data),
+							pending.data.length);
+					insert.setString(4, pending.valid ? "1" : "0");
+					insert.setInt(5, pending.maxInactive);
+					insert.setLong(6, pending.lastAccessed);
+					insert.addBatch();
+				}
+				insert.executeBatch();
+			}
+
+			if (transaction) {
+				_conn.commit();
+			}
+		} catch (SQLException e) {
+			if (transaction) {
+				try {
+					_conn.rollback();
+				} catch (SQLException f) {
+					;
+				}
+			}
+			throw e;
+		} finally {
+			close(update, null);
+			close(insert, null);
+			if (transaction) {
+				try {
+					_conn.setAutoCommit(true);
 				} catch (SQLException e) {
-					manager.getContainer().getLogger()
-							.error(sm.getString(getStoreName() + ".SQLException", e));
-					if (dbConnection != null)
-						close(dbConnection);
-				} catch (IOException e) {
 					;
-				} finally {
-					if (oos != null) {
-						oos.close();
-					}
-					if (bis != null) {
-						bis.close();
-					}
-					if (in != null) {
-						in.close();
-					}
+				}
+			}
+		}
+	}
 
-					release(_conn);
+	/**
+	 * Set the parameters of the update statement.
+	 */
+	protected void bindUpdate(PreparedStatement update, PendingSave pending) throws SQLException {
+		update.setBinaryStream(1, new ByteArrayInputStream(pending.data), pending.data.length);
+		update.setString(2, pending.valid ? "1" : "0");
+		update.setInt(3, pending.maxInactive);
+		update.setLong(4, pending.lastAccessed);
+		update.setString(5, pending.id);
+		update.setString(6, getName());
+	}
+
+	/**
+	 * Return the identifiers of the expired sessions, using a query which can
+	 * use an index on the application and last accessed columns. Sessions
+	 * which have not been written yet are checked after they are written.
+	 * 
+	 * @exception IOException
+	 *                if an input/output error occurred
+	 */
+	protected String[] expiredKeys() throws IOException {
+		if (!minMaxInactiveLoaded) {
+			loadMinMaxInactive();
+		}
+		int minInactive = minMaxInactive.get();
+		if (!minMaxInactiveLoaded || minInactive == Integer.MAX_VALUE) {
+			return new String[0];
+		}
+
+		long timeNow = System.currentTimeMillis();
+		ArrayList<String> keys = new ArrayList<String>();
+		int numberOfTries = 2;
+		while (numberOfTries > 0) {
+			Connection _conn = getConnection();
+			if (_conn == null) {
+				break;
+			}
+
+			PreparedStatement stmt = null;
+			ResultSet rst = null;
+			try {
+				String expiredSql = "SELECT " + sessionIdCol + " FROM " + sessionTable + " WHERE "
+						+ sessionAppCol + " = ? AND " + sessionLastAccessedCol + " <= ? AND "
+						+ sessionMaxInactiveCol + " >= 0 AND (? - " + sessionLastAccessedCol
+						+ ") / 1000 >= " + sessionMaxInactiveCol;
+				stmt = _conn.prepareStatement(expiredSql);
+				stmt.setString(1, getName());
+				stmt.setLong(2, timeNow - minInactive * 1000L);
+				stmt.setLong(3, timeNow);
+				rst = stmt.executeQuery();
+				while (rst.next()) {
+					keys.add(rst.getString(1));
 				}
-				numberOfTries--;
+				// Break out after the finally block
+				numberOfTries = 0;
+			} catch (SQLException e) {
+				manager.getContainer().getLogger()
+						.error(sm.getString(getStoreName() + ".SQLException", e));
+				keys.clear();
+				close(_conn);
+				_conn = null;
+			} finally {
+				close(stmt, rst);
+				release(_conn);
 			}
+			numberOfTries--;
 		}
 
-		if (manager.getContainer().getLogger().isDebugEnabled()) {
-			manager.getContainer()
-					.getLogger()
-					.debug(sm.getString(getStoreName() + ".saving", session.getIdInternal(),
-							sessionTable));
+		return keys.toArray(new String[keys.size()]);
+	}
+
+	/**
+	 * Read the smallest maximum inactive interval of the stored sessions.
+	 */
+	protected void loadMinMaxInactive() {
+		Connection _conn = getConnection();
+		if (_conn == null) {
+			return;
+		}
+
+		PreparedStatement stmt = null;
+		ResultSet rst = null;
+		try {
+			String minSql = "SELECT MIN(" + sessionMaxInactiveCol + ") FROM " + sessionTable
+					+ " WHERE " + sessionAppCol + " = ? AND " + sessionMaxInactiveCol + " >= 0";
+			stmt = _conn.prepareStatement(minSql);
+			stmt.setString(1, getName());
+			rst = stmt.executeQuery();
+			if (rst.next()) {
+				int minInactive = rst.getInt(1);
+				if (!rst.wasNull()) {
+					updateMinMaxInactive(minInactive);
+				}
+			}
+			minMaxInactiveLoaded = true;
+		} catch (SQLException e) {
+			manager.getContainer().getLogger()
+					.error(sm.getString(getStoreName() + ".SQLException", e));
+			close(_conn);
+			_conn = null;
+		} finally {
+			close(stmt, rst);
+			release(_conn);
 		}
 	}
 
-	// --------------------------------------------------------- Protected
-	// Methods
+	/**
+	 * Lower the smallest maximum inactive interval if needed.
+	 */
+	protected void updateMinMaxInactive(int maxInactive) {
+		if (maxInactive < 0) {
+			return;
+		}
+		int current = minMaxInactive.get();
+		while (maxInactive < current && !minMaxInactive.compareAndSet(current, maxInactive)) {
+			current = minMaxInactive.get();
+		}
+	}
+
+	/**
+	 * Return the DataSource providing the connections, looking it up if
+	 * needed, or <code>null</code> if the connections are opened using the
+	 * driver.
+	 */
+	protected DataSource getDataSource() {
+		if (dataSource == null && dataSourceName != null) {
+			try {
+				javax.naming.Context context = new InitialContext();
+				try {
+					dataSource = (DataSource) context.lookup("java:comp/env/" + dataSourceName);
+				} catch (NamingException e) {
+					dataSource = (DataSource) context.lookup(dataSourceName);
+				}
+			} catch (NamingException e) {
+				manager.getContainer()
+						.getLogger()
+						.error(sm.getString(getStoreName() + ".dataSourceLookup", dataSourceName),
+								e);
+			}
+		}
+		return dataSource;
+	}
 
 	/**
-	 * Check the connection associated with this store, if it's
-	 * <code>null</code> or closed try to reopen it. Returns <code>null</code>
-	 * if the connection could not be established.
+	 * Return a connection from the DataSource, or from the pool of idle
+	 * connections, opening a new one if needed. Returns <code>null</code> if
+	 * the connection could not be established. The connection must be given
+	 * back using {@link #release(Connection)}, or {@link #close(Connection)}
+	 * if an error occurred.
 	 * 
 	 * @return <code>Connection</code> if the connection suceeded
 	 */
 	protected Connection getConnection() {
 		try {
-			if (dbConnection == null || dbConnection.isClosed()) {
+			DataSource dataSource = getDataSource();
+			if (dataSource != null) {
+				return dataSource.getConnection();
+			}
+			Connection conn = null;
+			while ((conn = connections.poll()) != null) {
+				if (!conn.isClosed()) {
+					return conn;
+				}
 				manager.getContainer().getLogger()
 						.info(sm.getString(getStoreName() + ".checkConnectionDBClosed"));
-				open();
-				if (dbConnection == null || dbConnection.isClosed()) {
-					manager.getContainer().getLogger()
-							.info(sm.getString(getStoreName() + ".checkConnectionDBReOpenFail"));
-				}
 			}
+			conn = open();
+			if (conn == null) {
+				manager.getContainer().getLogger()
+						.info(sm.getString(getStoreName() + ".checkConnectionDBReOpenFail"));
+			}
+			return conn;
 		} catch (SQLException ex) {
 			manager.getContainer()
 					.getLogger()
 					.error(sm.getString(getStoreName() + ".checkConnectionSQLException",
 							ex.toString()));
+			return null;
 		}
-
-		return dbConnection;
 	}
 
 	/**
-	 * Open (if necessary) and return a database connection for use by this
-	 * Realm.
+	 * Open and return a new database connection using the driver.
 	 * 
 	 * @exception SQLException
 	 *                if a database error occurs
 	 */
 	protected Connection open() throws SQLException {
 
-		// Do nothing if there is a database connection already open
-		if (dbConnection != null)
-			return (dbConnection);
-
 		// Instantiate our database driver if necessary
 		if (driver == null) {
 			try {
@@ -890,6 +1331,9 @@ public class JDBCStore extends StoreBase implements Store {
 						.error(sm.getString(getStoreName()
 								+ ".checkConnectionClassNotFoundException", ex.toString()));
 			}
+			if (driver == null) {
+				return null;
+			}
 		}
 
 		// Open a new connection
@@ -898,14 +1342,17 @@ public class JDBCStore extends StoreBase implements Store {
 			props.put("user", connectionName);
 		if (connectionPassword != null)
 			props.put("password", connectionPassword);
-		dbConnection = driver.connect(connectionURL, props);
-		dbConnection.setAutoCommit(true);
-		return (dbConnection);
+		Connection conn = driver.connect(connectionURL, props);
+		if (conn != null) {
+			conn.setAutoCommit(true);
+		}
+		return (conn);
 
 	}
 
 	/**
-	 * Close the specified database connection.
+	 * Close the specified database connection, after an error or when it is
+	 * not needed anymore.
 	 * 
 	 * @param dbConnection
 	 *            The connection to be closed
@@ -916,72 +1363,52 @@ public class JDBCStore extends StoreBase implements Store {
 		if (dbConnection == null)
 			return;
 
-		// Close our prepared statements (if any)
-		try {
-			preparedSizeSql.close();
-		} catch (Throwable f) {
-			;
-		}
-		this.preparedSizeSql = null;
-
-		try {
-			preparedKeysSql.close();
-		} catch (Throwable f) {
-			;
-		}
-		this.preparedKeysSql = null;
-
-		try {
-			preparedSaveSql.close();
-		} catch (Throwable f) {
-			;
-		}
-		this.preparedSaveSql = null;
-
-		try {
-			preparedClearSql.close();
-		} catch (Throwable f) {
-			;
-		}
-
-		try {
-			preparedRemoveSql.close();
-		} catch (Throwable f) {
-			;
-		}
-		this.preparedRemoveSql = null;
-
-		try {
-			preparedLoadSql.close();
-		} catch (Throwable f) {
-			;
-		}
-		this.preparedLoadSql = null;
-
 		// Close this database connection, and log any errors
 		try {
 			dbConnection.close();
 		} catch (SQLException e) {
 			manager.getContainer().getLogger()
-					.error(sm.getString(getStoreName() + ".close", e.toString())); // Just
-																					// log
-																					// it
-																					// here
-		} finally {
-			this.dbConnection = null;
+					.error(sm.getString(getStoreName() + ".close", e.toString()));
 		}
 
 	}
 
 	/**
-	 * Release the connection, not needed here since the connection is not
-	 * associated with a connection pool.
+	 * Close the statement and result set, ignoring errors.
+	 */
+	protected void close(Statement stmt, ResultSet rst) {
+		if (rst != null) {
+			try {
+				rst.close();
+			} catch (SQLException e) {
+				;
+			}
+		}
+		if (stmt != null) {
+			try {
+				stmt.close();
+			} catch (SQLException e) {
+				;
+			}
+		}
+	}
+
+	/**
+	 * Release the connection, which is given back to the DataSource or kept
+	 * in the pool of idle connections.
 	 * 
 	 * @param conn
 	 *            The connection to be released
 	 */
 	protected void release(Connection conn) {
-		;
+		if (conn == null) {
+			return;
+		}
+		if (dataSource != null || connections.size() >= maxIdleConnections) {
+			close(conn);
+		} else {
+			connections.offer(conn);
+		}
 	}
 
 	/**
@@ -990,8 +1417,15 @@ public class JDBCStore extends StoreBase implements Store {
 	public void start() throws LifecycleException {
 		super.start();
 
-		// Open connection to the database
-		this.dbConnection = getConnection();
+		// Check the connection to the database
+		release(getConnection());
+
+		if (writeDelay > 0) {
+			writerRunning = true;
+			writer = new Thread(new PendingSaveWriter(), getThreadName() + "[" + getName() + "]");
+			writer.setDaemon(true);
+			writer.start();
+		}
 	}
 
 	/**
@@ -1002,14 +1436,99 @@ public class JDBCStore extends StoreBase implements Store {
 	public void stop() throws LifecycleException {
 		super.stop();
 
-		// Close and release everything associated with our db.
-		if (dbConnection != null) {
+		// Write the remaining sessions
+		if (writer != null) {
+			writerRunning = false;
+			synchronized (pendingSaves) {
+				pendingSaves.notifyAll();
+			}
 			try {
-				dbConnection.commit();
-			} catch (SQLException e) {
+				writer.join();
+			} catch (InterruptedException e) {
 				;
 			}
-			close(dbConnection);
+			writer = null;
+		}
+		flush();
+
+		// Close the idle connections
+		Connection conn = null;
+		while ((conn = connections.poll()) != null) {
+			close(conn);
 		}
 	}
+
+	// -------------------------------------------------------- Inner Classes
+
+	/**
+	 * Serialized state of a saved session.
+	 */
+	protected static class PendingSave {
+
+		protected final String id;
+		protected final byte[] data;
+		protected final boolean valid;
+		protected final int maxInactive;
+		protected final long lastAccessed;
+
+		protected PendingSave(String id, byte[] data, boolean valid, int maxInactive,
+				long lastAccessed) {
+			this.id = id;
+			this.data = data;
+			this.valid = valid;
+			this.maxInactive = maxInactive;
+			this.lastAccessed = lastAccessed;
+		}
+
+	}
+
+	/**
+	 * Background thread writing the pending saves as batches.
+	 */
+	protected class PendingSaveWriter implements Runnable {
+
+		/**
+		 * Delay before the next attempt to write, which is doubled after each
+		 * failed attempt, up to the maximum retry delay.
+		 */
+		protected long retryDelay = 0;
+
+		public void run() {
+			while (writerRunning) {
+				synchronized (pendingSaves) {
+					try {
+						if (retryDelay > 0) {
+							// Ignore the notifications of full batches
+							long end = System.currentTimeMillis() + retryDelay;
+							long wait = retryDelay;
+							while (writerRunning && wait > 0) {
+								pendingSaves.wait(wait);
+								wait = end - System.currentTimeMillis();
+							}
+						} else if (writerRunning && pendingSaves.size() < batchSize) {
+							pendingSaves.wait(writeDelay);
+						}
+					} catch (InterruptedException e) {
+						;
+					}
+				}
+				if (!pendingSaves.isEmpty()) {
+					boolean written = false;
+					try {
+						written = flush();
+					} catch (Throwable t) {
+						manager.getContainer().getLogger()
+								.error(sm.getString(getStoreName() + ".writeError"), t);
+					}
+					if (written) {
+						retryDelay = 0;
+					} else {
+						retryDelay = Math.min(Math.max(retryDelay * 2, writeDelay),
+								Math.max(maxRetryDelay, writeDelay));
+					}
+				}
+			}
+		}
+
+	}
 }
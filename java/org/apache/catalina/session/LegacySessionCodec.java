@@ -0,0 +1,191 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.session;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+
+import org.apache.catalina.util.CustomObjectInputStream;
+
+
+/**
+ * Session codec using Java serialization, through
+ * <code>StandardSession.writeObjectData</code> and
+ * <code>StandardSession.readObjectData</code>. This is the format used
+ * by previous versions.
+ */
+public class LegacySessionCodec implements SessionCodec {
+
+
+    public SessionOutput createOutput(OutputStream stream, int count)
+        throws IOException {
+        ObjectOutputStream oos =
+            new ObjectOutputStream(new BufferedOutputStream(stream));
+        if (count >= 0) {
+            oos.writeObject(new Integer(count));
+        }
+        return new LegacySessionOutput(oos);
+    }
+
+
+    public SessionInput createInput(InputStream stream, ClassLoader classLoader,
+            boolean multiple)
+        throws IOException {
+        if (!(stream instanceof BufferedInputStream)) {
+            stream = new BufferedInputStream(stream);
+        }
+        ObjectInputStream ois = null;
+        if (classLoader != null) {
+            ois = new CustomObjectInputStream(stream, classLoader);
+        } else {
+            ois = new ObjectInputStream(stream);
+        }
+        int count = 1;
+        if (multiple) {
+            try {
+                count = ((Integer) ois.readObject()).intValue();
+            } catch (ClassNotFoundException e) {
+                // Not possible for an Integer
+                IOException ioe = new IOException(e.getMessage());
+                ioe.initCause(e);
+                throw ioe;
+            }
+        }
+        return new LegacySessionInput(ois, count);
+    }
+
+
+    // ------------------------------------------------ LegacySessionOutput Class
+
+
+    protected static class LegacySessionOutput implements SessionOutput {
+
+        protected ObjectOutputStream stream;
+
+        protected LegacySessionOutput(ObjectOutputStream stream) {
+            this.stream = stream;
+        }
+
+        public void writeSession(StandardSession session)
+            throws IOException {
+            session.writeObjectData(stream);
+        }
+
+        public void writeDelta(StandardSession session)
+            throws IOException {
+            stream.writeObject(new Long(session.creationTime + session.lastAccessedTime));
+            stream.writeObject(new Long(session.creationTime + session.thisAccessedTime));
+            stream.writeObject(new Integer(session.maxInactiveInterval));
+            stream.writeObject(Boolean.valueOf(session.isNew));
+            stream.writeObject(Boolean.valueOf(session.isValid));
+
+            // A null value means that the attribute is not present once the
+            // delta is applied
+            String keys[] = session.drainDirtyAttributes();
+            stream.writeObject(new Integer(keys.length));
+            for (int i = 0; i < keys.length; i++) {
+                stream.writeObject(keys[i]);
+                Object value = session.attributes.get(keys[i]);
+                if (value == null) {
+                    stream.writeObject(null);
+                } else if ((value instanceof Serializable) && (!session.exclude(keys[i]))) {
+                    try {
+                        stream.writeObject(value);
+                    } catch (NotSerializableException e) {
+                        session.manager.getContainer().getLogger().warn
+                            (StandardSession.sm.getString("standardSession.notSerializable",
+                             keys[i], session.id), e);
+                        stream.writeObject(StandardSession.NOT_SERIALIZED);
+                    }
+                } else {
+                    session.removeAttributeInternal(keys[i], true);
+                    stream.writeObject(null);
+                }
+            }
+        }
+
+        public void close()
+            throws IOException {
+            stream.flush();
+            stream.close();
+        }
+
+    }
+
+
+    // ------------------------------------------------- LegacySessionInput Class
+
+
+    protected static class LegacySessionInput implements SessionInput {
+
+        protected ObjectInputStream stream;
+        protected int count;
+
+        protected LegacySessionInput(ObjectInputStream stream, int count) {
+            this.stream = stream;
+            this.count = count;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public void readSession(StandardSession session)
+            throws ClassNotFoundException, IOException {
+            session.readObjectData(stream);
+        }
+
+        public void readDelta(StandardSession session)
+            throws ClassNotFoundException, IOException {
+            session.lastAccessedTime =
+                (int) (((Long) stream.readObject()).longValue() - session.creationTime);
+            session.thisAccessedTime =
+                (int) (((Long) stream.readObject()).longValue() - session.creationTime);
+            session.maxInactiveInterval = ((Integer) stream.readObject()).intValue();
+            session.isNew = ((Boolean) stream.readObject()).booleanValue();
+            session.isValid = ((Boolean) stream.readObject()).booleanValue();
+            int n = ((Integer) stream.readObject()).intValue();
+            for (int i = 0; i < n; i++) {
+                String name = (String) stream.readObject();
+                Object value = stream.readObject();
+                if ((value == null) || StandardSession.NOT_SERIALIZED.equals(value)) {
+                    session.attributes.remove(name);
+                } else {
+                    session.attributes.put(name, value);
+                }
+            }
+        }
+
+        public void close()
+            throws IOException {
+            stream.close();
+        }
+
+    }
+
+
+}
@@ -0,0 +1,1398 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.apache.catalina.session;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import javax.servlet.ServletContext;
+
+import org.apache.catalina.Container;
+import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Loader;
+import org.apache.catalina.Session;
+import org.apache.catalina.Store;
+
+/**
+ * Implementation of the <b>Store</b> interface which appends the saved
+ * Sessions to a small number of segment files in a configured directory.
+ * <p>
+ * The location of the most recent record of each Session is kept in memory,
+ * so that loading a Session is a single positioned read, and the list of
+ * stored Sessions does not need to access the file system. Sessions are
+ * spread over several shards, each appending to its own segment, and
+ * segments are synced to the disk in batches by a background thread. The
+ * same thread compacts the segments which mostly contain Sessions which have
+ * been saved again or removed since, by copying the remaining Sessions to the
+ * current segment of their shard.
+ * <p>
+ * Each record contains a sequence number, so that the most recent record of a
+ * Session can be found when the segments are read again on startup.
+ * <p>
+ * Records may also contain only the attributes of a Session which have
+ * changed since its previous record, in which case the location of the
+ * previous records is kept as well, and they are applied in order when the
+ * Session is loaded.
+ */
+public class LogFileStore extends StoreBase implements DeltaStore {
+
+	// ----------------------------------------------------- Constants
+
+	/**
+	 * The prefix of the segment filenames.
+	 */
+	protected static final String FILE_PREFIX = "session-";
+
+	/**
+	 * The extension of the segment filenames.
+	 */
+	protected static final String FILE_EXT = ".log";
+
+	/**
+	 * Size of the record fields which precede the session id: record length,
+	 * sequence, last accessed time, max inactive interval, type and id
+	 * length.
+	 */
+	protected static final int HEADER_SIZE = 4 + 8 + 8 + 4 + 1 + 2;
+
+	/**
+	 * Type of the records containing a whole session, or a tombstone.
+	 */
+	protected static final byte TYPE_SESSION = 0;
+
+	/**
+	 * Type of the records containing the changes since the previous record
+	 * of the session.
+	 */
+	protected static final byte TYPE_DELTA = 1;
+
+	// ----------------------------------------------------- Instance Variables
+
+	/**
+	 * The pathname of the directory in which Sessions are stored. This may be
+	 * an absolute pathname, or a relative path that is resolved against the
+	 * temporary work directory for this application.
+	 */
+	protected String directory = ".";
+
+	/**
+	 * A File representing the directory in which Sessions are stored.
+	 */
+	protected File directoryFile = null;
+
+	/**
+	 * The descriptive information about this implementation.
+	 */
+	protected static final String info = "LogFileStore/1.0";
+
+	/**
+	 * Name to register for this Store, used for logging.
+	 */
+	protected static final String storeName = "logFileStore";
+
+	/**
+	 * Name to register for the background thread.
+	 */
+	protected static final String threadName = "LogFileStore";
+
+	/**
+	 * Number of shards, each appending to its own segment.
+	 */
+	protected int shardCount = 4;
+
+	/**
+	 * Size in bytes above which a new segment is started.
+	 */
+	protected long segmentSize = 64L * 1024L * 1024L;
+
+	/**
+	 * Interval in milliseconds between the syncs of the segments to the disk.
+	 * If the interval is not positive, segments are synced after each write.
+	 */
+	protected int syncInterval = 1000;
+
+	/**
+	 * Interval in seconds between the compactions.
+	 */
+	protected int compactionInterval = 60;
+
+	/**
+	 * Percentage of obsolete bytes above which a segment is compacted.
+	 */
+	protected int compactionThreshold = 50;
+
+	/**
+	 * Location of the most recent record of each stored Session, which is
+	 * linked to the previous records if it is a delta.
+	 */
+	protected Map<String, Location> index = new ConcurrentHashMap<String, Location>();
+
+	/**
+	 * The shards.
+	 */
+	protected Shard[] shards = null;
+
+	/**
+	 * Sequence number of the last record.
+	 */
+	protected AtomicLong sequence = new AtomicLong();
+
+	/**
+	 * Generation of the last segment, used to name the segments.
+	 */
+	protected AtomicLong generation = new AtomicLong();
+
+	/**
+	 * Background thread.
+	 */
+	protected Thread background = null;
+
+	/**
+	 * Background thread running flag.
+	 */
+	protected volatile boolean backgroundRunning = false;
+
+	/**
+	 * Lock used by the background thread to wait.
+	 */
+	protected Object backgroundLock = new Object();
+
+	// ------------------------------------------------------------- Properties
+
+	/**
+	 * Return the directory path for this Store.
+	 */
+	public String getDirectory() {
+		return (directory);
+	}
+
+	/**
+	 * Set the directory path for this Store.
+	 *
+	 * @param path
+	 *            The new directory path
+	 */
+	public void setDirectory(String path) {
+		String oldDirectory = this.directory;
+		this.directory = path;
+		this.directoryFile = null;
+		support.firePropertyChange("directory", oldDirectory, this.directory);
+	}
+
+	/**
+	 * Return the number of shards.
+	 */
+	public int getShardCount() {
+		return (shardCount);
+	}
+
+	/**
+	 * Set the number of shards, which is used when the Store is started.
+	 *
+	 * @param shardCount
+	 *            The number of shards
+	 */
+	public void setShardCount(int shardCount) {
+		if (shardCount > 0) {
+			this.shardCount = shardCount;
+		}
+	}
+
+	/**
+	 * Return the size in bytes above which a new segment is started.
+	 */
+	public long getSegmentSize() {
+		return (segmentSize);
+	}
+
+	/**
+	 * Set the size in bytes above which a new segment is started.
+	 *
+	 * @param segmentSize
+	 *            The segment size
+	 */
+	public void setSegmentSize(long segmentSize) {
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * Return the interval in milliseconds between the syncs of the segments.
+	 */
+	public int getSyncInterval() {
+		return (syncInterval);
+	}
+
+	/**
+	 * Set the interval in milliseconds between the syncs of the segments. If
+	 * the interval is not positive, segments are synced after each write.
+	 *
+	 * @param syncInterval
+	 *            The sync interval
+	 */
+	public void setSyncInterval(int syncInterval) {
+		this.syncInterval = syncInterval;
+	}
+
+	/**
+	 * Return the interval in seconds between the compactions.
+	 */
+	public int getCompactionInterval() {
+		return (compactionInterval);
+	}
+
+	/**
+	 * Set the interval in seconds between the compactions. Compaction is
+	 * disabled if the interval is not positive.
+	 *
+	 * @param compactionInterval
+	 *            The compaction interval
+	 */
+	public void setCompactionInterval(int compactionInterval) {
+		this.compactionInterval = compactionInterval;
+	}
+
+	/**
+	 * Return the percentage of obsolete bytes above which a segment is
+	 * compacted.
+	 */
+	public int getCompactionThreshold() {
+		return (compactionThreshold);
+	}
+
+	/**
+	 * Set the percentage of obsolete bytes above which a segment is
+	 * compacted.
+	 *
+	 * @param compactionThreshold
+	 *            The percentage
+	 */
+	public void setCompactionThreshold(int compactionThreshold) {
+		this.compactionThreshold = compactionThreshold;
+	}
+
+	/**
+	 * Return the number of segments.
+	 */
+	public int getSegmentCount() {
+		Shard[] shards = this.shards;
+		if (shards == null) {
+			return 0;
+		}
+		int count = 0;
+		for (int i = 0; i < shards.length; i++) {
+			synchronized (shards[i]) {
+				count += shards[i].segments.size();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Return descriptive information about this Store implementation and the
+	 * corresponding version number, in the format
+	 * <code>&lt;description&gt;/&lt;version&gt;</code>.
+	 */
+	public String getInfo() {
+		return (info);
+	}
+
+	/**
+	 * Return the thread name for this Store.
+	 */
+	public String getThreadName() {
+		return (threadName);
+	}
+
+	/**
+	 * Return the name for this Store, used for logging.
+	 */
+	public String getStoreName() {
+		return (storeName);
+	}
+
+	/**
+	 * Return the number of Sessions present in this Store.
+	 *
+	 * @exception IOException
+	 *                if an input/output error occurs
+	 */
+	public int getSize() throws IOException {
+		return (index.size());
+	}
+
+	// --------------------------------------------------------- Public Methods
+
+	/**
+	 * Remove all of the Sessions in this Store.
+	 *
+	 * @exception IOException
+	 *                if an input/output error occurs
+	 */
+	public void clear() throws IOException {
+		for (int i = 0; i < shards.length; i++) {
+			Shard shard = shards[i];
+			synchronized (shard) {
+				Iterator<String> ids = index.keySet().iterator();
+				while (ids.hasNext()) {
+					if (shard(ids.next()) == shard) {
+						ids.remove();
+					}
+				}
+				for (int j = 0; j < shard.segments.size(); j++) {
+					shard.segments.get(j).delete();
+				}
+				shard.segments.clear();
+				shard.active = null;
+				roll(shard);
+			}
+		}
+	}
+
+	/**
+	 * Return an array containing the session identifiers of all Sessions
+	 * currently saved in this Store. If there are no such Sessions, a
+	 * zero-length array is returned.
+	 *
+	 * @exception IOException
+	 *                if an input/output error occurred
+	 */
+	public String[] keys() throws IOException {
+		return (index.keySet().toArray(new String[0]));
+	}
+
+	/**
+	 * Load and return the Session associated with the specified session
+	 * identifier from this Store, without removing it. If there is no such
+	 * stored Session, return <code>null</code>.
+	 *
+	 * @param id
+	 *            Session identifier of the session to load
+	 *
+	 * @exception ClassNotFoundException
+	 *                if a deserialization error occurs
+	 * @exception IOException
+	 *                if an input/output error occurs
+	 */
+	public Session load(String id) throws ClassNotFoundException, IOException {
+		retry: while (true) {
+			Location location = index.get(id);
+			if (location == null) {
+				return (null);
+			}
+			if (manager.getContainer().getLogger().isDebugEnabled()) {
+				manager.getContainer().getLogger()
+						.debug(sm.getString(getStoreName() + ".loading", id,
+								location.segment.file.getAbsolutePath()));
+			}
+			// Read the full record and the deltas, oldest first
+			ArrayList<byte[]> records = new ArrayList<byte[]>();
+			for (Location current = location; current != null; current = current.previous) {
+				ByteBuffer buffer = ByteBuffer.allocate(current.length);
+				try {
+					current.segment.read(buffer, current.offset);
+				} catch (ClosedChannelException e) {
+					if (index.get(id) != location) {
+						// The segment has been compacted, try again
+						continue retry;
+					}
+					throw e;
+				}
+				records.add(0, buffer.array());
+			}
+			return (readSession(records));
+		}
+	}
+
+	/**
+	 * Remove the Session with the specified session identifier from this Store,
+	 * if present. If no such Session is present, this method takes no action.
+	 *
+	 * @param id
+	 *            Session identifier of the Session to be removed
+	 *
+	 * @exception IOException
+	 *                if an input/output error occurs
+	 */
+	public void remove(String id) throws IOException {
+		Shard shard = shard(id);
+		synchronized (shard) {
+			Location location = index.remove(id);
+			if (location == null) {
+				return;
+			}
+			release(location);
+			// Write a tombstone so that the session is not found again on startup
+			append(shard, id, sequence.incrementAndGet(), 0L, 0, TYPE_SESSION, null);
+			if (manager.getContainer().getLogger().isDebugEnabled()) {
+				manager.getContainer().getLogger()
+						.debug(sm.getString(getStoreName() + ".removing", id,
+								shard.active.file.getAbsolutePath()));
+			}
+		}
+	}
+
+	/**
+	 * Save the specified Session into this Store. Any previously saved
+	 * information for the associated session identifier is replaced.
+	 *
+	 * @param session
+	 *            Session to be saved
+	 *
+	 * @exception IOException
+	 *                if an input/output error occurs
+	 */
+	public void save(Session session) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		SessionCodec.SessionOutput output = getSessionCodec().createOutput(bos, -1);
+		try {
+			output.writeSession((StandardSession) session);
+		} finally {
+			output.close();
+		}
+		byte[] data = bos.toByteArray();
+
+		String id = session.getIdInternal();
+		Shard shard = shard(id);
+		synchronized (shard) {
+			Location location = append(shard, id, sequence.incrementAndGet(),
+					session.getLastAccessedTime(), session.getMaxInactiveInterval(),
+					TYPE_SESSION, data);
+			location.segment.liveBytes.addAndGet(location.recordSize);
+			release(index.put(id, location));
+			if (manager.getContainer().getLogger().isDebugEnabled()) {
+				manager.getContainer().getLogger()
+						.debug(sm.getString(getStoreName() + ".saving", id,
+								location.segment.file.getAbsolutePath()));
+			}
+		}
+	}
+
+	/**
+	 * Save the attributes of the specified Session which have changed since
+	 * it was last saved, after its previous records.
+	 *
+	 * @param session
+	 *            Session to be saved
+	 * @return <code>false</code> if this Store does not contain the session
+	 *
+	 * @exception IOException
+	 *                if an input/output error occurs
+	 */
+	public boolean saveDelta(StandardSession session) throws IOException {
+		String id = session.getIdInternal();
+		if (!index.containsKey(id)) {
+			return (false);
+		}
+		// The changes drained by the codec are marked again unless the delta
+		// is appended
+		String[] dirty = session.dirtyAttributes.toArray(new String[0]);
+		boolean saved = false;
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			SessionCodec.SessionOutput output = getSessionCodec().createOutput(bos, -1);
+			try {
+				output.writeDelta(session);
+			} finally {
+				output.close();
+			}
+			byte[] data = bos.toByteArray();
+
+			Shard shard = shard(id);
+			synchronized (shard) {
+				Location previous = index.get(id);
+				if (previous == null) {
+					// Removed concurrently
+					return (false);
+				}
+				Location location = append(shard, id, sequence.incrementAndGet(),
+						session.getLastAccessedTime(), session.getMaxInactiveInterval(),
+						TYPE_DELTA, data).link(previous);
+				location.segment.liveBytes.addAndGet(location.recordSize);
+				index.put(id, location);
+				saved = true;
+				if (manager.getContainer().getLogger().isDebugEnabled()) {
+					manager.getContainer().getLogger()
+							.debug(sm.getString(getStoreName() + ".savingDelta", id,
+									location.segment.file.getAbsolutePath()));
+				}
+			}
+		} finally {
+			if (!saved) {
+				session.restoreDirtyAttributes(dirty);
+			}
+		}
+		return (true);
+	}
+
+	/**
+	 * Sync the segments which have been written to since the last sync.
+	 */
+	public void sync() {
+		for (int i = 0; i < shards.length; i++) {
+			Segment[] segments = null;
+			synchronized (shards[i]) {
+				segments = shards[i].segments.toArray(new Segment[0]);
+			}
+			for (int j = 0; j < segments.length; j++) {
+				try {
+					segments[j].sync();
+				} catch (IOException e) {
+					if (!segments[j].deleted) {
+						manager.getContainer().getLogger()
+								.error(sm.getString(getStoreName() + ".syncError",
+										segments[j].file.getAbsolutePath()), e);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Compact the segments which have more obsolete bytes than the compaction
+	 * threshold.
+	 */
+	public void compact() {
+		for (int i = 0; i < shards.length; i++) {
+			Segment[] segments = null;
+			synchronized (shards[i]) {
+				segments = shards[i].segments.toArray(new Segment[0]);
+			}
+			for (int j = 0; j < segments.length; j++) {
+				Segment segment = segments[j];
+				if (segment == shards[i].active) {
+					continue;
+				}
+				long size = segment.size;
+				long obsolete = size - segment.liveBytes.get();
+				if (obsolete * 100 >= size * compactionThreshold) {
+					try {
+						compact(shards[i], segment);
+					} catch (IOException e) {
+						manager.getContainer().getLogger()
+								.error(sm.getString(getStoreName() + ".compactionError",
+										segment.file.getAbsolutePath()), e);
+					}
+				}
+			}
+		}
+	}
+
+	// ------------------------------------------------------ Protected Methods
+
+	/**
+	 * Return the shard of the session.
+	 */
+	protected Shard shard(String id) {
+		return shards[(id.hashCode() & 0x7fffffff) % shards.length];
+	}
+
+	/**
+	 * Read a session using the codec of the manager.
+	 *
+	 * @param records
+	 *            The full record of the session, followed by the deltas
+	 */
+	protected StandardSession readSession(List<byte[]> records)
+			throws ClassNotFoundException, IOException {
+		Loader loader = null;
+		ClassLoader classLoader = null;
+		Container container = manager.getContainer();
+		if (container != null) {
+			loader = container.getLoader();
+		}
+		if (loader != null) {
+			classLoader = loader.getClassLoader();
+		}
+		StandardSession session = (StandardSession) manager.createEmptySession();
+		for (int i = 0; i < records.size(); i++) {
+			SessionCodec.SessionInput input = getSessionCodec().createInput(
+					new ByteArrayInputStream(records.get(i)), classLoader, false);
+			try {
+				if (i == 0) {
+					input.readSession(session);
+				} else {
+					input.readDelta(session);
+				}
+			} finally {
+				input.close();
+			}
+		}
+		session.setManager(manager);
+		session.storedDeltas = records.size() - 1;
+		return (session);
+	}
+
+	/**
+	 * Mark the record at the given location, and the previous records it is
+	 * linked to, as obsolete.
+	 */
+	protected void release(Location location) {
+		for (; location != null; location = location.previous) {
+			location.segment.liveBytes.addAndGet(-location.recordSize);
+		}
+	}
+
+	/**
+	 * Append a record to the active segment of the shard, starting a new
+	 * segment if needed. Must be called while holding the lock on the shard.
+	 *
+	 * @param type
+	 *            The type of the record
+	 * @param data
+	 *            The serialized session or delta, or <code>null</code> for a
+	 *            tombstone
+	 * @return the location of the record
+	 */
+	protected Location append(Shard shard, String id, long recordSequence, long lastAccessed,
+			int maxInactive, byte type, byte[] data) throws IOException {
+		byte[] idBytes = id.getBytes("UTF-8");
+		int dataLength = (data == null) ? -1 : data.length;
+		int recordSize = HEADER_SIZE + idBytes.length + 4 + Math.max(dataLength, 0) + 4;
+
+		ByteBuffer buffer = ByteBuffer.allocate(recordSize);
+		buffer.putInt(recordSize - 4);
+		buffer.putLong(recordSequence);
+		buffer.putLong(lastAccessed);
+		buffer.putInt(maxInactive);
+		buffer.put(type);
+		buffer.putShort((short) idBytes.length);
+		buffer.put(idBytes);
+		buffer.putInt(dataLength);
+		if (data != null) {
+			buffer.put(data);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), 4, recordSize - 8);
+		buffer.putInt((int) crc.getValue());
+		buffer.flip();
+
+		Segment segment = shard.active;
+		if (segment == null || (segment.size > 0 && segment.size + recordSize > segmentSize)) {
+			segment = roll(shard);
+		}
+		long position = segment.write(buffer);
+		if (syncInterval <= 0) {
+			segment.sync();
+		}
+		return new Location(segment, position + HEADER_SIZE + idBytes.length + 4, dataLength,
+				recordSize, recordSequence, lastAccessed, maxInactive, type, null);
+	}
+
+	/**
+	 * Start a new active segment for the shard. Must be called while holding
+	 * the lock on the shard.
+	 */
+	protected Segment roll(Shard shard) throws IOException {
+		long segmentGeneration = generation.incrementAndGet();
+		File file = new File(directory(), FILE_PREFIX + shard.number + "-" + segmentGeneration
+				+ FILE_EXT);
+		Segment segment = new Segment(file, segmentGeneration);
+		shard.segments.add(segment);
+		shard.active = segment;
+		return segment;
+	}
+
+	/**
+	 * Copy the live records of the segment to the active segments, and delete
+	 * it.
+	 */
+	protected void compact(Shard owner, Segment segment) throws IOException {
+		if (manager.getContainer().getLogger().isDebugEnabled()) {
+			manager.getContainer().getLogger()
+					.debug(sm.getString(getStoreName() + ".compacting",
+							segment.file.getAbsolutePath(), String.valueOf(segment.liveBytes.get()),
+							String.valueOf(segment.size)));
+		}
+
+		// Tombstones are only needed if an older segment may still contain
+		// a record of the session
+		boolean keepTombstones = false;
+		for (int i = 0; i < shards.length; i++) {
+			synchronized (shards[i]) {
+				for (int j = 0; j < shards[i].segments.size(); j++) {
+					if (shards[i].segments.get(j).generation < segment.generation) {
+						keepTombstones = true;
+					}
+				}
+			}
+		}
+
+		ArrayList<Segment> targets = new ArrayList<Segment>();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+				segment.file)));
+		try {
+			long offset = 0;
+			Record record = null;
+			while (offset < segment.size
+					&& (record = readRecord(in, offset, segment.size)) != null) {
+				offset += record.recordSize;
+				if (record.damaged) {
+					continue;
+				}
+				Shard shard = shard(record.id);
+				synchronized (shard) {
+					Location location = null;
+					if (record.data == null) {
+						if (keepTombstones && !index.containsKey(record.id)) {
+							location = append(shard, record.id, record.sequence, 0L, 0,
+									TYPE_SESSION, null);
+						}
+					} else {
+						Location current = index.get(record.id);
+						if (current != null && current.contains(segment, record.dataOffset)) {
+							location = copy(shard, record.id, current);
+							index.put(record.id, location);
+							release(current);
+						}
+					}
+					for (; location != null; location = location.previous) {
+						if (!targets.contains(location.segment)) {
+							targets.add(location.segment);
+						}
+					}
+				}
+			}
+		} finally {
+			in.close();
+		}
+
+		// The copies must be on the disk before the segment is deleted
+		for (int i = 0; i < targets.size(); i++) {
+			targets.get(i).sync();
+		}
+		synchronized (owner) {
+			owner.segments.remove(segment);
+		}
+		segment.delete();
+	}
+
+	/**
+	 * Copy the records of a session to the active segment of the shard,
+	 * oldest first. The copies keep the sequence of the original records, so
+	 * that they replace them on startup. Must be called while holding the
+	 * lock on the shard.
+	 *
+	 * @return the location of the copy of the most recent record
+	 */
+	protected Location copy(Shard shard, String id, Location location) throws IOException {
+		Location previous = null;
+		if (location.previous != null) {
+			previous = copy(shard, id, location.previous);
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(location.length);
+		location.segment.read(buffer, location.offset);
+		Location copy = append(shard, id, location.sequence, location.lastAccessed,
+				location.maxInactive, location.type, buffer.array()).link(previous);
+		copy.segment.liveBytes.addAndGet(copy.recordSize);
+		return copy;
+	}
+
+	/**
+	 * Read the segments found in the directory, and rebuild the index.
+	 */
+	protected void recover() throws IOException {
+		File dir = directory();
+		String[] files = dir.list();
+		if (files == null) {
+			files = new String[0];
+		}
+		ArrayList<Segment> segments = new ArrayList<Segment>();
+		HashMap<Segment, Integer> segmentShards = new HashMap<Segment, Integer>();
+		for (int i = 0; i < files.length; i++) {
+			if (!files[i].startsWith(FILE_PREFIX) || !files[i].endsWith(FILE_EXT)) {
+				continue;
+			}
+			String name = files[i].substring(FILE_PREFIX.length(),
+					files[i].length() - FILE_EXT.length());
+			int separator = name.indexOf('-');
+			try {
+				int shardNumber = Integer.parseInt(name.substring(0, separator));
+				long segmentGeneration = Long.parseLong(name.substring(separator + 1));
+				Segment segment = new Segment(new File(dir, files[i]), segmentGeneration);
+				segments.add(segment);
+				segmentShards.put(segment, Integer.valueOf(shardNumber));
+			} catch (RuntimeException e) {
+				// Not a segment
+			}
+		}
+		Collections.sort(segments, new Comparator<Segment>() {
+			public int compare(Segment segment1, Segment segment2) {
+				return (segment1.generation < segment2.generation) ? -1
+						: ((segment1.generation == segment2.generation) ? 0 : 1);
+			}
+		});
+
+		// Only the last segment of each shard may end with an incomplete
+		// write, the older segments were complete when the next one started
+		HashMap<Integer, Segment> lastSegments = new HashMap<Integer, Segment>();
+		for (int i = 0; i < segments.size(); i++) {
+			lastSegments.put(segmentShards.get(segments.get(i)), segments.get(i));
+		}
+
+		// Keep the most recent records of each session, including tombstones,
+		// as the full record followed by the deltas
+		HashMap<String, ArrayList<Location>> latest = new HashMap<String, ArrayList<Location>>();
+		long maxSequence = 0;
+		long maxGeneration = 0;
+		for (int i = 0; i < segments.size(); i++) {
+			Segment segment = segments.get(i);
+			maxGeneration = Math.max(maxGeneration, segment.generation);
+			long offset = 0;
+			long limit = segment.file.length();
+			boolean lastSegment = (lastSegments.get(segmentShards.get(segment)) == segment);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+					segment.file)));
+			try {
+				Record record = null;
+				while ((record = readRecord(in, offset, limit)) != null) {
+					if (record.damaged) {
+						if (lastSegment) {
+							break;
+						}
+						manager.getContainer().getLogger()
+								.error(sm.getString(getStoreName() + ".damaged",
+										segment.file.getAbsolutePath(), String.valueOf(offset)));
+						offset += record.recordSize;
+						continue;
+					}
+					offset += record.recordSize;
+					maxSequence = Math.max(maxSequence, record.sequence);
+					Location location = new Location(segment, record.dataOffset,
+							(record.data == null) ? -1 : record.data.length, record.recordSize,
+							record.sequence, record.lastAccessed, record.maxInactive,
+							record.type, null);
+					ArrayList<Location> chain = latest.get(record.id);
+					Location last = (chain == null) ? null : chain.get(chain.size() - 1);
+					if (last != null && last.sequence >= record.sequence) {
+						// Either a copy made by a compaction, which replaces the
+						// original record, or an obsolete record
+						for (int j = 0; j < chain.size(); j++) {
+							Location original = chain.get(j);
+							if (original.sequence == record.sequence) {
+								if (original.length >= 0) {
+									release(original);
+									segment.liveBytes.addAndGet(record.recordSize);
+								}
+								chain.set(j, location);
+							}
+						}
+						continue;
+					}
+					if (record.type == TYPE_DELTA) {
+						if (last == null || last.length < 0) {
+							// The session has been removed
+							continue;
+						}
+						chain.add(location);
+					} else {
+						if (chain != null && last.length >= 0) {
+							for (int j = 0; j < chain.size(); j++) {
+								release(chain.get(j));
+							}
+						}
+						chain = new ArrayList<Location>();
+						chain.add(location);
+						latest.put(record.id, chain);
+					}
+					if (record.data != null) {
+						segment.liveBytes.addAndGet(record.recordSize);
+					}
+				}
+			} finally {
+				in.close();
+			}
+			if (offset < limit) {
+				if (lastSegment) {
+					manager.getContainer().getLogger()
+							.warn(sm.getString(getStoreName() + ".truncated",
+									segment.file.getAbsolutePath(), String.valueOf(offset)));
+					segment.truncate(offset);
+				} else {
+					// Keep the rest of an older segment, it is never written
+					// to again and its bytes are obsolete for the compaction
+					manager.getContainer().getLogger()
+							.error(sm.getString(getStoreName() + ".unreadable",
+									segment.file.getAbsolutePath(), String.valueOf(offset)));
+					offset = limit;
+				}
+			}
+			segment.size = offset;
+			int shardNumber = segmentShards.get(segment).intValue();
+			Shard shard = shards[shardNumber % shards.length];
+			shard.segments.add(segment);
+		}
+
+		Iterator<Map.Entry<String, ArrayList<Location>>> entries = latest.entrySet().iterator();
+		while (entries.hasNext()) {
+			Map.Entry<String, ArrayList<Location>> entry = entries.next();
+			ArrayList<Location> chain = entry.getValue();
+			if (chain.get(0).length >= 0) {
+				Location location = null;
+				for (int j = 0; j < chain.size(); j++) {
+					location = chain.get(j).link(location);
+				}
+				index.put(entry.getKey(), location);
+			}
+		}
+		sequence.set(maxSequence);
+		generation.set(maxGeneration);
+
+		if (manager.getContainer().getLogger().isDebugEnabled()) {
+			manager.getContainer().getLogger()
+					.debug(sm.getString(getStoreName() + ".recovered",
+							String.valueOf(index.size()), String.valueOf(segments.size()),
+							dir.getAbsolutePath()));
+		}
+	}
+
+	/**
+	 * Read the record at the given offset of a segment, or return
+	 * <code>null</code> if the end of the segment has been reached or if the
+	 * record is incomplete. A record which is complete but fails its checksum
+	 * is returned with only its size, and marked as damaged.
+	 *
+	 * @param limit
+	 *            The size of the segment
+	 */
+	protected Record readRecord(DataInputStream in, long offset, long limit) throws IOException {
+		Record record = new Record();
+		try {
+			int length = in.readInt();
+			if (length < HEADER_SIZE - 4 + 4 + 4 || offset + 4 + length > limit) {
+				return null;
+			}
+			byte[] bytes = new byte[length - 4];
+			in.readFully(bytes);
+			int checksum = in.readInt();
+			record.recordSize = length + 4;
+			CRC32 crc = new CRC32();
+			crc.update(bytes);
+			if ((int) crc.getValue() != checksum) {
+				record.damaged = true;
+				return record;
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			record.sequence = buffer.getLong();
+			record.lastAccessed = buffer.getLong();
+			record.maxInactive = buffer.getInt();
+			record.type = buffer.get();
+			byte[] idBytes = new byte[buffer.getShort() & 0xffff];
+			buffer.get(idBytes);
+			record.id = new String(idBytes, "UTF-8");
+			int dataLength = buffer.getInt();
+			record.dataOffset = offset + HEADER_SIZE + idBytes.length + 4;
+			if (dataLength >= 0) {
+				record.data = Arrays.copyOfRange(bytes, buffer.position(), buffer.position()
+						+ dataLength);
+			}
+			return record;
+		} catch (EOFException e) {
+			return null;
+		} catch (RuntimeException e) {
+			// Corrupted record
+			if (record.recordSize == 0) {
+				return null;
+			}
+			Record damaged = new Record();
+			damaged.recordSize = record.recordSize;
+			damaged.damaged = true;
+			return damaged;
+		}
+	}
+
+	/**
+	 * Return the identifiers of the expired sessions, using the last accessed
+	 * time and maximum inactive interval kept in the index.
+	 */
+	protected String[] expiredKeys() throws IOException {
+		long timeNow = System.currentTimeMillis();
+		ArrayList<String> keys = new ArrayList<String>();
+		Iterator<Map.Entry<String, Location>> entries = index.entrySet().iterator();
+		while (entries.hasNext()) {
+			Map.Entry<String, Location> entry = entries.next();
+			Location location = entry.getValue();
+			if (location.maxInactive >= 0
+					&& (timeNow - location.lastAccessed) / 1000L >= location.maxInactive) {
+				keys.add(entry.getKey());
+			}
+		}
+		return keys.toArray(new String[keys.size()]);
+	}
+
+	/**
+	 * Return a File object representing the pathname to our session
+	 * persistence directory, if any. The directory will be created if it does
+	 * not already exist.
+	 */
+	protected File directory() {
+		if (this.directoryFile != null) {
+			// NOTE: Race condition is harmless, so do not synchronize
+			return (this.directoryFile);
+		}
+		File file = new File(this.directory);
+		if (!file.isAbsolute()) {
+			Container container = manager.getContainer();
+			if (container instanceof Context) {
+				ServletContext servletContext = ((Context) container).getServletContext();
+				File work = (File) servletContext.getAttribute(ServletContext.TEMPDIR);
+				file = new File(work, this.directory);
+			} else {
+				throw new IllegalArgumentException("Parent Container is not a Context");
+			}
+		}
+		if (!file.exists() || !file.isDirectory()) {
+			file.delete();
+			file.mkdirs();
+		}
+		this.directoryFile = file;
+		return (file);
+	}
+
+	// --------------------------------------------------------- Thread Methods
+
+	/**
+	 * Read the segments, and start the background thread.
+	 */
+	public void start() throws LifecycleException {
+		super.start();
+
+		index.clear();
+		shards = new Shard[shardCount];
+		for (int i = 0; i < shards.length; i++) {
+			shards[i] = new Shard(i);
+		}
+		try {
+			recover();
+			for (int i = 0; i < shards.length; i++) {
+				synchronized (shards[i]) {
+					roll(shards[i]);
+				}
+			}
+		} catch (IOException e) {
+			throw new LifecycleException(e);
+		}
+
+		backgroundRunning = true;
+		background = new Thread(new BackgroundProcessor(), getThreadName() + "["
+				+ directory().getAbsolutePath() + "]");
+		background.setDaemon(true);
+		background.start();
+	}
+
+	/**
+	 * Stop the background thread, and close the segments.
+	 */
+	public void stop() throws LifecycleException {
+		super.stop();
+
+		if (background != null) {
+			backgroundRunning = false;
+			synchronized (backgroundLock) {
+				backgroundLock.notifyAll();
+			}
+			try {
+				background.join();
+			} catch (InterruptedException e) {
+				;
+			}
+			background = null;
+		}
+		sync();
+		for (int i = 0; i < shards.length; i++) {
+			synchronized (shards[i]) {
+				for (int j = 0; j < shards[i].segments.size(); j++) {
+					shards[i].segments.get(j).close();
+				}
+			}
+		}
+	}
+
+	// --------------------------------------------------------- Inner Classes
+
+	/**
+	 * A shard, appending to its own active segment.
+	 */
+	protected static class Shard {
+
+		protected final int number;
+
+		/**
+		 * The segments of the shard, in creation order.
+		 */
+		protected final List<Segment> segments = new ArrayList<Segment>();
+
+		/**
+		 * The segment records are appended to.
+		 */
+		protected volatile Segment active = null;
+
+		protected Shard(int number) {
+			this.number = number;
+		}
+
+	}
+
+	/**
+	 * A segment file.
+	 */
+	protected static class Segment {
+
+		protected final File file;
+		protected final long generation;
+		protected volatile FileChannel channel;
+
+		/**
+		 * Size of the segment, only modified while holding the lock on the
+		 * shard.
+		 */
+		protected volatile long size = 0;
+
+		/**
+		 * Size of the records which are the most recent record of a session.
+		 */
+		protected final AtomicLong liveBytes = new AtomicLong();
+
+		protected volatile boolean dirty = false;
+		protected volatile boolean deleted = false;
+
+		protected Segment(File file, long generation) throws IOException {
+			this.file = file;
+			this.generation = generation;
+			this.channel = new RandomAccessFile(file, "rw").getChannel();
+		}
+
+		/**
+		 * Append the buffer, returning the position at which it was written.
+		 */
+		protected long write(ByteBuffer buffer) throws IOException {
+			long position = size;
+			FileChannel channel = channel();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer, position + buffer.position());
+			}
+			size = position + buffer.limit();
+			dirty = true;
+			return position;
+		}
+
+		/**
+		 * Read bytes at the given position until the buffer is full.
+		 */
+		protected void read(ByteBuffer buffer, long position) throws IOException {
+			for (int attempt = 0; ; attempt++) {
+				FileChannel channel = channel();
+				try {
+					while (buffer.hasRemaining()) {
+						if (channel.read(buffer, position + buffer.position()) < 0) {
+							throw new EOFException();
+						}
+					}
+					return;
+				} catch (ClosedChannelException e) {
+					// The channel is closed if a thread using it was interrupted
+					if (deleted || attempt > 0) {
+						throw e;
+					}
+				}
+			}
+		}
+
+		protected void sync() throws IOException {
+			if (dirty) {
+				dirty = false;
+				channel().force(false);
+			}
+		}
+
+		protected void truncate(long length) throws IOException {
+			channel().truncate(length);
+		}
+
+		/**
+		 * Return the channel, opening it again if it was closed by an
+		 * interrupt.
+		 */
+		protected FileChannel channel() throws IOException {
+			FileChannel channel = this.channel;
+			if (channel.isOpen() || deleted) {
+				return channel;
+			}
+			synchronized (this) {
+				if (!this.channel.isOpen() && !deleted) {
+					this.channel = new RandomAccessFile(file, "rw").getChannel();
+				}
+				return this.channel;
+			}
+		}
+
+		protected synchronized void close() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				;
+			}
+		}
+
+		protected synchronized void delete() {
+			deleted = true;
+			close();
+			file.delete();
+		}
+
+	}
+
+	/**
+	 * Location of a record of a session.
+	 */
+	protected static class Location {
+
+		protected final Segment segment;
+
+		/**
+		 * Position of the serialized session in the segment.
+		 */
+		protected final long offset;
+
+		/**
+		 * Length of the serialized session, or -1 for a tombstone.
+		 */
+		protected final int length;
+		protected final int recordSize;
+		protected final long sequence;
+		protected final long lastAccessed;
+		protected final int maxInactive;
+		protected final byte type;
+
+		/**
+		 * Location of the previous record of the session, if this record is
+		 * a delta.
+		 */
+		protected final Location previous;
+
+		protected Location(Segment segment, long offset, int length, int recordSize,
+				long sequence, long lastAccessed, int maxInactive, byte type,
+				Location previous) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.recordSize = recordSize;
+			this.sequence = sequence;
+			this.lastAccessed = lastAccessed;
+			this.maxInactive = maxInactive;
+			this.type = type;
+			this.previous = previous;
+		}
+
+		/**
+		 * Return the same location, linked to the given previous record.
+		 */
+		protected Location link(Location previous) {
+			return new Location(segment, offset, length, recordSize, sequence, lastAccessed,
+					maxInactive, type, previous);
+		}
+
+		/**
+		 * Return <code>true</code> if this record or one of the previous
+		 * records are at the given position.
+		 */
+		protected boolean contains(Segment segment, long offset) {
+			for (Location location = this; location != null; location = location.previous) {
+				if (location.segment == segment && location.offset == offset) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+	}
+
+	/**
+	 * A record read from a segment.
+	 */
+	protected static class Record {
+		protected int recordSize;
+		protected long sequence;
+		protected long lastAccessed;
+		protected int maxInactive;
+		protected byte type;
+		protected String id;
+		protected long dataOffset;
+		protected byte[] data;
+		protected boolean damaged;
+	}
+
+	/**
+	 * Background thread syncing and compacting the segments.
+	 */
+	protected class BackgroundProcessor implements Runnable {
+
+		public void run() {
+			long lastCompaction = System.currentTimeMillis();
+			while (backgroundRunning) {
+				synchronized (backgroundLock) {
+					try {
+						backgroundLock.wait((syncInterval > 0) ? syncInterval : 1000L);
+					} catch (InterruptedException e) {
+						;
+					}
+				}
+				if (!backgroundRunning) {
+					break;
+				}
+				try {
+					if (syncInterval > 0) {
+						sync();
+					}
+					long timeNow = System.currentTimeMillis();
+					if (compactionInterval > 0
+							&& timeNow - lastCompaction >= compactionInterval * 1000L) {
+						lastCompaction = timeNow;
+						compact();
+					}
+				} catch (Throwable t) {
+					manager.getContainer().getLogger()
+							.error(sm.getString(getStoreName() + ".backgroundError"), t);
+				}
+			}
+		}
+
+	}
+
+}
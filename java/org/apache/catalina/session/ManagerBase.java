@@ -25,10 +25,15 @@ import java.io.IOException;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.management.MBeanRegistration;
 import javax.management.MBeanServer;
@@ -90,6 +95,26 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
     protected int maxInactiveInterval = 30 * 60;
 
 
+    /**
+     * The number of <code>SecureRandom</code> instances used to generate
+     * session ids, or 0 to use one per processor.
+     */
+    protected int randomPoolSize = 0;
+
+
+    /**
+     * The number of session ids generated in advance by a background
+     * thread, or 0 to only generate them when needed.
+     */
+    protected int sessionIdQueueSize = 0;
+
+
+    /**
+     * The session id generator, created when first used.
+     */
+    protected volatile SessionIdGenerator sessionIdGenerator = null;
+
+
     /**
      * The session id length of Sessions created by this Manager.
      */
@@ -105,19 +130,28 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
     /**
      * The longest time (in seconds) that an expired session had been alive.
      */
-    protected int sessionMaxAliveTime;
+    protected AtomicInteger sessionMaxAliveTime = new AtomicInteger();
 
 
     /**
-     * Average time (in seconds) that expired sessions had been alive.
+     * Total time (in seconds) that expired sessions had been alive, used
+     * to compute the average.
      */
-    protected int sessionAverageAliveTime;
+    protected AtomicLong sessionAliveTime = new AtomicLong();
+
+
+    /**
+     * Number of expired sessions included in the total alive time. It is
+     * kept apart from the expired sessions count, which may be set or
+     * incremented separately.
+     */
+    protected AtomicInteger sessionAliveCount = new AtomicInteger();
 
 
     /**
      * Number of sessions that have expired.
      */
-    protected int expiredSessions = 0;
+    protected AtomicInteger expiredSessions = new AtomicInteger();
 
 
     /**
@@ -126,10 +160,25 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
      */
     protected Map<String, Session> sessions = new ConcurrentHashMap<String, Session>();
 
+
+    /**
+     * Index of the sessions by expiration time, used to avoid checking all
+     * the sessions during background processing.
+     */
+    protected SessionExpiryIndex expiryIndex = new SessionExpiryIndex();
+
+
+    /**
+     * Sessions which are not <code>StandardSession</code> instances, and
+     * cannot be indexed.
+     */
+    protected Set<Session> unindexedSessions = 
+        Collections.newSetFromMap(new ConcurrentHashMap<Session, Boolean>());
+
     // Number of sessions created by this manager
-    protected int sessionCounter=0;
+    protected AtomicInteger sessionCounter = new AtomicInteger();
 
-    protected int maxActive=0;
+    protected AtomicInteger maxActive = new AtomicInteger();
 
     // number of duplicated session ids - anything >0 means we have problems
     protected int duplicates=0;
@@ -155,6 +204,20 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
      */
     protected int processExpiresFrequency = 6;
 
+    /**
+     * Class name of the codec used to persist sessions. The default codec
+     * uses <code>StandardSession.writeObjectData</code> and
+     * <code>StandardSession.readObjectData</code>, which subclasses may
+     * override, and keeps the format read by previous versions.
+     */
+    protected String sessionCodecClassName =
+        "org.apache.catalina.session.LegacySessionCodec";
+
+    /**
+     * The codec used to persist sessions, created when first needed.
+     */
+    protected volatile SessionCodec sessionCodec = null;
+
     /**
      * The string manager for this package.
      */
@@ -294,10 +357,89 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
         support.firePropertyChange("sessionIdLength",
                                    new Integer(oldSessionIdLength),
                                    new Integer(this.sessionIdLength));
+        resetSessionIdGenerator();
+
+    }
+
+
+    /**
+     * Return the number of <code>SecureRandom</code> instances used to
+     * generate session ids.
+     */
+    public int getRandomPoolSize() {
+
+        return (this.randomPoolSize);
+
+    }
+
+
+    /**
+     * Set the number of <code>SecureRandom</code> instances used to generate
+     * session ids, which are selected according to the current thread. Set
+     * it to 0 to use one per processor.
+     *
+     * @param randomPoolSize The number of instances
+     */
+    public void setRandomPoolSize(int randomPoolSize) {
+
+        int oldRandomPoolSize = this.randomPoolSize;
+        this.randomPoolSize = randomPoolSize;
+        support.firePropertyChange("randomPoolSize",
+                                   new Integer(oldRandomPoolSize),
+                                   new Integer(this.randomPoolSize));
+        resetSessionIdGenerator();
 
     }
 
 
+    /**
+     * Return the number of session ids generated in advance.
+     */
+    public int getSessionIdQueueSize() {
+
+        return (this.sessionIdQueueSize);
+
+    }
+
+
+    /**
+     * Set the number of session ids generated in advance by a background
+     * thread. Set it to 0 to only generate session ids when needed.
+     *
+     * @param sessionIdQueueSize The number of session ids
+     */
+    public void setSessionIdQueueSize(int sessionIdQueueSize) {
+
+        int oldSessionIdQueueSize = this.sessionIdQueueSize;
+        this.sessionIdQueueSize = sessionIdQueueSize;
+        support.firePropertyChange("sessionIdQueueSize",
+                                   new Integer(oldSessionIdQueueSize),
+                                   new Integer(this.sessionIdQueueSize));
+        resetSessionIdGenerator();
+
+    }
+
+
+    /**
+     * Return the total time (in milliseconds) spent by requests getting the
+     * random bytes of new session ids.
+     */
+    public long getSessionIdWaitTime() {
+        SessionIdGenerator generator = sessionIdGenerator;
+        return (generator == null) ? 0 : generator.getWaitTime();
+    }
+
+
+    /**
+     * Return the number of session ids generated in advance which are
+     * available.
+     */
+    public int getSessionIdQueueDepth() {
+        SessionIdGenerator generator = sessionIdGenerator;
+        return (generator == null) ? 0 : generator.getQueueDepth();
+    }
+
+
     /**
      * Return the descriptive short name of this Manager implementation.
      */
@@ -313,7 +455,7 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
      * @return Number of sessions that have expired
      */
     public int getExpiredSessions() {
-        return expiredSessions;
+        return expiredSessions.get();
     }
 
 
@@ -323,7 +465,7 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
      * @param expiredSessions Number of sessions that have expired
      */
     public void setExpiredSessions(int expiredSessions) {
-        this.expiredSessions = expiredSessions;
+        this.expiredSessions.set(expiredSessions);
     }
 
     public long getProcessingTime() {
@@ -363,6 +505,66 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
 
     }
 
+    /**
+     * Return the class name of the codec used to persist sessions.
+     */
+    public String getSessionCodecClassName() {
+
+        return (this.sessionCodecClassName);
+
+    }
+
+    /**
+     * Set the class name of the codec used to persist sessions.
+     *
+     * @param sessionCodecClassName the new codec class name
+     */
+    public void setSessionCodecClassName(String sessionCodecClassName) {
+
+        String oldSessionCodecClassName = this.sessionCodecClassName;
+        this.sessionCodecClassName = sessionCodecClassName;
+        this.sessionCodec = null;
+        support.firePropertyChange("sessionCodecClassName",
+                                   oldSessionCodecClassName,
+                                   this.sessionCodecClassName);
+
+    }
+
+    /**
+     * Return the codec used to persist sessions, creating it if needed.
+     */
+    public SessionCodec getSessionCodec() {
+
+        SessionCodec result = sessionCodec;
+        if (result == null) {
+            try {
+                Class<?> clazz = Class.forName(sessionCodecClassName);
+                result = (SessionCodec) clazz.newInstance();
+            } catch (Throwable t) {
+                log.error(sm.getString("managerBase.sessionCodec",
+                        sessionCodecClassName), t);
+                result = new LegacySessionCodec();
+            }
+            sessionCodec = result;
+        }
+        return (result);
+
+    }
+
+    /**
+     * Set the codec used to persist sessions.
+     *
+     * @param sessionCodec the new codec
+     */
+    public void setSessionCodec(SessionCodec sessionCodec) {
+
+        this.sessionCodec = sessionCodec;
+        if (sessionCodec != null) {
+            this.sessionCodecClassName = sessionCodec.getClass().getName();
+        }
+
+    }
+
     // --------------------------------------------------------- Public Methods
 
 
@@ -381,14 +583,30 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
     public void processExpires() {
 
         long timeNow = System.currentTimeMillis();
-        Session sessions[] = findSessions();
         int expireHere = 0 ;
         
         if(log.isDebugEnabled())
-            log.debug("Start expire sessions " + getName() + " at " + timeNow + " sessioncount " + sessions.length);
-        for (int i = 0; i < sessions.length; i++) {
-            if (sessions[i] != null && !sessions[i].isValid()) {
+            log.debug("Start expire sessions " + getName() + " at " + timeNow + " sessioncount " + sessions.size());
+        List<StandardSession> dueSessions = expiryIndex.poll(timeNow);
+        for (int i = 0; i < dueSessions.size(); i++) {
+            StandardSession session = dueSessions.get(i);
+            String id = session.getIdInternal();
+            if (id == null || sessions.get(id) != session) {
+                // Removed in the meantime
+                continue;
+            }
+            if (!session.isValid()) {
                 expireHere++;
+            } else {
+                scheduleExpiry(session);
+            }
+        }
+        if (!unindexedSessions.isEmpty()) {
+            Iterator<Session> iterator = unindexedSessions.iterator();
+            while (iterator.hasNext()) {
+                if (!iterator.next().isValid()) {
+                    expireHere++;
+                }
             }
         }
         long timeEnd = System.currentTimeMillis();
@@ -399,6 +617,7 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
     }
 
     public void destroy() {
+        resetSessionIdGenerator();
         if (org.apache.tomcat.util.Constants.ENABLE_MODELER) {
             if( oname != null )
                 Registry.getRegistry(null, null).unregisterComponent(oname);
@@ -447,10 +666,12 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
     public void add(Session session) {
 
         sessions.put(session.getIdInternal(), session);
-        int size = sessions.size();
-        if( size > maxActive ) {
-            maxActive = size;
+        if (session instanceof StandardSession) {
+            scheduleExpiry((StandardSession) session);
+        } else {
+            unindexedSessions.add(session);
         }
+        updateMax(maxActive, sessions.size());
     }
 
 
@@ -504,7 +725,7 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
             sessionId = generateSessionId(random);
         }
         session.setId(sessionId);
-        sessionCounter++;
+        sessionCounter.incrementAndGet();
 
         return (session);
 
@@ -560,6 +781,11 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
     public void remove(Session session) {
 
         sessions.remove(session.getIdInternal());
+        if (session instanceof StandardSession) {
+            expiryIndex.remove((StandardSession) session);
+        } else {
+            unindexedSessions.remove(session);
+        }
 
     }
 
@@ -579,6 +805,70 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
     // ------------------------------------------------------ Protected Methods
 
 
+    /**
+     * Return the time at which the background processing has to check the
+     * session again, or <code>Long.MAX_VALUE</code> if it never has to.
+     * This is the time at which the session expires if it is not accessed
+     * again.
+     *
+     * @param session The session
+     */
+    protected long getDeadline(StandardSession session) {
+        if (session.maxInactiveInterval < 0) {
+            return Long.MAX_VALUE;
+        }
+        return session.creationTime + session.thisAccessedTime 
+            + (session.maxInactiveInterval * 1000L);
+    }
+
+
+    /**
+     * Add the session to the expiry index, or move it according to its
+     * current deadline.
+     */
+    protected void scheduleExpiry(StandardSession session) {
+        expiryIndex.schedule(session, getDeadline(session));
+    }
+
+
+    /**
+     * Move the session in the expiry index after a change of its maximum
+     * inactive interval, or add it if it is active and was not indexed
+     * because it could not expire.
+     */
+    protected void rescheduleExpiry(StandardSession session) {
+        String id = session.getIdInternal();
+        boolean active = (id != null && sessions.get(id) == session);
+        expiryIndex.reschedule(session, getDeadline(session), active);
+    }
+
+
+    /**
+     * Move all the active sessions in the expiry index, after a change of
+     * the configuration used to compute their deadline.
+     */
+    protected void rescheduleSessions() {
+        Iterator<Session> iterator = sessions.values().iterator();
+        while (iterator.hasNext()) {
+            Session session = iterator.next();
+            if (session instanceof StandardSession) {
+                rescheduleExpiry((StandardSession) session);
+            }
+        }
+    }
+
+
+    /**
+     * Remove all the sessions from the active sessions, without expiring
+     * them.
+     */
+    protected void clearSessions() {
+        sessions.clear();
+        expiryIndex.clear();
+        unindexedSessions.clear();
+    }
+
+
     /**
      * Get new session class to be used in the doLoad() method.
      */
@@ -589,19 +879,45 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
 
     /**
      * Generate and return a new session identifier.
+     *
+     * @param random Random used to seed the generators of the manager
      */
     protected String generateSessionId(Random random) {
-        byte[] bytes = new byte[sessionIdLength];
-        random.nextBytes(bytes);
-        // Encode the result
-        char[] id = encode(bytes);
-        String jvmRoute = getJvmRoute();
-        if (appendJVMRoute() && jvmRoute != null) {
-            StringBuilder buffer = new StringBuilder();
-            buffer.append(id).append('.').append(jvmRoute);
-            return buffer.toString();
-        } else {
-            return String.valueOf(id);
+        String jvmRoute = null;
+        if (appendJVMRoute()) {
+            jvmRoute = getJvmRoute();
+        }
+        return getSessionIdGenerator().generateSessionId(random, jvmRoute);
+    }
+
+
+    /**
+     * Return the session identifier generator, creating it if needed.
+     */
+    protected SessionIdGenerator getSessionIdGenerator() {
+        SessionIdGenerator generator = sessionIdGenerator;
+        if (generator == null) {
+            synchronized (this) {
+                generator = sessionIdGenerator;
+                if (generator == null) {
+                    generator = new SessionIdGenerator(sessionIdLength,
+                            randomPoolSize, sessionIdQueueSize);
+                    sessionIdGenerator = generator;
+                }
+            }
+        }
+        return generator;
+    }
+
+
+    /**
+     * Stop the session identifier generator, which will be created again
+     * if needed.
+     */
+    protected synchronized void resetSessionIdGenerator() {
+        if (sessionIdGenerator != null) {
+            sessionIdGenerator.stop();
+            sessionIdGenerator = null;
         }
     }
 
@@ -618,7 +934,26 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
      * @return the encoded String
      */
     public static char[] encode(byte[] data) {
-       char[] out = new char[((data.length + 2) / 3) * 4];
+       return encode(data, null);
+    }
+
+
+    /**
+     * Encode the bytes as with {@link #encode(byte[])}, followed by a '.'
+     * and the given suffix.
+     *
+     * @param data The bytes you want to encode
+     * @param suffix The suffix, or <code>null</code> for none
+     * @return the encoded String
+     */
+    public static char[] encode(byte[] data, String suffix) {
+       int length = ((data.length + 2) / 3) * 4;
+       char[] out = new char[length
+               + ((suffix == null) ? 0 : (suffix.length() + 1))];
+       if (suffix != null) {
+          out[length] = '.';
+          suffix.getChars(0, suffix.length(), out, length + 1);
+       }
        char[] alphabet = SESSION_ID_ALPHABET;
        //
        // 3 bytes encode to 4 chars.  Output is always an even
@@ -684,7 +1019,7 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
 
 
     public void setSessionCounter(int sessionCounter) {
-        this.sessionCounter = sessionCounter;
+        this.sessionCounter.set(sessionCounter);
     }
 
 
@@ -694,7 +1029,7 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
      * @return sessions created
      */
     public int getSessionCounter() {
-        return sessionCounter;
+        return sessionCounter.get();
     }
 
 
@@ -724,18 +1059,28 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
     }
 
 
+    /**
+     * Returns the number of sessions in the expiry index.
+     *
+     * @return number of indexed sessions
+     */
+    public int getIndexedSessions() {
+        return expiryIndex.getSize();
+    }
+
+
     /**
      * Max number of concurrent active sessions
      *
      * @return The highest number of concurrent active sessions
      */
     public int getMaxActive() {
-        return maxActive;
+        return maxActive.get();
     }
 
 
     public void setMaxActive(int maxActive) {
-        this.maxActive = maxActive;
+        this.maxActive.set(maxActive);
     }
 
 
@@ -747,7 +1092,7 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
      * alive.
      */
     public int getSessionMaxAliveTime() {
-        return sessionMaxAliveTime;
+        return sessionMaxAliveTime.get();
     }
 
 
@@ -759,7 +1104,7 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
      * session had been alive.
      */
     public void setSessionMaxAliveTime(int sessionMaxAliveTime) {
-        this.sessionMaxAliveTime = sessionMaxAliveTime;
+        this.sessionMaxAliveTime.set(sessionMaxAliveTime);
     }
 
 
@@ -771,7 +1116,8 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
      * alive.
      */
     public int getSessionAverageAliveTime() {
-        return sessionAverageAliveTime;
+        int expired = sessionAliveCount.get();
+        return (expired > 0) ? (int) (sessionAliveTime.get() / expired) : 0;
     }
 
 
@@ -783,7 +1129,36 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
      * sessions had been alive.
      */
     public void setSessionAverageAliveTime(int sessionAverageAliveTime) {
-        this.sessionAverageAliveTime = sessionAverageAliveTime;
+        this.sessionAliveTime.set((long) sessionAverageAliveTime * sessionAliveCount.get());
+    }
+
+
+    /**
+     * Update the statistics of the expired sessions, without locking the
+     * manager.
+     *
+     * @param timeAlive Time (in seconds) that the expired session had been
+     * alive
+     */
+    public void sessionExpired(int timeAlive) {
+        updateMax(sessionMaxAliveTime, timeAlive);
+        sessionAliveTime.addAndGet(timeAlive);
+        sessionAliveCount.incrementAndGet();
+        expiredSessions.incrementAndGet();
+    }
+
+
+    /**
+     * Set the counter to the given value if it is higher.
+     */
+    protected static void updateMax(AtomicInteger counter, int value) {
+        int current = counter.get();
+        while (value > current) {
+            if (counter.compareAndSet(current, value)) {
+                return;
+            }
+            current = counter.get();
+        }
     }
 
 
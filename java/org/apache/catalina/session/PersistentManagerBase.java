@@ -25,7 +25,10 @@ import java.security.AccessController;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.catalina.Container;
 import org.apache.catalina.Context;
@@ -110,7 +113,7 @@ public abstract class PersistentManagerBase
         }
 
         public Object run() throws Exception{
-           store.save(session);
+           storeSave(session);
            return null;
         }                       
     }   
@@ -194,6 +197,26 @@ public abstract class PersistentManagerBase
     protected int maxIdleSwap = -1;
 
 
+    /**
+     * The maximum number of consecutive saves of a session which only write
+     * the attributes which have changed, before the whole session is saved
+     * again. Setting this to 0 means sessions are always saved whole.
+     */
+    protected int maxDeltaSaves = 0;
+
+
+    /**
+     * Number of saves of a whole session to the Store.
+     */
+    protected AtomicLong fullSaves = new AtomicLong();
+
+
+    /**
+     * Number of saves of the changed attributes of a session to the Store.
+     */
+    protected AtomicLong deltaSaves = new AtomicLong();
+
+
     /**
      * Number of session creations that failed due to maxActiveSessions.
      */
@@ -260,6 +283,7 @@ public abstract class PersistentManagerBase
         support.firePropertyChange("maxIdleBackup",
                                    new Integer(oldBackup),
                                    new Integer(this.maxIdleBackup));
+        rescheduleSessions();
 
     }
 
@@ -288,6 +312,7 @@ public abstract class PersistentManagerBase
         support.firePropertyChange("maxIdleSwap",
                                    new Integer(oldMaxIdleSwap),
                                    new Integer(this.maxIdleSwap));
+        rescheduleSessions();
 
     }
 
@@ -318,6 +343,58 @@ public abstract class PersistentManagerBase
         support.firePropertyChange("minIdleSwap",
                                    new Integer(oldMinIdleSwap),
                                    new Integer(this.minIdleSwap));
+        rescheduleSessions();
+
+    }
+
+
+    /**
+     * Return the maximum number of consecutive saves of a session which only
+     * write the attributes which have changed.
+     */
+    public int getMaxDeltaSaves() {
+
+        return maxDeltaSaves;
+
+    }
+
+
+    /**
+     * Set the maximum number of consecutive saves of a session which only
+     * write the attributes which have changed, before the whole session is
+     * saved again. Deltas are only used if the Store is a
+     * <code>DeltaStore</code>, and attributes which are modified without
+     * calling <code>setAttribute</code> are only saved with the whole
+     * session. Set it to 0 to always save whole sessions.
+     */
+    public void setMaxDeltaSaves(int maxDeltaSaves) {
+
+        int oldMaxDeltaSaves = this.maxDeltaSaves;
+        this.maxDeltaSaves = maxDeltaSaves;
+        support.firePropertyChange("maxDeltaSaves",
+                                   new Integer(oldMaxDeltaSaves),
+                                   new Integer(this.maxDeltaSaves));
+
+    }
+
+
+    /**
+     * Return the number of saves of a whole session to the Store.
+     */
+    public long getFullSaves() {
+
+        return fullSaves.get();
+
+    }
+
+
+    /**
+     * Return the number of saves of the changed attributes of a session to
+     * the Store.
+     */
+    public long getDeltaSaves() {
+
+        return deltaSaves.get();
 
     }
 
@@ -539,22 +616,48 @@ public abstract class PersistentManagerBase
 
 
     /**
-     * Implements the Manager interface, direct call to processExpires and processPersistenceChecks
+     * Implements the Manager interface, direct call to processExpires and processPersistenceChecks.
+     * Only the sessions which are due for expiration, swap out or backup according
+     * to the expiry index are checked.
      */
     public void processExpires() {
         
         long timeNow = System.currentTimeMillis();
-        Session sessions[] = findSessions();
         int expireHere = 0 ;
         if(log.isDebugEnabled())
-             log.debug("Start expire sessions " + getName() + " at " + timeNow + " sessioncount " + sessions.length);
-        for (int i = 0; i < sessions.length; i++) {
-            if (!sessions[i].isValid()) {
-                expiredSessions++;
+             log.debug("Start expire sessions " + getName() + " at " + timeNow + " sessioncount " + sessions.size());
+        List<StandardSession> dueSessions = expiryIndex.poll(timeNow);
+        for (int i = 0; i < dueSessions.size(); i++) {
+            StandardSession session = dueSessions.get(i);
+            String id = session.getIdInternal();
+            if (id == null || sessions.get(id) != session) {
+                // Removed or swapped out in the meantime
+                continue;
+            }
+            if (!session.isValid()) {
+                // The expiration has been counted by the session
                 expireHere++;
+                continue;
+            }
+            if (isStarted()) {
+                if (processMaxIdleSwap(session, timeNow)) {
+                    continue;
+                }
+                processMaxIdleBackup(session, timeNow);
+            }
+            if (sessions.get(id) == session) {
+                scheduleExpiry(session);
             }
         }
-        processPersistenceChecks();
+        if (!unindexedSessions.isEmpty()) {
+            Iterator<Session> iterator = unindexedSessions.iterator();
+            while (iterator.hasNext()) {
+                if (!iterator.next().isValid()) {
+                    expireHere++;
+                }
+            }
+        }
+        processMaxActiveSwaps();
         if ((getStore() != null) && (getStore() instanceof StoreBase)) {
             ((StoreBase) getStore()).processExpires();
         }
@@ -568,8 +671,9 @@ public abstract class PersistentManagerBase
 
 
     /**
-     * Called by the background thread after active sessions have been checked
-     * for expiration, to allow sessions to be swapped out, backed up, etc.
+     * Check all the active sessions to allow them to be swapped out, backed up,
+     * etc. This is not needed by the background processing, which only checks
+     * the sessions which are due according to the expiry index.
      */
     public void processPersistenceChecks() {
 
@@ -645,7 +749,7 @@ public abstract class PersistentManagerBase
     public void load() {
 
         // Initialize our internal data structures
-        sessions.clear();
+        clearSessions();
 
         if (store == null)
             return;
@@ -909,7 +1013,7 @@ public abstract class PersistentManagerBase
                     exception.printStackTrace();                        
                 }
             } else {
-                 store.save(session);
+                 storeSave(session);
             }   
         } catch (IOException e) {
             log.error(sm.getString
@@ -920,6 +1024,60 @@ public abstract class PersistentManagerBase
     }
 
 
+    /**
+     * Save the session to the Store, only writing the attributes which have
+     * changed if the Store supports it and fewer than
+     * <code>maxDeltaSaves</code> deltas have been written since the session
+     * was last saved whole. This is also used by the
+     * <code>PersistentValve</code> at the end of each request.
+     */
+    public void storeSave(Session session) throws IOException {
+
+        StandardSession standardSession = null;
+        if (session instanceof StandardSession) {
+            standardSession = (StandardSession) session;
+        }
+        if (standardSession != null && maxDeltaSaves > 0
+                && store instanceof DeltaStore
+                && standardSession.storedDeltas >= 0
+                && standardSession.storedDeltas < maxDeltaSaves) {
+            boolean saved = false;
+            try {
+                saved = ((DeltaStore) store).saveDelta(standardSession);
+            } catch (IOException e) {
+                // The next save writes the whole session
+                standardSession.storedDeltas = -1;
+                throw e;
+            }
+            if (saved) {
+                standardSession.storedDeltas++;
+                deltaSaves.incrementAndGet();
+                return;
+            }
+        }
+
+        // All the attributes are written, so clear the changes first to
+        // keep those made during the save for the next delta
+        if (standardSession != null) {
+            standardSession.dirtyAttributes.clear();
+        }
+        try {
+            store.save(session);
+        } catch (IOException e) {
+            // The changes cleared above are only written by a full save
+            if (standardSession != null) {
+                standardSession.storedDeltas = -1;
+            }
+            throw e;
+        }
+        if (standardSession != null) {
+            standardSession.storedDeltas = 0;
+        }
+        fullSaves.incrementAndGet();
+
+    }
+
+
     // ------------------------------------------------------ Lifecycle Methods
 
 
@@ -1063,6 +1221,37 @@ public abstract class PersistentManagerBase
     // ------------------------------------------------------ Protected Methods
 
 
+    /**
+     * Return the time at which the background processing has to check the
+     * session again, which is the earliest of its expiration, swap out and
+     * backup times. The backup time is only taken into account if it has
+     * not passed yet, otherwise the session will be checked again
+     * <code>maxIdleBackup</code> seconds later, to avoid writing it on
+     * every background processing run.
+     *
+     * @param session The session
+     */
+    protected long getDeadline(StandardSession session) {
+        long deadline = super.getDeadline(session);
+        long lastAccessedTime = session.getLastAccessedTimeInternal();
+        if (maxIdleSwap >= 0) {
+            // Truncated idle time must be greater than both limits
+            long swap = lastAccessedTime 
+                + ((Math.max(maxIdleSwap, minIdleSwap) + 1) * 1000L);
+            deadline = Math.min(deadline, swap);
+        }
+        if (maxIdleBackup >= 0) {
+            long backup = lastAccessedTime + ((maxIdleBackup + 1) * 1000L);
+            long timeNow = System.currentTimeMillis();
+            if (backup <= timeNow) {
+                backup = timeNow + (maxIdleBackup * 1000L);
+            }
+            deadline = Math.min(deadline, backup);
+        }
+        return deadline;
+    }
+
+
     /**
      * Swap idle sessions out to Store if they are idle too long.
      */
@@ -1075,33 +1264,47 @@ public abstract class PersistentManagerBase
         long timeNow = System.currentTimeMillis();
 
         // Swap out all sessions idle longer than maxIdleSwap
-        if (maxIdleSwap >= 0) {
-            for (int i = 0; i < sessions.length; i++) {
-                StandardSession session = (StandardSession) sessions[i];
-                synchronized (session) {
-                    if (!session.isValid())
-                        continue;
-                    int timeIdle = // Truncate, do not round up
-                        (int) ((timeNow - session.getLastAccessedTime()) / 1000L);
-                    if (timeIdle > maxIdleSwap && timeIdle > minIdleSwap) {
-                        if (session.accessCount != null &&
-                                session.accessCount.get() > 0) {
-                            // Session is currently being accessed - skip it
-                            continue;
-                        }
-                        if (log.isDebugEnabled())
-                            log.debug(sm.getString
-                                ("persistentManager.swapMaxIdle",
-                                 session.getIdInternal(), new Integer(timeIdle)));
-                        try {
-                            swapOut(session);
-                        } catch (IOException e) {
-                            ;   // This is logged in writeSession()
-                        }
-                    }
+        for (int i = 0; i < sessions.length; i++) {
+            processMaxIdleSwap((StandardSession) sessions[i], timeNow);
+        }
+
+    }
+
+
+    /**
+     * Swap the session out to Store if it is idle too long.
+     *
+     * @return true if the session has been swapped out
+     */
+    protected boolean processMaxIdleSwap(StandardSession session, long timeNow) {
+
+        if (maxIdleSwap < 0)
+            return false;
+
+        synchronized (session) {
+            if (!session.isValid())
+                return false;
+            int timeIdle = // Truncate, do not round up
+                (int) ((timeNow - session.getLastAccessedTime()) / 1000L);
+            if (timeIdle > maxIdleSwap && timeIdle > minIdleSwap) {
+                if (session.accessCount != null &&
+                        session.accessCount.get() > 0) {
+                    // Session is currently being accessed - skip it
+                    return false;
+                }
+                if (log.isDebugEnabled())
+                    log.debug(sm.getString
+                        ("persistentManager.swapMaxIdle",
+                         session.getIdInternal(), new Integer(timeIdle)));
+                try {
+                    swapOut(session);
+                    return true;
+                } catch (IOException e) {
+                    ;   // This is logged in writeSession()
                 }
             }
         }
+        return false;
 
     }
 
@@ -1114,6 +1317,9 @@ public abstract class PersistentManagerBase
         if (!isStarted() || getMaxActiveSessions() < 0)
             return;
 
+        if (getMaxActiveSessions() >= sessions.size())
+            return;
+
         Session sessions[] = findSessions();
 
         // FIXME: Smarter algorithm (LRU)
@@ -1168,26 +1374,36 @@ public abstract class PersistentManagerBase
         long timeNow = System.currentTimeMillis();
 
         // Back up all sessions idle longer than maxIdleBackup
-        if (maxIdleBackup >= 0) {
-            for (int i = 0; i < sessions.length; i++) {
-                StandardSession session = (StandardSession) sessions[i];
-                synchronized (session) {
-                    if (!session.isValid())
-                        continue;
-                    int timeIdle = // Truncate, do not round up
-                        (int) ((timeNow - session.getLastAccessedTime()) / 1000L);
-                    if (timeIdle > maxIdleBackup) {
-                        if (log.isDebugEnabled())
-                            log.debug(sm.getString
-                                ("persistentManager.backupMaxIdle",
-                                session.getIdInternal(), new Integer(timeIdle)));
-    
-                        try {
-                            writeSession(session);
-                        } catch (IOException e) {
-                            ;   // This is logged in writeSession()
-                        }
-                    }
+        for (int i = 0; i < sessions.length; i++) {
+            processMaxIdleBackup((StandardSession) sessions[i], timeNow);
+        }
+
+    }
+
+
+    /**
+     * Back up the session if it is idle.
+     */
+    protected void processMaxIdleBackup(StandardSession session, long timeNow) {
+
+        if (maxIdleBackup < 0)
+            return;
+
+        synchronized (session) {
+            if (!session.isValid())
+                return;
+            int timeIdle = // Truncate, do not round up
+                (int) ((timeNow - session.getLastAccessedTime()) / 1000L);
+            if (timeIdle > maxIdleBackup) {
+                if (log.isDebugEnabled())
+                    log.debug(sm.getString
+                        ("persistentManager.backupMaxIdle",
+                        session.getIdInternal(), new Integer(timeIdle)));
+
+                try {
+                    writeSession(session);
+                } catch (IOException e) {
+                    ;   // This is logged in writeSession()
                 }
             }
         }
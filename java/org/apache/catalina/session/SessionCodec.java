@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.session;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+
+/**
+ * Format used to write sessions to a stream, and to read them back. The
+ * codec is used by the managers and stores to persist sessions, and is
+ * configured on the manager using the <code>sessionCodecClassName</code>
+ * property.
+ * <p>
+ * A stream contains either a single session, or a known number of sessions.
+ * Implementations must be thread safe, but the inputs and outputs they return
+ * are used by a single thread.
+ */
+public interface SessionCodec {
+
+
+    /**
+     * Create an output writing sessions to the given stream.
+     *
+     * @param stream The stream, which will be closed when the output is
+     *   closed
+     * @param count The number of sessions which will be written, or -1 if the
+     *   stream will only contain one session
+     */
+    public SessionOutput createOutput(OutputStream stream, int count)
+        throws IOException;
+
+
+    /**
+     * Create an input reading sessions from the given stream.
+     *
+     * @param stream The stream, which will be closed when the input is
+     *   closed
+     * @param classLoader The class loader used to load the classes of the
+     *   attributes, or null to use the default one
+     * @param multiple True if the stream was written with a session count,
+     *   false if it contains a single session
+     */
+    public SessionInput createInput(InputStream stream, ClassLoader classLoader,
+            boolean multiple)
+        throws IOException;
+
+
+    /**
+     * Writes sessions.
+     */
+    public interface SessionOutput {
+
+        /**
+         * Write the session. As with <code>StandardSession.writeObjectData</code>,
+         * attributes which are not serializable are removed from the session.
+         */
+        public void writeSession(StandardSession session)
+            throws IOException;
+
+        /**
+         * Write the fixed fields of the session, and the attributes which
+         * have been set or removed since the session was last written. The
+         * id and creation time are not written, and the set of changed
+         * attributes is cleared.
+         */
+        public void writeDelta(StandardSession session)
+            throws IOException;
+
+        /**
+         * Flush and close the output.
+         */
+        public void close()
+            throws IOException;
+
+    }
+
+
+    /**
+     * Reads sessions.
+     */
+    public interface SessionInput {
+
+        /**
+         * Return the number of sessions in the stream.
+         */
+        public int getCount();
+
+        /**
+         * Read the next session into the given empty session. The manager of
+         * the session must be set.
+         */
+        public void readSession(StandardSession session)
+            throws ClassNotFoundException, IOException;
+
+        /**
+         * Read the next delta, and apply it to the given session, which must
+         * have been read from the same Store.
+         */
+        public void readDelta(StandardSession session)
+            throws ClassNotFoundException, IOException;
+
+        /**
+         * Close the input.
+         */
+        public void close()
+            throws IOException;
+
+    }
+
+
+}
@@ -0,0 +1,228 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.session;
+
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+
+/**
+ * Index of sessions ordered by the time at which the manager has to look at
+ * them again, so that background processing only touches the sessions which
+ * are due instead of scanning all of them. Sessions are grouped in buckets
+ * covering <code>resolution</code> milliseconds.
+ * <p>
+ * The index is not updated when a session is accessed, as this only moves
+ * the deadline of the session further: the manager checks the sessions which
+ * are returned by {@link #poll(long)}, and schedules again the ones which are
+ * not actually due.
+ */
+public class SessionExpiryIndex {
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    public SessionExpiryIndex() {
+        this(1000L);
+    }
+
+
+    public SessionExpiryIndex(long resolution) {
+        this.resolution = resolution;
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * Duration covered by a bucket, in milliseconds.
+     */
+    protected final long resolution;
+
+
+    /**
+     * Buckets of sessions, keyed by deadline divided by the resolution.
+     */
+    protected final TreeMap<Long, Set<StandardSession>> buckets =
+        new TreeMap<Long, Set<StandardSession>>();
+
+
+    /**
+     * Last bucket returned by poll. Sessions are never scheduled in a bucket
+     * which has already been polled.
+     */
+    protected long lastPolled = Long.MIN_VALUE;
+
+
+    /**
+     * Number of sessions in the index.
+     */
+    protected int size = 0;
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    /**
+     * Return the number of sessions in the index.
+     */
+    public synchronized int getSize() {
+        return size;
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Add the session to the index, or move it if it is already indexed.
+     *
+     * @param session The session
+     * @param deadline Time at which the session should be returned by poll,
+     *   or <code>Long.MAX_VALUE</code> if it should never be returned
+     */
+    public synchronized void schedule(StandardSession session, long deadline) {
+        unschedule(session);
+        if (deadline == Long.MAX_VALUE) {
+            return;
+        }
+        long key = deadline / resolution;
+        if (lastPolled != Long.MIN_VALUE && key <= lastPolled) {
+            key = lastPolled + 1;
+        }
+        Set<StandardSession> bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = new HashSet<StandardSession>();
+            buckets.put(key, bucket);
+        }
+        bucket.add(session);
+        session.expiryIndexKey = key;
+        size++;
+    }
+
+
+    /**
+     * Move the session if it is currently indexed.
+     */
+    public synchronized void reschedule(StandardSession session, long deadline) {
+        reschedule(session, deadline, false);
+    }
+
+
+    /**
+     * Move the session if it is currently indexed. A session which is not
+     * indexed, because it previously had no deadline, is added if it is
+     * still active and now has a deadline.
+     *
+     * @param session The session
+     * @param deadline Time at which the session should be returned by poll,
+     *   or <code>Long.MAX_VALUE</code> if it should never be returned
+     * @param active Is the session still active in its manager?
+     */
+    public synchronized void reschedule(StandardSession session, long deadline,
+            boolean active) {
+        if (session.expiryIndexKey != -1
+                || (active && deadline != Long.MAX_VALUE)) {
+            schedule(session, deadline);
+        }
+    }
+
+
+    /**
+     * Remove the session from the index.
+     */
+    public synchronized void remove(StandardSession session) {
+        unschedule(session);
+    }
+
+
+    /**
+     * Remove and return all the sessions whose deadline has passed.
+     *
+     * @param timeNow The current time
+     */
+    public synchronized List<StandardSession> poll(long timeNow) {
+        long key = timeNow / resolution;
+        lastPolled = key;
+        List<StandardSession> result = new ArrayList<StandardSession>();
+        Iterator<Map.Entry<Long, Set<StandardSession>>> iterator =
+            buckets.headMap(key, true).entrySet().iterator();
+        while (iterator.hasNext()) {
+            Set<StandardSession> bucket = iterator.next().getValue();
+            iterator.remove();
+            Iterator<StandardSession> sessions = bucket.iterator();
+            while (sessions.hasNext()) {
+                StandardSession session = sessions.next();
+                session.expiryIndexKey = -1;
+                result.add(session);
+            }
+            size -= bucket.size();
+        }
+        return result;
+    }
+
+
+    /**
+     * Remove all the sessions from the index.
+     */
+    public synchronized void clear() {
+        Iterator<Set<StandardSession>> iterator = buckets.values().iterator();
+        while (iterator.hasNext()) {
+            Iterator<StandardSession> sessions = iterator.next().iterator();
+            while (sessions.hasNext()) {
+                sessions.next().expiryIndexKey = -1;
+            }
+        }
+        buckets.clear();
+        size = 0;
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+
+    /**
+     * Remove the session from its bucket. Must be called while holding the
+     * lock on the index.
+     */
+    protected void unschedule(StandardSession session) {
+        long key = session.expiryIndexKey;
+        if (key == -1) {
+            return;
+        }
+        Set<StandardSession> bucket = buckets.get(key);
+        if (bucket != null && bucket.remove(session)) {
+            size--;
+            if (bucket.isEmpty()) {
+                buckets.remove(key);
+            }
+        }
+        session.expiryIndexKey = -1;
+    }
+
+
+}
@@ -0,0 +1,226 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.session;
+
+
+import java.security.SecureRandom;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * Generator of session identifiers. The random bytes are drawn from a pool
+ * of <code>SecureRandom</code> instances, selected by thread, so that
+ * concurrent requests do not all wait on the same generator. Optionally, a
+ * background thread fills a bounded queue of random bytes in advance, which
+ * are used first.
+ */
+public class SessionIdGenerator {
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * Create a generator.
+     *
+     * @param idLength The number of random bytes of the identifiers
+     * @param randomCount The number of <code>SecureRandom</code> instances, or
+     *   0 or less to use one per processor
+     * @param queueSize The number of identifiers generated in advance, or 0
+     *   to generate them when requested only
+     */
+    public SessionIdGenerator(int idLength, int randomCount, int queueSize) {
+        this.idLength = idLength;
+        if (randomCount <= 0) {
+            randomCount = Runtime.getRuntime().availableProcessors();
+        }
+        this.randoms = new AtomicReferenceArray<SecureRandom>(randomCount);
+        if (queueSize > 0) {
+            queue = new ArrayBlockingQueue<byte[]>(queueSize);
+        }
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The number of random bytes of the identifiers.
+     */
+    protected final int idLength;
+
+
+    /**
+     * The pool of generators, which are created when first used.
+     */
+    protected final AtomicReferenceArray<SecureRandom> randoms;
+
+
+    /**
+     * Random bytes generated in advance, or <code>null</code>.
+     */
+    protected volatile BlockingQueue<byte[]> queue = null;
+
+
+    /**
+     * Background thread filling the queue.
+     */
+    protected Thread thread = null;
+
+
+    /**
+     * Background thread running flag.
+     */
+    protected volatile boolean running = false;
+
+
+    /**
+     * Total time spent by callers getting random bytes, in nanoseconds.
+     */
+    protected AtomicLong waitTime = new AtomicLong();
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    /**
+     * Return the total time spent by callers getting random bytes, in
+     * milliseconds.
+     */
+    public long getWaitTime() {
+        return waitTime.get() / 1000000L;
+    }
+
+
+    /**
+     * Return the number of identifiers generated in advance which are
+     * available.
+     */
+    public int getQueueDepth() {
+        BlockingQueue<byte[]> queue = this.queue;
+        return (queue == null) ? 0 : queue.size();
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Generate and return a new session identifier.
+     *
+     * @param seed Random used to seed the generators when they are
+     *   created, or <code>null</code> to let them seed themselves
+     * @param suffix Suffix appended after a '.', such as the JVM route, or
+     *   <code>null</code>
+     */
+    public String generateSessionId(Random seed, String suffix) {
+        long start = System.nanoTime();
+        byte[] bytes = null;
+        BlockingQueue<byte[]> queue = this.queue;
+        if (queue != null) {
+            if (!running) {
+                start(seed);
+            }
+            bytes = queue.poll();
+        }
+        if (bytes == null) {
+            bytes = new byte[idLength];
+            getRandom(seed).nextBytes(bytes);
+        }
+        waitTime.addAndGet(System.nanoTime() - start);
+        return new String(ManagerBase.encode(bytes, suffix));
+    }
+
+
+    /**
+     * Stop the background thread, if any, and discard the identifiers
+     * generated in advance. Identifiers are then generated when requested.
+     */
+    public synchronized void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+        if (queue != null) {
+            queue.clear();
+            queue = null;
+        }
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+
+    /**
+     * Return the generator used by the current thread, creating it if
+     * needed.
+     */
+    protected SecureRandom getRandom(Random seed) {
+        int index = (int) (Thread.currentThread().getId() % randoms.length());
+        SecureRandom random = randoms.get(index);
+        if (random == null) {
+            if (seed != null) {
+                byte[] bytes = new byte[16];
+                seed.nextBytes(bytes);
+                random = new SecureRandom(bytes);
+            } else {
+                random = new SecureRandom();
+            }
+            if (!randoms.compareAndSet(index, null, random)) {
+                random = randoms.get(index);
+            }
+        }
+        return random;
+    }
+
+
+    /**
+     * Start the background thread filling the queue.
+     */
+    protected synchronized void start(Random seed) {
+        if (running || queue == null) {
+            return;
+        }
+        running = true;
+        final SecureRandom random = getRandom(seed);
+        final BlockingQueue<byte[]> queue = this.queue;
+        thread = new Thread("SessionIdGenerator") {
+            public void run() {
+                try {
+                    while (running) {
+                        byte[] bytes = new byte[idLength];
+                        random.nextBytes(bytes);
+                        queue.put(bytes);
+                    }
+                } catch (InterruptedException e) {
+                    // Stopped
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+}
@@ -21,14 +21,11 @@ package org.apache.catalina.session;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.security.AccessController;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
@@ -46,7 +43,6 @@ import org.apache.catalina.LifecycleListener;
 import org.apache.catalina.Loader;
 import org.apache.catalina.Session;
 import org.apache.catalina.security.SecurityUtil;
-import org.apache.catalina.util.CustomObjectInputStream;
 import org.apache.catalina.util.LifecycleSupport;
 /**
  * Standard implementation of the <b>Manager</b> interface that provides
@@ -343,7 +339,7 @@ public class StandardManager
             log.debug("Start: Loading persisted sessions");
 
         // Initialize our internal data structures
-        sessions.clear();
+        clearSessions();
 
         // Open an input stream to the specified pathname, if any
         File file = file();
@@ -352,7 +348,7 @@ public class StandardManager
         if (log.isDebugEnabled())
             log.debug(sm.getString("standardManager.loading", pathname));
         FileInputStream fis = null;
-        ObjectInputStream ois = null;
+        SessionCodec.SessionInput input = null;
         Loader loader = null;
         ClassLoader classLoader = null;
         try {
@@ -362,28 +358,19 @@ public class StandardManager
                 loader = container.getLoader();
             if (loader != null)
                 classLoader = loader.getClassLoader();
-            if (classLoader != null) {
-                if (log.isDebugEnabled())
-                    log.debug("Creating custom object input stream for class loader ");
-                ois = new CustomObjectInputStream(bis, classLoader);
-            } else {
-                if (log.isDebugEnabled())
-                    log.debug("Creating standard object input stream");
-                ois = new ObjectInputStream(bis);
-            }
+            input = getSessionCodec().createInput(bis, classLoader, true);
         } catch (FileNotFoundException e) {
             if (log.isDebugEnabled())
                 log.debug("No persisted data file found");
             return;
         } catch (IOException e) {
             log.error(sm.getString("standardManager.loading.ioe", e), e);
-            if (ois != null) {
+            if (fis != null) {
                 try {
-                    ois.close();
+                    fis.close();
                 } catch (IOException f) {
                     ;
                 }
-                ois = null;
             }
             throw e;
         }
@@ -391,47 +378,29 @@ public class StandardManager
         // Load the previously unloaded active sessions
         synchronized (sessions) {
             try {
-                Integer count = (Integer) ois.readObject();
-                int n = count.intValue();
+                int n = input.getCount();
                 if (log.isDebugEnabled())
                     log.debug("Loading " + n + " persisted sessions");
                 for (int i = 0; i < n; i++) {
                     StandardSession session = getNewSession();
-                    session.readObjectData(ois);
+                    input.readSession(session);
                     session.setManager(this);
                     if (session.isValidInternal()) {
-                        sessions.put(session.getIdInternal(), session);
+                        add(session);
                         session.activate();
-                        sessionCounter++;
+                        sessionCounter.incrementAndGet();
                     }
                 }
             } catch (ClassNotFoundException e) {
                 log.error(sm.getString("standardManager.loading.cnfe", e), e);
-                if (ois != null) {
-                    try {
-                        ois.close();
-                    } catch (IOException f) {
-                        ;
-                    }
-                    ois = null;
-                }
                 throw e;
             } catch (IOException e) {
                 log.error(sm.getString("standardManager.loading.ioe", e), e);
-                if (ois != null) {
-                    try {
-                        ois.close();
-                    } catch (IOException f) {
-                        ;
-                    }
-                    ois = null;
-                }
                 throw e;
             } finally {
                 // Close the input stream
                 try {
-                    if (ois != null)
-                        ois.close();
+                    input.close();
                 } catch (IOException f) {
                     // ignored
                 }
@@ -492,20 +461,10 @@ public class StandardManager
         if (log.isDebugEnabled())
             log.debug(sm.getString("standardManager.unloading", pathname));
         FileOutputStream fos = null;
-        ObjectOutputStream oos = null;
         try {
             fos = new FileOutputStream(file.getAbsolutePath());
-            oos = new ObjectOutputStream(new BufferedOutputStream(fos));
         } catch (IOException e) {
             log.error(sm.getString("standardManager.unloading.ioe", e), e);
-            if (oos != null) {
-                try {
-                    oos.close();
-                } catch (IOException f) {
-                    ;
-                }
-                oos = null;
-            }
             throw e;
         }
 
@@ -514,45 +473,34 @@ public class StandardManager
         synchronized (sessions) {
             if (log.isDebugEnabled())
                 log.debug("Unloading " + sessions.size() + " sessions");
+            SessionCodec.SessionOutput output = null;
             try {
-                oos.writeObject(new Integer(sessions.size()));
                 Iterator elements = sessions.values().iterator();
                 while (elements.hasNext()) {
-                    StandardSession session =
-                        (StandardSession) elements.next();
-                    list.add(session);
-                    ((StandardSession) session).passivate();
-                    session.writeObjectData(oos);
+                    list.add(elements.next());
                 }
+                output = getSessionCodec().createOutput(fos, list.size());
+                for (int i = 0; i < list.size(); i++) {
+                    StandardSession session = (StandardSession) list.get(i);
+                    session.passivate();
+                    output.writeSession(session);
+                }
+                // Flush and close the output stream
+                output.close();
+                output = null;
             } catch (IOException e) {
                 log.error(sm.getString("standardManager.unloading.ioe", e), e);
-                if (oos != null) {
-                    try {
-                        oos.close();
-                    } catch (IOException f) {
-                        ;
-                    }
-                    oos = null;
-                }
-                throw e;
-            }
-        }
-
-        // Flush and close the output stream
-        try {
-            oos.flush();
-            oos.close();
-            oos = null;
-        } catch (IOException e) {
-            if (oos != null) {
                 try {
-                    oos.close();
+                    if (output != null) {
+                        output.close();
+                    } else {
+                        fos.close();
+                    }
                 } catch (IOException f) {
                     ;
                 }
-                oos = null;
+                throw e;
             }
-            throw e;
         }
 
         // Expire all the sessions we just wrote
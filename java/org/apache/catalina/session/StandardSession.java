@@ -28,10 +28,12 @@ import java.security.AccessController;
 import java.security.Principal;
 import java.security.PrivilegedAction;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -186,7 +188,7 @@ public class StandardSession
     /**
      * The last accessed time for this Session.
      */
-    protected int lastAccessedTime = 0;
+    protected volatile int lastAccessedTime = 0;
 
 
     /**
@@ -253,7 +255,7 @@ public class StandardSession
     /**
      * The current accessed time for this session.
      */
-    protected int thisAccessedTime = 0;
+    protected volatile int thisAccessedTime = 0;
 
 
     /**
@@ -261,6 +263,28 @@ public class StandardSession
      */
     protected transient AtomicInteger accessCount = null;
 
+
+    /**
+     * The bucket of the manager's expiry index which contains this session,
+     * or -1 if the session is not indexed.
+     */
+    protected transient long expiryIndexKey = -1;
+
+
+    /**
+     * The names of the attributes which have been set or removed since the
+     * session was last written to a Store.
+     */
+    protected transient Set<String> dirtyAttributes =
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+
+    /**
+     * The number of deltas written to the Store since the last full save of
+     * this session, or -1 if the Store does not contain this session.
+     */
+    protected transient int storedDeltas = -1;
+
     
     // ----------------------------------------------------- Session Properties
 
@@ -495,6 +519,8 @@ public class StandardSession
         this.maxInactiveInterval = interval;
         if (isValid && interval == 0) {
             expire();
+        } else if (manager instanceof ManagerBase) {
+            ((ManagerBase) manager).rescheduleExpiry(this);
         }
         
     }
@@ -613,9 +639,16 @@ public class StandardSession
      */
     public void access() {
 
-        this.lastAccessedTime = this.thisAccessedTime;
-        this.thisAccessedTime = (int) (System.currentTimeMillis() - creationTime);
-        
+        // Concurrent requests of a popular session mostly access it within
+        // the same millisecond, once both times are set to it the stores
+        // would not change anything
+        int accessedTime = (int) (System.currentTimeMillis() - creationTime);
+        int previousTime = this.thisAccessedTime;
+        if (accessedTime != previousTime || this.lastAccessedTime != previousTime) {
+            this.lastAccessedTime = previousTime;
+            this.thisAccessedTime = accessedTime;
+        }
+
         if (ACTIVITY_CHECK) {
             accessCount.incrementAndGet();
         }
@@ -628,7 +661,9 @@ public class StandardSession
      */
     public void endAccess() {
 
-        isNew = false;
+        if (isNew) {
+            isNew = false;
+        }
 
         if (ACTIVITY_CHECK) {
             accessCount.decrementAndGet();
@@ -714,16 +749,20 @@ public class StandardSession
              */
             long timeNow = System.currentTimeMillis();
             int timeAlive = (int) ((timeNow - creationTime)/1000);
-            synchronized (manager) {
-                if (timeAlive > manager.getSessionMaxAliveTime()) {
-                    manager.setSessionMaxAliveTime(timeAlive);
+            if (manager instanceof ManagerBase) {
+                ((ManagerBase) manager).sessionExpired(timeAlive);
+            } else {
+                synchronized (manager) {
+                    if (timeAlive > manager.getSessionMaxAliveTime()) {
+                        manager.setSessionMaxAliveTime(timeAlive);
+                    }
+                    int numExpired = manager.getExpiredSessions();
+                    numExpired++;
+                    manager.setExpiredSessions(numExpired);
+                    int average = manager.getSessionAverageAliveTime();
+                    average = ((average * (numExpired-1)) + timeAlive)/numExpired;
+                    manager.setSessionAverageAliveTime(average);
                 }
-                int numExpired = manager.getExpiredSessions();
-                numExpired++;
-                manager.setExpiredSessions(numExpired);
-                int average = manager.getSessionAverageAliveTime();
-                average = ((average * (numExpired-1)) + timeAlive)/numExpired;
-                manager.setSessionAverageAliveTime(average);
             }
 
             // Remove this session from our manager's active sessions
@@ -867,6 +906,8 @@ public class StandardSession
         isNew = false;
         isValid = false;
         manager = null;
+        dirtyAttributes.clear();
+        storedDeltas = -1;
 
     }
 
@@ -1316,6 +1357,7 @@ public class StandardSession
 
         // Replace or add this attribute
         Object unbound = attributes.put(name, value);
+        dirtyAttributes.add(name);
 
         // Call the valueUnbound() method if necessary
         if (notify && (unbound != null) && (unbound != value) &&
@@ -1419,6 +1461,8 @@ public class StandardSession
         isValid = ((Boolean) stream.readObject()).booleanValue();
         thisAccessedTime = (int) (((Long) stream.readObject()).longValue() - creationTime);
         principal = null;        // Transient only
+        expiryIndexKey = -1;     // Transient only
+        storedDeltas = -1;       // Transient only
         //        setId((String) stream.readObject());
         id = (String) stream.readObject();
         if (manager.getContainer().getLogger().isDebugEnabled())
@@ -1447,6 +1491,11 @@ public class StandardSession
         if (notes == null) {
             notes = new ConcurrentHashMap<String, Object>();
         }
+
+        if (dirtyAttributes == null) {
+            dirtyAttributes = Collections.newSetFromMap
+                (new ConcurrentHashMap<String, Boolean>());
+        }
     }
 
 
@@ -1576,6 +1625,40 @@ public class StandardSession
     }
 
 
+    /**
+     * Return the names of the attributes which have been set or removed
+     * since the last call, and clear them. Names are removed one at a time
+     * so that an attribute set concurrently is either returned or kept for
+     * the next call.
+     */
+    protected String[] drainDirtyAttributes() {
+
+        ArrayList<String> names = new ArrayList<String>();
+        Iterator<String> iterator = dirtyAttributes.iterator();
+        while (iterator.hasNext()) {
+            String name = iterator.next();
+            if (dirtyAttributes.remove(name)) {
+                names.add(name);
+            }
+        }
+        return names.toArray(EMPTY_ARRAY);
+
+    }
+
+
+    /**
+     * Mark again the specified attributes as changed, after the changes
+     * returned by <code>drainDirtyAttributes</code> could not be saved.
+     */
+    protected void restoreDirtyAttributes(String[] names) {
+
+        for (int i = 0; i < names.length; i++) {
+            dirtyAttributes.add(names[i]);
+        }
+
+    }
+
+
     /**
      * Remove the object bound with the specified name from this session.  If
      * the session does not have an object bound with this name, this method
@@ -1596,6 +1679,9 @@ public class StandardSession
 
         // Remove this attribute from our collection
         Object value = attributes.remove(name);
+        if (value != null) {
+            dirtyAttributes.add(name);
+        }
 
         // Do we need to do valueUnbound() and attributeRemoved() notification?
         if (!notify || (value == null)) {
@@ -166,6 +166,31 @@ public abstract class StoreBase
 
     // --------------------------------------------------------- Protected Methods
 
+    /**
+     * Return the identifiers of the sessions which may have expired, and
+     * should be checked by {@link #processExpires()}. The default
+     * implementation returns all the keys of the store, and may be
+     * overridden by stores which can select the expired sessions more
+     * efficiently.
+     *
+     * @exception IOException if an input/output error occurred
+     */
+    protected String[] expiredKeys() throws IOException {
+        return keys();
+    }
+
+    /**
+     * Return the codec used to read and write the sessions of this store,
+     * which is the one configured on the manager.
+     */
+    protected SessionCodec getSessionCodec() {
+        if (manager instanceof ManagerBase) {
+            return ((ManagerBase) manager).getSessionCodec();
+        } else {
+            return new LegacySessionCodec();
+        }
+    }
+
     /**
      * Called by our background reaper thread to check if Sessions
      * saved in our store are subject of being expired. If so expire
@@ -180,7 +205,7 @@ public abstract class StoreBase
         }
 
         try {
-            keys = keys();
+            keys = expiredKeys();
         } catch (IOException e) {
             manager.getContainer().getLogger().error("Error getting keys", e);
             return;
@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.catalina.util;
+
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+
+/**
+ * Message digest of a given algorithm, with one <code>MessageDigest</code>
+ * instance per thread, so that concurrent callers do not need to
+ * synchronize on a shared instance.
+ */
+
+public final class ThreadLocalDigest extends ThreadLocal<MessageDigest> {
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * Create a digest using the specified algorithm.
+     *
+     * @param algorithm Algorithm name, as accepted by
+     *  <code>MessageDigest.getInstance</code>
+     *
+     * @exception IllegalStateException if the algorithm is not available
+     */
+    public ThreadLocalDigest(String algorithm) {
+        this.algorithm = algorithm;
+        // Report a missing algorithm right away
+        initialValue();
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The digest algorithm.
+     */
+    private final String algorithm;
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Return the digest algorithm.
+     */
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+
+    /**
+     * Digest the specified bytes.
+     *
+     * @param input Bytes to digest
+     * @return the digest
+     */
+    public byte[] digest(byte[] input) {
+        MessageDigest md = get();
+        md.reset();
+        return md.digest(input);
+    }
+
+
+    /**
+     * Digest the concatenation of the specified byte arrays.
+     *
+     * @param input Byte arrays to digest
+     * @return the digest
+     */
+    public byte[] digest(byte[]... input) {
+        MessageDigest md = get();
+        md.reset();
+        for (int i = 0; i < input.length; i++) {
+            md.update(input[i]);
+        }
+        return md.digest();
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+
+    protected MessageDigest initialValue() {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+
+}
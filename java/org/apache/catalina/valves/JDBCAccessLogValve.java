@@ -19,15 +19,33 @@
 package org.apache.catalina.valves;
 
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.StreamCorruptedException;
 import java.sql.Connection;
 import java.sql.Driver;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
 import javax.servlet.ServletException;
+import javax.sql.DataSource;
 
 import org.apache.catalina.Lifecycle;
 import org.apache.catalina.LifecycleException;
@@ -93,6 +111,22 @@ import org.apache.catalina.util.StringManager;
  * INDEX (userAgent)
  * );
  * </pre>
+ * <p>
+ * By default, each request performs its insert synchronously on the single
+ * shared connection. Setting <code>batch="true"</code> decouples the request
+ * threads from the database: records are placed in a bounded queue
+ * (<code>queueSize</code>) and a background thread writes them using JDBC
+ * batches once <code>batchSize</code> records are pending or
+ * <code>batchDelay</code> milliseconds have elapsed. While the database is
+ * unreachable, reconnection is attempted with an exponential backoff capped
+ * by <code>maxReconnectDelay</code>, and records are appended to the local
+ * <code>spoolFile</code> (if configured), which is replayed once the
+ * connection is restored. When the queue is full, records are dropped and
+ * counted rather than blocking the request. Connections may be taken from a
+ * pool by specifying the JNDI name of a <code>DataSource</code> with
+ * <code>dataSourceName</code>, in which case the connection is returned to
+ * the pool after each batch.
+ * </p>
  * <p>Set JDBCAccessLogValve attribute useLongContentLength="true" as you have more then 4GB outputs. 
  * Please, use long SQL datatype at access.bytes attribute.
  * The datatype of bytes at oracle is <i>number</i> and other databases use <i>bytes BIGINT NOT NULL</i>.
@@ -211,7 +245,120 @@ public final class JDBCAccessLogValve
     private PreparedStatement ps;
 
 
-    private long currentTimeMillis;
+    /**
+     * JNDI name of the <code>DataSource</code> used to obtain pooled
+     * connections, instead of the configured driver.
+     */
+    protected String dataSourceName = null;
+
+
+    /**
+     * The <code>DataSource</code> looked up using <code>dataSourceName</code>.
+     */
+    protected DataSource dataSource = null;
+
+
+    /**
+     * Should the records be written asynchronously, in batches, by a
+     * background thread ?
+     */
+    protected boolean batch = false;
+
+
+    /**
+     * Maximum number of records written in a single JDBC batch.
+     */
+    protected int batchSize = 100;
+
+
+    /**
+     * Maximum delay (in ms) a record waits in the queue before being written.
+     */
+    protected int batchDelay = 1000;
+
+
+    /**
+     * Maximum number of records waiting to be written.
+     */
+    protected int queueSize = 10000;
+
+
+    /**
+     * Initial delay (in ms) before trying to reconnect after a failure.
+     */
+    protected int reconnectDelay = 1000;
+
+
+    /**
+     * Maximum delay (in ms) between two reconnection attempts.
+     */
+    protected int maxReconnectDelay = 60000;
+
+
+    /**
+     * Path of the file where records are spooled while the database is not
+     * available, relative to catalina.base if not absolute.
+     */
+    protected String spoolFile = null;
+
+
+    /**
+     * Maximum time (in ms) to wait for the background thread to write the
+     * pending records when stopping.
+     */
+    protected int stopTimeout = 10000;
+
+
+    /**
+     * The queue of records waiting to be written by the background thread.
+     */
+    protected BlockingQueue<AccessLogRecord> queue = null;
+
+
+    /**
+     * The background thread writing batches.
+     */
+    private Thread thread = null;
+
+
+    /**
+     * Background thread completion semaphore.
+     */
+    private volatile boolean threadDone = false;
+
+
+    /**
+     * Current delay before the next reconnection attempt.
+     */
+    private long currentReconnectDelay = 0;
+
+
+    /**
+     * Time before which no reconnection will be attempted.
+     */
+    private long nextReconnect = 0;
+
+
+    /**
+     * Number of records written to the database.
+     */
+    protected AtomicLong writtenCount = new AtomicLong();
+
+
+    /**
+     * Number of records dropped because the queue was full, or because the
+     * database and the spool were both unavailable.
+     */
+    protected AtomicLong droppedCount = new AtomicLong();
+
+
+    /**
+     * Number of records appended to the spool file.
+     */
+    protected AtomicLong spooledCount = new AtomicLong();
+
+
+    private volatile long currentTimeMillis;
 
 
     /**
@@ -443,6 +590,181 @@ public final class JDBCAccessLogValve
         this.useLongContentLength = useLongContentLength;
     }
 
+    /**
+     * Return the JNDI name of the DataSource providing pooled connections.
+     */
+    public String getDataSourceName() {
+        return dataSourceName;
+    }
+
+    /**
+     * Set the JNDI name of the DataSource providing pooled connections.
+     *
+     * @param dataSourceName The JNDI name
+     */
+    public void setDataSourceName(String dataSourceName) {
+        this.dataSourceName = dataSourceName;
+    }
+
+    /**
+     * Return true if records are written in batches by a background thread.
+     */
+    public boolean getBatch() {
+        return batch;
+    }
+
+    /**
+     * Enable or disable asynchronous batched writes.
+     *
+     * @param batch the new value
+     */
+    public void setBatch(boolean batch) {
+        this.batch = batch;
+    }
+
+    /**
+     * Return the maximum number of records written in a JDBC batch.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Set the maximum number of records written in a JDBC batch.
+     *
+     * @param batchSize the new value
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Return the maximum delay (in ms) before a queued record is written.
+     */
+    public int getBatchDelay() {
+        return batchDelay;
+    }
+
+    /**
+     * Set the maximum delay (in ms) before a queued record is written.
+     *
+     * @param batchDelay the new value
+     */
+    public void setBatchDelay(int batchDelay) {
+        this.batchDelay = batchDelay;
+    }
+
+    /**
+     * Return the capacity of the record queue.
+     */
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * Set the capacity of the record queue.
+     *
+     * @param queueSize the new value
+     */
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * Return the initial reconnection delay (in ms).
+     */
+    public int getReconnectDelay() {
+        return reconnectDelay;
+    }
+
+    /**
+     * Set the initial reconnection delay (in ms).
+     *
+     * @param reconnectDelay the new value
+     */
+    public void setReconnectDelay(int reconnectDelay) {
+        this.reconnectDelay = reconnectDelay;
+    }
+
+    /**
+     * Return the maximum reconnection delay (in ms).
+     */
+    public int getMaxReconnectDelay() {
+        return maxReconnectDelay;
+    }
+
+    /**
+     * Set the maximum reconnection delay (in ms).
+     *
+     * @param maxReconnectDelay the new value
+     */
+    public void setMaxReconnectDelay(int maxReconnectDelay) {
+        this.maxReconnectDelay = maxReconnectDelay;
+    }
+
+    /**
+     * Return the maximum time (in ms) to wait for the pending records to be
+     * written when stopping.
+     */
+    public int getStopTimeout() {
+        return stopTimeout;
+    }
+
+    /**
+     * Set the maximum time (in ms) to wait for the pending records to be
+     * written when stopping.
+     *
+     * @param stopTimeout the new value
+     */
+    public void setStopTimeout(int stopTimeout) {
+        this.stopTimeout = stopTimeout;
+    }
+
+    /**
+     * Return the path of the spool file.
+     */
+    public String getSpoolFile() {
+        return spoolFile;
+    }
+
+    /**
+     * Set the path of the spool file used while the database is unavailable.
+     *
+     * @param spoolFile the path, relative to catalina.base if not absolute
+     */
+    public void setSpoolFile(String spoolFile) {
+        this.spoolFile = spoolFile;
+    }
+
+    /**
+     * Return the number of records waiting to be written.
+     */
+    public int getPendingCount() {
+        BlockingQueue<AccessLogRecord> queue = this.queue;
+        return (queue == null) ? 0 : queue.size();
+    }
+
+    /**
+     * Return the number of records written by the background thread.
+     */
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    /**
+     * Return the number of records which have been dropped.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Return the number of records which have been spooled.
+     */
+    public long getSpooledCount() {
+        return spooledCount.get();
+    }
+
     // --------------------------------------------------------- Public Methods
 
 
@@ -488,31 +810,24 @@ public final class JDBCAccessLogValve
             referer = request.getHeader("referer");
             userAgent = request.getHeader("user-agent");
         }
+        AccessLogRecord record = new AccessLogRecord(remoteHost, user,
+                getCurrentTimeMillis(), query, status, bytes, virtualHost,
+                method, referer, userAgent);
+
+        if (batch) {
+            if (!queue.offer(record)) {
+                droppedCount.incrementAndGet();
+            }
+            return;
+        }
+
         synchronized (this) {
           int numberOfTries = 2;
           while (numberOfTries>0) {
             try {
                 open();
     
-                ps.setString(1, remoteHost);
-                ps.setString(2, user);
-                ps.setTimestamp(3, new Timestamp(getCurrentTimeMillis()));
-                ps.setString(4, query);
-                ps.setInt(5, status);
-                
-                if(useLongContentLength) {
-                    ps.setLong(6, bytes);                
-                } else {
-                    if (bytes > Integer.MAX_VALUE)
-                        bytes = -1 ;
-                    ps.setInt(6, (int) bytes);
-                }               
-                if (pattern.equals("combined")) {
-                      ps.setString(7, virtualHost);
-                      ps.setString(8, method);
-                      ps.setString(9, referer);
-                      ps.setString(10, userAgent);
-                }
+                bind(ps, record);
                 ps.executeUpdate();
                 return;
               } catch (SQLException e) {
@@ -576,6 +891,33 @@ public final class JDBCAccessLogValve
         if (conn != null)
             return ;
 
+        // Use the pooled DataSource if one has been configured
+        if (dataSourceName != null) {
+            if (dataSource == null) {
+                try {
+                    dataSource = (DataSource) new InitialContext().lookup(dataSourceName);
+                } catch (NamingException e) {
+                    SQLException ex = new SQLException(e.getMessage());
+                    ex.initCause(e);
+                    throw ex;
+                }
+            }
+            conn = dataSource.getConnection();
+        } else {
+            openDriverConnection();
+        }
+        // Batches are committed as a unit
+        conn.setAutoCommit(!batch);
+        prepareStatement();
+    }
+
+    /**
+     * Open a new connection using the configured JDBC driver.
+     *
+     * @exception SQLException if a database error occurs
+     */
+    protected void openDriverConnection() throws SQLException {
+
         // Instantiate our database driver if necessary
         if (driver == null) {
             try {
@@ -594,7 +936,14 @@ public final class JDBCAccessLogValve
         if (connectionPassword != null)
             props.put("password", connectionPassword);
         conn = driver.connect(connectionURL, props);
-        conn.setAutoCommit(true);
+    }
+
+    /**
+     * Prepare the insert statement corresponding to the pattern.
+     *
+     * @exception SQLException if a database error occurs
+     */
+    protected void prepareStatement() throws SQLException {
         if (pattern.equals("common")) {
                 ps = conn.prepareStatement
                     ("INSERT INTO " + tableName + " (" 
@@ -657,6 +1006,16 @@ public final class JDBCAccessLogValve
         lifecycle.fireLifecycleEvent(START_EVENT, null);
         started = true;
 
+        if (batch) {
+            // The background thread connects lazily, and spools records
+            // until the database becomes available
+            queue = new ArrayBlockingQueue<AccessLogRecord>(queueSize);
+            currentReconnectDelay = reconnectDelay;
+            nextReconnect = 0;
+            threadStart();
+            return;
+        }
+
         try {
             open() ;        
         } catch (SQLException e) {
@@ -680,7 +1039,12 @@ public final class JDBCAccessLogValve
         lifecycle.fireLifecycleEvent(STOP_EVENT, null);
         started = false;
         
-        close() ;
+        if (batch) {
+            // The background thread closes the connection once it is done
+            threadStop();
+        } else {
+            close();
+        }
 
     }
 
@@ -693,4 +1057,443 @@ public final class JDBCAccessLogValve
         return currentTimeMillis;
     }
 
+
+    /**
+     * Bind the fields of the given record to the insert statement.
+     *
+     * @param ps The insert statement
+     * @param record The access log record
+     * @exception SQLException if a database error occurs
+     */
+    protected void bind(PreparedStatement ps, AccessLogRecord record)
+        throws SQLException {
+        ps.setString(1, record.remoteHost);
+        ps.setString(2, record.user);
+        ps.setTimestamp(3, new Timestamp(record.timestamp));
+        ps.setString(4, record.query);
+        ps.setInt(5, record.status);
+
+        long bytes = record.bytes;
+        if(useLongContentLength) {
+            ps.setLong(6, bytes);                
+        } else {
+            if (bytes > Integer.MAX_VALUE)
+                bytes = -1 ;
+            ps.setInt(6, (int) bytes);
+        }               
+        if (pattern.equals("combined")) {
+              ps.setString(7, record.virtualHost);
+              ps.setString(8, record.method);
+              ps.setString(9, record.referer);
+              ps.setString(10, record.userAgent);
+        }
+    }
+
+
+    // -------------------------------------------------------- Batch Methods
+
+
+    /**
+     * Write the given records to the database, replaying the spool first
+     * if needed. If the database is not available, the records are spooled.
+     * This method is only called by the background thread.
+     *
+     * @param records The records to write
+     */
+    protected void flush(List<AccessLogRecord> records) {
+        File spool = getSpool();
+        boolean spoolPending = (spool != null && spool.length() > 0);
+        if (records.isEmpty() && !spoolPending) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now < nextReconnect) {
+            spool(records);
+            return;
+        }
+        try {
+            open();
+            if (spoolPending) {
+                replay(spool);
+            }
+            if (!records.isEmpty()) {
+                write(records);
+            }
+            currentReconnectDelay = reconnectDelay;
+            nextReconnect = 0;
+            if (dataSource != null) {
+                // Give the connection back to the pool
+                close();
+            }
+        } catch (SQLException e) {
+            container.getLogger().error(sm.getString("jdbcAccessLogValve.exception"), e);
+            if (conn != null) {
+                try {
+                    conn.rollback();
+                } catch (Throwable t) {
+                    ;
+                }
+                close();
+            }
+            nextReconnect = now + currentReconnectDelay;
+            currentReconnectDelay = Math.min(currentReconnectDelay * 2, maxReconnectDelay);
+            spool(records);
+        }
+    }
+
+
+    /**
+     * Write the given records as a single JDBC batch and commit it.
+     *
+     * @param records The records to write
+     * @exception SQLException if a database error occurs
+     */
+    protected void write(List<AccessLogRecord> records)
+        throws SQLException {
+        for (int i = 0; i < records.size(); i++) {
+            bind(ps, records.get(i));
+            ps.addBatch();
+        }
+        ps.executeBatch();
+        conn.commit();
+        writtenCount.addAndGet(records.size());
+    }
+
+
+    /**
+     * Write the content of the spool file to the database, in a single
+     * transaction, and delete the file if the transaction is committed. A
+     * file which cannot be read is renamed with a <code>.corrupt</code>
+     * suffix, so that it does not block the records spooled later.
+     *
+     * @param spool The spool file
+     * @exception SQLException if a database error occurs
+     */
+    protected void replay(File spool)
+        throws SQLException {
+        DataInputStream in = null;
+        int count = 0;
+        boolean read = false;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(spool)));
+            while (true) {
+                AccessLogRecord record;
+                try {
+                    record = AccessLogRecord.read(in);
+                } catch (EOFException e) {
+                    break;
+                }
+                bind(ps, record);
+                ps.addBatch();
+                if (++count % batchSize == 0) {
+                    ps.executeBatch();
+                }
+            }
+            read = true;
+        } catch (IOException e) {
+            container.getLogger().error(sm.getString("jdbcAccessLogValve.spoolRead", spool), e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    ;
+                }
+            }
+        }
+        if (!read) {
+            // Nothing is written, and the file is set aside
+            ps.clearBatch();
+            conn.rollback();
+            File corrupt = new File(spool.getPath() + "."
+                    + System.currentTimeMillis() + ".corrupt");
+            if (spool.renameTo(corrupt)) {
+                container.getLogger().error(sm.getString("jdbcAccessLogValve.spoolCorrupt",
+                        spool, corrupt));
+            } else if (spool.delete()) {
+                container.getLogger().error(sm.getString("jdbcAccessLogValve.spoolDropped",
+                        spool));
+            } else {
+                container.getLogger().error(sm.getString("jdbcAccessLogValve.spoolDelete", spool));
+            }
+            return;
+        }
+        ps.executeBatch();
+        conn.commit();
+        writtenCount.addAndGet(count);
+        if (!spool.delete()) {
+            container.getLogger().error(sm.getString("jdbcAccessLogValve.spoolDelete", spool));
+        }
+    }
+
+
+    /**
+     * Append the given records to the spool file. If there is no spool file,
+     * or if it cannot be written, the records are dropped.
+     *
+     * @param records The records to spool
+     */
+    protected void spool(List<AccessLogRecord> records) {
+        if (records.isEmpty()) {
+            return;
+        }
+        File spool = getSpool();
+        if (spool == null) {
+            droppedCount.addAndGet(records.size());
+            return;
+        }
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spool, true)));
+            for (int i = 0; i < records.size(); i++) {
+                records.get(i).write(out);
+            }
+            out.flush();
+            spooledCount.addAndGet(records.size());
+        } catch (IOException e) {
+            container.getLogger().error(sm.getString("jdbcAccessLogValve.spoolWrite", spool), e);
+            droppedCount.addAndGet(records.size());
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    ;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Return the spool file, or null if spooling is disabled.
+     */
+    protected File getSpool() {
+        if (spoolFile == null) {
+            return null;
+        }
+        File file = new File(spoolFile);
+        if (!file.isAbsolute()) {
+            file = new File(System.getProperty("catalina.base"), spoolFile);
+        }
+        return file;
+    }
+
+
+    /**
+     * Start the background thread writing the batches.
+     */
+    protected void threadStart() {
+
+        if (thread != null)
+            return;
+
+        threadDone = false;
+        String threadName = "JDBCAccessLogValve[" + container.getName() + "]";
+        thread = new Thread(new BatchWriter(), threadName);
+        thread.setDaemon(true);
+        thread.start();
+
+    }
+
+
+    /**
+     * Stop the background thread, after it has written the pending records.
+     */
+    protected void threadStop() {
+
+        if (thread == null)
+            return;
+
+        threadDone = true;
+        thread.interrupt();
+        try {
+            thread.join(stopTimeout);
+        } catch (InterruptedException e) {
+            ;
+        }
+        if (thread.isAlive()) {
+            container.getLogger().warn(sm.getString("jdbcAccessLogValve.stopTimeout",
+                    Integer.valueOf(queue.size())));
+        }
+
+        thread = null;
+
+    }
+
+
+    // ------------------------------------------------ BatchWriter Inner Class
+
+
+    /**
+     * Background thread collecting the queued records and writing them
+     * once the batch size or the batch delay is reached.
+     */
+    protected class BatchWriter implements Runnable {
+
+        public void run() {
+            List<AccessLogRecord> records = new ArrayList<AccessLogRecord>(batchSize);
+            while (!threadDone) {
+                try {
+                    AccessLogRecord record = queue.poll(batchDelay, TimeUnit.MILLISECONDS);
+                    if (record != null) {
+                        records.add(record);
+                        long deadline = System.currentTimeMillis() + batchDelay;
+                        while (records.size() < batchSize) {
+                            if (queue.drainTo(records, batchSize - records.size()) > 0) {
+                                continue;
+                            }
+                            long wait = deadline - System.currentTimeMillis();
+                            if (wait <= 0) {
+                                break;
+                            }
+                            record = queue.poll(wait, TimeUnit.MILLISECONDS);
+                            if (record == null) {
+                                break;
+                            }
+                            records.add(record);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // Stopping, the remaining records are written below
+                }
+                process(records);
+            }
+            // Write whatever is left in the queue
+            while (queue.drainTo(records, batchSize) > 0) {
+                process(records);
+            }
+            close();
+        }
+
+        protected void process(List<AccessLogRecord> records) {
+            try {
+                flush(records);
+            } catch (Throwable t) {
+                container.getLogger().error(sm.getString("jdbcAccessLogValve.exception"), t);
+            } finally {
+                records.clear();
+            }
+        }
+
+    }
+
+
+    // -------------------------------------------- AccessLogRecord Inner Class
+
+
+    /**
+     * The fields of a single access log entry.
+     */
+    protected static final class AccessLogRecord {
+
+        /**
+         * Longest string accepted when reading the spool file.
+         */
+        protected static final int MAX_STRING_LENGTH = 16 * 1024 * 1024;
+
+        protected final String remoteHost;
+        protected final String user;
+        protected final long timestamp;
+        protected final String query;
+        protected final int status;
+        protected final long bytes;
+        protected final String virtualHost;
+        protected final String method;
+        protected final String referer;
+        protected final String userAgent;
+
+        protected AccessLogRecord(String remoteHost, String user, long timestamp,
+                String query, int status, long bytes, String virtualHost,
+                String method, String referer, String userAgent) {
+            this.remoteHost = remoteHost;
+            this.user = user;
+            this.timestamp = timestamp;
+            this.query = query;
+            this.status = status;
+            this.bytes = bytes;
+            this.virtualHost = virtualHost;
+            this.method = method;
+            this.referer = referer;
+            this.userAgent = userAgent;
+        }
+
+        protected void write(DataOutputStream out)
+            throws IOException {
+            writeString(out, remoteHost);
+            writeString(out, user);
+            out.writeLong(timestamp);
+            writeString(out, query);
+            out.writeInt(status);
+            out.writeLong(bytes);
+            writeString(out, virtualHost);
+            writeString(out, method);
+            writeString(out, referer);
+            writeString(out, userAgent);
+        }
+
+        /**
+         * Read a record, or throw an <code>EOFException</code> if the end of
+         * the stream is reached before the record.
+         */
+        protected static AccessLogRecord read(DataInputStream in)
+            throws IOException {
+            int marker = in.read();
+            if (marker < 0) {
+                throw new EOFException();
+            }
+            try {
+                String remoteHost = readString(in, marker);
+                String user = readString(in, in.readUnsignedByte());
+                long timestamp = in.readLong();
+                String query = readString(in, in.readUnsignedByte());
+                int status = in.readInt();
+                long bytes = in.readLong();
+                String virtualHost = readString(in, in.readUnsignedByte());
+                String method = readString(in, in.readUnsignedByte());
+                String referer = readString(in, in.readUnsignedByte());
+                String userAgent = readString(in, in.readUnsignedByte());
+                return new AccessLogRecord(remoteHost, user, timestamp, query,
+                        status, bytes, virtualHost, method, referer, userAgent);
+            } catch (EOFException e) {
+                // A truncated record
+                throw new StreamCorruptedException();
+            }
+        }
+
+        /**
+         * Write a string as its length and UTF-8 bytes, which unlike
+         * <code>writeUTF</code> does not limit its length. The string is
+         * encoded before anything is written.
+         */
+        private static void writeString(DataOutputStream out, String value)
+            throws IOException {
+            if (value == null) {
+                out.writeBoolean(false);
+            } else {
+                byte[] bytes = value.getBytes("UTF-8");
+                out.writeBoolean(true);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+
+        private static String readString(DataInputStream in, int marker)
+            throws IOException {
+            if (marker == 0) {
+                return null;
+            } else if (marker != 1) {
+                throw new StreamCorruptedException();
+            }
+            int length = in.readInt();
+            if (length < 0 || length > MAX_STRING_LENGTH) {
+                throw new StreamCorruptedException();
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, "UTF-8");
+        }
+
+    }
+
 }
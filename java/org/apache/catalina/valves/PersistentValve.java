@@ -172,7 +172,7 @@ public class PersistentValve
                     session.isValid() &&
                     !isSessionStale(session, System.currentTimeMillis())) {
                     // ((StandardSession)session).passivate();
-                    store.save(session);
+                    ((PersistentManager) manager).storeSave(session);
                     ((PersistentManager) manager).removeSuper(session);
                     session.recycle();
                 } else {
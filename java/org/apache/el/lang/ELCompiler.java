@@ -0,0 +1,520 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.el.lang;
+
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.el.ELContext;
+import javax.el.ELException;
+import javax.el.ELResolver;
+
+
+/**
+ * Compilation tier of the expressions. Once an expression has been
+ * interpreted <code>COMPILE_THRESHOLD</code> times, its property and method
+ * steps use inline caches, keyed on the class of the object they are
+ * applied to, which call the bean methods through <code>MethodHandle</code>s
+ * rather than going through the chain of resolvers.
+ * <p>
+ * This is only equivalent to the interpreter when the resolver of the
+ * <code>ELContext</code> is known to resolve beans like the standard chain
+ * does: bases which are not maps, lists, resource bundles or arrays are
+ * handled by a <code>BeanELResolver</code>, and methods are always invoked
+ * by a <code>BeanELResolver</code>. The code which creates such a context
+ * marks it using {@link #setStandardResolver(ELContext, Cache)}, and
+ * expressions are interpreted in other contexts.
+ * <p>
+ * The parsed expressions are shared by all the applications of the server,
+ * while the inline caches refer to the classes of one application. The
+ * compiled steps are therefore kept in a {@link Cache} which belongs to the
+ * application, so that they neither keep its class loader alive once it is
+ * stopped, nor use the slots of the inline caches of other applications.
+ */
+public final class ELCompiler {
+
+    /**
+     * The number of interpreted evaluations of an expression before it is
+     * compiled, or -1 to always interpret expressions.
+     */
+    public static final int COMPILE_THRESHOLD =
+        Integer.getInteger("org.apache.el.lang.COMPILE_THRESHOLD", -1).intValue();
+
+    /**
+     * The maximum number of classes of an inline cache, after which the
+     * step is always interpreted.
+     */
+    protected static final int MAX_CLASSES = 4;
+
+    /**
+     * The maximum number of compiled expressions of an application, after
+     * which new expressions are always interpreted.
+     */
+    public static final int MAX_EXPRESSIONS =
+        Integer.getInteger("org.apache.el.lang.MAX_COMPILED", 10000).intValue();
+
+    protected static final MethodType GETTER_TYPE =
+        MethodType.methodType(Object.class, Object.class);
+
+    protected static final MethodType METHOD_TYPE =
+        MethodType.methodType(Object.class, Object.class, Object[].class);
+
+    private ELCompiler() {
+    }
+
+    /**
+     * Mark the resolver of the specified context as resolving beans like the
+     * standard chain of resolvers, so that compiled expressions may be used,
+     * and keep them in the given cache of the application.
+     */
+    public static void setStandardResolver(ELContext context, Cache cache) {
+        context.putContext(ELCompiler.class, context.getELResolver());
+        context.putContext(Cache.class, cache);
+    }
+
+    /**
+     * Return <code>true</code> if compiled expressions may be used with the
+     * resolver of the specified context.
+     */
+    public static boolean isStandardResolver(ELContext context) {
+        return context.getContext(ELCompiler.class) == context.getELResolver();
+    }
+
+    /**
+     * Return the cache of the compiled expressions of the specified context,
+     * or <code>null</code> if compiled expressions may not be used with its
+     * resolver.
+     */
+    public static Cache getCache(ELContext context) {
+        if (!isStandardResolver(context)) {
+            return null;
+        }
+        return (Cache) context.getContext(Cache.class);
+    }
+
+    /**
+     * Return <code>true</code> if the standard resolvers resolve properties
+     * of the specified class as bean properties.
+     */
+    public static boolean isBean(Class<?> type) {
+        return !(Map.class.isAssignableFrom(type)
+                || List.class.isAssignableFrom(type)
+                || ResourceBundle.class.isAssignableFrom(type)
+                || type.isArray());
+    }
+
+    /**
+     * Return a handle on the read method of the given property, or
+     * <code>null</code> if it cannot be called directly.
+     */
+    public static MethodHandle getReadMethod(Class<?> type, String property) {
+        try {
+            PropertyDescriptor[] descriptors =
+                Introspector.getBeanInfo(type).getPropertyDescriptors();
+            for (int i = 0; i < descriptors.length; i++) {
+                if (descriptors[i].getName().equals(property)) {
+                    Method method =
+                        getPublicMethod(type, descriptors[i].getReadMethod());
+                    if (method == null) {
+                        return null;
+                    }
+                    return MethodHandles.publicLookup().unreflect(method)
+                            .asType(GETTER_TYPE);
+                }
+            }
+        } catch (IntrospectionException e) {
+            // Let the interpreter report the error
+        } catch (IllegalAccessException e) {
+            // Same
+        }
+        return null;
+    }
+
+    /**
+     * Return the method which a <code>BeanELResolver</code> invokes for the
+     * given name and number of parameters, or <code>null</code> if it cannot
+     * be called directly.
+     */
+    public static Method getMethod(Class<?> type, String name, int paramCount) {
+        Method[] methods = type.getMethods();
+        for (int i = 0; i < methods.length; i++) {
+            Method method = methods[i];
+            if (method.getName().equals(name) && (method.isVarArgs()
+                    || method.getParameterTypes().length == paramCount)) {
+                if (method.isVarArgs()
+                        || !Modifier.isPublic(method.getDeclaringClass().getModifiers())) {
+                    return null;
+                }
+                return method;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return a public version of the given method, from a public class or
+     * interface, as <code>BeanELResolver</code> does.
+     */
+    private static Method getPublicMethod(Class<?> type, Method method) {
+        if (method == null) {
+            return null;
+        }
+        if (Modifier.isPublic(type.getModifiers())) {
+            return method;
+        }
+        Class<?>[] interfaces = type.getInterfaces();
+        for (int i = 0; i < interfaces.length; i++) {
+            try {
+                Method m = interfaces[i].getMethod(method.getName(),
+                        method.getParameterTypes());
+                m = getPublicMethod(m.getDeclaringClass(), m);
+                if (m != null) {
+                    return m;
+                }
+            } catch (NoSuchMethodException e) {
+                // Continue
+            }
+        }
+        Class<?> superclass = type.getSuperclass();
+        if (superclass != null) {
+            try {
+                Method m = superclass.getMethod(method.getName(),
+                        method.getParameterTypes());
+                m = getPublicMethod(m.getDeclaringClass(), m);
+                if (m != null) {
+                    return m;
+                }
+            } catch (NoSuchMethodException e) {
+                // Continue
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * Compiled steps of the expressions evaluated by one application, by
+     * expression. Until an expression is compiled, the entry counts its
+     * interpreted evaluations.
+     */
+    public static final class Cache {
+
+        private final ConcurrentHashMap<Object, Object> entries =
+            new ConcurrentHashMap<Object, Object>();
+
+        /**
+         * Return the compiled steps of the given expression, or
+         * <code>null</code> if it has not been compiled.
+         */
+        public Object[] get(Object expression) {
+            Object entry = entries.get(expression);
+            return (entry instanceof Object[]) ? (Object[]) entry : null;
+        }
+
+        /**
+         * Count an interpreted evaluation of the given expression, and
+         * return <code>true</code> if it should now be compiled.
+         */
+        public boolean evaluated(Object expression) {
+            Object entry = entries.get(expression);
+            if (entry == null) {
+                if (entries.size() >= MAX_EXPRESSIONS) {
+                    return false;
+                }
+                entry = new AtomicInteger();
+                Object previous = entries.putIfAbsent(expression, entry);
+                if (previous != null) {
+                    entry = previous;
+                }
+            }
+            if (!(entry instanceof AtomicInteger)) {
+                // Compiled by another thread
+                return false;
+            }
+            return ((AtomicInteger) entry).incrementAndGet() > COMPILE_THRESHOLD;
+        }
+
+        /**
+         * Add the compiled steps of the given expression, and return the
+         * steps which will be used for it.
+         */
+        public Object[] put(Object expression, Object[] compiled) {
+            entries.put(expression, compiled);
+            return compiled;
+        }
+
+        /**
+         * Return the number of compiled expressions.
+         */
+        public int size() {
+            int size = 0;
+            Iterator<Object> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next() instanceof Object[]) {
+                    size++;
+                }
+            }
+            return size;
+        }
+
+    }
+
+
+    /**
+     * Inline cache of a property step, such as <code>.name</code>.
+     */
+    public static final class PropertyCache {
+
+        private final String property;
+        private volatile Class<?>[] types = new Class<?>[0];
+        private volatile MethodHandle[] handles = new MethodHandle[0];
+        private volatile boolean megamorphic = false;
+
+        public PropertyCache(String property) {
+            this.property = property;
+        }
+
+        public String getProperty() {
+            return property;
+        }
+
+        /**
+         * Return the value of the property of the given base, or resolve it
+         * using the resolver if the cache does not apply.
+         */
+        public Object getValue(ELContext context, ELResolver resolver,
+                Object base) throws ELException {
+            Class<?> type = base.getClass();
+            MethodHandle handle;
+            int i = find(type);
+            if (i >= 0) {
+                handle = handles[i];
+            } else if (megamorphic) {
+                handle = null;
+            } else {
+                handle = install(type);
+            }
+            if (handle == null) {
+                context.setPropertyResolved(false);
+                return resolver.getValue(context, base, property);
+            }
+            Object value;
+            try {
+                value = handle.invokeExact(base);
+            } catch (Throwable t) {
+                throw new ELException(t);
+            }
+            context.setPropertyResolved(true);
+            return value;
+        }
+
+        /**
+         * Return the index of the given class in the cache, or -1 if it has
+         * not been seen yet. The handle at that index is <code>null</code>
+         * if the property of that class must be resolved by the resolver.
+         */
+        private int find(Class<?> type) {
+            Class<?>[] types = this.types;
+            for (int i = 0; i < types.length; i++) {
+                if (types[i] == type) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private synchronized MethodHandle install(Class<?> type) {
+            int i = find(type);
+            if (i >= 0) {
+                return handles[i];
+            }
+            if (megamorphic) {
+                return null;
+            }
+            if (types.length >= MAX_CLASSES) {
+                megamorphic = true;
+                return null;
+            }
+            MethodHandle handle = null;
+            if (isBean(type)) {
+                handle = getReadMethod(type, property);
+            }
+            // Also record the classes without a handle, so that they are
+            // not looked up again
+            MethodHandle[] newHandles = new MethodHandle[handles.length + 1];
+            System.arraycopy(handles, 0, newHandles, 0, handles.length);
+            newHandles[handles.length] = handle;
+            Class<?>[] newTypes = new Class<?>[types.length + 1];
+            System.arraycopy(types, 0, newTypes, 0, types.length);
+            newTypes[types.length] = type;
+            // Publish the handles before the types which select them
+            handles = newHandles;
+            types = newTypes;
+            return handle;
+        }
+
+        /**
+         * Return the number of classes seen by this cache.
+         */
+        public int size() {
+            return types.length;
+        }
+
+    }
+
+
+    /**
+     * Inline cache of a method call step with parameters, such as
+     * <code>.name(a, b)</code>.
+     */
+    public static final class MethodCache {
+
+        private final String name;
+        private final int paramCount;
+        private volatile Class<?>[] types = new Class<?>[0];
+        private volatile Invoker[] invokers = new Invoker[0];
+        private volatile boolean megamorphic = false;
+
+        public MethodCache(String name, int paramCount) {
+            this.name = name;
+            this.paramCount = paramCount;
+        }
+
+        /**
+         * Invoke the method on the given base, or invoke it using the
+         * resolver if the cache does not apply.
+         */
+        public Object invoke(ELContext context, ELResolver resolver,
+                Object base, Object[] params) throws ELException {
+            Class<?> type = base.getClass();
+            Invoker invoker;
+            int index = find(type);
+            if (index >= 0) {
+                invoker = invokers[index];
+            } else if (megamorphic) {
+                invoker = null;
+            } else {
+                invoker = install(type);
+            }
+            if (invoker == null) {
+                context.setPropertyResolved(false);
+                return resolver.invoke(context, base, name, null, params);
+            }
+            Object[] parameters = new Object[paramCount];
+            for (int i = 0; i < paramCount; i++) {
+                parameters[i] = ELSupport.coerceToType(params[i],
+                        invoker.parameterTypes[i]);
+            }
+            Object value;
+            try {
+                value = invoker.handle.invokeExact(base, parameters);
+            } catch (Throwable t) {
+                throw new ELException(t);
+            }
+            context.setPropertyResolved(true);
+            return value;
+        }
+
+        /**
+         * Return the index of the given class in the cache, or -1 if it has
+         * not been seen yet. The invoker at that index is <code>null</code>
+         * if the method of that class must be invoked by the resolver.
+         */
+        private int find(Class<?> type) {
+            Class<?>[] types = this.types;
+            for (int i = 0; i < types.length; i++) {
+                if (types[i] == type) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private synchronized Invoker install(Class<?> type) {
+            int i = find(type);
+            if (i >= 0) {
+                return invokers[i];
+            }
+            if (megamorphic) {
+                return null;
+            }
+            if (types.length >= MAX_CLASSES) {
+                megamorphic = true;
+                return null;
+            }
+            Invoker invoker = null;
+            Method method = getMethod(type, name, paramCount);
+            if (method != null) {
+                try {
+                    invoker = new Invoker(MethodHandles.publicLookup()
+                            .unreflect(method)
+                            .asSpreader(Object[].class, paramCount)
+                            .asType(METHOD_TYPE), method.getParameterTypes());
+                } catch (IllegalAccessException e) {
+                    // Leave the call to the resolver
+                }
+            }
+            // Also record the classes without an invoker, so that they are
+            // not looked up again
+            Invoker[] newInvokers = new Invoker[invokers.length + 1];
+            System.arraycopy(invokers, 0, newInvokers, 0, invokers.length);
+            newInvokers[invokers.length] = invoker;
+            Class<?>[] newTypes = new Class<?>[types.length + 1];
+            System.arraycopy(types, 0, newTypes, 0, types.length);
+            newTypes[types.length] = type;
+            // Publish the invokers before the types which select them
+            invokers = newInvokers;
+            types = newTypes;
+            return invoker;
+        }
+
+        /**
+         * Return the number of classes seen by this cache.
+         */
+        public int size() {
+            return types.length;
+        }
+
+    }
+
+
+    private static final class Invoker {
+
+        final MethodHandle handle;
+        final Class<?>[] parameterTypes;
+
+        Invoker(MethodHandle handle, Class<?>[] parameterTypes) {
+            this.handle = handle;
+            this.parameterTypes = parameterTypes;
+        }
+
+    }
+
+}
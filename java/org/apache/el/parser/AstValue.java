@@ -27,6 +27,7 @@ import javax.el.MethodInfo;
 import javax.el.PropertyNotFoundException;
 import javax.el.ValueReference;
 
+import org.apache.el.lang.ELCompiler;
 import org.apache.el.lang.ELSupport;
 import org.apache.el.lang.EvaluationContext;
 import org.apache.el.util.MessageFactory;
@@ -112,33 +113,88 @@ public final class AstValue extends SimpleNode {
     }
 
     public Object getValue(EvaluationContext ctx) throws ELException {
+        Object[] steps = null;
+        // The compiled steps and the evaluation count are kept by the
+        // application which evaluates the expression
+        ELCompiler.Cache cache = (ELCompiler.COMPILE_THRESHOLD >= 0)
+            ? ELCompiler.getCache(ctx) : null;
+        if (cache != null) {
+            steps = cache.get(this);
+            if (steps == null && cache.evaluated(this)) {
+                steps = cache.put(this, compile());
+            }
+        }
         Object base = this.children[0].getValue(ctx);
         int propCount = this.jjtGetNumChildren();
         int i = 1;
-        Object property = null;
         ELResolver resolver = ctx.getELResolver();
         while (base != null && i < propCount) {
-            property = this.children[i].getValue(ctx);
-            if (property == null) {
-                return null;
+            Object step = (steps == null) ? null : steps[i];
+            if (step instanceof ELCompiler.PropertyCache) {
+                base = ((ELCompiler.PropertyCache) step).getValue(ctx,
+                        resolver, base);
+            } else if (step instanceof ELCompiler.MethodCache) {
+                Object[] params =
+                    ((AstDotSuffix) this.children[i]).getParameters(ctx);
+                base = ((ELCompiler.MethodCache) step).invoke(ctx, resolver,
+                        base, params);
             } else {
-                Object[] params = null;
-                if (this.children[i] instanceof AstDotSuffix) {
-                    params = ((AstDotSuffix) this.children[i]).getParameters(ctx);
-                }
-                if (params != null && params.length > 0) {
-                    ctx.setPropertyResolved(false);
-                    base = resolver.invoke(ctx, base, property, null, params);
-                } else {
-                    ctx.setPropertyResolved(false);
-                    base = resolver.getValue(ctx, base, property);
-                }
+                // A null property also ends the evaluation with null
+                base = getValue(ctx, resolver, base, i);
             }
             i++;
         }
         return base;
     }
 
+    /**
+     * Interpret the step of the specified index.
+     */
+    private Object getValue(EvaluationContext ctx, ELResolver resolver,
+            Object base, int i) throws ELException {
+        Object property = this.children[i].getValue(ctx);
+        if (property == null) {
+            return null;
+        }
+        Object[] params = null;
+        if (this.children[i] instanceof AstDotSuffix) {
+            params = ((AstDotSuffix) this.children[i]).getParameters(ctx);
+        }
+        ctx.setPropertyResolved(false);
+        if (params != null && params.length > 0) {
+            return resolver.invoke(ctx, base, property, null, params);
+        } else {
+            return resolver.getValue(ctx, base, property);
+        }
+    }
+
+    /**
+     * Build the inline caches of the steps which name a constant property
+     * or method, by child index. A <code>null</code> step is interpreted.
+     */
+    private Object[] compile() {
+        int propCount = this.jjtGetNumChildren();
+        Object[] steps = new Object[propCount];
+        for (int i = 1; i < propCount; i++) {
+            Node child = this.children[i];
+            if (child instanceof AstDotSuffix) {
+                String name = ((AstDotSuffix) child).getImage();
+                int paramCount = child.jjtGetNumChildren();
+                if (paramCount > 0) {
+                    steps[i] = new ELCompiler.MethodCache(name, paramCount);
+                } else {
+                    steps[i] = new ELCompiler.PropertyCache(name);
+                }
+            } else if (child instanceof AstBracketSuffix
+                    && child.jjtGetNumChildren() == 1
+                    && child.jjtGetChild(0) instanceof AstString) {
+                steps[i] = new ELCompiler.PropertyCache(
+                        ((AstString) child.jjtGetChild(0)).getString());
+            }
+        }
+        return steps;
+    }
+
     public boolean isReadOnly(EvaluationContext ctx) throws ELException {
         Target t = getTarget(ctx);
         ctx.setPropertyResolved(false);
@@ -21,6 +21,7 @@ import java.io.File;
 import java.util.Enumeration;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
@@ -108,6 +109,11 @@ public final class EmbeddedServletOptions implements Options {
      */
     private boolean genStringAsCharArray = false;
     
+    /**
+     * Are Text strings to be generated with their encoding?
+     */
+    private boolean genStringAsByteArray = false;
+    
     private boolean errorOnUseBeanInvalidClassAttribute = true;
     
     /**
@@ -185,6 +191,37 @@ public final class EmbeddedServletOptions implements Options {
      */
     private boolean displaySourceFragment = true;
 
+    /**
+     * Should all the JSP pages be compiled when Jasper is initialized?
+     */
+    private boolean precompile = false;
+
+    /**
+     * Should the JSP pages share a class loader?
+     */
+    private boolean sharedClassLoader = false;
+
+    /**
+     * Should the sources of the JSP pages be watched in development mode?
+     */
+    private boolean watchSources = false;
+
+    /**
+     * Should the EL expressions of the template text be optimized?
+     */
+    private boolean optimizeEL = true;
+
+    /**
+     * Should the tag libraries be cached across the compilations of the
+     * JSP pages?
+     */
+    private boolean cacheTagLibraries = true;
+
+    /**
+     * Cache of the tag libraries, by URI.
+     */
+    private Map cache = new ConcurrentHashMap();
+
     
     public String getProperty(String name ) {
         return settings.getProperty( name );
@@ -284,6 +321,13 @@ public final class EmbeddedServletOptions implements Options {
         return this.genStringAsCharArray;
     }
     
+    /**
+     * Are Text strings to be generated with their encoding?
+     */
+    public boolean genStringAsByteArray() {
+        return this.genStringAsByteArray;
+    }
+    
     /**
      * Class ID for use in the plugin tag when the browser is IE. 
      */
@@ -366,11 +410,11 @@ public final class EmbeddedServletOptions implements Options {
     }
     
     public boolean isCaching() {
-        return false;
+        return cacheTagLibraries;
     }
     
     public Map getCache() {
-        return null;
+        return cache;
     }
 
     /**
@@ -381,6 +425,34 @@ public final class EmbeddedServletOptions implements Options {
         return displaySourceFragment;
     }
 
+    /**
+     * Should all the JSP pages be compiled when Jasper is initialized?
+     */
+    public boolean getPrecompile() {
+        return precompile;
+    }
+
+    /**
+     * Should the JSP pages share a class loader?
+     */
+    public boolean getSharedClassLoader() {
+        return sharedClassLoader;
+    }
+
+    /**
+     * Should the sources of the JSP pages be watched in development mode?
+     */
+    public boolean getWatchSources() {
+        return watchSources;
+    }
+
+    /**
+     * Should the EL expressions of the template text be optimized?
+     */
+    public boolean getOptimizeEL() {
+        return optimizeEL;
+    }
+
     /**
      * Create an EmbeddedServletOptions object using data available from
      * ServletConfig and ServletContext. 
@@ -546,6 +618,17 @@ public final class EmbeddedServletOptions implements Options {
             }
         }
         
+        String genByteArray = config.getInitParameter("genStrAsByteArray");
+        if (genByteArray != null) {
+            if (genByteArray.equalsIgnoreCase("true")) {
+                genStringAsByteArray = true;
+            } else if (genByteArray.equalsIgnoreCase("false")) {
+                genStringAsByteArray = false;
+            } else {
+                log.warn(Localizer.getMessage("jsp.warning.genbytearray"));
+            }
+        }
+        
         String errBeanClass =
             config.getInitParameter("errorOnUseBeanInvalidClassAttribute");
         if (errBeanClass != null) {
@@ -648,6 +731,61 @@ public final class EmbeddedServletOptions implements Options {
             }
         }
         
+        String precompile = config.getInitParameter("precompile"); 
+        if (precompile != null) {
+            if (precompile.equalsIgnoreCase("true")) {
+                this.precompile = true;
+            } else if (precompile.equalsIgnoreCase("false")) {
+                this.precompile = false;
+            } else {
+                log.warn(Localizer.getMessage("jsp.warning.precompile"));
+            }
+        }
+        
+        String sharedClassLoader = config.getInitParameter("sharedClassLoader"); 
+        if (sharedClassLoader != null) {
+            if (sharedClassLoader.equalsIgnoreCase("true")) {
+                this.sharedClassLoader = true;
+            } else if (sharedClassLoader.equalsIgnoreCase("false")) {
+                this.sharedClassLoader = false;
+            } else {
+                log.warn(Localizer.getMessage("jsp.warning.sharedClassLoader"));
+            }
+        }
+        
+        String watchSources = config.getInitParameter("watchSources"); 
+        if (watchSources != null) {
+            if (watchSources.equalsIgnoreCase("true")) {
+                this.watchSources = true;
+            } else if (watchSources.equalsIgnoreCase("false")) {
+                this.watchSources = false;
+            } else {
+                log.warn(Localizer.getMessage("jsp.warning.watchSources"));
+            }
+        }
+        
+        String optimizeEL = config.getInitParameter("optimizeEL"); 
+        if (optimizeEL != null) {
+            if (optimizeEL.equalsIgnoreCase("true")) {
+                this.optimizeEL = true;
+            } else if (optimizeEL.equalsIgnoreCase("false")) {
+                this.optimizeEL = false;
+            } else {
+                log.warn(Localizer.getMessage("jsp.warning.optimizeEL"));
+            }
+        }
+        
+        String cacheTagLibraries = config.getInitParameter("cacheTagLibraries"); 
+        if (cacheTagLibraries != null) {
+            if (cacheTagLibraries.equalsIgnoreCase("true")) {
+                this.cacheTagLibraries = true;
+            } else if (cacheTagLibraries.equalsIgnoreCase("false")) {
+                this.cacheTagLibraries = false;
+            } else {
+                log.warn(Localizer.getMessage("jsp.warning.cacheTagLibraries"));
+            }
+        }
+        
         // Setup the jsp config info for this web app.
         jspConfig = new JspConfig(context);
         
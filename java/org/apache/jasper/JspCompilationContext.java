@@ -185,11 +185,17 @@ public class JspCompilationContext {
 
     public ClassLoader getJspLoader() {
         if( jspLoader == null ) {
-            jspLoader = new JasperLoader
-            (new URL[] {baseUrl},
-                    getClassLoader(),
-                    rctxt.getPermissionCollection(),
-                    rctxt.getCodeSource());
+            if (options.getSharedClassLoader() && !isPrototypeMode()
+                    && getClassLoader() == rctxt.getParentClassLoader()) {
+                // Prototype classes have the same names as the tag handlers
+                jspLoader = rctxt.getJspLoader(baseUrl);
+            } else {
+                jspLoader = new JasperLoader
+                (new URL[] {baseUrl},
+                        getClassLoader(),
+                        rctxt.getPermissionCollection(),
+                        rctxt.getCodeSource());
+            }
         }
         return jspLoader;
     }
@@ -605,6 +611,9 @@ public class JspCompilationContext {
                 jspCompiler.removeGeneratedFiles();
                 jspLoader = null;
                 jspCompiler.compile();
+                if (options.getSharedClassLoader()) {
+                    rctxt.classCompiled(getFQCN());
+                }
                 jsw.setReload(true);
                 jsw.setCompilationException(null);
             } catch (JasperException ex) {
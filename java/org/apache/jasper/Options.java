@@ -80,6 +80,32 @@ public interface Options {
      */
     public boolean getDisplaySourceFragment();
 
+    /**
+     * Should all the JSP pages of the web application be compiled when
+     * Jasper is initialized, rather than when they are first requested?
+     */
+    public boolean getPrecompile();
+
+    /**
+     * Should the JSP pages of the web application share a class loader,
+     * rather than using one class loader per page?
+     */
+    public boolean getSharedClassLoader();
+
+    /**
+     * In development mode, should the sources of the JSP pages be watched
+     * in the background, rather than checked when the pages are requested?
+     */
+    public boolean getWatchSources();
+
+    /**
+     * Should the EL expressions of the template text be optimized when
+     * the pages are compiled, by folding the constant expressions into the
+     * template text and by generating direct calls for the functions and
+     * the properties of the implicit objects?
+     */
+    public boolean getOptimizeEL();
+
     /**
      * Is the generation of SMAP info for JSR45 debugging suppressed?
      */
@@ -163,6 +189,12 @@ public interface Options {
      * Are Text strings to be generated as char arrays?
      */
     public boolean genStringAsCharArray();
+
+    /**
+     * Are Text strings to be generated with their encoding, which is written
+     * as is to the response when possible?
+     */
+    public boolean genStringAsByteArray();
     
     /**
      * Modification test interval.
@@ -175,16 +207,17 @@ public interface Options {
     public boolean getRecompileOnFail();
 
     /**
-     * Is caching enabled (used for precompilation).
+     * Are the tag libraries cached across the compilations of the JSP pages?
      */
     public boolean isCaching();
     
     /**
-     * The web-application wide cache for the returned TreeNode
-     * by parseXMLDocument in TagLibraryInfoImpl.parseTLD,
-     * if isCaching returns true.
+     * The web-application wide cache of the tag libraries, with the
+     * information on their tag files, if isCaching returns true. The cache
+     * must support concurrent access, as the pages may be compiled in
+     * parallel.
      * 
-     * @return the Map(String uri, TreeNode tld) instance.
+     * @return the Map(String uri, TagLibraryInfoImpl) instance.
      */
     public Map getCache();
     
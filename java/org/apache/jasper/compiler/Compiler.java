@@ -17,15 +17,23 @@
 
 package org.apache.jasper.compiler;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.JarURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
@@ -33,6 +41,7 @@ import org.apache.jasper.JasperException;
 import org.apache.jasper.JspCompilationContext;
 import org.apache.jasper.Options;
 import org.apache.jasper.servlet.JspServletWrapper;
+import org.apache.tomcat.util.buf.HexUtils;
 
 /**
  * Main JSP compiler class. This class uses Ant for compiling.
@@ -49,6 +58,12 @@ public abstract class Compiler {
     protected org.jboss.logging.Logger log = org.jboss.logging.Logger
             .getLogger(Compiler.class);
 
+    /**
+     * Algorithm of the digest of the sources of a page, which is stored
+     * along with its class file when the pages are precompiled.
+     */
+    public static final String DIGEST_ALGORITHM = "SHA-256";
+
     // ----------------------------------------------------- Instance Variables
 
     protected JspCompilationContext ctxt;
@@ -233,6 +248,9 @@ public abstract class Compiler {
             TagPluginManager tagPluginManager = options.getTagPluginManager();
             tagPluginManager.apply(pageNodes, errDispatcher, pageInfo);
 
+            // Optimization: fold or compile the EL expressions.
+            ELOptimizer.optimize(this, pageNodes);
+
             // Optimization: concatenate contiguous template texts.
             TextOptimizer.concatenate(this, pageNodes);
 
@@ -368,6 +386,9 @@ public abstract class Compiler {
                         jsw.setServletClassLastModifiedTime(targetFile.lastModified());
                     }
                 }
+                if (options.getPrecompile() && !ctxt.isPrototypeMode()) {
+                    writeDigest(pageInfo.getDependants());
+                }
             }
         } finally {
             if (tfp != null) {
@@ -471,7 +492,7 @@ public abstract class Compiler {
                 log.debug("Compiler: outdated: " + targetFile + " "
                         + targetLastModified);
             }
-            return true;
+            return !isDigestValid(targetFile, checkClass);
         }
 
         // determine if source dependent files (e.g. includes using include
@@ -505,7 +526,7 @@ public abstract class Compiler {
                 iuc.getInputStream().close();
 
                 if (includeLastModified > targetLastModified) {
-                    return true;
+                    return !isDigestValid(targetFile, checkClass);
                 }
             } catch (Exception e) {
                 return true;
@@ -516,6 +537,63 @@ public abstract class Compiler {
 
     }
 
+    /**
+     * Determine if the class file is up to date even though its sources
+     * have been modified after it, because they have the digest which was
+     * stored when it was compiled. This is the case when the web application
+     * is deployed again with the same pages. The class file is then touched,
+     * so that the digest is not computed again.
+     * 
+     * @param targetFile
+     *            The class file
+     * @param checkClass
+     *            If false, the target file is the .java file, and the digest
+     *            is not used
+     */
+    protected boolean isDigestValid(File targetFile, boolean checkClass) {
+        if (!checkClass || !options.getPrecompile()) {
+            return false;
+        }
+        File digestFile = getDigestFile();
+        if (!digestFile.exists()) {
+            return false;
+        }
+        String digest = null;
+        List<String> dependants = new ArrayList<String>();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(digestFile), "UTF-8"));
+            digest = reader.readLine();
+            String dependant = reader.readLine();
+            while (dependant != null) {
+                dependants.add(dependant);
+                dependant = reader.readLine();
+            }
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+        if (digest == null || !digest.equals(digest(dependants))) {
+            return false;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Compiler: unchanged sources: " + targetFile);
+        }
+        targetFile.setLastModified(System.currentTimeMillis());
+        if (jsw != null) {
+            jsw.setServletClassLastModifiedTime(targetFile.lastModified());
+        }
+        return true;
+    }
+
     /**
      * Gets the error dispatcher.
      */
@@ -560,6 +638,108 @@ public abstract class Compiler {
         } catch (Exception e) {
             // Remove as much as possible, ignore possible exceptions
         }
+        try {
+            if (ctxt.getClassFileName() != null) {
+                getDigestFile().delete();
+            }
+        } catch (Exception e) {
+            // Remove as much as possible, ignore possible exceptions
+        }
+    }
+
+    /**
+     * Return the file in which the digest of the sources of the page is
+     * stored, next to its class file.
+     */
+    protected File getDigestFile() {
+        String classFileName = ctxt.getClassFileName();
+        return new File(classFileName.substring(0,
+                classFileName.length() - ".class".length()) + ".digest");
+    }
+
+    /**
+     * Store the digest of the sources of the page, followed by the
+     * dependants it has been computed with.
+     */
+    protected void writeDigest(List dependants) {
+        File digestFile = getDigestFile();
+        String digest = digest(dependants);
+        if (digest == null) {
+            digestFile.delete();
+            return;
+        }
+        PrintWriter writer = null;
+        try {
+            writer = new PrintWriter(new OutputStreamWriter(
+                    new FileOutputStream(digestFile), "UTF-8"));
+            writer.println(digest);
+            if (dependants != null) {
+                Iterator it = dependants.iterator();
+                while (it.hasNext()) {
+                    writer.println((String) it.next());
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Failed to store the digest of " + ctxt.getJspFile(), e);
+        } finally {
+            if (writer != null) {
+                writer.close();
+            }
+        }
+    }
+
+    /**
+     * Compute the digest of the page and of the specified dependants.
+     * 
+     * @return the digest, or null if one of the sources is not available
+     */
+    protected String digest(List dependants) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+        byte[] buf = new byte[8192];
+        if (!digest(md, ctxt.getJspFile(), buf)) {
+            return null;
+        }
+        if (dependants != null) {
+            Iterator it = dependants.iterator();
+            while (it.hasNext()) {
+                if (!digest(md, (String) it.next(), buf)) {
+                    return null;
+                }
+            }
+        }
+        return HexUtils.convert(md.digest());
+    }
+
+    private boolean digest(MessageDigest md, String path, byte[] buf) {
+        InputStream is = null;
+        try {
+            URL url = ctxt.getResource(path);
+            if (url == null) {
+                return false;
+            }
+            md.update(path.getBytes("UTF-8"));
+            is = url.openStream();
+            int n;
+            while ((n = is.read(buf)) > 0) {
+                md.update(buf, 0, n);
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
     }
 
     public void removeGeneratedClassFiles() {
@@ -0,0 +1,401 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jasper.compiler;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.el.ELException;
+import javax.el.ExpressionFactory;
+
+import org.apache.el.lang.EvaluationContext;
+import org.apache.el.lang.ExpressionBuilder;
+import org.apache.el.parser.AstBracketSuffix;
+import org.apache.el.parser.AstDotSuffix;
+import org.apache.el.parser.AstFunction;
+import org.apache.el.parser.AstIdentifier;
+import org.apache.el.parser.AstString;
+import org.apache.el.parser.AstValue;
+import org.apache.el.util.MessageFactory;
+import org.apache.jasper.JasperException;
+import org.apache.jasper.JspCompilationContext;
+import org.apache.jasper.el.ELContextImpl;
+
+/**
+ * Optimizes the EL expressions of the template text, which are otherwise
+ * parsed and evaluated by the EL interpreter for each request:
+ * <ul>
+ * <li>constant expressions, such as <code>${1 + 2}</code>, are evaluated
+ * and folded into the template text;</li>
+ * <li>expressions made of function calls, properties of the
+ * <code>param</code>, <code>header</code>, <code>pageScope</code>,
+ * <code>requestScope</code> and <code>applicationScope</code> implicit
+ * objects, and constants are compiled into Java expressions, which call the
+ * function methods and the Servlet API directly.</li>
+ * </ul>
+ * Other expressions are left to the interpreter. The properties of the
+ * implicit objects are not compiled in tag files, where the identifiers may
+ * be mapped to the deferred attributes of the tag. Each function call is
+ * generated as a statement which wraps the exceptions of the function in an
+ * <code>ELException</code>, as the interpreter does.
+ */
+public class ELOptimizer {
+
+    private JspCompilationContext ctxt;
+    private PageInfo pageInfo;
+    private ExpressionFactory expressionFactory;
+    private ClassLoader loader;
+    private boolean trimSpaces;
+
+    /**
+     * Functions of the expression being optimized, by prefix and name.
+     */
+    private HashMap<String, ELNode.Function> functions =
+        new HashMap<String, ELNode.Function>();
+
+    /**
+     * Statements computing the function calls of the expression being
+     * optimized, in evaluation order.
+     */
+    private StringBuilder statements = new StringBuilder();
+
+    /**
+     * Number of local variables declared by these statements.
+     */
+    private int variables;
+
+    private ELOptimizer(Compiler compiler) {
+        ctxt = compiler.getCompilationContext();
+        pageInfo = compiler.getPageInfo();
+        expressionFactory = pageInfo.getExpressionFactory();
+        loader = ctxt.getClassLoader();
+        trimSpaces = ctxt.getOptions().getTrimSpaces()
+            || pageInfo.isTrimDirectiveWhitespaces();
+    }
+
+    /**
+     * A visitor collecting the EL expressions of the template text.
+     */
+    static class ELExpressionVisitor extends Node.Visitor {
+
+        private List<Node.ELExpression> expressions =
+            new ArrayList<Node.ELExpression>();
+
+        public void visit(Node.ELExpression n) throws JasperException {
+            if (n.getType() == '$' && n.getEL() != null) {
+                expressions.add(n);
+            }
+        }
+
+    }
+
+    public static void optimize(Compiler compiler, Node.Nodes page)
+            throws JasperException {
+
+        if (!compiler.getCompilationContext().getOptions().getOptimizeEL()
+                || compiler.getPageInfo().isELIgnored()) {
+            return;
+        }
+
+        ELExpressionVisitor v = new ELExpressionVisitor();
+        page.visit(v);
+
+        // The nodes are replaced once the tree has been visited
+        ELOptimizer optimizer = new ELOptimizer(compiler);
+        for (int i = 0; i < v.expressions.size(); i++) {
+            optimizer.optimize(v.expressions.get(i));
+        }
+    }
+
+    /**
+     * Replace the given expression with template text or with a Java
+     * expression, if possible.
+     */
+    private void optimize(Node.ELExpression n) {
+        // The expression is returned without its dynamic expression node
+        org.apache.el.parser.Node node;
+        try {
+            node = ExpressionBuilder.createNode("${" + n.getText() + "}");
+        } catch (ELException e) {
+            return;
+        }
+
+        Node parent = n.getParent();
+        if (isConstant(node)) {
+            String value;
+            try {
+                value = (String) expressionFactory.coerceToType(
+                        evaluate(node), String.class);
+            } catch (ELException e) {
+                // The error is reported when the page is requested
+                return;
+            }
+            Node.TemplateText text =
+                new Node.TemplateText(value, n.getStart(), parent);
+            parent.getBody().remove(text);
+            if (trimSpaces && value.length() > 0 && text.isAllSpace()) {
+                // Keep the expression, as the text would be trimmed
+                return;
+            }
+            parent.getBody().replace(n, text);
+        } else {
+            functions.clear();
+            statements.setLength(0);
+            variables = 0;
+            try {
+                n.getEL().visit(new ELNode.Visitor() {
+                    public void visit(ELNode.Function f) {
+                        functions.put(f.getPrefix() + ':' + f.getName(), f);
+                    }
+                });
+            } catch (JasperException e) {
+                return;
+            }
+            String java = compile(node);
+            if (java == null) {
+                return;
+            }
+            java = "(String) " + Generator.VAR_EXPRESSIONFACTORY
+                + ".coerceToType(" + java + ", String.class)";
+            Node compiled;
+            if (statements.length() == 0) {
+                compiled = new Node.Expression(java, n.getStart(), parent);
+            } else {
+                // A single line, as the expression is on one line of the page
+                compiled = new Node.Scriptlet("{ " + statements
+                        + "out.print(" + java + "); }", n.getStart(), parent);
+            }
+            parent.getBody().remove(compiled);
+            parent.getBody().replace(n, compiled);
+        }
+    }
+
+    /**
+     * Is the value of the given node the same for all the requests? This is
+     * the case when it does not refer to any identifier or function.
+     */
+    private static boolean isConstant(org.apache.el.parser.Node node) {
+        if (node instanceof AstIdentifier || node instanceof AstFunction
+                || node instanceof AstValue) {
+            return false;
+        }
+        for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+            if (!isConstant(node.jjtGetChild(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Evaluate a constant node.
+     */
+    private static Object evaluate(org.apache.el.parser.Node node) {
+        return node.getValue(new EvaluationContext(new ELContextImpl(),
+                null, null));
+    }
+
+    /**
+     * Compile the given node into a Java expression.
+     *
+     * @return The Java expression, or null if the node cannot be compiled
+     */
+    private String compile(org.apache.el.parser.Node node) {
+        if (isConstant(node)) {
+            try {
+                return toJavaLiteral(evaluate(node));
+            } catch (ELException e) {
+                return null;
+            }
+        } else if (node instanceof AstFunction) {
+            return compileFunction((AstFunction) node);
+        } else if (node instanceof AstValue) {
+            return compileImplicitObjectProperty((AstValue) node);
+        }
+        return null;
+    }
+
+    /**
+     * Compile a function call into a direct call of its static method, added
+     * to the statements of the expression, and return the variable holding
+     * its result. The arguments are coerced to the parameter types, and the
+     * exceptions of the method are wrapped, as the interpreter does.
+     */
+    private String compileFunction(AstFunction node) {
+        ELNode.Function f = functions.get(node.getPrefix() + ':'
+                + node.getLocalName());
+        if (f == null || f.getFunctionInfo() == null) {
+            return null;
+        }
+        String[] paramTypes = f.getParameters();
+        if (paramTypes == null
+                || paramTypes.length != node.jjtGetNumChildren()) {
+            return null;
+        }
+        Class<?> c;
+        Class<?>[] params = new Class[paramTypes.length];
+        Method method;
+        try {
+            c = loader.loadClass(f.getFunctionInfo().getFunctionClass());
+            for (int i = 0; i < paramTypes.length; i++) {
+                params[i] = JspUtil.toClass(paramTypes[i], loader);
+            }
+            method = c.getDeclaredMethod(f.getMethodName(), params);
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+        int modifiers = method.getModifiers();
+        if (!Modifier.isPublic(modifiers) || !Modifier.isStatic(modifiers)
+                || !Modifier.isPublic(c.getModifiers())
+                || c.getCanonicalName() == null
+                || method.getReturnType() == Void.TYPE) {
+            return null;
+        }
+
+        // Each argument is evaluated and then coerced, before the next one
+        StringBuilder call = new StringBuilder();
+        call.append(c.getCanonicalName()).append('.')
+            .append(method.getName()).append('(');
+        for (int i = 0; i < params.length; i++) {
+            String arg = compile(node.jjtGetChild(i));
+            if (arg == null) {
+                return null;
+            }
+            String type = JspUtil.getCanonicalName(params[i]);
+            String converter = null;
+            if (params[i].isPrimitive()) {
+                converter = params[i].getName() + "Value";
+                type = JspUtil.getCanonicalName(toWrapper(params[i]));
+            }
+            String var = newVariable();
+            statements.append(JspUtil.getCanonicalName(params[i]))
+                .append(' ').append(var).append(" = ((").append(type)
+                .append(") ").append(Generator.VAR_EXPRESSIONFACTORY)
+                .append(".coerceToType(").append(arg).append(", ")
+                .append(JspUtil.getCanonicalName(params[i]))
+                .append(".class))");
+            if (converter != null) {
+                statements.append('.').append(converter).append("()");
+            }
+            statements.append("; ");
+            if (i > 0) {
+                call.append(", ");
+            }
+            call.append(var);
+        }
+        call.append(')');
+
+        String result = newVariable();
+        statements.append("java.lang.Object ").append(result)
+            .append("; try { ").append(result).append(" = ").append(call)
+            .append("; } catch (java.lang.Throwable _jspx_e) { throw new javax.el.ELException(")
+            .append(Generator.quote(MessageFactory.get("error.function",
+                    node.getOutputName())))
+            .append(", _jspx_e); } ");
+        return result;
+    }
+
+    private String newVariable() {
+        return "_jspx_el" + (variables++);
+    }
+
+    /**
+     * Compile a property of an implicit object into a direct call of the
+     * Servlet API, as done by the implicit object resolver.
+     */
+    private String compileImplicitObjectProperty(AstValue node) {
+        if (ctxt.isTagFile() || node.jjtGetNumChildren() != 2
+                || !(node.jjtGetChild(0) instanceof AstIdentifier)) {
+            return null;
+        }
+        String property;
+        org.apache.el.parser.Node suffix = node.jjtGetChild(1);
+        if (suffix instanceof AstDotSuffix) {
+            property = suffix.getImage();
+        } else if (suffix instanceof AstBracketSuffix
+                && suffix.jjtGetChild(0) instanceof AstString) {
+            property = ((AstString) suffix.jjtGetChild(0)).getString();
+        } else {
+            return null;
+        }
+        String name = Generator.quote(property);
+        String object = node.jjtGetChild(0).getImage();
+        if ("param".equals(object)) {
+            return "_jspx_page_context.getRequest().getParameter(" + name + ")";
+        } else if ("header".equals(object)) {
+            return "((javax.servlet.http.HttpServletRequest) "
+                + "_jspx_page_context.getRequest()).getHeader(" + name + ")";
+        } else if ("pageScope".equals(object)) {
+            return "_jspx_page_context.getAttribute(" + name + ")";
+        } else if ("requestScope".equals(object)) {
+            return "_jspx_page_context.getRequest().getAttribute(" + name + ")";
+        } else if ("applicationScope".equals(object)) {
+            return "_jspx_page_context.getServletContext().getAttribute("
+                + name + ")";
+        }
+        return null;
+    }
+
+    /**
+     * Return the Java literal for the value of a constant node.
+     *
+     * @return The literal, or null if the value has no literal
+     */
+    private static String toJavaLiteral(Object value) {
+        if (value == null) {
+            return "null";
+        } else if (value instanceof String) {
+            return Generator.quote((String) value);
+        } else if (value instanceof Boolean) {
+            return ((Boolean) value).booleanValue() ? "java.lang.Boolean.TRUE"
+                    : "java.lang.Boolean.FALSE";
+        } else if (value instanceof Long) {
+            return "java.lang.Long.valueOf(" + value + "L)";
+        } else if (value instanceof Double) {
+            return "java.lang.Double.valueOf(" + Generator.quote(value.toString())
+                + ")";
+        }
+        return null;
+    }
+
+    private static Class<?> toWrapper(Class<?> type) {
+        if (type == Boolean.TYPE) {
+            return Boolean.class;
+        } else if (type == Character.TYPE) {
+            return Character.class;
+        } else if (type == Byte.TYPE) {
+            return Byte.class;
+        } else if (type == Short.TYPE) {
+            return Short.class;
+        } else if (type == Integer.TYPE) {
+            return Integer.class;
+        } else if (type == Long.TYPE) {
+            return Long.class;
+        } else if (type == Float.TYPE) {
+            return Float.class;
+        } else {
+            return Double.class;
+        }
+    }
+
+}
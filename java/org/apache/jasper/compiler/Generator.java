@@ -46,6 +46,7 @@ import org.apache.jasper.JasperException;
 import org.apache.jasper.JspCompilationContext;
 import org.apache.jasper.compiler.Node.NamedAttribute;
 import org.apache.jasper.runtime.JspRuntimeLibrary;
+import org.apache.tomcat.util.http.ContentType;
 import org.xml.sax.Attributes;
 
 /**
@@ -73,7 +74,7 @@ class Generator {
 
     private static final Class[] OBJECT_CLASS = { Object.class };
 
-    private static final String VAR_EXPRESSIONFACTORY =
+    static final String VAR_EXPRESSIONFACTORY =
         System.getProperty("org.apache.jasper.compiler.Generator.VAR_EXPRESSIONFACTORY", "_el_expressionfactory");
     private static final String VAR_INSTANCEMANAGER =
         System.getProperty("org.apache.jasper.compiler.Generator.VAR_INSTANCEMANAGER", "_jsp_instancemanager");
@@ -87,6 +88,11 @@ class Generator {
                     "org.apache.jasper.compiler.Generator.STRICT_GET_PROPERTY",
                     "true")).booleanValue();
 
+    /* Maximum length of the template text constants, so that they fit in
+     * the constant pool of the generated class.
+     */
+    private static final int TEXT_CONSTANT_SIZE = 16 * 1024;
+
     private ServletWriter out;
 
     private ArrayList methodsBuffered;
@@ -1934,6 +1940,31 @@ class Generator {
             }
         }
 
+        /**
+         * Return the writer for the constant declarations of the servlet.
+         */
+        private ServletWriter getConstantsOut() {
+            if (charArrayBuffer == null) {
+                charArrayBuffer = new GenBuffer();
+                charArrayBuffer.getOut().pushIndent();
+                textMap = new HashMap();
+            }
+            return charArrayBuffer.getOut();
+        }
+
+        /**
+         * Return the character encoding of the response, if template text is
+         * to be generated with its encoding, or <code>null</code>.
+         */
+        private String getTemplateEncoding() {
+            if (!ctxt.getOptions().genStringAsByteArray() || isTagFile) {
+                return null;
+            }
+            String encoding = ContentType.getCharsetFromContentType(
+                    pageInfo.getContentType());
+            return (encoding == null) ? "ISO-8859-1" : encoding;
+        }
+
         public void visit(Node.TemplateText n) throws JasperException {
 
             String text = n.getText();
@@ -1961,17 +1992,41 @@ class Generator {
                 return;
             }
 
+            String encoding = getTemplateEncoding();
+            if (encoding != null) {
+                // Generate Strings with their encoding, for performance
+                ServletWriter caOut = getConstantsOut();
+                n.setBeginJavaLine(out.getJavaLine());
+                int start = 0;
+                while (start < textSize) {
+                    int end = Math.min(start + TEXT_CONSTANT_SIZE, textSize);
+                    if (end < textSize
+                            && Character.isHighSurrogate(text.charAt(end - 1))) {
+                        end--;
+                    }
+                    String chunk = text.substring(start, end);
+                    String textName = (String) textMap.get(chunk);
+                    if (textName == null) {
+                        textName = "_jspx_text_" + charArrayCount++;
+                        textMap.put(chunk, textName);
+                        caOut.printin("static final org.apache.jasper.runtime.EncodedText ");
+                        caOut.print(textName);
+                        caOut.print(" = new org.apache.jasper.runtime.EncodedText(");
+                        caOut.print(quote(chunk));
+                        caOut.print(", ");
+                        caOut.print(quote(encoding));
+                        caOut.println(");");
+                    }
+                    out.printil(textName + ".write(out);");
+                    start = end;
+                }
+                n.setEndJavaLine(out.getJavaLine());
+                return;
+            }
+
             if (ctxt.getOptions().genStringAsCharArray()) {
                 // Generate Strings as char arrays, for performance
-                ServletWriter caOut;
-                if (charArrayBuffer == null) {
-                    charArrayBuffer = new GenBuffer();
-                    caOut = charArrayBuffer.getOut();
-                    caOut.pushIndent();
-                    textMap = new HashMap();
-                } else {
-                    caOut = charArrayBuffer.getOut();
-                }
+                ServletWriter caOut = getConstantsOut();
                 String charArrayName = (String) textMap.get(text);
                 if (charArrayName == null) {
                     charArrayName = "_jspx_char_array_" + charArrayCount++;
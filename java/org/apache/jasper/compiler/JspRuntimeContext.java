@@ -20,27 +20,35 @@ package org.apache.jasper.compiler;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FilePermission;
+import java.io.IOException;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.security.CodeSource;
 import java.security.PermissionCollection;
 import java.security.Policy;
 import java.security.cert.Certificate;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
+import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
 import javax.servlet.jsp.JspFactory;
 
 import org.apache.jasper.Constants;
+import org.apache.jasper.JasperException;
 import org.apache.jasper.JspCompilationContext;
 import org.apache.jasper.Options;
 import org.apache.jasper.runtime.JspFactoryImpl;
 import org.apache.jasper.security.SecurityClassLoad;
+import org.apache.jasper.servlet.JasperLoader;
 import org.apache.jasper.servlet.JspServletWrapper;
 import org.jboss.logging.Logger;
-import org.jboss.logging.Logger;
 
 /**
  * Class for tracking JSP compile time file dependencies when the
@@ -139,6 +147,19 @@ public final class JspRuntimeContext {
                 && options.getCheckInterval() > 0) {
             lastCheck = System.currentTimeMillis();
         }                                            
+
+        // In development mode, watch the sources of the pages rather than
+        // checking them on each request
+        if (options.getDevelopment()
+                && appBase != null
+                && options.getWatchSources()) {
+            try {
+                watcher = new JspSourceWatcher(context, this);
+                watcher.start();
+            } catch (IOException e) {
+                log.warn("Failed to watch the JSP sources", e);
+            }
+        }
     }
 
     // ----------------------------------------------------- Instance Variables
@@ -153,6 +174,17 @@ public final class JspRuntimeContext {
     private CodeSource codeSource;                    
     private String classpath;
     private long lastCheck = -1L;
+    private JspSourceWatcher watcher = null;
+
+    /**
+     * Current generation of the class loader shared by the JSP pages.
+     */
+    private JasperLoader jspLoader = null;
+
+    /**
+     * Number of generations of the shared class loader.
+     */
+    private int jspLoaderCount = 0;
 
     /**
      * Maps JSP pages to their JspServletWrapper's
@@ -230,10 +262,76 @@ public final class JspRuntimeContext {
         return permissionCollection;
     }
 
+    /**
+     * Get the class loader shared by the JSP pages, which loads the classes
+     * from the specified scratch directory. This is the current generation,
+     * which is used until it has loaded a class which is compiled again.
+     *
+     * @param baseUrl URL of the scratch directory
+     * @return JasperLoader for the JSP pages
+     */
+    public synchronized JasperLoader getJspLoader(URL baseUrl) {
+        if (jspLoader == null) {
+            jspLoader = new JasperLoader(new URL[] {baseUrl},
+                    parentClassLoader, permissionCollection, codeSource);
+            jspLoaderCount++;
+        }
+        return jspLoader;
+    }
+
+    /**
+     * Signal that the class of a JSP page or tag file has been compiled
+     * again. If the current generation of the shared class loader has
+     * already loaded the class, the pages which are loaded from now on use
+     * a new generation, while the pages which have already been loaded keep
+     * using the previous generation until they are reloaded.
+     *
+     * @param className Name of the class which has been compiled
+     */
+    public synchronized void classCompiled(String className) {
+        if (jspLoader != null && jspLoader.isLoaded(className)) {
+            jspLoader = null;
+        }
+    }
+
+    /**
+     * Gets the number of generations of the class loader shared by the JSP
+     * pages which have been created.
+     *
+     * @return The number of generations of the shared class loader
+     */
+    public synchronized int getJspLoaderCount() {
+        return jspLoaderCount;
+    }
+
+    /**
+     * Are the sources of the JSP pages watched in the background, in which
+     * case the pages should not be checked when they are requested?
+     */
+    public boolean isWatchingSources() {
+        return watcher != null;
+    }
+
+    /**
+     * Watch the sources of a JSP page which has been loaded, if the sources
+     * of the JSP pages are watched.
+     *
+     * @param jspUri JSP URI
+     * @param dependants Dependants of the page
+     */
+    public void watch(String jspUri, List dependants) {
+        if (watcher != null) {
+            watcher.watch(jspUri, dependants);
+        }
+    }
+
     /**
      * Process a "destory" event for this web application context.
      */                                                        
     public void destroy() {
+        if (watcher != null) {
+            watcher.stop();
+        }
         Iterator servlets = jsps.values().iterator();
         while (servlets.hasNext()) {
             ((JspServletWrapper) servlets.next()).destroy();
@@ -311,9 +409,91 @@ public final class JspRuntimeContext {
     }
 
 
+    /**
+     * Compile all the JSP pages of the web application, so that they are
+     * not compiled when they are first requested. The pages are compiled
+     * in parallel using a fork/join pool, and the tag files they use are
+     * compiled along with them. Pages whose sources have not changed since
+     * the class files were stored in the scratch directory are not compiled
+     * again.
+     *
+     * @param config The ServletConfig of the JSP servlet
+     */
+    public void precompile(ServletConfig config) {
+
+        long t1 = System.currentTimeMillis();
+
+        List<String> jspUris = new ArrayList<String>();
+        findJspPages("/", jspUris);
+        List<JspServletWrapper> wrappers = new ArrayList<JspServletWrapper>();
+        for (int i = 0; i < jspUris.size(); i++) {
+            String jspUri = jspUris.get(i);
+            JspServletWrapper jsw = getWrapper(jspUri);
+            if (jsw == null) {
+                try {
+                    jsw = new JspServletWrapper(config, options, jspUri,
+                            false, this);
+                } catch (JasperException e) {
+                    log.warn(Localizer.getMessage("jsp.error.precompile",
+                            jspUri), e);
+                    continue;
+                }
+                addWrapper(jspUri, jsw);
+            }
+            wrappers.add(jsw);
+        }
+
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            pool.invoke(new CompileTask(wrappers, 0, wrappers.size()));
+        } finally {
+            pool.shutdown();
+        }
+
+        if (log.isInfoEnabled()) {
+            log.info(Localizer.getMessage("jsp.message.precompile",
+                    String.valueOf(wrappers.size()),
+                    String.valueOf(System.currentTimeMillis() - t1)));
+        }
+    }
+
+
     // -------------------------------------------------------- Private Methods
 
 
+    /**
+     * Add the JSP pages found under the specified path of the web
+     * application.
+     */
+    private void findJspPages(String path, List<String> jspUris) {
+        Set paths = context.getResourcePaths(path);
+        if (paths == null) {
+            return;
+        }
+        Iterator it = paths.iterator();
+        while (it.hasNext()) {
+            String resourcePath = (String) it.next();
+            if (resourcePath.endsWith("/")) {
+                if (!resourcePath.equals("/META-INF/")
+                        && !resourcePath.equals("/WEB-INF/tags/")) {
+                    findJspPages(resourcePath, jspUris);
+                }
+            } else if (resourcePath.endsWith(".jsp")
+                    || resourcePath.endsWith(".jspx")) {
+                jspUris.add(resourcePath);
+            } else {
+                try {
+                    if (options.getJspConfig().isJspPage(resourcePath)) {
+                        jspUris.add(resourcePath);
+                    }
+                } catch (JasperException e) {
+                    // Not a JSP page
+                }
+            }
+        }
+    }
+
+
     /**
      * Method used to initialize classpath for compiles.
      */
@@ -441,4 +621,59 @@ public final class JspRuntimeContext {
     }
 
 
+    // ---------------------------------------------------------- Inner Classes
+
+
+    /**
+     * Compilation of a range of JSP pages, which is split in two halves
+     * compiled in parallel until it contains only one page.
+     */
+    private final class CompileTask extends RecursiveAction {
+
+        private final List<JspServletWrapper> wrappers;
+        private final int start;
+        private final int end;
+
+        CompileTask(List<JspServletWrapper> wrappers, int start, int end) {
+            this.wrappers = wrappers;
+            this.start = start;
+            this.end = end;
+        }
+
+        protected void compute() {
+            if (end - start > 1) {
+                int middle = (start + end) >>> 1;
+                invokeAll(new CompileTask(wrappers, start, middle),
+                        new CompileTask(wrappers, middle, end));
+            } else if (end > start) {
+                compile(wrappers.get(start));
+            }
+        }
+
+        private void compile(JspServletWrapper jsw) {
+            // Compile with the class loader of the web application, as
+            // the requests do
+            Thread thread = Thread.currentThread();
+            ClassLoader loader = thread.getContextClassLoader();
+            thread.setContextClassLoader(parentClassLoader);
+            JspCompilationContext ctxt = jsw.getJspEngineContext();
+            try {
+                // JspServletWrapper also synchronizes on this when
+                // it detects it has to do a compile
+                synchronized (jsw) {
+                    ctxt.compile();
+                }
+            } catch (FileNotFoundException ex) {
+                ctxt.incrementRemoved();
+            } catch (Throwable t) {
+                log.warn(Localizer.getMessage("jsp.error.precompile",
+                        ctxt.getJspFile()), t);
+            } finally {
+                thread.setContextClassLoader(loader);
+            }
+        }
+
+    }
+
+
 }
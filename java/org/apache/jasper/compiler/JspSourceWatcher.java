@@ -0,0 +1,273 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jasper.compiler;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletContext;
+
+import org.apache.jasper.JspCompilationContext;
+import org.apache.jasper.servlet.JspServletWrapper;
+import org.jboss.logging.Logger;
+
+/**
+ * Background thread which watches the directories of the sources of the
+ * loaded JSP pages, so that the pages are compiled again as soon as one of
+ * their sources changes, rather than checking the modification times of
+ * their sources when they are requested.
+ * <p>
+ * The sources of a page are the page itself and its dependants, as
+ * returned by <code>JspSourceDependent.getDependants</code>. Dependants
+ * which are not files of the web application, such as the resources of
+ * JARs, are not watched. The changes which occur together are processed
+ * as a batch, and each affected page is compiled once, if it is out of
+ * date.
+ */
+public final class JspSourceWatcher implements Runnable {
+
+    // Logger
+    private Logger log = Logger.getLogger(JspSourceWatcher.class);
+
+    /**
+     * Time during which further changes are collected in the same batch,
+     * in milliseconds.
+     */
+    protected static final long BATCH_DELAY =
+        Long.getLong("org.apache.jasper.compiler.JspSourceWatcher.BATCH_DELAY", 100L).longValue();
+
+    // ----------------------------------------------------------- Constructors
+
+    /**
+     * Create a watcher for the JSP pages of a web application.
+     *
+     * @param context ServletContext for web application
+     * @param rctxt Runtime context which holds the wrappers of the pages
+     * @exception IOException if the watch service cannot be created
+     */
+    public JspSourceWatcher(ServletContext context, JspRuntimeContext rctxt)
+        throws IOException {
+        this.context = context;
+        this.rctxt = rctxt;
+        this.watchService = FileSystems.getDefault().newWatchService();
+    }
+
+    // ----------------------------------------------------- Instance Variables
+
+    private ServletContext context;
+    private JspRuntimeContext rctxt;
+    private WatchService watchService;
+    private Thread thread = null;
+
+    /**
+     * Watched directories.
+     */
+    private Set<Path> directories =
+        Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+
+    /**
+     * Maps the source files to the URIs of the JSP pages which depend on
+     * them.
+     */
+    private ConcurrentHashMap<Path, Set<String>> pages =
+        new ConcurrentHashMap<Path, Set<String>>();
+
+    // ------------------------------------------------------ Public Methods
+
+    /**
+     * Start the background thread.
+     */
+    public void start() {
+        thread = new Thread(this, "JspSourceWatcher[" + context.getContextPath() + "]");
+        thread.setDaemon(true);
+        thread.setContextClassLoader(rctxt.getParentClassLoader());
+        thread.start();
+    }
+
+    /**
+     * Stop the background thread.
+     */
+    public void stop() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    /**
+     * Watch the sources of a JSP page which has been loaded.
+     *
+     * @param jspUri JSP URI
+     * @param dependants Dependants of the page, as returned by the page
+     */
+    public void watch(String jspUri, List dependants) {
+        watch(jspUri, jspUri);
+        if (dependants != null) {
+            Iterator it = dependants.iterator();
+            while (it.hasNext()) {
+                watch(jspUri, (String) it.next());
+            }
+        }
+    }
+
+    /**
+     * Process the changes of the watched directories, until the watcher is
+     * stopped.
+     */
+    public void run() {
+        try {
+            while (true) {
+                Set<String> jspUris = new HashSet<String>();
+                WatchKey key = watchService.take();
+                while (key != null) {
+                    processEvents(key, jspUris);
+                    key = watchService.poll(BATCH_DELAY, TimeUnit.MILLISECONDS);
+                }
+                compile(jspUris);
+            }
+        } catch (ClosedWatchServiceException e) {
+            // Stopped
+        } catch (InterruptedException e) {
+            // Stopped
+        }
+    }
+
+    // -------------------------------------------------------- Private Methods
+
+    /**
+     * Watch the directory of the given source of a JSP page.
+     */
+    private void watch(String jspUri, String path) {
+        if (!path.startsWith("/")) {
+            // Resource of a JAR
+            return;
+        }
+        String realPath = context.getRealPath(path);
+        if (realPath == null) {
+            return;
+        }
+        Path file = Paths.get(realPath).toAbsolutePath();
+        Path directory = file.getParent();
+        if (directory == null) {
+            return;
+        }
+        if (!directories.contains(directory)) {
+            synchronized (directories) {
+                if (!directories.contains(directory)) {
+                    try {
+                        directory.register(watchService,
+                                StandardWatchEventKinds.ENTRY_CREATE,
+                                StandardWatchEventKinds.ENTRY_MODIFY,
+                                StandardWatchEventKinds.ENTRY_DELETE);
+                    } catch (IOException e) {
+                        log.warn("Failed to watch " + directory, e);
+                        return;
+                    } catch (ClosedWatchServiceException e) {
+                        return;
+                    }
+                    directories.add(directory);
+                }
+            }
+        }
+        Set<String> jspUris = pages.get(file);
+        if (jspUris == null) {
+            jspUris = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            Set<String> previous = pages.putIfAbsent(file, jspUris);
+            if (previous != null) {
+                jspUris = previous;
+            }
+        }
+        jspUris.add(jspUri);
+    }
+
+    /**
+     * Add the URIs of the pages affected by the events of the given key.
+     */
+    private void processEvents(WatchKey key, Set<String> jspUris) {
+        Path directory = (Path) key.watchable();
+        Iterator<WatchEvent<?>> events = key.pollEvents().iterator();
+        while (events.hasNext()) {
+            WatchEvent<?> event = events.next();
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // Some events are lost, so check all the pages
+                Iterator<Set<String>> all = pages.values().iterator();
+                while (all.hasNext()) {
+                    jspUris.addAll(all.next());
+                }
+                continue;
+            }
+            Set<String> affected = pages.get(directory.resolve((Path) event.context()));
+            if (affected != null) {
+                jspUris.addAll(affected);
+            }
+        }
+        if (!key.reset()) {
+            directories.remove(directory);
+        }
+    }
+
+    /**
+     * Compile the specified pages, if they are out of date.
+     */
+    private void compile(Set<String> jspUris) {
+        Iterator<String> it = jspUris.iterator();
+        while (it.hasNext()) {
+            String jspUri = it.next();
+            JspServletWrapper jsw = rctxt.getWrapper(jspUri);
+            if (jsw == null) {
+                continue;
+            }
+            JspCompilationContext ctxt = jsw.getJspEngineContext();
+            // JspServletWrapper also synchronizes on this when
+            // it detects it has to do a reload
+            synchronized (jsw) {
+                try {
+                    // Bypass the modification test interval
+                    jsw.setLastModificationTest(-1);
+                    ctxt.compile();
+                } catch (FileNotFoundException ex) {
+                    ctxt.incrementRemoved();
+                } catch (Throwable t) {
+                    jsw.getServletContext().log("Background compile failed",
+                            t);
+                }
+            }
+        }
+    }
+
+}
@@ -2327,19 +2327,19 @@ abstract class Node implements TagConstants {
      */
     public static class Nodes {
 
-        private List list;
+        private List<Node> list;
 
         private Node.Root root; // null if this is not a page
 
         private boolean generatedInBuffer;
 
         public Nodes() {
-            list = new Vector();
+            list = new Vector<Node>();
         }
 
         public Nodes(Node.Root root) {
             this.root = root;
-            list = new Vector();
+            list = new Vector<Node>();
             list.add(root);
         }
 
@@ -2364,6 +2364,18 @@ abstract class Node implements TagConstants {
             list.remove(n);
         }
 
+        /**
+         * Replaces the given node in the list.
+         * 
+         * @param n
+         *            The node to be replaced
+         * @param replacement
+         *            The node to put in its place
+         */
+        public void replace(Node n, Node replacement) {
+            list.set(list.indexOf(n), replacement);
+        }
+
         /**
          * Visit the nodes in the list with the supplied visitor
          * 
@@ -2371,9 +2383,9 @@ abstract class Node implements TagConstants {
          *            The visitor used
          */
         public void visit(Visitor v) throws JasperException {
-            Iterator iter = list.iterator();
+            Iterator<Node> iter = list.iterator();
             while (iter.hasNext()) {
-                Node n = (Node) iter.next();
+                Node n = iter.next();
                 n.accept(v);
             }
         }
@@ -2385,7 +2397,7 @@ abstract class Node implements TagConstants {
         public Node getNode(int index) {
             Node n = null;
             try {
-                n = (Node) list.get(index);
+                n = list.get(index);
             } catch (ArrayIndexOutOfBoundsException e) {
             }
             return n;
@@ -376,25 +376,10 @@ class Parser implements TagConstants {
                             prefix, uri, uriPrev);
                 }
                 if (pageInfo.getTaglib(uri) == null) {
-                    TagLibraryInfoImpl impl = null;
-                    if (ctxt.getOptions().isCaching()) {
-                        impl = (TagLibraryInfoImpl) ctxt.getOptions()
-                                .getCache().get(uri);
-                    }
-                    if (impl == null) {
-                        String[] location = ctxt.getTldLocation(uri);
-                        impl = new TagLibraryInfoImpl(ctxt, parserController, pageInfo,
-                                prefix, uri, location, err);
-                        if (ctxt.getOptions().isCaching()) {
-                            ctxt.getOptions().getCache().put(uri, impl);
-                        }
-                    } else {
-                        // Current compilation context needs location of cached
-                        // tag files
-                        for (TagFileInfo info : impl.getTagFiles()) {
-                            ctxt.setTagFileJarUrl(info.getPath(), ctxt.getTagFileJarUrl());
-                        }
-                    }
+                    String[] location = ctxt.getTldLocation(uri);
+                    TagLibraryInfoImpl impl = TagLibraryInfoImpl.getTagLibraryInfo(
+                            ctxt, parserController, pageInfo, prefix, uri,
+                            location, err);
                     pageInfo.addTaglib(uri, impl);
                 }
                 pageInfo.addPrefixMapping(prefix, uri);
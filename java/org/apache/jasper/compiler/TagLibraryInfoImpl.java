@@ -48,11 +48,14 @@ package org.apache.jasper.compiler;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.net.JarURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 
 import javax.servlet.jsp.tagext.FunctionInfo;
@@ -102,6 +105,25 @@ class TagLibraryInfoImpl extends TagLibraryInfo implements TagConstants {
 
     private ParserController parserController;
 
+    /**
+     * Tag library of the container from which this tag library is created.
+     */
+    private org.apache.catalina.deploy.jsp.TagLibraryInfo tagLibraryInfo;
+
+    private URL jarFileUrl;
+
+    /**
+     * Modification times of the sources of the tag library, which are the
+     * TLD or the JAR containing it, and the tag files of the web application.
+     * The sources are only recorded when the tag libraries are cached.
+     */
+    private HashMap<URL, Long> sources;
+
+    /**
+     * Time at which the sources were last checked.
+     */
+    private volatile long lastCheck;
+
     private final void print(String name, String value, PrintWriter w) {
         if (value != null) {
             w.print(name + " = {\n\t");
@@ -145,6 +167,10 @@ class TagLibraryInfoImpl extends TagLibraryInfo implements TagConstants {
         this.parserController = pc;
         this.pi = pi;
         this.err = err;
+        if (ctxt.getOptions().isCaching()) {
+            sources = new HashMap<URL, Long>();
+            lastCheck = System.currentTimeMillis();
+        }
         
         if (location == null) {
             // The URI points to the TLD itself or to a JAR file in which the
@@ -155,7 +181,6 @@ class TagLibraryInfoImpl extends TagLibraryInfo implements TagConstants {
             }
         }
 
-        URL jarFileUrl = null;
         if (location == null) {
             err.jspError("jsp.error.file.not.found", uriIn);
         }
@@ -164,13 +189,20 @@ class TagLibraryInfoImpl extends TagLibraryInfo implements TagConstants {
                 URL jarUrl = ctxt.getServletContext().getResource(location[0]);
                 if (jarUrl != null) {
                     jarFileUrl = new URL("jar:" + jarUrl + "!/");
+                    addSource(jarUrl);
                 }
             } catch (MalformedURLException ex) {
                 err.jspError("jsp.error.file.not.found", uriIn);
             }
+        } else if (location[0] != null && sources != null) {
+            try {
+                addSource(ctxt.getResource(location[0]));
+            } catch (MalformedURLException ex) {
+                // The TLD is not checked
+            }
         }
         
-        org.apache.catalina.deploy.jsp.TagLibraryInfo tagLibraryInfo = 
+        tagLibraryInfo = 
             ((HashMap<String, org.apache.catalina.deploy.jsp.TagLibraryInfo>) 
             ctxt.getServletContext().getAttribute(Globals.JSP_TAG_LIBRARIES)).get(uri);
         if (tagLibraryInfo == null) {
@@ -223,6 +255,125 @@ class TagLibraryInfoImpl extends TagLibraryInfo implements TagConstants {
         this.functions = functionInfos.values().toArray(new FunctionInfo[0]);
     }
 
+    /**
+     * Create the tag library of a page from a cached tag library. The tags,
+     * tag files and functions, which are not modified once created, are
+     * shared with the cached tag library, while the validator is created
+     * again, as validators may keep some state while validating a page.
+     */
+    protected TagLibraryInfoImpl(JspCompilationContext ctxt, PageInfo pi,
+            String prefix, TagLibraryInfoImpl cached, ErrorDispatcher err)
+            throws JasperException {
+        super(prefix, cached.getURI());
+
+        this.ctxt = ctxt;
+        this.pi = pi;
+        this.err = err;
+        this.tagLibraryInfo = cached.tagLibraryInfo;
+        this.jarFileUrl = cached.jarFileUrl;
+
+        this.jspversion = cached.jspversion;
+        this.tlibversion = cached.tlibversion;
+        this.shortname = cached.shortname;
+        this.urn = cached.urn;
+        this.info = cached.info;
+        if (tagLibraryInfo.getValidator() != null) {
+            this.tagLibraryValidator = createValidator(tagLibraryInfo);
+        }
+        this.tags = cached.tags;
+        this.tagFiles = cached.tagFiles;
+        this.functions = cached.functions;
+
+        // The compilation context needs the location of the tag files
+        for (int i = 0; i < tagFiles.length; i++) {
+            if (tagFiles[i].getPath().startsWith("/META-INF/tags")) {
+                ctxt.setTagFileJarUrl(tagFiles[i].getPath(), jarFileUrl);
+            }
+        }
+    }
+
+    /**
+     * Return the tag library for the given URI. When caching is enabled, the
+     * tag library is created from the tag library of the cache of the web
+     * application, which is parsed again when its sources have been modified.
+     * The cache may be used by several compilations at the same time.
+     */
+    public static TagLibraryInfoImpl getTagLibraryInfo(
+            JspCompilationContext ctxt, ParserController pc, PageInfo pi,
+            String prefix, String uri, String[] location, ErrorDispatcher err)
+            throws JasperException {
+        if (!ctxt.getOptions().isCaching()) {
+            return new TagLibraryInfoImpl(ctxt, pc, pi, prefix, uri, location,
+                    err);
+        }
+        Map cache = ctxt.getOptions().getCache();
+        TagLibraryInfoImpl cached = (TagLibraryInfoImpl) cache.get(uri);
+        if (cached == null || cached.isOutDated(ctxt)) {
+            cached = new TagLibraryInfoImpl(ctxt, pc, null, prefix, uri,
+                    location, err);
+            // The cached tag library does not refer to the compilation
+            cached.ctxt = null;
+            cached.parserController = null;
+            cached.err = null;
+            cache.put(uri, cached);
+        }
+        return new TagLibraryInfoImpl(ctxt, pi, prefix, cached, err);
+    }
+
+    /**
+     * Have the sources of this cached tag library been modified? The sources
+     * are checked at most once per modification test interval.
+     */
+    protected boolean isOutDated(JspCompilationContext ctxt) {
+        long now = System.currentTimeMillis();
+        if (now < lastCheck
+                + ctxt.getOptions().getModificationTestInterval() * 1000L) {
+            return false;
+        }
+        lastCheck = now;
+
+        Map tagLibraries = (Map) ctxt.getServletContext().getAttribute(
+                Globals.JSP_TAG_LIBRARIES);
+        if (tagLibraries == null || tagLibraries.get(uri) != tagLibraryInfo) {
+            // The TLDs have been scanned again by the container
+            return true;
+        }
+        Iterator<Map.Entry<URL, Long>> it = sources.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<URL, Long> source = it.next();
+            if (getLastModified(source.getKey())
+                    != source.getValue().longValue()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Record the modification time of a source of this tag library.
+     */
+    private void addSource(URL url) {
+        if (sources != null && url != null) {
+            sources.put(url, Long.valueOf(getLastModified(url)));
+        }
+    }
+
+    private static long getLastModified(URL url) {
+        try {
+            URLConnection uc = url.openConnection();
+            long lastModified;
+            if (uc instanceof JarURLConnection) {
+                lastModified = ((JarURLConnection) uc).getJarEntry().getTime();
+            } else {
+                lastModified = uc.getLastModified();
+            }
+            uc.getInputStream().close();
+            return lastModified;
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
     /**
      * @param uri The uri of the TLD @param ctxt The compilation context
      * 
@@ -266,6 +417,10 @@ class TagLibraryInfoImpl extends TagLibraryInfo implements TagConstants {
     }
 
     public TagLibraryInfo[] getTagLibraryInfos() {
+        if (pi == null) {
+            // Cached tag library, which is not used by a page
+            return new TagLibraryInfo[] { this };
+        }
         Collection coll = pi.getTaglibs();
         return (TagLibraryInfo[]) coll.toArray(new TagLibraryInfo[0]);
     }
@@ -417,6 +572,12 @@ class TagLibraryInfoImpl extends TagLibraryInfo implements TagConstants {
             ctxt.setTagFileJarUrl(path, jarFileUrl);
         } else if (!path.startsWith("/WEB-INF/tags")) {
             err.jspError("jsp.error.tagfile.illegalPath", path);
+        } else if (sources != null) {
+            try {
+                addSource(ctxt.getResource(path));
+            } catch (MalformedURLException e) {
+                // The tag file is not checked
+            }
         }
         TagInfo tagInfo = TagFileProcessor.parseTagFileDirectives(
                 parserController, name, path, jarFileUrl, this);
@@ -264,7 +264,7 @@ public class BodyContentImpl extends BodyContent {
             writer.close();
         } 
         else {
-            buffer = null;
+            buffer.recycle();
             closed = true;
         }
     }
@@ -300,6 +300,14 @@ public class BodyContentImpl extends BodyContent {
         return (this.writer == null) ? buffer.size() + buffer.getCapacity() : 0;
     }
 
+    /**
+     * Release the buffer of this body content to the pool, when the page
+     * context which holds it is released.
+     */
+    void recycle() {
+        buffer.recycle();
+    }
+
     void setWriter(Writer writer) {
         this.writer = writer;
         closed = false;
@@ -0,0 +1,290 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jasper.runtime;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Pool of the character arrays used as buffers by the Jasper writers. The
+ * arrays are allocated by size classes, which are the powers of two between
+ * a minimum and a maximum size, and larger arrays are not pooled.
+ * <p>
+ * Each size class retains at most as many arrays as were in use at the same
+ * time since the pool was last trimmed, so that the buffers needed by one
+ * large page are not kept once the load which needed them is gone. The
+ * background processing of the JSP servlet trims the pool periodically.
+ */
+public final class CharArrayPool {
+
+    /**
+     * Are the character arrays of the writers pooled?
+     */
+    public static final boolean USE_POOL =
+        Boolean.valueOf(System.getProperty("org.apache.jasper.runtime.CharArrayPool.USE_POOL", "true")).booleanValue();
+
+    /**
+     * Smallest size class, in characters.
+     */
+    protected static final int MIN_SIZE =
+        Integer.getInteger("org.apache.jasper.runtime.CharArrayPool.MIN_SIZE", 512).intValue();
+
+    /**
+     * Largest size class, in characters.
+     */
+    protected static final int MAX_SIZE =
+        Integer.getInteger("org.apache.jasper.runtime.CharArrayPool.MAX_SIZE", 65536).intValue();
+
+    /**
+     * Maximum number of arrays retained by each size class.
+     */
+    protected static final int MAX_RETAINED =
+        Integer.getInteger("org.apache.jasper.runtime.CharArrayPool.MAX_RETAINED", 256).intValue();
+
+    /**
+     * Minimum time between two trims of the pool, in milliseconds.
+     */
+    protected static final long TRIM_INTERVAL =
+        Long.getLong("org.apache.jasper.runtime.CharArrayPool.TRIM_INTERVAL", 60000L).longValue();
+
+    private static final CharArrayPool instance =
+        new CharArrayPool(MIN_SIZE, MAX_SIZE, MAX_RETAINED);
+
+    // ----------------------------------------------------------- Constructors
+
+    /**
+     * Create a pool for the sizes between the specified bounds, which are
+     * rounded up to powers of two.
+     *
+     * @param minSize Smallest size class
+     * @param maxSize Largest size class
+     * @param maxRetained Maximum number of arrays retained by a size class
+     */
+    public CharArrayPool(int minSize, int maxSize, int maxRetained) {
+        minShift = shift(Math.max(minSize, 1));
+        int maxShift = Math.max(shift(maxSize), minShift);
+        this.maxSize = 1 << maxShift;
+        classes = new SizeClass[maxShift - minShift + 1];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new SizeClass(1 << (minShift + i), maxRetained);
+        }
+    }
+
+    // ----------------------------------------------------- Instance Variables
+
+    private final int minShift;
+    private final int maxSize;
+    private final SizeClass[] classes;
+    private final AtomicLong lastTrim = new AtomicLong(System.currentTimeMillis());
+
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+    private final AtomicLong oversized = new AtomicLong();
+
+    // --------------------------------------------------------- Public Methods
+
+    /**
+     * Return the pool used by the Jasper writers.
+     */
+    public static CharArrayPool getInstance() {
+        return instance;
+    }
+
+    /**
+     * Return an array of at least the specified size, which should be
+     * released once it is no longer used.
+     *
+     * @param size Minimum size of the array
+     */
+    public char[] allocate(int size) {
+        if (size > maxSize) {
+            oversized.incrementAndGet();
+            return new char[size];
+        }
+        SizeClass sizeClass = classes[index(size)];
+        char[] buf = sizeClass.allocate();
+        if (buf == null) {
+            allocated.incrementAndGet();
+            buf = new char[sizeClass.size];
+        } else {
+            reused.incrementAndGet();
+        }
+        return buf;
+    }
+
+    /**
+     * Release an array, which must not be used afterwards. Arrays which have
+     * not been allocated by the pool are ignored.
+     *
+     * @param buf Array to release
+     */
+    public void release(char[] buf) {
+        int length = buf.length;
+        if (length > maxSize || length < (1 << minShift)
+                || (length & (length - 1)) != 0) {
+            return;
+        }
+        if (!classes[index(length)].release(buf)) {
+            discarded.incrementAndGet();
+        }
+    }
+
+    /**
+     * Trim the pool, if it has not been trimmed recently.
+     */
+    public void backgroundProcess() {
+        long now = System.currentTimeMillis();
+        long last = lastTrim.get();
+        if (now - last >= TRIM_INTERVAL && lastTrim.compareAndSet(last, now)) {
+            trim();
+        }
+    }
+
+    /**
+     * Drop the arrays retained by each size class in excess of the highest
+     * number of its arrays used at the same time since the last trim.
+     */
+    public void trim() {
+        for (int i = 0; i < classes.length; i++) {
+            classes[i].trim();
+        }
+    }
+
+    /**
+     * Return the number of arrays which have been allocated by the pool.
+     */
+    public long getAllocated() {
+        return allocated.get();
+    }
+
+    /**
+     * Return the number of arrays which have been reused.
+     */
+    public long getReused() {
+        return reused.get();
+    }
+
+    /**
+     * Return the number of released arrays which have not been retained.
+     */
+    public long getDiscarded() {
+        return discarded.get();
+    }
+
+    /**
+     * Return the number of arrays which have been allocated without pooling,
+     * because they are larger than the largest size class.
+     */
+    public long getOversized() {
+        return oversized.get();
+    }
+
+    /**
+     * Return the number of characters of the arrays currently retained.
+     */
+    public long getRetainedSize() {
+        long size = 0;
+        for (int i = 0; i < classes.length; i++) {
+            size += (long) classes[i].size * classes[i].getRetained();
+        }
+        return size;
+    }
+
+    // -------------------------------------------------------- Private Methods
+
+    /**
+     * Return the smallest shift for which <code>1 << shift</code> is at
+     * least the specified size.
+     */
+    private static int shift(int size) {
+        return 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+
+    private int index(int size) {
+        return Math.max(shift(size) - minShift, 0);
+    }
+
+    // ---------------------------------------------------------- Inner Classes
+
+    /**
+     * Arrays of one size, with the number of arrays in use.
+     */
+    private static final class SizeClass {
+
+        final int size;
+        private final AtomicReferenceArray<char[]> slots;
+        private final AtomicInteger inUse = new AtomicInteger();
+        private final AtomicInteger highWater = new AtomicInteger();
+        private volatile int limit;
+
+        SizeClass(int size, int maxRetained) {
+            this.size = size;
+            this.slots = new AtomicReferenceArray<char[]>(maxRetained);
+            this.limit = maxRetained;
+        }
+
+        char[] allocate() {
+            int used = inUse.incrementAndGet();
+            int max = highWater.get();
+            while (used > max && !highWater.compareAndSet(max, used)) {
+                max = highWater.get();
+            }
+            for (int i = 0; i < slots.length(); i++) {
+                char[] buf = slots.get(i);
+                if (buf != null && slots.compareAndSet(i, buf, null)) {
+                    return buf;
+                }
+            }
+            return null;
+        }
+
+        boolean release(char[] buf) {
+            inUse.decrementAndGet();
+            int limit = this.limit;
+            for (int i = 0; i < limit; i++) {
+                if (slots.get(i) == null && slots.compareAndSet(i, null, buf)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void trim() {
+            int limit = Math.min(highWater.getAndSet(Math.max(inUse.get(), 0)),
+                    slots.length());
+            this.limit = limit;
+            for (int i = limit; i < slots.length(); i++) {
+                slots.set(i, null);
+            }
+        }
+
+        int getRetained() {
+            int retained = 0;
+            for (int i = 0; i < slots.length(); i++) {
+                if (slots.get(i) != null) {
+                    retained++;
+                }
+            }
+            return retained;
+        }
+
+    }
+
+}
@@ -30,6 +30,7 @@ import java.util.LinkedList;
  */
 public class CharBuffer {
     private static final int DEFAULT_INITIAL_CAPACITY = 512;
+    private static final char[] EMPTY = new char[0];
 
     /**
      * List of all fully populated character arrays.
@@ -78,7 +79,7 @@ public class CharBuffer {
             minimumGrowth = initialCapacity;
         }
         this.bufList = new LinkedList();
-        this.currentBuf = new char[initialCapacity];
+        this.currentBuf = allocate(initialCapacity);
         this.index = 0;
         this.minimumGrowth = minimumGrowth;
         this.listSize = 0;
@@ -249,11 +250,29 @@ public class CharBuffer {
      *
      */
     public void clear() {
+        if (CharArrayPool.USE_POOL) {
+            for (Iterator iter = this.bufList.iterator(); iter.hasNext();) {
+                CharArrayPool.getInstance().release((char[]) iter.next());
+            }
+        }
         this.bufList.clear();
         this.index = 0;
         this.listSize = 0;
     }
 
+    /**
+     * Clear this buffer and release all its character arrays to the pool.
+     * The buffer remains usable, and allocates a new array when it is
+     * written to again.
+     */
+    public void recycle() {
+        clear();
+        if (CharArrayPool.USE_POOL && currentBuf.length > 0) {
+            CharArrayPool.getInstance().release(currentBuf);
+            currentBuf = EMPTY;
+        }
+    }
+
     /**
      * Write the content of this buffer out to the supplied Writer object.
      * This will not flush the writer before returning.
@@ -280,9 +299,27 @@ public class CharBuffer {
         if (requiredChars < this.minimumGrowth) {
             requiredChars = this.minimumGrowth;
         }
-        this.bufList.add(currentBuf);
-        this.listSize += currentBuf.length;
-        currentBuf = new char[requiredChars];
+        if (CharArrayPool.USE_POOL) {
+            // Grow geometrically, as the arrays are reused, so that large
+            // bodies do not need many small arrays
+            int growth = Math.min(currentBuf.length * 2, CharArrayPool.MAX_SIZE);
+            if (requiredChars < growth) {
+                requiredChars = growth;
+            }
+        }
+        if (currentBuf.length > 0) {
+            this.bufList.add(currentBuf);
+            this.listSize += currentBuf.length;
+        }
+        currentBuf = allocate(requiredChars);
         index = 0;
     }
+
+    private static char[] allocate(int size) {
+        if (CharArrayPool.USE_POOL) {
+            return CharArrayPool.getInstance().allocate(size);
+        } else {
+            return new char[size];
+        }
+    }
 }
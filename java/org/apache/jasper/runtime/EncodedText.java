@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jasper.runtime;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+
+import javax.servlet.jsp.JspWriter;
+
+/**
+ * Template text of a generated servlet, together with its encoding using
+ * the character encoding of the page, computed once when the servlet class
+ * is initialized. When the text is not buffered by the <code>JspWriter</code>,
+ * the bytes are written to the response as is, if its character encoding
+ * is the same.
+ */
+public final class EncodedText {
+
+    private final String text;
+    private final String encoding;
+    private final byte[] bytes;
+
+    /**
+     * Encode the specified text.
+     * 
+     * @param text Template text
+     * @param encoding Character encoding of the page
+     */
+    public EncodedText(String text, String encoding) {
+        this.text = text;
+        this.encoding = encoding;
+        this.bytes = encode(text, encoding);
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public String getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * Return the encoded text, or <code>null</code> if the text cannot be
+     * encoded using the character encoding of the page.
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Write the text to the specified writer.
+     * 
+     * @param out JSP writer
+     */
+    public void write(JspWriter out) throws IOException {
+        if (bytes != null && out instanceof JspWriterImpl) {
+            ((JspWriterImpl) out).write(this);
+        } else {
+            out.write(text);
+        }
+    }
+
+    private static byte[] encode(String text, String encoding) {
+        try {
+            CharsetEncoder encoder = Charset.forName(encoding).newEncoder();
+            if (!encoder.canEncode(text)) {
+                // Let the response converter handle the characters
+                return null;
+            }
+            return text.getBytes(encoding);
+        } catch (Exception e) {
+            // Unknown or unsupported encoding
+            return null;
+        }
+    }
+
+}
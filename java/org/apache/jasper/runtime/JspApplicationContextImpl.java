@@ -38,6 +38,7 @@ import javax.servlet.jsp.JspContext;
 import javax.servlet.jsp.el.ImplicitObjectELResolver;
 import javax.servlet.jsp.el.ScopedAttributeELResolver;
 
+import org.apache.el.lang.ELCompiler;
 import org.apache.jasper.Constants;
 import org.apache.jasper.el.ELContextImpl;
 
@@ -61,6 +62,8 @@ public class JspApplicationContextImpl implements JspApplicationContext {
 
 	private ELResolver resolver;
 
+	private final ELCompiler.Cache compiled = new ELCompiler.Cache();
+
 	public JspApplicationContextImpl() {
 
 	}
@@ -104,6 +107,10 @@ public class JspApplicationContextImpl implements JspApplicationContext {
             ctx = new ELContextImpl(r);
         }
 		ctx.putContext(JspContext.class, context);
+		if (this.resolvers.isEmpty()) {
+			// Only the standard resolvers resolve beans
+			ELCompiler.setStandardResolver(ctx, this.compiled);
+		}
 
 		// alert all ELContextListeners
 		ELContextEvent event = new ELContextEvent(ctx);
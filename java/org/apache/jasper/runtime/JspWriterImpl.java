@@ -28,6 +28,7 @@ import javax.servlet.jsp.JspWriter;
 import org.apache.jasper.Constants;
 import org.apache.jasper.compiler.Localizer;
 import org.apache.jasper.security.SecurityUtil;
+import org.apache.tomcat.EncodedWriter;
 
 /**
  * Write text to a character-output stream, buffering characters so as
@@ -80,14 +81,17 @@ public class JspWriterImpl extends JspWriter {
         if (sz < 0)
             throw new IllegalArgumentException("Buffer size <= 0");
         this.response = response;
-        cb = sz == 0 ? null : new char[sz];
+        cb = sz == 0 ? null : allocate(sz);
         nextChar = 0;
     }
     
     void init( ServletResponse response, int sz, boolean autoFlush ) {
         this.response= response;
-        if( sz > 0 && ( cb == null || sz > cb.length ) )
-            cb=new char[sz];
+        if( sz > 0 && ( cb == null || sz > cb.length ) ) {
+            if (cb != null && CharArrayPool.USE_POOL)
+                CharArrayPool.getInstance().release(cb);
+            cb = allocate(sz);
+        }
         nextChar = 0;
         this.autoFlush=autoFlush;
         this.bufferSize=sz;
@@ -101,6 +105,15 @@ public class JspWriterImpl extends JspWriter {
         out = null;
         nextChar = 0;
         response = null;
+        if (cb != null && CharArrayPool.USE_POOL) {
+            CharArrayPool.getInstance().release(cb);
+            cb = null;
+        }
+    }
+
+    private static char[] allocate(int sz) {
+        return CharArrayPool.USE_POOL
+            ? CharArrayPool.getInstance().allocate(sz) : new char[sz];
     }
     
     /**
@@ -343,6 +356,37 @@ public class JspWriterImpl extends JspWriter {
         }
     }
     
+    /**
+     * Write template text. Like an array of characters, text which does not
+     * fit in the buffer is written directly to the underlying stream, and in
+     * that case the bytes of the text are used if the stream accepts them.
+     *
+     * @param  text  Encoded template text
+     */
+    void write(EncodedText text) throws IOException {
+        ensureOpen();
+        String s = text.getText();
+        if (bufferSize != 0 && s.length() < bufferSize) {
+            write(s, 0, s.length());
+            return;
+        }
+        if (bufferSize != 0) {
+            if (autoFlush)
+                flushBuffer();
+            else
+                bufferOverflow();
+        }
+        initOut();
+        if (out instanceof EncodedWriter) {
+            byte[] bytes = text.getBytes();
+            if (((EncodedWriter) out).writeEncoded(bytes, 0, bytes.length,
+                    text.getEncoding())) {
+                return;
+            }
+        }
+        out.write(s);
+    }
+    
     
     static String lineSeparator = System.getProperty("line.separator");
     
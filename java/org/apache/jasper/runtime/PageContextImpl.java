@@ -201,6 +201,9 @@ public class PageContextImpl extends PageContext {
 		    response = null;
 		    depth = -1;
 		    baseOut.recycle();
+		    for (int i = 0; i < outs.length; i++) {
+		        outs[i].recycle();
+		    }
 		    session = null;
 		    attributes.clear();
         }
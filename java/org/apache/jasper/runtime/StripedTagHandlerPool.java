@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jasper.runtime;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.jsp.JspException;
+import javax.servlet.jsp.tagext.Tag;
+
+import org.apache.jasper.Constants;
+
+/**
+ * Lock-free pool of tag handlers that can be reused, which can be used
+ * by setting the <code>tagpoolClassName</code> option to the name of this
+ * class.
+ * <p>
+ * The pool is divided in stripes, one per processor rounded up to a power
+ * of two, each holding up to <code>tagpoolMaxSize</code> handlers in an
+ * array of slots which are taken and filled using compare and set
+ * operations. A thread uses the stripe selected by its id, and takes a
+ * handler from the other stripes when its own is empty, so that the
+ * number of pooled handlers stays bounded regardless of the number of
+ * threads.
+ */
+public class StripedTagHandlerPool extends TagHandlerPool {
+
+    private int maxSize;
+
+    private int mask;
+
+    private AtomicReferenceArray<Tag>[] stripes;
+
+    /**
+     * Constructs a tag handler pool with the default capacity.
+     */
+    public StripedTagHandlerPool() {
+        super();
+    }
+
+    @SuppressWarnings("unchecked")
+    protected void init(ServletConfig config) {
+        instanceManager = InstanceManagerFactory.getInstanceManager(config);
+        maxSize = Constants.MAX_POOL_SIZE;
+        String maxSizeS = getOption(config, OPTION_MAXSIZE, null);
+        if (maxSizeS != null) {
+            try {
+                maxSize = Integer.parseInt(maxSizeS);
+            } catch (Exception e) {
+                maxSize = -1;
+            }
+            if (maxSize < 0) {
+                maxSize = Constants.MAX_POOL_SIZE;
+            }
+        }
+        int count = 1;
+        while (count < Runtime.getRuntime().availableProcessors()) {
+            count <<= 1;
+        }
+        mask = count - 1;
+        stripes = new AtomicReferenceArray[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new AtomicReferenceArray<Tag>(maxSize);
+        }
+    }
+
+    /**
+     * Gets the next available tag handler from this tag handler pool,
+     * instantiating one if this tag handler pool is empty.
+     *
+     * @param handlerClass Tag handler class
+     *
+     * @return Reused or newly instantiated tag handler
+     *
+     * @throws JspException if a tag handler cannot be instantiated
+     */
+    public Tag get(Class handlerClass) throws JspException {
+        int home = getStripe();
+        for (int i = 0; i <= mask; i++) {
+            AtomicReferenceArray<Tag> stripe = stripes[(home + i) & mask];
+            for (int j = maxSize - 1; j >= 0; j--) {
+                Tag handler = stripe.get(j);
+                if (handler != null && stripe.compareAndSet(j, handler, null)) {
+                    return handler;
+                }
+            }
+        }
+
+        try {
+            if (Constants.USE_INSTANCE_MANAGER_FOR_TAGS) {
+                return (Tag) instanceManager.newInstance(handlerClass);
+            } else {
+                Tag instance = (Tag) handlerClass.newInstance();
+                if (Constants.INJECT_TAGS) {
+                    instanceManager.newInstance(instance);
+                }
+                return instance;
+            }
+        } catch (Exception e) {
+            throw new JspException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Adds the given tag handler to the stripe of the current thread, unless
+     * it has already reached its capacity, in which case the tag handler's
+     * release() method is called.
+     *
+     * @param handler Tag handler to add to this tag handler pool
+     */
+    public void reuse(Tag handler) {
+        AtomicReferenceArray<Tag> stripe = stripes[getStripe()];
+        for (int j = 0; j < maxSize; j++) {
+            if (stripe.get(j) == null && stripe.compareAndSet(j, null, handler)) {
+                return;
+            }
+        }
+        handler.release();
+    }
+
+    /**
+     * Calls the release() method of all tag handlers in this tag handler pool.
+     */
+    public void release() {
+        for (int i = 0; i <= mask; i++) {
+            AtomicReferenceArray<Tag> stripe = stripes[i];
+            for (int j = 0; j < maxSize; j++) {
+                Tag handler = stripe.getAndSet(j, null);
+                if (handler == null) {
+                    continue;
+                }
+                try {
+                    handler.release();
+                } catch (Exception e) {
+                    // Ignore
+                }
+                if (Constants.INJECT_TAGS || Constants.USE_INSTANCE_MANAGER_FOR_TAGS) {
+                    try {
+                        instanceManager.destroyInstance(handler);
+                    } catch (Exception e) {
+                        // Ignore
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the stripe of the current thread.
+     */
+    private int getStripe() {
+        long id = Thread.currentThread().getId();
+        return (int) (id ^ (id >>> 16)) & mask;
+    }
+
+}
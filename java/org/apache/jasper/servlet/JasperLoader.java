@@ -137,6 +137,16 @@ public class JasperLoader extends URLClassLoader {
         return findClass(name);
     }
     
+    /**
+     * Return <code>true</code> if the class with the specified name has been
+     * loaded by this class loader.
+     *
+     * @param name Name of the class
+     */
+    public boolean isLoaded(String name) {
+        return findLoadedClass(name) != null;
+    }
+    
     /**
      * Delegate to parent
      * 
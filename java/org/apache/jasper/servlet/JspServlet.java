@@ -32,6 +32,7 @@ import org.apache.jasper.EmbeddedServletOptions;
 import org.apache.jasper.Options;
 import org.apache.jasper.compiler.JspRuntimeContext;
 import org.apache.jasper.compiler.Localizer;
+import org.apache.jasper.runtime.CharArrayPool;
 import org.apache.jasper.security.SecurityUtil;
 import org.apache.tomcat.PeriodicEventListener;
 import org.jboss.logging.Logger;
@@ -102,6 +103,9 @@ public class JspServlet extends HttpServlet implements PeriodicEventListener {
             }
         }
         rctxt = new JspRuntimeContext(context, options);
+        if (options.getPrecompile()) {
+            rctxt.precompile(config);
+        }
         
         if (log.isDebugEnabled()) {
             log.debug(Localizer.getMessage("jsp.message.scratch.dir.is",
@@ -274,6 +278,7 @@ public class JspServlet extends HttpServlet implements PeriodicEventListener {
 
     public void periodicEvent() {
         rctxt.checkCompile();
+        CharArrayPool.getInstance().backgroundProcess();
     }
 
     // -------------------------------------------------------- Private Methods
@@ -78,7 +78,7 @@ public class JspServletWrapper {
     private boolean reload = true;
     private boolean isTagFile;
     private int tripCount;
-    private JasperException compileException;
+    private volatile JasperException compileException;
     private long servletClassLastModifiedTime;
     private long lastModificationTest = 0L;
 
@@ -159,6 +159,13 @@ public class JspServletWrapper {
 
                     theServlet = servlet;
                     reload = false;
+
+                    if (servlet instanceof JspSourceDependent) {
+                        ctxt.getRuntimeContext().watch(jspUri, (java.util.List)
+                                ((JspSourceDependent) servlet).getDependants());
+                    } else {
+                        ctxt.getRuntimeContext().watch(jspUri, null);
+                    }
                 }
             }    
         }
@@ -302,15 +309,27 @@ public class JspServletWrapper {
             }
 
             /*
-             * (1) Compile
+             * (1) Compile, unless the sources are watched. A page which
+             * failed to compile is checked again until it compiles, as its
+             * dependencies are only watched once it has been loaded.
              */
-            if (options.getDevelopment() || firstTime ) {
+            boolean watching = ctxt.getRuntimeContext().isWatchingSources();
+            if ((options.getDevelopment() && !watching) || firstTime
+                    || (watching && compileException != null)) {
                 synchronized (this) {
+                    if (firstTime && watching) {
+                        // Watch the page even if it does not compile
+                        ctxt.getRuntimeContext().watch(jspUri, null);
+                    }
                     firstTime = false;
 
                     // The following sets reload to true, if necessary
                     ctxt.compile();
                 }
+                if (watching && compileException != null) {
+                    // Not modified since it failed to compile
+                    throw compileException;
+                }
             } else {
                 if (compileException != null) {
                     // Throw cached compilation exception
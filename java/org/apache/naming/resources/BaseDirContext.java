@@ -116,6 +116,25 @@ public abstract class BaseDirContext implements DirContext {
     protected int cacheObjectMaxSize = 256; // 256 K
 
 
+    /**
+     * Use change notifications rather than TTL revalidation, if supported.
+     */
+    protected boolean watched = false;
+
+
+    /**
+     * Revalidation interval of the cache entries when watching, as a
+     * fallback for the changes which are not notified.
+     */
+    protected int watchedTTL = 60000;
+
+
+    /**
+     * Listener notified of resource changes when watching.
+     */
+    protected ResourceChangeListener resourceChangeListener = null;
+
+
     // ------------------------------------------------------------- Properties
 
 
@@ -214,6 +233,63 @@ public abstract class BaseDirContext implements DirContext {
     }
 
 
+    /**
+     * Set watched.
+     */
+    public void setWatched(boolean watched) {
+        this.watched = watched;
+    }
+
+
+    /**
+     * Should changes be detected using notifications ?
+     */
+    public boolean isWatched() {
+        return watched;
+    }
+
+
+    /**
+     * Set the revalidation interval when watching.
+     */
+    public void setWatchedTTL(int watchedTTL) {
+        this.watchedTTL = watchedTTL;
+    }
+
+
+    /**
+     * Get the revalidation interval when watching.
+     */
+    public int getWatchedTTL() {
+        return watchedTTL;
+    }
+
+
+    /**
+     * Return the listener notified of resource changes.
+     */
+    public ResourceChangeListener getResourceChangeListener() {
+        return resourceChangeListener;
+    }
+
+
+    /**
+     * Set the listener notified of resource changes.
+     */
+    public void setResourceChangeListener(ResourceChangeListener resourceChangeListener) {
+        this.resourceChangeListener = resourceChangeListener;
+    }
+
+
+    /**
+     * Are changes currently being notified to the listener ? If not,
+     * cached resources must be revalidated periodically.
+     */
+    public boolean isWatching() {
+        return false;
+    }
+
+
     // --------------------------------------------------------- Public Methods
 
 
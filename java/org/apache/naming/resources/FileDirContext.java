@@ -23,10 +23,23 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.naming.NameAlreadyBoundException;
 import javax.naming.NameNotFoundException;
@@ -115,6 +128,40 @@ public class FileDirContext extends BaseDirContext {
     protected boolean allowLinking = false;
 
 
+    /**
+     * Types of the network filesystems, where changes made by other hosts
+     * are not notified.
+     */
+    protected static final String[] NETWORK_FILESYSTEMS = { "nfs", "nfs4", "cifs", "smbfs",
+        "smb2", "ncpfs", "afs", "9p", "fuse.sshfs", "davfs", "glusterfs", "fuse.glusterfs",
+        "ceph", "lustre", "gpfs" };
+
+
+    /**
+     * Watch service notifying changes in the document base, if watching.
+     */
+    protected WatchService watchService = null;
+
+
+    /**
+     * Watched directories.
+     */
+    protected Map<WatchKey, Path> watchedDirectories =
+        new ConcurrentHashMap<WatchKey, Path>();
+
+
+    /**
+     * Thread processing the change notifications.
+     */
+    protected Thread watchThread = null;
+
+
+    /**
+     * Are changes being notified ?
+     */
+    protected volatile boolean watching = false;
+
+
     // ------------------------------------------------------------- Properties
 
 
@@ -185,13 +232,34 @@ public class FileDirContext extends BaseDirContext {
     }
 
 
+    /**
+     * Are changes currently being notified to the listener ?
+     */
+    public boolean isWatching() {
+        return watching;
+    }
+
+
     // --------------------------------------------------------- Public Methods
 
 
+    /**
+     * Allocate resources for this directory context, and start watching
+     * the document base if needed.
+     */
+    public void allocate() {
+        super.allocate();
+        if (watched && (resourceChangeListener != null) && (base != null)) {
+            startWatching();
+        }
+    }
+
+
     /**
      * Release any resources allocated for this directory context.
      */
     public void release() {
+        stopWatching();
         super.release();
     }
 
@@ -763,6 +831,99 @@ public class FileDirContext extends BaseDirContext {
     // ------------------------------------------------------ Protected Methods
 
 
+    /**
+     * Register the document base and all its subdirectories with a new watch
+     * service, and start the thread processing notifications. If the
+     * filesystem does not support it, or is a network filesystem, cache
+     * entries will continue to be revalidated using the TTL.
+     */
+    protected void startWatching() {
+        if (watchService != null) {
+            return;
+        }
+        try {
+            String type = Files.getFileStore(base.toPath()).type();
+            if (Arrays.asList(NETWORK_FILESYSTEMS).contains(type)) {
+                log.warn(sm.getString("fileResources.watchRemote", absoluteBase, type));
+                return;
+            }
+            watchService = base.toPath().getFileSystem().newWatchService();
+            registerAll(base.toPath());
+        } catch (Exception e) {
+            log.warn(sm.getString("fileResources.watchUnsupported", absoluteBase), e);
+            closeWatchService();
+            return;
+        }
+        watching = true;
+        watchThread = new Thread(new WatchProcessor(), "FileDirContextWatcher[" + absoluteBase + "]");
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+
+
+    /**
+     * Stop processing notifications.
+     */
+    protected void stopWatching() {
+        watching = false;
+        closeWatchService();
+        if (watchThread != null) {
+            watchThread.interrupt();
+            try {
+                watchThread.join();
+            } catch (InterruptedException e) {
+                ;
+            }
+            watchThread = null;
+        }
+    }
+
+
+    protected void closeWatchService() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+            watchService = null;
+        }
+        watchedDirectories.clear();
+    }
+
+
+    /**
+     * Register the given directory and its subdirectories.
+     */
+    protected void registerAll(Path start)
+        throws IOException {
+        final WatchService watchService = this.watchService;
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+                throws IOException {
+                WatchKey key = dir.register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+                watchedDirectories.put(key, dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+
+    /**
+     * Return the context-relative name of the given path.
+     */
+    protected String name(Path path) {
+        String name = base.toPath().relativize(path).toString();
+        if (File.separatorChar != '/') {
+            name = name.replace(File.separatorChar, '/');
+        }
+        return "/" + name;
+    }
+
+
     protected static String normalize(String path) {
         return RequestUtil.normalize(path, File.separatorChar == '\\');
     }
@@ -1087,5 +1248,81 @@ public class FileDirContext extends BaseDirContext {
     }
 
 
-}
+    // ------------------------------------------------ WatchProcessor Inner Class
 
+
+    /**
+     * Thread processing the change notifications, and forwarding them to
+     * the listener. Watching stops, and the listener is notified that any
+     * resource may have changed, if an error occurs.
+     */
+    protected class WatchProcessor implements Runnable {
+
+        public void run() {
+            ResourceChangeListener listener = resourceChangeListener;
+            WatchService watchService = FileDirContext.this.watchService;
+            while (watching) {
+                WatchKey key = null;
+                try {
+                    key = watchService.take();
+                } catch (InterruptedException e) {
+                    continue;
+                } catch (ClosedWatchServiceException e) {
+                    break;
+                }
+                Path dir = watchedDirectories.get(key);
+                if (dir == null) {
+                    key.cancel();
+                    continue;
+                }
+                boolean all = false;
+                try {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        WatchEvent.Kind<?> kind = event.kind();
+                        if (kind == StandardWatchEventKinds.OVERFLOW) {
+                            all = true;
+                            continue;
+                        }
+                        Path child = dir.resolve((Path) event.context());
+                        if (kind == StandardWatchEventKinds.ENTRY_CREATE
+                                && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                            // Resources not found previously may now exist
+                            registerAll(child);
+                            all = true;
+                        } else if (kind == StandardWatchEventKinds.ENTRY_DELETE
+                                && watchedDirectories.containsValue(child)) {
+                            all = true;
+                        } else {
+                            listener.resourceChanged(name(child));
+                            if (kind != StandardWatchEventKinds.ENTRY_MODIFY) {
+                                // The attributes of the parent directory
+                                // have changed as well
+                                String parent = name(dir);
+                                listener.resourceChanged(parent);
+                                if (parent.equals("/")) {
+                                    listener.resourceChanged("");
+                                }
+                            }
+                        }
+                    }
+                } catch (Exception e) {
+                    if (watching) {
+                        log.warn(sm.getString("fileResources.watchFailed", absoluteBase), e);
+                        watching = false;
+                        closeWatchService();
+                    }
+                    all = true;
+                }
+                if (all) {
+                    listener.resourcesChanged();
+                }
+                if (!key.reset()) {
+                    watchedDirectories.remove(key);
+                }
+            }
+        }
+
+    }
+
+
+}
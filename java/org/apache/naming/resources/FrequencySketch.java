@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.naming.resources;
+
+
+/**
+ * Probabilistic estimate of the popularity of cache keys, used by the
+ * TinyLFU admission policy of the resource cache. This is a count-min
+ * sketch using four 4-bit counters per key, packed sixteen per long. All
+ * the counters are halved periodically, so that the history fades away
+ * and the estimate reflects recent accesses.
+ * <p>
+ * This class is not thread safe, callers must provide their own locking.
+ */
+public final class FrequencySketch {
+
+
+    // -------------------------------------------------------------- Constants
+
+
+    protected static final long[] SEED = new long[] {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+        0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+    protected static final long RESET_MASK = 0x7777777777777777L;
+    protected static final long ONE_MASK = 0x1111111111111111L;
+    protected static final int MAXIMUM_CAPACITY = 1 << 24;
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * Counters.
+     */
+    protected long[] table = null;
+
+
+    /**
+     * Mask used to compute the index of a counter in the table.
+     */
+    protected int tableMask = 0;
+
+
+    /**
+     * Number of increments after which all counters are halved.
+     */
+    protected int sampleSize = 0;
+
+
+    /**
+     * Number of increments since the last reset.
+     */
+    protected int size = 0;
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Size the sketch so that it accurately tracks the given number of
+     * distinct keys. Existing counts are discarded if the sketch grows.
+     */
+    public void ensureCapacity(int maximumSize) {
+        int maximum = Math.min(Math.max(maximumSize, 1), MAXIMUM_CAPACITY);
+        if ((table != null) && (table.length >= maximum)) {
+            return;
+        }
+        int length = (maximum == 1) ? 1 : 1 << (32 - Integer.numberOfLeadingZeros(maximum - 1));
+        table = new long[length];
+        tableMask = length - 1;
+        sampleSize = 10 * maximum;
+        size = 0;
+    }
+
+
+    /**
+     * Return the estimated number of accesses to the given key, between
+     * 0 and 15.
+     */
+    public int frequency(Object key) {
+        if (table == null) {
+            return 0;
+        }
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = 15;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+
+    /**
+     * Record an access to the given key.
+     */
+    public void increment(Object key) {
+        if (table == null) {
+            return;
+        }
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && (++size == sampleSize)) {
+            reset();
+        }
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+
+    /**
+     * Increment the specified counter, unless it is already at its maximum.
+     */
+    protected boolean incrementAt(int i, int j) {
+        int offset = j << 2;
+        long mask = (0xfL << offset);
+        if ((table[i] & mask) != mask) {
+            table[i] += (1L << offset);
+            return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * Halve all the counters.
+     */
+    protected void reset() {
+        int count = 0;
+        for (int i = 0; i < table.length; i++) {
+            count += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = (size - (count >>> 2)) >>> 1;
+    }
+
+
+    /**
+     * Return the index of the counter for the given hash and function.
+     */
+    protected int indexOf(int item, int i) {
+        long hash = (item + SEED[i]) * SEED[i];
+        hash += (hash >>> 32);
+        return ((int) hash) & tableMask;
+    }
+
+
+    /**
+     * Improve the distribution of the hash code of the key.
+     */
+    protected static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+
+
+}
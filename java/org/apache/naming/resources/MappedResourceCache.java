@@ -0,0 +1,340 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.naming.resources;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Cache of memory mapped files, used to serve resources which are too large
+ * to have their content cached on the heap. Entries are keyed by canonical
+ * path, and are replaced when the last modification date or the length of
+ * the file changes. The total mapped size is bounded, and the least recently
+ * used entries are evicted; the mapping is only released once the requests
+ * using it are done with it.
+ * <p>
+ * Mapped files must not be truncated while they are being served, so this
+ * cache should only be used for immutable resources.
+ */
+public class MappedResourceCache {
+
+    private static org.jboss.logging.Logger log=
+        org.jboss.logging.Logger.getLogger( MappedResourceCache.class );
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    public MappedResourceCache(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * Maximum total size of the mapped files in bytes.
+     */
+    protected long maxSize;
+
+
+    /**
+     * Current total size of the mapped files in bytes.
+     */
+    protected long size = 0;
+
+
+    /**
+     * Mapped files, in access order.
+     */
+    protected LinkedHashMap<String, MappedEntry> entries =
+        new LinkedHashMap<String, MappedEntry>(16, 0.75f, true);
+
+
+    /**
+     * Number of lookups served from a mapping.
+     */
+    protected AtomicLong hitsCount = new AtomicLong();
+
+
+    /**
+     * Number of files mapped.
+     */
+    protected AtomicLong mapCount = new AtomicLong();
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    /**
+     * Return the maximum total size of the mapped files in bytes.
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+
+    /**
+     * Return the current total size of the mapped files in bytes.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+
+    /**
+     * Return the number of lookups served from an existing mapping.
+     */
+    public long getHitsCount() {
+        return hitsCount.get();
+    }
+
+
+    /**
+     * Return the number of files which have been mapped.
+     */
+    public long getMapCount() {
+        return mapCount.get();
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * Return the mapping of the given file, mapping it if needed. The caller
+     * must call {@link MappedEntry#release()} once done with the buffer.
+     *
+     * @param path Canonical path of the file
+     * @param lastModified Last modification date of the file
+     * @param length Length of the file
+     * @return the mapping, or null if the file cannot fit in the cache or
+     *   cannot be mapped
+     */
+    public MappedEntry acquire(String path, long lastModified, long length) {
+        if ((length <= 0) || (length > maxSize) || (length > Integer.MAX_VALUE)) {
+            return null;
+        }
+        synchronized (this) {
+            MappedEntry entry = entries.get(path);
+            if (entry != null) {
+                if ((entry.lastModified == lastModified) && (entry.length == length)
+                        && entry.acquire()) {
+                    hitsCount.incrementAndGet();
+                    return entry;
+                }
+                remove(path);
+            }
+        }
+        MappedEntry entry = map(path, lastModified, length);
+        if (entry == null) {
+            return null;
+        }
+        entry.acquire();
+        synchronized (this) {
+            MappedEntry existing = entries.get(path);
+            if (existing != null) {
+                remove(path);
+            }
+            entries.put(path, entry);
+            size += length;
+            Iterator<MappedEntry> iterator = entries.values().iterator();
+            while ((size > maxSize) && iterator.hasNext()) {
+                MappedEntry eldest = iterator.next();
+                if (eldest == entry) {
+                    continue;
+                }
+                iterator.remove();
+                size -= eldest.length;
+                eldest.release();
+            }
+        }
+        return entry;
+    }
+
+
+    /**
+     * Remove all mappings. Mappings still in use are released once the
+     * requests using them are done.
+     */
+    public synchronized void clear() {
+        Iterator<MappedEntry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            MappedEntry entry = iterator.next();
+            iterator.remove();
+            entry.release();
+        }
+        size = 0;
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+
+    /**
+     * Remove the mapping for the given path. Must be called while holding
+     * the lock on the cache.
+     */
+    protected void remove(String path) {
+        MappedEntry entry = entries.remove(path);
+        if (entry != null) {
+            size -= entry.length;
+            entry.release();
+        }
+    }
+
+
+    /**
+     * Map the given file.
+     */
+    protected MappedEntry map(String path, long lastModified, long length) {
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+            if (channel.size() != length) {
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            mapCount.incrementAndGet();
+            return new MappedEntry(buffer, lastModified, length);
+        } catch (IOException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Cannot map file " + path, e);
+            }
+            return null;
+        } finally {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Release the memory mapping of the buffer, rather than waiting for
+     * its collection. This relies on JVM internals, so if it fails the
+     * mapping will be released when the buffer is garbage collected.
+     *
+     * @return true if the mapping has been released
+     */
+    protected static boolean unmap(ByteBuffer buffer) {
+        try {
+            // Java 9 and later
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return true;
+        } catch (Throwable t) {
+            // Ignore
+        }
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                Method clean = cleaner.getClass().getMethod("clean");
+                clean.setAccessible(true);
+                clean.invoke(cleaner);
+                return true;
+            }
+        } catch (Throwable t) {
+            // Ignore
+        }
+        return false;
+    }
+
+
+    // ---------------------------------------------------- MappedEntry Class
+
+
+    /**
+     * A mapped file. The reference count starts at one for the reference
+     * held by the cache, and the file is unmapped when it drops to zero.
+     */
+    public static class MappedEntry {
+
+        protected final MappedByteBuffer buffer;
+        protected final long lastModified;
+        protected final long length;
+        protected final AtomicInteger references = new AtomicInteger(1);
+
+        protected MappedEntry(MappedByteBuffer buffer, long lastModified, long length) {
+            this.buffer = buffer;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+
+        /**
+         * Return a new read only view of the mapping, positioned on the
+         * given range.
+         *
+         * @param start Position of the first byte
+         * @param end Position of the last byte (inclusive)
+         */
+        public ByteBuffer getBuffer(long start, long end) {
+            ByteBuffer view = buffer.asReadOnlyBuffer();
+            view.limit((int) end + 1);
+            view.position((int) start);
+            return view;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        protected boolean acquire() {
+            while (true) {
+                int count = references.get();
+                if (count <= 0) {
+                    return false;
+                }
+                if (references.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        public void release() {
+            if (references.decrementAndGet() == 0) {
+                unmap(buffer);
+            }
+        }
+
+    }
+
+
+}
@@ -87,7 +87,7 @@ import org.apache.naming.StringManager;
  * @version $Revision: 1573 $ $Date: 2010-11-04 18:30:17 +0100 (Thu, 04 Nov 2010) $
  */
 
-public class ProxyDirContext implements DirContext {
+public class ProxyDirContext implements DirContext, ResourceChangeListener {
 
 
     // -------------------------------------------------------------- Constants
@@ -123,12 +123,18 @@ public class ProxyDirContext implements DirContext {
                 }
                 cache.setCacheMaxSize(baseDirContext.getCacheMaxSize());
                 cacheTTL = baseDirContext.getCacheTTL();
+                cacheWatchedTTL = baseDirContext.getWatchedTTL();
                 cacheObjectMaxSize = baseDirContext.getCacheObjectMaxSize();
                 // cacheObjectMaxSize must be less than cacheMaxSize
                 // Set a sensible limit
                 if (cacheObjectMaxSize > baseDirContext.getCacheMaxSize()/32) {
                     cacheObjectMaxSize = baseDirContext.getCacheMaxSize()/32;
                 }
+                // Get notified of changes instead of revalidating entries,
+                // if the dir context supports it
+                if (baseDirContext.isWatched()) {
+                    baseDirContext.setResourceChangeListener(this);
+                }
             }
         }
         hostName = (String) env.get(HOST);
@@ -194,6 +200,13 @@ public class ProxyDirContext implements DirContext {
     protected int cacheTTL = 5000; // 5s
 
 
+    /**
+     * Cache TTL of the entries invalidated by change notifications, or 0 if
+     * they are never revalidated.
+     */
+    protected int cacheWatchedTTL = 60000; // 60s
+
+
     /**
      * Max size of resources which will have their content cached.
      */
@@ -207,6 +220,13 @@ public class ProxyDirContext implements DirContext {
         new ImmutableNameNotFoundException();
 
 
+    /**
+     * Number of change notifications received, used to detect changes
+     * occurring while an entry is loaded.
+     */
+    protected volatile long changeCount = 0;
+
+
     /**
      * Non cacheable resources.
      */
@@ -224,6 +244,43 @@ public class ProxyDirContext implements DirContext {
     }
 
 
+    /**
+     * Return true if cached entries are invalidated using change
+     * notifications from the wrapped dir context, so that they don't need
+     * to be revalidated when their TTL expires.
+     */
+    public boolean isWatching() {
+        return (dirContext instanceof BaseDirContext) 
+            && ((BaseDirContext) dirContext).isWatching();
+    }
+
+
+    /**
+     * Remove the entry for the changed resource from the cache.
+     */
+    public void resourceChanged(String name) {
+        if (cache == null)
+            return;
+        synchronized (cache) {
+            changeCount++;
+            cache.unload(name);
+        }
+    }
+
+
+    /**
+     * Remove all entries from the cache.
+     */
+    public void resourcesChanged() {
+        if (cache == null)
+            return;
+        synchronized (cache) {
+            changeCount++;
+            cache.clear();
+        }
+    }
+
+
     /**
      * Return the actual directory context we are wrapping.
      */
@@ -1670,7 +1727,7 @@ public class ProxyDirContext implements DirContext {
                     return (null);
                 } else {
                     cacheEntry.timestamp = 
-                        System.currentTimeMillis() + cacheTTL;
+                        System.currentTimeMillis() + ttl(cacheEntry);
                 }
             }
             cacheEntry.accessCount++;
@@ -1686,7 +1743,7 @@ public class ProxyDirContext implements DirContext {
         if (((!entry.exists)
              || (entry.context != null)
              || ((entry.resource != null) 
-                 && (entry.resource.getContent() != null || entry.timestamp == Long.MAX_VALUE)))
+                 && (entry.resource.getContent() != null || entry.watched)))
             && (System.currentTimeMillis() < entry.timestamp)) {
             return true;
         }
@@ -1733,6 +1790,8 @@ public class ProxyDirContext implements DirContext {
 
         String name = entry.name;
         DirContext currentContext = dirContext;
+        boolean watching = isWatching();
+        long changeCount = this.changeCount;
 
         // Retrieve missing info
         boolean exists = true;
@@ -1838,6 +1897,13 @@ public class ProxyDirContext implements DirContext {
 
         // Add new entry to cache
         synchronized (cache) {
+            if (watching && (currentContext == dirContext)
+                    && (changeCount == this.changeCount)) {
+                // No change occurred during the load, and further changes
+                // will be notified
+                entry.watched = true;
+                entry.timestamp = System.currentTimeMillis() + ttl(entry);
+            }
             // Check cache size, and remove elements if too big
             if ((cache.lookup(name) == null) && cache.allocate(entry.size)) {
                 cache.load(entry);
@@ -1847,6 +1913,23 @@ public class ProxyDirContext implements DirContext {
     }
 
 
+    /**
+     * Return the TTL of the given entry, which is longer if the entry is
+     * invalidated by change notifications. These entries are still
+     * revalidated periodically, since some filesystems may not notify all
+     * changes.
+     */
+    protected long ttl(CacheEntry entry) {
+        if (!entry.watched) {
+            return cacheTTL;
+        } else if (cacheWatchedTTL > 0) {
+            return cacheWatchedTTL;
+        } else {
+            return Long.MAX_VALUE - System.currentTimeMillis();
+        }
+    }
+
+
     /**
      * Remove entry from cache.
      */
@@ -5,58 +5,82 @@
  * The ASF licenses this file to You under the Apache License, Version 2.0
  * (the "License"); you may not use this file except in compliance with
  * the License.  You may obtain a copy of the License at
- * 
+ *
  *      http://www.apache.org/licenses/LICENSE-2.0
- * 
+ *
  * Unless required by applicable law or agreed to in writing, software
  * distributed under the License is distributed on an "AS IS" BASIS,
  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
  * See the License for the specific language governing permissions and
  * limitations under the License.
- */ 
+ */
 
 package org.apache.naming.resources;
 
-import java.util.HashMap;
-import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
  * Implements a special purpose cache.
- * 
+ * <p>
+ * Lookups are lock free, using a concurrent map. The eviction policy is
+ * W-TinyLFU, with sizes weighted by the entry size in KB: new entries are
+ * placed in a small LRU admission window, and entries leaving the window
+ * only enter the main segmented LRU (probation and protected segments)
+ * if their estimated access frequency is higher than the one of the entry
+ * which would be evicted to make room for them. This way, a crawl
+ * over many resources accessed only once cannot flush the popular
+ * resources out of the cache.
+ * <p>
+ * Accesses are recorded in a lossy ring buffer, which is applied to the
+ * policy by the thread which fills it, if the policy lock is available,
+ * or when the cache is next modified.
+ *
  * @author <a href="mailto:remm@apache.org">Remy Maucherat</a>
  * @version $Revision: 515 $
  */
 public class ResourceCache {
-    
-    
+
+
+    // -------------------------------------------------------------- Constants
+
+
+    protected static final int READ_BUFFER_SIZE = 128;
+    protected static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+    protected static final int READ_BUFFER_DRAIN_THRESHOLD = 32;
+
+    protected static final int WINDOW = 0;
+    protected static final int PROBATION = 1;
+    protected static final int PROTECTED = 2;
+    protected static final int REMOVED = 3;
+
+
     // ----------------------------------------------------------- Constructors
-    
-    
+
+
     public ResourceCache() {
     }
-    
-    
-    // ----------------------------------------------------- Instance Variables
 
 
-    /**
-     * Random generator used to determine elements to free.
-     */
-    protected Random random = new Random();
+    // ----------------------------------------------------- Instance Variables
 
 
     /**
      * Cache.
-     * Path -> Cache entry.
+     * Path -> Cache node.
      */
-    protected CacheEntry[] cache = new CacheEntry[0];
+    protected ConcurrentHashMap<String, Node> cache =
+        new ConcurrentHashMap<String, Node>();
 
 
     /**
      * Not found cache.
      */
-    protected HashMap notFoundCache = new HashMap();
+    protected ConcurrentHashMap<String, CacheEntry> notFoundCache =
+        new ConcurrentHashMap<String, CacheEntry>();
 
 
     /**
@@ -67,13 +91,14 @@ public class ResourceCache {
 
     /**
      * Max amount of removals during a make space.
+     * Not used by the W-TinyLFU policy.
      */
     protected int maxAllocateIterations = 20;
 
 
     /**
      * Entry hit ratio at which an entry will never be removed from the cache.
-     * Compared with entry.access / hitsCount
+     * Not used by the W-TinyLFU policy.
      */
     protected long desiredEntryAccessRatio = 3;
 
@@ -84,22 +109,89 @@ public class ResourceCache {
     protected int spareNotFoundEntries = 500;
 
 
+    /**
+     * Percentage of the cache size used by the admission window.
+     */
+    protected int windowPercent = 1;
+
+
+    /**
+     * Percentage of the main space used by the protected segment.
+     */
+    protected int protectedPercent = 80;
+
+
     /**
      * Current cache size in KB.
      */
-    protected int cacheSize = 0;
+    protected volatile int cacheSize = 0;
 
 
     /**
      * Number of accesses to the cache.
      */
-    protected long accessCount = 0;
+    protected AtomicLong accessCount = new AtomicLong();
 
 
     /**
      * Number of cache hits.
      */
-    protected long hitsCount = 0;
+    protected AtomicLong hitsCount = new AtomicLong();
+
+
+    /**
+     * Number of entries evicted by the policy.
+     */
+    protected volatile long evictionCount = 0;
+
+
+    /**
+     * Number of candidates refused by the admission policy.
+     */
+    protected volatile long rejectedCount = 0;
+
+
+    /**
+     * Lock guarding the policy structures.
+     */
+    protected ReentrantLock policyLock = new ReentrantLock();
+
+
+    /**
+     * Popularity estimate of the keys.
+     */
+    protected FrequencySketch sketch = new FrequencySketch();
+
+
+    /**
+     * Admission window, protected and probation segments.
+     */
+    protected AccessOrderDeque window = new AccessOrderDeque();
+    protected AccessOrderDeque probation = new AccessOrderDeque();
+    protected AccessOrderDeque protectedSegment = new AccessOrderDeque();
+
+
+    /**
+     * Weight of each segment in KB.
+     */
+    protected int windowSize = 0;
+    protected int probationSize = 0;
+    protected int protectedSize = 0;
+
+
+    /**
+     * Size of the not found cache.
+     */
+    protected int notFoundSize = 0;
+
+
+    /**
+     * Recorded accesses (nodes for hits, names for misses).
+     */
+    protected AtomicReferenceArray<Object> readBuffer =
+        new AtomicReferenceArray<Object>(READ_BUFFER_SIZE);
+    protected AtomicLong readBufferWriteCount = new AtomicLong();
+    protected long readBufferReadCount = 0;
 
 
     // ------------------------------------------------------------- Properties
@@ -107,11 +199,9 @@ public class ResourceCache {
 
     /**
      * Return the access count.
-     * Note: Update is not synced, so the number may not be completely 
-     * accurate.
      */
     public long getAccessCount() {
-        return accessCount;
+        return accessCount.get();
     }
 
 
@@ -157,11 +247,45 @@ public class ResourceCache {
 
     /**
      * Return the number of cache hits.
-     * Note: Update is not synced, so the number may not be completely 
-     * accurate.
      */
     public long getHitsCount() {
-        return hitsCount;
+        return hitsCount.get();
+    }
+
+
+    /**
+     * Return the ratio of hits over accesses, in percent.
+     */
+    public int getHitRatio() {
+        long accesses = accessCount.get();
+        if (accesses == 0) {
+            return 0;
+        }
+        return (int) ((hitsCount.get() * 100) / accesses);
+    }
+
+
+    /**
+     * Return the number of entries evicted from the cache.
+     */
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+
+    /**
+     * Return the number of entries which were not admitted in the cache.
+     */
+    public long getRejectedCount() {
+        return rejectedCount;
+    }
+
+
+    /**
+     * Return the number of resources in the cache.
+     */
+    public int getEntriesCount() {
+        return cache.size();
     }
 
 
@@ -197,114 +321,78 @@ public class ResourceCache {
     }
 
 
-    // --------------------------------------------------------- Public Methods
+    /**
+     * Return the percentage of the cache used by the admission window.
+     */
+    public int getWindowPercent() {
+        return windowPercent;
+    }
 
 
-    public boolean allocate(int space) {
+    /**
+     * Set the percentage of the cache used by the admission window.
+     */
+    public void setWindowPercent(int windowPercent) {
+        this.windowPercent = windowPercent;
+    }
 
-        int toFree = space - (cacheMaxSize - cacheSize);
 
-        if (toFree <= 0) {
-            return true;
-        }
+    /**
+     * Return the percentage of the main space used by the protected segment.
+     */
+    public int getProtectedPercent() {
+        return protectedPercent;
+    }
 
-        // Increase the amount to free so that allocate won't have to run right
-        // away again
-        toFree += (cacheMaxSize / 20);
 
-        int size = notFoundCache.size();
-        if (size > spareNotFoundEntries) {
-            notFoundCache.clear();
-            cacheSize -= size;
-            toFree -= size;
-        }
+    /**
+     * Set the percentage of the main space used by the protected segment.
+     */
+    public void setProtectedPercent(int protectedPercent) {
+        this.protectedPercent = protectedPercent;
+    }
 
-        if (toFree <= 0) {
-            return true;
-        }
 
-        int attempts = 0;
-        int entriesFound = 0;
-        long totalSpace = 0;
-        int[] toRemove = new int[maxAllocateIterations];
-        while (toFree > 0) {
-            if (attempts == maxAllocateIterations) {
-                // Give up, no changes are made to the current cache
-                return false;
-            }
-            if (toFree > 0) {
-                // Randomly select an entry in the array
-                int entryPos = -1;
-                boolean unique = false;
-                while (!unique) {
-                    unique = true;
-                    entryPos = random.nextInt(cache.length) ;
-                    // Guarantee uniqueness
-                    for (int i = 0; i < entriesFound; i++) {
-                        if (toRemove[i] == entryPos) {
-                            unique = false;
-                        }
-                    }
-                }
-                long entryAccessRatio = 
-                    ((cache[entryPos].accessCount * 100) / accessCount);
-                if (entryAccessRatio < desiredEntryAccessRatio) {
-                    toRemove[entriesFound] = entryPos;
-                    totalSpace += cache[entryPos].size;
-                    toFree -= cache[entryPos].size;
-                    entriesFound++;
-                }
-            }
-            attempts++;
-        }
+    // --------------------------------------------------------- Public Methods
 
-        // Now remove the selected entries
-        java.util.Arrays.sort(toRemove, 0, entriesFound);
-        CacheEntry[] newCache = new CacheEntry[cache.length - entriesFound];
-        int pos = 0;
-        int n = -1;
-        if (entriesFound > 0) {
-            n = toRemove[0];
-            for (int i = 0; i < cache.length; i++) {
-                if (i == n) {
-                    if ((pos + 1) < entriesFound) {
-                        n = toRemove[pos + 1];
-                        pos++;
-                    } else {
-                        pos++;
-                        n = -1;
-                    }
-                } else {
-                    newCache[i - pos] = cache[i];
-                }
+
+    /**
+     * Check if an entry of the given size may be loaded. Space will actually
+     * be made by the admission policy when the entry is loaded.
+     */
+    public boolean allocate(int space) {
+
+        policyLock.lock();
+        try {
+            if (notFoundCache.size() > spareNotFoundEntries) {
+                notFoundCache.clear();
+                notFoundSize = 0;
+                updateSize();
             }
+        } finally {
+            policyLock.unlock();
         }
-        cache = newCache;
-        cacheSize -= totalSpace;
-
-        return true;
+        return (space <= cacheMaxSize);
 
     }
 
 
     public CacheEntry lookup(String name) {
 
+        accessCount.incrementAndGet();
         CacheEntry cacheEntry = null;
-        CacheEntry[] currentCache = cache;
-        accessCount++;
-        int pos = find(currentCache, name);
-        if ((pos != -1) && (name.equals(currentCache[pos].name))) {
-            cacheEntry = currentCache[pos];
-        }
-        if (cacheEntry == null) {
-            try {
-                cacheEntry = (CacheEntry) notFoundCache.get(name);
-            } catch (Exception e) {
-                // Ignore: the reliability of this lookup is not critical
+        Node node = cache.get(name);
+        if (node != null) {
+            cacheEntry = node.entry;
+            recordAccess(node);
+        } else {
+            cacheEntry = notFoundCache.get(name);
+            if (cacheEntry == null) {
+                recordAccess(name);
             }
         }
         if (cacheEntry != null) {
-            hitsCount++;
+            hitsCount.incrementAndGet();
         }
         return cacheEntry;
 
@@ -312,111 +400,338 @@ public class ResourceCache {
 
 
     public void load(CacheEntry entry) {
-        if (entry.exists) {
-            if (insertCache(entry)) {
-                cacheSize += entry.size;
+        policyLock.lock();
+        try {
+            drainReadBuffer();
+            if (entry.exists) {
+                if (!cache.containsKey(entry.name)) {
+                    Node node = new Node(entry);
+                    cache.put(entry.name, node);
+                    node.queue = WINDOW;
+                    window.addLast(node);
+                    windowSize += node.weight;
+                    evict();
+                }
+            } else {
+                if (notFoundCache.put(entry.name, entry) == null) {
+                    notFoundSize++;
+                }
             }
-        } else {
-            int sizeIncrement = (notFoundCache.get(entry.name) == null) ? 1 : 0;
-            notFoundCache.put(entry.name, entry);
-            cacheSize += sizeIncrement;
+            updateSize();
+        } finally {
+            policyLock.unlock();
         }
     }
 
 
     public boolean unload(String name) {
-        CacheEntry removedEntry = removeCache(name);
-        if (removedEntry != null) {
-            cacheSize -= removedEntry.size;
-            return true;
-        } else if (notFoundCache.remove(name) != null) {
-            cacheSize--;
-            return true;
+        policyLock.lock();
+        try {
+            Node node = cache.remove(name);
+            if (node != null) {
+                unlink(node);
+                updateSize();
+                return true;
+            } else if (notFoundCache.remove(name) != null) {
+                notFoundSize--;
+                updateSize();
+                return true;
+            }
+            return false;
+        } finally {
+            policyLock.unlock();
         }
-        return false;
     }
 
 
     /**
-     * Find a map elemnt given its name in a sorted array of map elements.
-     * This will return the index for the closest inferior or equal item in the
-     * given array.
+     * Remove all entries from the cache.
      */
-    private static final int find(CacheEntry[] map, String name) {
+    public void clear() {
+        policyLock.lock();
+        try {
+            for (Node node : cache.values()) {
+                node.queue = REMOVED;
+            }
+            cache.clear();
+            notFoundCache.clear();
+            window = new AccessOrderDeque();
+            probation = new AccessOrderDeque();
+            protectedSegment = new AccessOrderDeque();
+            windowSize = 0;
+            probationSize = 0;
+            protectedSize = 0;
+            notFoundSize = 0;
+            updateSize();
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
 
-        int a = 0;
-        int b = map.length - 1;
 
-        // Special cases: -1 and 0
-        if (b == -1) {
-            return -1;
+    /**
+     * Record an access in the read buffer, and apply the buffer to the
+     * policy if it is getting full and nobody else is doing it.
+     */
+    protected void recordAccess(Object key) {
+        long count = readBufferWriteCount.getAndIncrement();
+        readBuffer.lazySet((int) (count & READ_BUFFER_MASK), key);
+        if (((count + 1) % READ_BUFFER_DRAIN_THRESHOLD) == 0
+                && policyLock.tryLock()) {
+            try {
+                drainReadBuffer();
+            } finally {
+                policyLock.unlock();
+            }
+        }
+    }
+
+
+    /**
+     * Apply the recorded accesses to the policy. Must be called holding the
+     * policy lock.
+     */
+    protected void drainReadBuffer() {
+        long writeCount = readBufferWriteCount.get();
+        if (writeCount - readBufferReadCount > READ_BUFFER_SIZE) {
+            // Some accesses have been overwritten
+            readBufferReadCount = writeCount - READ_BUFFER_SIZE;
         }
-        if (name.compareTo(map[0].name) < 0) {
-            return -1;
+        sketch.ensureCapacity(cacheMaxSize);
+        while (readBufferReadCount < writeCount) {
+            Object key = readBuffer.getAndSet
+                ((int) (readBufferReadCount & READ_BUFFER_MASK), null);
+            readBufferReadCount++;
+            if (key instanceof Node) {
+                onHit((Node) key);
+            } else if (key != null) {
+                sketch.increment(key);
+            }
         }
-        if (b == 0) {
-            return 0;
+    }
+
+
+    /**
+     * Update the policy after a hit on the given node.
+     */
+    protected void onHit(Node node) {
+        sketch.increment(node.name);
+        switch (node.queue) {
+        case WINDOW:
+            window.moveToBack(node);
+            break;
+        case PROBATION:
+            // Promote to the protected segment
+            probation.remove(node);
+            probationSize -= node.weight;
+            node.queue = PROTECTED;
+            protectedSegment.addLast(node);
+            protectedSize += node.weight;
+            int protectedMaxSize = protectedMaxSize();
+            while (protectedSize > protectedMaxSize) {
+                Node demoted = protectedSegment.pollFirst();
+                protectedSize -= demoted.weight;
+                demoted.queue = PROBATION;
+                probation.addLast(demoted);
+                probationSize += demoted.weight;
+            }
+            break;
+        case PROTECTED:
+            protectedSegment.moveToBack(node);
+            break;
+        default:
+            // The node has been removed from the cache
         }
+    }
 
-        int i = 0;
-        while (true) {
-            i = (b + a) / 2;
-            int result = name.compareTo(map[i].name);
-            if (result > 0) {
-                a = i;
-            } else if (result == 0) {
-                return i;
-            } else {
-                b = i;
+
+    /**
+     * Move the entries overflowing the admission window to the main space,
+     * if their frequency is higher than the frequency of all the entries
+     * that would be evicted to make room for them. Must be called holding
+     * the policy lock.
+     */
+    protected void evict() {
+        int windowMaxSize = windowMaxSize();
+        int mainMaxSize = cacheMaxSize - windowMaxSize;
+        while (windowSize > windowMaxSize) {
+            Node candidate = window.pollFirst();
+            windowSize -= candidate.weight;
+            boolean admit = (candidate.weight <= mainMaxSize);
+            if (admit) {
+                // Decide the admission before evicting any entry
+                int candidateFrequency = sketch.frequency(candidate.name);
+                int excess = probationSize + protectedSize + candidate.weight
+                    - mainMaxSize;
+                Node victim = null;
+                while (excess > 0) {
+                    victim = nextVictim(victim);
+                    if (candidateFrequency <= sketch.frequency(victim.name)) {
+                        admit = false;
+                        break;
+                    }
+                    excess -= victim.weight;
+                }
             }
-            if ((b - a) == 1) {
-                int result2 = name.compareTo(map[b].name);
-                if (result2 < 0) {
-                    return a;
-                } else {
-                    return b;
+            if (admit) {
+                while (probationSize + protectedSize + candidate.weight > mainMaxSize) {
+                    Node victim = nextVictim(null);
+                    cache.remove(victim.name, victim);
+                    unlink(victim);
+                    evictionCount++;
                 }
+                candidate.queue = PROBATION;
+                probation.addLast(candidate);
+                probationSize += candidate.weight;
+            } else {
+                cache.remove(candidate.name, candidate);
+                candidate.queue = REMOVED;
+                rejectedCount++;
             }
         }
+    }
+
 
+    /**
+     * Return the entry of the main space which is evicted after the given
+     * one, or the first one if it is <code>null</code>: the probation
+     * segment is evicted first, and then the protected segment.
+     */
+    protected Node nextVictim(Node victim) {
+        if (victim == null) {
+            Node first = probation.peekFirst();
+            return (first != null) ? first : protectedSegment.peekFirst();
+        }
+        if (victim.next == null && victim.queue == PROBATION) {
+            return protectedSegment.peekFirst();
+        }
+        return victim.next;
     }
 
 
     /**
-     * Insert into the right place in a sorted MapElement array, and prevent
-     * duplicates.
+     * Remove the node from the policy structures.
      */
-    private final boolean insertCache(CacheEntry newElement) {
-        CacheEntry[] oldCache = cache;
-        int pos = find(oldCache, newElement.name);
-        if ((pos != -1) && (newElement.name.equals(oldCache[pos].name))) {
-            return false;
+    protected void unlink(Node node) {
+        switch (node.queue) {
+        case WINDOW:
+            window.remove(node);
+            windowSize -= node.weight;
+            break;
+        case PROBATION:
+            probation.remove(node);
+            probationSize -= node.weight;
+            break;
+        case PROTECTED:
+            protectedSegment.remove(node);
+            protectedSize -= node.weight;
+            break;
+        default:
         }
-        CacheEntry[] newCache = new CacheEntry[cache.length + 1];
-        System.arraycopy(oldCache, 0, newCache, 0, pos + 1);
-        newCache[pos + 1] = newElement;
-        System.arraycopy
-            (oldCache, pos + 1, newCache, pos + 2, oldCache.length - pos - 1);
-        cache = newCache;
-        return true;
+        node.queue = REMOVED;
+    }
+
+
+    protected int windowMaxSize() {
+        return Math.max(1, (cacheMaxSize * windowPercent) / 100);
     }
 
 
+    protected int protectedMaxSize() {
+        return ((cacheMaxSize - windowMaxSize()) * protectedPercent) / 100;
+    }
+
+
+    protected void updateSize() {
+        cacheSize = windowSize + probationSize + protectedSize + notFoundSize;
+    }
+
+
+    // ----------------------------------------------------------- Node Class
+
+
     /**
-     * Insert into the right place in a sorted MapElement array.
+     * Policy information associated with a cache entry.
      */
-    private final CacheEntry removeCache(String name) {
-        CacheEntry[] oldCache = cache;
-        int pos = find(oldCache, name);
-        if ((pos != -1) && (name.equals(oldCache[pos].name))) {
-            CacheEntry[] newCache = new CacheEntry[cache.length - 1];
-            System.arraycopy(oldCache, 0, newCache, 0, pos);
-            System.arraycopy(oldCache, pos + 1, newCache, pos, 
-                             oldCache.length - pos - 1);
-            cache = newCache;
-            return oldCache[pos];
+    protected static final class Node {
+
+        protected final String name;
+        protected final CacheEntry entry;
+        protected final int weight;
+        protected int queue = WINDOW;
+        protected Node previous;
+        protected Node next;
+
+        protected Node(CacheEntry entry) {
+            this.name = entry.name;
+            this.entry = entry;
+            this.weight = entry.size;
         }
-        return null;
+
     }
 
+
+    // ------------------------------------------------- AccessOrderDeque Class
+
+
+    /**
+     * Doubly linked list of nodes, from the least recently used to the
+     * most recently used.
+     */
+    protected static final class AccessOrderDeque {
+
+        protected Node first;
+        protected Node last;
+
+        protected Node peekFirst() {
+            return first;
+        }
+
+        protected Node pollFirst() {
+            Node node = first;
+            if (node != null) {
+                remove(node);
+            }
+            return node;
+        }
+
+        protected void addLast(Node node) {
+            node.previous = last;
+            node.next = null;
+            if (last == null) {
+                first = node;
+            } else {
+                last.next = node;
+            }
+            last = node;
+        }
+
+        protected void remove(Node node) {
+            if (node.previous == null) {
+                first = node.next;
+            } else {
+                node.previous.next = node.next;
+            }
+            if (node.next == null) {
+                last = node.previous;
+            } else {
+                node.next.previous = node.previous;
+            }
+            node.previous = null;
+            node.next = null;
+        }
+
+        protected void moveToBack(Node node) {
+            if (node != last) {
+                remove(node);
+                addLast(node);
+            }
+        }
+
+    }
+
+
 }
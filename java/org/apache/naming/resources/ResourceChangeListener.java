@@ -0,0 +1,44 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.naming.resources;
+
+
+/**
+ * Receives notifications of changes to the resources of a directory
+ * context which supports watching, such as {@link FileDirContext}.
+ */
+public interface ResourceChangeListener {
+
+
+    /**
+     * The resource with the given name has been created, modified or
+     * removed.
+     *
+     * @param name Normalized context-relative path (with leading '/')
+     */
+    public void resourceChanged(String name);
+
+
+    /**
+     * Any resource may have changed, for example because notifications were
+     * lost, or because watching is no longer possible.
+     */
+    public void resourcesChanged();
+
+
+}
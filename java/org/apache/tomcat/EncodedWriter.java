@@ -0,0 +1,41 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.tomcat;
+
+/**
+ * Writer which also accepts text which has already been encoded, so that
+ * constant text does not need to be converted again for each response.
+ */
+public interface EncodedWriter {
+
+    /**
+     * Write the specified bytes, which are some text encoded using the given
+     * character encoding, if it is the character encoding used by this
+     * writer. Pending characters are written first.
+     * 
+     * @param b Encoded text
+     * @param off Offset
+     * @param len Length
+     * @param encoding Character encoding of the bytes
+     * @return <code>false</code> if the character encoding of this writer is
+     *  different, in which case nothing is written and the text must be
+     *  written as characters
+     */
+    public boolean writeEncoded(byte[] b, int off, int len, String encoding);
+
+}
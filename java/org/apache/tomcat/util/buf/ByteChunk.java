@@ -19,6 +19,7 @@ package org.apache.tomcat.util.buf;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 
 /*
  * In a server it is very important to be able to operate on the original byte[]
@@ -366,6 +367,32 @@ public final class ByteChunk implements Cloneable, Serializable {
 
 	}
 
+	/**
+	 * Add the remaining content of the given buffer, which may be direct or
+	 * mapped, copying it directly into this chunk and flushing as needed.
+	 */
+	public void append(ByteBuffer src) throws IOException {
+		int len = src.remaining();
+		// will grow, up to limit
+		makeSpace(len);
+
+		// if we don't have limit: makeSpace can grow as it wants
+		if (limit < 0) {
+			src.get(buff, end, len);
+			end += len;
+			return;
+		}
+
+		while (src.hasRemaining()) {
+			int n = Math.min(src.remaining(), limit - end);
+			src.get(buff, end, n);
+			end += n;
+			if (src.hasRemaining()) {
+				flushBuffer();
+			}
+		}
+	}
+
 	// -------------------- Removing data from the buffer --------------------
 
 	public int substract() throws IOException {
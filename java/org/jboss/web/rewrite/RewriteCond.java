@@ -25,6 +25,7 @@ package org.jboss.web.rewrite;
 
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -152,6 +153,17 @@ public class RewriteCond {
         }
     }
     
+    /**
+     * Check if the result of the condition only depends on the matched
+     * patterns and on the given server variables.
+     */
+    public boolean isCacheable(Set<String> allowed, Set<String> variables) {
+        if (condPattern.equals("-d") || condPattern.equals("-f") || condPattern.equals("-s")) {
+            return false;
+        }
+        return test.isCacheable(allowed, variables);
+    }
+    
     public Matcher getMatcher() {
         Object condition = this.condition.get();
         if (condition instanceof PatternCondition) {
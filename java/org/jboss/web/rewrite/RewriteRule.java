@@ -25,6 +25,7 @@ package org.jboss.web.rewrite;
 
 import java.util.ArrayList;
 import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -38,6 +39,11 @@ public class RewriteRule {
     protected String patternString = null;
     protected String substitutionString = null;
     
+    /**
+     * Literal text any URL matching the pattern starts with, or null.
+     */
+    protected String literalPrefix = null;
+    
     public void parse(Map<String, RewriteMap> maps) {
         // Parse the substitution
         if (!"-".equals(substitutionString)) {
@@ -51,6 +57,9 @@ public class RewriteRule {
             flags |= Pattern.CASE_INSENSITIVE;
         }
         Pattern.compile(patternString, flags);
+        if (!isNocase()) {
+            literalPrefix = literalPrefix(patternString);
+        }
         // Parse conditions
         for (int i = 0; i < conditions.length; i++) {
             conditions[i].parse(maps);
@@ -147,6 +156,96 @@ public class RewriteRule {
     }
 
     
+    /**
+     * Check if the outcome of the rule only depends on the URL it is applied
+     * to and on the given server variables, and if it has no side effect 
+     * besides rewriting the URL.
+     * 
+     * @param allowed server variables which may be used
+     * @param variables set to which the server variables used are added
+     */
+    public boolean isCacheable(Set<String> allowed, Set<String> variables) {
+        if (isCookie() || isEnv() || isType() || isQsappend()) {
+            return false;
+        }
+        if (substitution != null && !substitution.isCacheable(allowed, variables)) {
+            return false;
+        }
+        for (int i = 0; i < conditions.length; i++) {
+            if (!conditions[i].isCacheable(allowed, variables)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    
+    /**
+     * Return false if the rule cannot match the given URL, without 
+     * evaluating the pattern.
+     */
+    public boolean mayMatch(CharSequence url) {
+        if (literalPrefix == null) {
+            return true;
+        }
+        int length = literalPrefix.length();
+        if (url.length() < length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (url.charAt(i) != literalPrefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    
+    /**
+     * Extract the literal text at the beginning of a pattern. As the whole
+     * URL has to match, this is a prefix of all the matching URLs.
+     * 
+     * @return the prefix, or null if the pattern does not start with 
+     *         literal text
+     */
+    protected static String literalPrefix(String pattern) {
+        if (pattern.indexOf('|') != -1) {
+            // Alternatives may start with something else
+            return null;
+        }
+        StringBuilder prefix = new StringBuilder();
+        int pos = pattern.startsWith("^") ? 1 : 0;
+        while (pos < pattern.length()) {
+            char c = pattern.charAt(pos);
+            if (c == '?' || c == '*' || c == '{') {
+                // The previous character is optional
+                if (prefix.length() > 0) {
+                    prefix.setLength(prefix.length() - 1);
+                }
+                break;
+            } else if (c == '\\') {
+                if (pos + 1 == pattern.length()) {
+                    break;
+                }
+                char next = pattern.charAt(pos + 1);
+                if (Character.isLetterOrDigit(next)) {
+                    // Character class, back reference or quotation
+                    break;
+                }
+                prefix.append(next);
+                pos += 2;
+            } else if ("^$.+()[]}".indexOf(c) != -1) {
+                // Note: with +, the previous character is present at least once
+                break;
+            } else {
+                prefix.append(c);
+                pos++;
+            }
+        }
+        return (prefix.length() > 0) ? prefix.toString() : null;
+    }
+
+    
     /**
      * String representation.
      */
@@ -476,6 +575,10 @@ public class RewriteRule {
         return patternString;
     }
 
+    public String getLiteralPrefix() {
+        return literalPrefix;
+    }
+
     public void setPatternString(String patternString) {
         this.patternString = patternString;
     }
@@ -31,10 +31,16 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.Cookie;
@@ -96,6 +102,94 @@ public class RewriteValve extends ValveBase
     protected Map<String, RewriteMap> maps = new Hashtable<String, RewriteMap>();
     
     
+    /**
+     * Server variables which may be used by the conditions and substitutions
+     * of the rules when caching rewrite outcomes.
+     */
+    protected static final Set<String> CACHEABLE_VARIABLES = 
+        Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(new String[] {
+                "REQUEST_URI", "REQUEST_PATH", "CONTEXT_PATH", "HTTP_HOST", "SERVER_NAME" })));
+    
+    
+    /**
+     * Compiled mode: rules which cannot match the URL according to the
+     * literal prefix of their pattern are skipped, and rewrite outcomes are
+     * cached if all the rules are cacheable.
+     */
+    protected boolean compiled = false;
+    
+    
+    /**
+     * Maximum number of rewrite outcomes cached in compiled mode.
+     */
+    protected int cacheSize = 1000;
+    
+    
+    /**
+     * Cached rewrite outcomes, or null if caching is not possible with the
+     * current rules. When it is full, an outcome which has not been used
+     * since the last eviction is evicted.
+     */
+    protected ConcurrentHashMap<String, RewriteOutcome> outcomes = null;
+    
+    
+    /**
+     * Server variables used by the rules, which are part of the cache key.
+     */
+    protected String[] keyVariables = null;
+    
+    
+    /**
+     * Number of rewrite outcomes found in the cache.
+     */
+    protected AtomicLong cacheHits = new AtomicLong();
+    
+    
+    /**
+     * Number of rewrite outcomes not found in the cache.
+     */
+    protected AtomicLong cacheMisses = new AtomicLong();
+    
+    
+    public boolean getCompiled() {
+        return compiled;
+    }
+
+    public void setCompiled(boolean compiled) {
+        this.compiled = compiled;
+        compile();
+    }
+
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+        compile();
+    }
+
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    public long getCacheMisses() {
+        return cacheMisses.get();
+    }
+
+    public int getCacheEntries() {
+        Map<String, RewriteOutcome> outcomes = this.outcomes;
+        if (outcomes == null) {
+            return 0;
+        }
+        return outcomes.size();
+    }
+
+    public boolean isCacheable() {
+        return (outcomes != null);
+    }
+
+    
     public void addLifecycleListener(LifecycleListener listener) {
         lifecycle.addLifecycleListener(listener);
     }
@@ -198,6 +292,7 @@ public class RewriteValve extends ValveBase
     }
     
     protected void parse(BufferedReader reader) throws LifecycleException {
+        outcomes = null;
         ArrayList<RewriteRule> rules = new ArrayList<RewriteRule>();
         ArrayList<RewriteCond> conditions = new ArrayList<RewriteCond>();
         while (true) {
@@ -251,6 +346,64 @@ public class RewriteValve extends ValveBase
         for (int i = 0; i < this.rules.length; i++) {
             this.rules[i].parse(maps);
         }
+        compile();
+    }
+    
+    
+    /**
+     * Set up the outcome cache if the compiled mode is enabled and the 
+     * outcome of all the rules only depends on the URL, the host and
+     * the server variables which identify them.
+     */
+    protected void compile() {
+        RewriteRule[] rules = this.rules;
+        if (!compiled || cacheSize <= 0 || rules == null) {
+            outcomes = null;
+            keyVariables = null;
+            return;
+        }
+        Set<String> variables = new HashSet<String>();
+        for (int i = 0; i < rules.length; i++) {
+            if (!rules[i].isCacheable(CACHEABLE_VARIABLES, variables)) {
+                if (container != null && container.getLogger().isDebugEnabled()) {
+                    container.getLogger().debug("Rewrite outcomes will not be cached because of rule "
+                            + rules[i].getPatternString());
+                }
+                outcomes = null;
+                keyVariables = null;
+                return;
+            }
+        }
+        keyVariables = variables.toArray(new String[variables.size()]);
+        outcomes = new ConcurrentHashMap<String, RewriteOutcome>();
+    }
+    
+    
+    /**
+     * Add an outcome to the cache. If the cache is full, the first outcome
+     * which has not been used since it was last passed over is evicted,
+     * clearing the flag of the used ones along the way. With concurrent
+     * requests, the number of outcomes may briefly exceed the cache size.
+     */
+    protected void cache(ConcurrentHashMap<String, RewriteOutcome> outcomes, 
+            String key, RewriteOutcome outcome) {
+        if (outcomes.size() >= cacheSize) {
+            boolean evicted = false;
+            for (int pass = 0; pass < 2 && !evicted; pass++) {
+                Iterator<RewriteOutcome> iterator = outcomes.values().iterator();
+                while (iterator.hasNext()) {
+                    RewriteOutcome candidate = iterator.next();
+                    if (candidate.used) {
+                        candidate.used = false;
+                    } else {
+                        iterator.remove();
+                        evicted = true;
+                        break;
+                    }
+                }
+            }
+        }
+        outcomes.put(key, outcome);
     }
 
     public void stop() throws LifecycleException {
@@ -263,6 +416,8 @@ public class RewriteValve extends ValveBase
         }
         maps.clear();
         rules = null;
+        outcomes = null;
+        keyVariables = null;
     }
 
 
@@ -292,9 +447,41 @@ public class RewriteValve extends ValveBase
         CharSequence host = request.getServerName();
         boolean rewritten = false;
         boolean done = false;
-        for (int i = 0; i < rules.length; i++) {
+        RewriteRule terminal = null;
+        
+        // Look for a cached outcome
+        ConcurrentHashMap<String, RewriteOutcome> outcomes = this.outcomes;
+        String[] keyVariables = this.keyVariables;
+        String key = null;
+        RewriteOutcome outcome = null;
+        if (outcomes != null) {
+            StringBuilder keyBuffer = new StringBuilder();
+            keyBuffer.append(url).append('\n').append(host);
+            for (int i = 0; i < keyVariables.length; i++) {
+                keyBuffer.append('\n').append(resolver.resolve(keyVariables[i]));
+            }
+            key = keyBuffer.toString();
+            outcome = outcomes.get(key);
+            if (outcome != null) {
+                if (!outcome.used) {
+                    outcome.used = true;
+                }
+                cacheHits.incrementAndGet();
+                url = outcome.url;
+                host = outcome.host;
+                rewritten = outcome.rewritten;
+                terminal = outcome.terminal;
+            } else {
+                cacheMisses.incrementAndGet();
+            }
+        }
+        
+        for (int i = 0; outcome == null && i < rules.length; i++) {
             CharSequence test = (rules[i].isHost()) ? host : url;
-            CharSequence newtest = rules[i].evaluate(test, resolver);
+            CharSequence newtest = null;
+            if (!compiled || rules[i].mayMatch(test)) {
+                newtest = rules[i].evaluate(test, resolver);
+            }
             if (newtest != null && !test.equals(newtest.toString())) {
                 if (container.getLogger().isDebugEnabled()) {
                     container.getLogger().debug("Rewrote " + test + " as " + newtest
@@ -310,51 +497,10 @@ public class RewriteValve extends ValveBase
 
             // Final reply
 
-            // - forbidden
-            if (rules[i].isForbidden() && newtest != null) {
-                response.sendError(HttpServletResponse.SC_FORBIDDEN);
-                done = true;
-                break;
-            }
-            // - gone
-            if (rules[i].isGone() && newtest != null) {
-                response.sendError(HttpServletResponse.SC_GONE);
-                done = true;
-                break;
-            }
-            // - redirect (code)
-            if (rules[i].isRedirect() && newtest != null) {
-                // append the query string to the url if there is one and it hasn't been rewritten
-                String queryString = request.getQueryString();
-                StringBuffer urlString = new StringBuffer(url);
-                if (queryString != null && queryString.length() > 0) {
-                    int index = urlString.indexOf("?");
-                    if (index != -1) {
-                        // if qsa is specified append the query
-                        if (rules[i].isQsappend()) {
-                            urlString.append('&');
-                            urlString.append(queryString);
-                        }
-                        // if the ? is the last character delete it, its only purpose was to
-                        // prevent the rewrite module from appending the query string
-                        else if (index == urlString.length() - 1) {
-                            urlString.deleteCharAt(index);
-                        }
-                    } else {
-                        urlString.append('?');
-                        urlString.append(queryString);
-                    }
-                }
-                // Insert the context if
-                // 1. this valve is associated with a context
-                // 2. the url starts with a leading slash
-                // 3. the url isn't absolute
-                if (context && urlString.charAt(0) == '/' && !hasScheme(urlString)) {
-                    urlString.insert(0, request.getContext().getEncodedPath());
-                }
-                response.sendRedirect(urlString.toString());
-                response.setStatus(rules[i].getRedirectCode());
-                done = true;
+            // - forbidden, gone, redirect (code)
+            if ((rules[i].isForbidden() || rules[i].isGone() || rules[i].isRedirect()) 
+                    && newtest != null) {
+                terminal = rules[i];
                 break;
             }
             
@@ -419,6 +565,52 @@ public class RewriteValve extends ValveBase
             
         }
         
+        if (outcomes != null && outcome == null) {
+            cache(outcomes, key, new RewriteOutcome(url.toString(), host.toString(), 
+                    rewritten, terminal));
+        }
+
+        // Final reply
+        if (terminal != null) {
+            done = true;
+            if (terminal.isForbidden()) {
+                response.sendError(HttpServletResponse.SC_FORBIDDEN);
+            } else if (terminal.isGone()) {
+                response.sendError(HttpServletResponse.SC_GONE);
+            } else {
+                // append the query string to the url if there is one and it hasn't been rewritten
+                String queryString = request.getQueryString();
+                StringBuffer urlString = new StringBuffer(url);
+                if (queryString != null && queryString.length() > 0) {
+                    int index = urlString.indexOf("?");
+                    if (index != -1) {
+                        // if qsa is specified append the query
+                        if (terminal.isQsappend()) {
+                            urlString.append('&');
+                            urlString.append(queryString);
+                        }
+                        // if the ? is the last character delete it, its only purpose was to
+                        // prevent the rewrite module from appending the query string
+                        else if (index == urlString.length() - 1) {
+                            urlString.deleteCharAt(index);
+                        }
+                    } else {
+                        urlString.append('?');
+                        urlString.append(queryString);
+                    }
+                }
+                // Insert the context if
+                // 1. this valve is associated with a context
+                // 2. the url starts with a leading slash
+                // 3. the url isn't absolute
+                if (context && urlString.charAt(0) == '/' && !hasScheme(urlString)) {
+                    urlString.insert(0, request.getContext().getEncodedPath());
+                }
+                response.sendRedirect(urlString.toString());
+                response.setStatus(terminal.getRedirectCode());
+            }
+        }
+        
         if (rewritten) {
             if (!done) {
                 // See if we need to replace the query string
@@ -736,4 +928,22 @@ public class RewriteValve extends ValveBase
         return false;
     }
 
+
+    /**
+     * Outcome of the evaluation of the rules for a given URL and host.
+     */
+    protected static class RewriteOutcome {
+        protected final String url;
+        protected final String host;
+        protected final boolean rewritten;
+        protected final RewriteRule terminal;
+        protected volatile boolean used = false;
+        protected RewriteOutcome(String url, String host, boolean rewritten, RewriteRule terminal) {
+            this.url = url;
+            this.host = host;
+            this.rewritten = rewritten;
+            this.terminal = terminal;
+        }
+    }
+    
 }
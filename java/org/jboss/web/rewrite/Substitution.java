@@ -25,6 +25,7 @@ package org.jboss.web.rewrite;
 
 import java.util.ArrayList;
 import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 
 public class Substitution {
@@ -222,6 +223,32 @@ public class Substitution {
         
     }
     
+    /**
+     * Check if the result of the substitution only depends on the matched
+     * patterns and on the given server variables.
+     * 
+     * @param allowed server variables which may be used
+     * @param variables set to which the server variables used are added
+     * @return false if the substitution uses maps, headers or other variables
+     */
+    public boolean isCacheable(Set<String> allowed, Set<String> variables) {
+        for (int i = 0; i < elements.length; i++) {
+            SubstitutionElement element = elements[i];
+            if (element instanceof ServerVariableElement) {
+                String key = ((ServerVariableElement) element).key;
+                if (!allowed.contains(key)) {
+                    return false;
+                }
+                variables.add(key);
+            } else if (!(element instanceof StaticElement 
+                    || element instanceof RewriteRuleBackReferenceElement
+                    || element instanceof RewriteCondBackReferenceElement)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
     /**
      * Evaluate the substitution based on the context
      * 
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package javax.el;
+
+import org.apache.jasper.el.ELContextImpl;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class BeanELResolverTestCase extends TestCase {
+
+    /**
+     * Construct a new instance of this test case.
+     *
+     * @param name Name of the test case
+     */
+    public BeanELResolverTestCase(String name) {
+        super(name);
+    }
+
+    /**
+     * Return the tests included in this test suite.
+     */
+    public static Test suite() {
+        return (new TestSuite(BeanELResolverTestCase.class));
+    }
+
+    public static class Bean {
+        protected String name = "bean";
+        protected long count = 0;
+        public String getName() {
+            return name;
+        }
+        public void setName(String name) {
+            this.name = name;
+        }
+        public long getCount() {
+            return count;
+        }
+        public void setCount(long count) {
+            this.count = count;
+        }
+        public String getFailure() {
+            throw new IllegalStateException("failure");
+        }
+    }
+
+    public interface Named {
+        public String getName();
+    }
+
+    static class HiddenBean implements Named {
+        public String getName() {
+            return "hidden";
+        }
+    }
+
+    public void testGetValue() throws Exception {
+        BeanELResolver resolver = new BeanELResolver();
+        ELContext context = new ELContextImpl(resolver);
+        assertEquals("bean", resolver.getValue(context, new Bean(), "name"));
+        assertTrue(context.isPropertyResolved());
+        assertEquals(Long.valueOf(0), resolver.getValue(context, new Bean(), "count"));
+        assertEquals("hidden", resolver.getValue(context, new HiddenBean(), "name"));
+        try {
+            resolver.getValue(context, new Bean(), "missing");
+            fail();
+        } catch (PropertyNotFoundException e) {
+            // Expected
+        }
+        try {
+            resolver.getValue(context, new Bean(), "failure");
+            fail();
+        } catch (ELException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    public void testSetValue() throws Exception {
+        BeanELResolver resolver = new BeanELResolver();
+        ELContext context = new ELContextImpl(resolver);
+        Bean bean = new Bean();
+        resolver.setValue(context, bean, "name", "other");
+        assertTrue(context.isPropertyResolved());
+        assertEquals("other", bean.getName());
+        resolver.setValue(context, bean, "name", null);
+        assertNull(bean.getName());
+        resolver.setValue(context, bean, "count", Long.valueOf(2));
+        assertEquals(2, bean.getCount());
+        // Widening conversion done by reflection
+        resolver.setValue(context, bean, "count", Integer.valueOf(3));
+        assertEquals(3, bean.getCount());
+        try {
+            resolver.setValue(context, bean, "count", null);
+            fail();
+        } catch (ELException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+        try {
+            resolver.setValue(context, bean, "failure", "value");
+            fail();
+        } catch (PropertyNotWritableException e) {
+            // Expected
+        }
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.catalina.authenticator;
+
+import org.apache.catalina.Session;
+import org.apache.catalina.core.StandardContext;
+import org.apache.catalina.session.StandardManager;
+import org.apache.catalina.session.StandardSession;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class SingleSignOnTestCase extends TestCase {
+
+    /**
+     * Construct a new instance of this test case.
+     *
+     * @param name Name of the test case
+     */
+    public SingleSignOnTestCase(String name) {
+        super(name);
+    }
+
+    /**
+     * Return the tests included in this test suite.
+     */
+    public static Test suite() {
+        return (new TestSuite(SingleSignOnTestCase.class));
+    }
+
+    protected static StandardContext createContext(String name) {
+        StandardContext context = new StandardContext();
+        context.setName(name);
+        StandardManager manager = new StandardManager();
+        manager.setContainer(context);
+        context.setManager(manager);
+        return context;
+    }
+
+    protected static Session createSession(StandardContext context) {
+        StandardSession session = new StandardSession(context.getManager());
+        session.setValid(true);
+        session.setCreationTime(System.currentTimeMillis());
+        session.setMaxInactiveInterval(1800);
+        return session;
+    }
+
+    public void testMaxEntries() throws Exception {
+        SingleSignOn sso = new SingleSignOn();
+        sso.setMaxEntries(100);
+        StandardContext context = createContext("/app");
+        for (int i = 0; i < 1000; i++) {
+            sso.register("sso" + i, null, "FORM", "user" + i, "pass");
+            sso.associate("sso" + i, createSession(context));
+        }
+        assertTrue(sso.getEntryCount() <= 100);
+        assertTrue(sso.reverse.size() <= 100);
+        assertNotNull(sso.lookup("sso999"));
+    }
+
+    public void testMaxIdleTime() throws Exception {
+        SingleSignOn sso = new SingleSignOn();
+        StandardContext context = createContext("/app");
+        Session session = createSession(context);
+        sso.register("sso", null, "FORM", "user", "pass");
+        sso.associate("sso", session);
+        assertNotNull(sso.lookup("sso"));
+
+        sso.setMaxIdleTime(0);
+        sso.backgroundProcess();
+        assertEquals(0, sso.getEntryCount());
+        assertNull(sso.lookup("sso"));
+        assertTrue(sso.reverse.isEmpty());
+        assertTrue(session.isValid());
+    }
+
+    public void testDeregisterContext() throws Exception {
+        SingleSignOn sso = new SingleSignOn();
+        StandardContext app1 = createContext("/app1");
+        StandardContext app2 = createContext("/app2");
+        Session shared1 = createSession(app1);
+        Session shared2 = createSession(app2);
+        Session single = createSession(app1);
+        sso.register("shared", null, "FORM", "user", "pass");
+        sso.associate("shared", shared1);
+        sso.associate("shared", shared2);
+        sso.register("single", null, "FORM", "other", "pass");
+        sso.associate("single", single);
+
+        sso.deregister(app1);
+        assertNull(sso.lookup("single"));
+        SingleSignOnEntry entry = sso.lookup("shared");
+        assertNotNull(entry);
+        assertEquals(1, entry.findSessions().length);
+        assertSame(shared2, entry.findSessions()[0]);
+        assertEquals(1, sso.reverse.size());
+        assertTrue(shared1.isValid());
+        assertTrue(single.isValid());
+    }
+
+}
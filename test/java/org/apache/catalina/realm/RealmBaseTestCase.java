@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.catalina.realm;
+
+import java.security.Principal;
+import java.util.HashMap;
+
+import org.apache.catalina.core.StandardContext;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class RealmBaseTestCase extends TestCase {
+
+    /**
+     * Construct a new instance of this test case.
+     *
+     * @param name Name of the test case
+     */
+    public RealmBaseTestCase(String name) {
+        super(name);
+    }
+
+    /**
+     * Return the tests included in this test suite.
+     */
+    public static Test suite() {
+        return (new TestSuite(RealmBaseTestCase.class));
+    }
+
+    /**
+     * Realm with users kept in memory, counting the password lookups.
+     */
+    protected static class TestRealm extends RealmBase {
+        protected HashMap<String, String> passwords = new HashMap<String, String>();
+        protected int lookups = 0;
+        protected String getName() {
+            return "TestRealm";
+        }
+        protected String getPassword(String username) {
+            lookups++;
+            return passwords.get(username);
+        }
+        protected Principal getPrincipal(String username) {
+            return new GenericPrincipal(this, username, passwords.get(username));
+        }
+    }
+
+    protected static TestRealm createRealm(String digest) throws Exception {
+        TestRealm realm = new TestRealm();
+        StandardContext context = new StandardContext();
+        context.setName("/realm");
+        realm.setContainer(context);
+        realm.setDigest(digest);
+        realm.start();
+        return realm;
+    }
+
+    public void testDigest() throws Exception {
+        TestRealm realm = createRealm("SHA");
+        realm.passwords.put("user", RealmBase.Digest("secret", "SHA", null));
+        assertNotNull(realm.authenticate("user", "secret"));
+        assertNull(realm.authenticate("user", "wrong"));
+        assertEquals(RealmBase.Digest("secret", "SHA", null), realm.digest("secret"));
+    }
+
+    public void testAuthenticationCache() throws Exception {
+        TestRealm realm = createRealm(null);
+        realm.setAuthenticationCacheSize(2);
+        realm.passwords.put("user", "secret");
+        realm.passwords.put("other", "password");
+
+        Principal principal = realm.authenticate("user", "secret");
+        assertNotNull(principal);
+        assertSame(principal, realm.authenticate("user", "secret"));
+        assertEquals(1, realm.lookups);
+        assertEquals(1, realm.getAuthenticationCacheHits());
+        assertEquals(1, realm.getAuthenticationCacheMisses());
+        assertEquals(0.5, realm.getAuthenticationCacheHitRatio(), 0.001);
+
+        // Failed authentications are not cached
+        assertNull(realm.authenticate("user", "wrong"));
+        assertNull(realm.authenticate("user", "wrong"));
+        assertEquals(3, realm.lookups);
+
+        // The cache is bounded
+        assertNotNull(realm.authenticate("other", "password"));
+        realm.passwords.put("third", "password");
+        assertNotNull(realm.authenticate("third", "password"));
+        assertTrue(realm.authenticationCache.size() <= 2);
+
+        // Cached authentications expire
+        realm.setAuthenticationCacheTTL(0);
+        realm.authenticationCache.clear();
+        assertNotNull(realm.authenticate("user", "secret"));
+        int lookups = realm.lookups;
+        assertNotNull(realm.authenticate("user", "secret"));
+        assertEquals(lookups + 1, realm.lookups);
+        realm.backgroundProcess();
+        assertEquals(0, realm.authenticationCache.size());
+    }
+
+}
@@ -0,0 +1,177 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.catalina.realm;
+
+import java.security.Principal;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.catalina.deploy.SecurityCollection;
+import org.apache.catalina.deploy.SecurityConstraint;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class SecurityConstraintMatcherTestCase extends TestCase {
+
+    protected static final String[] PATTERNS = { "/", "/*", "/admin/*",
+        "/admin/users/*", "/admin/users/list", "/api/*", "/api", "*.jsp",
+        "*.do", "/index.jsp", "/static/*" };
+
+    protected static final String[] METHODS = { "GET", "POST", "PUT",
+        "DELETE" };
+
+    protected static final String[] URIS = { "", "/", "/index.jsp",
+        "/admin", "/admin/", "/admin/users", "/admin/users/list",
+        "/admin/users/list/x", "/admin/x.jsp", "/api", "/api/v1", "/apix",
+        "/a.do", "/dir.jsp/file", "/file.", "/static/a.jsp", "/other" };
+
+    protected static final String[] REQUEST_METHODS = { "GET", "POST", "PUT",
+        "DELETE", "HEAD", "PATCH" };
+
+    /**
+     * Realm exposing the scan of the constraints.
+     */
+    protected static final RealmBase realm = new RealmBase() {
+        protected String getName() {
+            return "TestRealm";
+        }
+        protected String getPassword(String username) {
+            return null;
+        }
+        protected Principal getPrincipal(String username) {
+            return null;
+        }
+    };
+
+    /**
+     * Construct a new instance of this test case.
+     *
+     * @param name Name of the test case
+     */
+    public SecurityConstraintMatcherTestCase(String name) {
+        super(name);
+    }
+
+    /**
+     * Return the tests included in this test suite.
+     */
+    public static Test suite() {
+        return (new TestSuite(SecurityConstraintMatcherTestCase.class));
+    }
+
+    public void testSimple() throws Exception {
+        SecurityConstraint admin = constraint("/admin/*", "GET", null);
+        SecurityConstraint all = constraint("/*", null, "OPTIONS");
+        SecurityConstraint jsp = constraint("*.jsp", null, null);
+        SecurityConstraint[] constraints =
+            new SecurityConstraint[] { admin, all, jsp };
+        SecurityConstraintMatcher matcher =
+            SecurityConstraintMatcher.compile(constraints);
+
+        assertSame(constraints, matcher.getConstraints());
+        assertTrue(Arrays.equals(new SecurityConstraint[] { admin },
+                matcher.find("/admin/page", "GET")));
+        // The longest prefix wins even when it does not include the method
+        assertNull(matcher.find("/admin/page", "POST"));
+        assertTrue(Arrays.equals(new SecurityConstraint[] { all },
+                matcher.find("/page.jsp", "GET")));
+        // Omitted methods fall back to the next kind of pattern
+        assertTrue(Arrays.equals(new SecurityConstraint[] { jsp },
+                matcher.find("/page.jsp", "OPTIONS")));
+        assertNull(matcher.find("/page.html", "OPTIONS"));
+        // No allocation: the same array is returned
+        assertSame(matcher.find("/x", "GET"), matcher.find("/y", "GET"));
+    }
+
+    public void testCompare() throws Exception {
+        Random random = new Random(42);
+        for (int n = 0; n < 500; n++) {
+            SecurityConstraint[] constraints =
+                new SecurityConstraint[1 + random.nextInt(5)];
+            for (int i = 0; i < constraints.length; i++) {
+                constraints[i] = new SecurityConstraint();
+                int collections = 1 + random.nextInt(2);
+                for (int j = 0; j < collections; j++) {
+                    SecurityCollection collection = new SecurityCollection();
+                    int patterns = 1 + random.nextInt(3);
+                    for (int k = 0; k < patterns; k++) {
+                        collection.addPattern(
+                                PATTERNS[random.nextInt(PATTERNS.length)]);
+                    }
+                    if (random.nextInt(3) == 0) {
+                        collection.addMethod(
+                                METHODS[random.nextInt(METHODS.length)]);
+                    } else if (random.nextInt(3) == 0) {
+                        collection.addMethodOmission(
+                                METHODS[random.nextInt(METHODS.length)]);
+                    }
+                    constraints[i].addCollection(collection);
+                }
+            }
+            SecurityConstraintMatcher matcher =
+                SecurityConstraintMatcher.compile(constraints);
+            for (int u = 0; u < URIS.length; u++) {
+                for (int m = 0; m < REQUEST_METHODS.length; m++) {
+                    String uri = URIS[u];
+                    String method = REQUEST_METHODS[m];
+                    SecurityConstraint[] expected =
+                        realm.findSecurityConstraints(constraints, uri, method);
+                    SecurityConstraint[] actual = matcher.find(uri, method);
+                    if (!Arrays.equals(expected, actual)) {
+                        fail(method + " " + uri + ": expected "
+                                + Arrays.toString(expected) + " but was "
+                                + Arrays.toString(actual) + " for "
+                                + describe(constraints));
+                    }
+                }
+            }
+        }
+    }
+
+    protected static String describe(SecurityConstraint[] constraints) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < constraints.length; i++) {
+            SecurityCollection[] collections = constraints[i].findCollections();
+            sb.append(i).append(": ");
+            for (int j = 0; j < collections.length; j++) {
+                sb.append(Arrays.toString(collections[j].findPatterns()))
+                    .append(Arrays.toString(collections[j].findMethods()))
+                    .append('-')
+                    .append(Arrays.toString(collections[j].findMethodOmissions()))
+                    .append(' ');
+            }
+        }
+        return sb.toString();
+    }
+
+    protected static SecurityConstraint constraint(String pattern,
+            String method, String omission) {
+        SecurityCollection collection = new SecurityCollection();
+        collection.addPattern(pattern);
+        if (method != null)
+            collection.addMethod(method);
+        if (omission != null)
+            collection.addMethodOmission(omission);
+        SecurityConstraint constraint = new SecurityConstraint();
+        constraint.addCollection(collection);
+        return constraint;
+    }
+
+}
@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.catalina.servlets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.servlet.ServletOutputStream;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.catalina.connector.CoyoteOutputStream;
+import org.apache.catalina.connector.OutputBuffer;
+import org.apache.coyote.Response;
+import org.apache.naming.resources.CacheEntry;
+import org.apache.naming.resources.FileDirContext;
+import org.apache.naming.resources.MappedResourceCache;
+import org.apache.naming.resources.Resource;
+import org.apache.naming.resources.ResourceAttributes;
+import org.apache.tomcat.util.buf.ByteChunk;
+
+public class DefaultServletTestCase extends TestCase {
+
+    /**
+     * Construct a new instance of this test case.
+     *
+     * @param name Name of the test case
+     */
+    public DefaultServletTestCase(String name) {
+        super(name);
+    }
+
+    /**
+     * Return the tests included in this test suite.
+     */
+    public static Test suite() {
+        return (new TestSuite(DefaultServletTestCase.class));
+    }
+
+    protected File directory;
+    protected FileDirContext resources;
+    protected DefaultServlet servlet;
+
+    public void setUp() throws Exception {
+        directory = File.createTempFile("defaultServlet", "");
+        directory.delete();
+        directory.mkdirs();
+        resources = new FileDirContext();
+        resources.setDocBase(directory.getAbsolutePath());
+        servlet = new DefaultServlet();
+        servlet.mappedCache = new MappedResourceCache(100000);
+        servlet.mappedObjectMaxSize = 50000;
+    }
+
+    public void tearDown() {
+        servlet.mappedCache.clear();
+        File[] files = directory.listFiles();
+        for (int i = 0; i < files.length; i++) {
+            files[i].delete();
+        }
+        directory.delete();
+    }
+
+    protected byte[] write(String name, int length, int seed) throws IOException {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (i * 31 + seed);
+        }
+        FileOutputStream os = new FileOutputStream(new File(directory, name));
+        try {
+            os.write(bytes);
+        } finally {
+            os.close();
+        }
+        return bytes;
+    }
+
+    /**
+     * Return an entry for the resource, as the cache of the resources would
+     * when its content is too large to be kept on the heap.
+     */
+    protected CacheEntry entry(String name) throws Exception {
+        CacheEntry entry = new CacheEntry();
+        entry.name = name;
+        entry.resource = new Resource();
+        entry.attributes = (ResourceAttributes) resources.getAttributes(name);
+        return entry;
+    }
+
+    /**
+     * Write the range of the resource to an output stream of the container,
+     * and return the bytes sent to the client, or null if the resource has
+     * not been written from a mapping.
+     */
+    protected byte[] copyMapped(CacheEntry entry, long start, long end) throws IOException {
+        final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        Response coyoteResponse = new Response();
+        coyoteResponse.setOutputBuffer(new org.apache.coyote.OutputBuffer() {
+            public int doWrite(ByteChunk chunk, Response response) throws IOException {
+                sent.write(chunk.getBuffer(), chunk.getStart(), chunk.getLength());
+                return chunk.getLength();
+            }
+        });
+        OutputBuffer outputBuffer = new OutputBuffer(1024);
+        outputBuffer.setResponse(coyoteResponse);
+        ServletOutputStream ostream = new CoyoteOutputStream(outputBuffer) {};
+        if (!servlet.copyMapped(entry, ostream, start, end)) {
+            return null;
+        }
+        ostream.flush();
+        return sent.toByteArray();
+    }
+
+    public void testCopyMapped() throws Exception {
+        byte[] bytes = write("a.bin", 20000, 0);
+        assertTrue(Arrays.equals(bytes, copyMapped(entry("/a.bin"), 0, 19999)));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(bytes, 5000, 5100),
+                copyMapped(entry("/a.bin"), 5000, 5099)));
+        assertEquals(1, servlet.mappedCache.getMapCount());
+        assertEquals(1, servlet.mappedCache.getHitsCount());
+
+        // Resources with a cached content, too large for the mapped cache,
+        // or written to another stream are not mapped
+        CacheEntry entry = entry("/a.bin");
+        entry.resource = new Resource(bytes);
+        assertNull(copyMapped(entry, 0, 19999));
+        write("b.bin", 60000, 0);
+        assertNull(copyMapped(entry("/b.bin"), 0, 59999));
+        assertFalse(servlet.copyMapped(entry("/a.bin"), new ServletOutputStream() {
+            public void write(int b) {
+            }
+        }, 0, 19999));
+        assertEquals(1, servlet.mappedCache.getMapCount());
+    }
+
+    public void testChangedResource() throws Exception {
+        write("a.bin", 20000, 0);
+        assertNotNull(copyMapped(entry("/a.bin"), 0, 19999));
+
+        // The resource is mapped again once its attributes change
+        byte[] bytes = write("a.bin", 30000, 5);
+        new File(directory, "a.bin").setLastModified(System.currentTimeMillis() + 2000);
+        assertTrue(Arrays.equals(bytes, copyMapped(entry("/a.bin"), 0, 29999)));
+        assertEquals(2, servlet.mappedCache.getMapCount());
+        assertEquals(30000, servlet.mappedCache.getSize());
+    }
+
+}
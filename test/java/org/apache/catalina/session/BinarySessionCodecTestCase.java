@@ -0,0 +1,185 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.catalina.session;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.catalina.core.StandardContext;
+
+public class BinarySessionCodecTestCase extends TestCase {
+
+    /**
+     * Construct a new instance of this test case.
+     *
+     * @param name Name of the test case
+     */
+    public BinarySessionCodecTestCase(String name) {
+        super(name);
+    }
+
+    /**
+     * Return the tests included in this test suite.
+     */
+    public static Test suite() {
+        return (new TestSuite(BinarySessionCodecTestCase.class));
+    }
+
+    protected StandardManager manager;
+
+    public void setUp() {
+        manager = new StandardManager();
+        manager.setContainer(new StandardContext());
+    }
+
+    protected StandardSession createSession(String id) {
+        StandardSession session = new StandardSession(manager);
+        session.setValid(true);
+        session.setNew(true);
+        session.setCreationTime(1300000000000L);
+        session.setMaxInactiveInterval(1800);
+        session.id = id;
+        session.setAttribute("string", "value " + id, false);
+        session.setAttribute("integer", Integer.valueOf(-42), false);
+        session.setAttribute("long", Long.valueOf(Long.MIN_VALUE), false);
+        session.setAttribute("boolean", Boolean.TRUE, false);
+        session.setAttribute("double", Double.valueOf(0.5), false);
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            large.append("abcdefgh");
+        }
+        session.setAttribute("large", large.toString(), false);
+        ArrayList<String> list = new ArrayList<String>();
+        list.add(large.toString());
+        session.setAttribute("list", list, false);
+        session.setAttribute("thread", new Object(), false);
+        return session;
+    }
+
+    protected void checkSession(StandardSession session, String id) {
+        assertEquals(id, session.getIdInternal());
+        assertEquals(1300000000000L, session.getCreationTime());
+        assertEquals(1800, session.getMaxInactiveInterval());
+        assertTrue(session.isValidInternal());
+        assertEquals("value " + id, session.getAttribute("string"));
+        assertEquals(Integer.valueOf(-42), session.getAttribute("integer"));
+        assertEquals(Long.valueOf(Long.MIN_VALUE), session.getAttribute("long"));
+        assertEquals(Boolean.TRUE, session.getAttribute("boolean"));
+        assertEquals(Double.valueOf(0.5), session.getAttribute("double"));
+        assertEquals(16000, ((String) session.getAttribute("large")).length());
+        assertEquals(session.getAttribute("large"),
+                ((ArrayList) session.getAttribute("list")).get(0));
+        assertNull(session.getAttribute("thread"));
+    }
+
+    public void testRoundTrip() throws Exception {
+        BinarySessionCodec codec = new BinarySessionCodec();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        SessionCodec.SessionOutput output = codec.createOutput(bos, 2);
+        output.writeSession(createSession("A"));
+        output.writeSession(createSession("B"));
+        output.close();
+        // The large attributes are compressed
+        assertTrue(bos.size() < 4000);
+
+        SessionCodec.SessionInput input =
+            codec.createInput(new ByteArrayInputStream(bos.toByteArray()), null, true);
+        assertEquals(2, input.getCount());
+        StandardSession session = new StandardSession(manager);
+        input.readSession(session);
+        checkSession(session, "A");
+        session = new StandardSession(manager);
+        input.readSession(session);
+        checkSession(session, "B");
+        input.close();
+    }
+
+    public static class Holder implements Serializable {
+        protected Object value;
+        public Holder(Object value) {
+            this.value = value;
+        }
+    }
+
+    protected StandardSession roundTrip(StandardSession session) throws Exception {
+        BinarySessionCodec codec = new BinarySessionCodec();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        SessionCodec.SessionOutput output = codec.createOutput(bos, 1);
+        output.writeSession(session);
+        output.close();
+        SessionCodec.SessionInput input =
+            codec.createInput(new ByteArrayInputStream(bos.toByteArray()), null, false);
+        StandardSession result = new StandardSession(manager);
+        input.readSession(result);
+        input.close();
+        return result;
+    }
+
+    public void testSharedReference() throws Exception {
+        StandardSession session = createSession("D");
+        ArrayList<String> shared = new ArrayList<String>();
+        shared.add("shared");
+        session.setAttribute("first", new Holder(shared), false);
+        session.setAttribute("second", new Holder(shared), false);
+        session.setAttribute("shared", shared, false);
+
+        session = roundTrip(session);
+        checkSession(session, "D");
+        Object first = ((Holder) session.getAttribute("first")).value;
+        Object second = ((Holder) session.getAttribute("second")).value;
+        assertEquals(shared, first);
+        assertSame(first, second);
+        assertSame(first, session.getAttribute("shared"));
+    }
+
+    public void testNotSerializable() throws Exception {
+        StandardSession session = createSession("E");
+        session.setAttribute("before", new Holder("before"), false);
+        session.setAttribute("broken", new Holder(new Object()), false);
+        session.setAttribute("after", new Holder("after"), false);
+
+        session = roundTrip(session);
+        checkSession(session, "E");
+        assertNull(session.getAttribute("broken"));
+        assertEquals("before", ((Holder) session.getAttribute("before")).value);
+        assertEquals("after", ((Holder) session.getAttribute("after")).value);
+    }
+
+    public void testLegacyFormat() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        SessionCodec.SessionOutput output =
+            new LegacySessionCodec().createOutput(bos, -1);
+        output.writeSession(createSession("C"));
+        output.close();
+
+        SessionCodec.SessionInput input = new BinarySessionCodec().createInput
+            (new ByteArrayInputStream(bos.toByteArray()), null, false);
+        assertEquals(1, input.getCount());
+        StandardSession session = new StandardSession(manager);
+        input.readSession(session);
+        checkSession(session, "C");
+        input.close();
+    }
+
+}
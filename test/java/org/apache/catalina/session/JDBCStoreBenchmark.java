@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.catalina.session;
+
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.catalina.core.StandardContext;
+
+/**
+ * Concurrency benchmark of the JDBC store, saving and loading sessions from
+ * several threads against an embedded database. The driver and URL are given
+ * using the <code>benchmark.driver</code> and <code>benchmark.url</code>
+ * system properties, and default to an in memory Derby database, which must
+ * be in the classpath.
+ */
+public class JDBCStoreBenchmark {
+
+    protected static final String DRIVER =
+        System.getProperty("benchmark.driver", "org.apache.derby.jdbc.EmbeddedDriver");
+    protected static final String URL =
+        System.getProperty("benchmark.url", "jdbc:derby:memory:sessions;create=true");
+    protected static final int THREADS = Integer.getInteger("benchmark.threads", 8).intValue();
+    protected static final int SESSIONS = Integer.getInteger("benchmark.sessions", 1000).intValue();
+    protected static final int OPERATIONS = Integer.getInteger("benchmark.operations", 20000).intValue();
+
+    public static void main(String[] args) throws Exception {
+        createTable();
+        run(0);
+        run(1000);
+    }
+
+    protected static void createTable() throws Exception {
+        Driver driver = (Driver) Class.forName(DRIVER).newInstance();
+        Connection conn = driver.connect(URL, new Properties());
+        Statement stmt = conn.createStatement();
+        try {
+            stmt.execute("CREATE TABLE sessions (id VARCHAR(100) NOT NULL PRIMARY KEY, "
+                    + "app VARCHAR(255), data BLOB, valid CHAR(1) NOT NULL, "
+                    + "maxinactive INT NOT NULL, lastaccess BIGINT NOT NULL)");
+            stmt.execute("CREATE INDEX sessions_lastaccess ON sessions (app, lastaccess)");
+        } catch (SQLException e) {
+            // Already created
+        }
+        stmt.close();
+        conn.close();
+    }
+
+    protected static void run(int writeDelay) throws Exception {
+        StandardContext context = new StandardContext();
+        context.setName("/benchmark");
+        final PersistentManager manager = new PersistentManager();
+        manager.setContainer(context);
+        final JDBCStore store = new JDBCStore();
+        store.setManager(manager);
+        store.setDriverName(DRIVER);
+        store.setConnectionURL(URL);
+        store.setSessionTable("sessions");
+        store.setWriteDelay(writeDelay);
+        store.start();
+        store.clear();
+
+        final StandardSession[] sessions = new StandardSession[SESSIONS];
+        for (int i = 0; i < SESSIONS; i++) {
+            StandardSession session = new StandardSession(manager);
+            session.setValid(true);
+            session.setCreationTime(System.currentTimeMillis());
+            session.setMaxInactiveInterval(1800);
+            session.id = "session" + i;
+            session.setAttribute("user", "user" + i, false);
+            session.setAttribute("counter", Integer.valueOf(i), false);
+            session.setAttribute("data", new byte[2048], false);
+            sessions[i] = session;
+        }
+
+        final CountDownLatch latch = new CountDownLatch(THREADS);
+        final AtomicLong errors = new AtomicLong();
+        long start = System.nanoTime();
+        for (int t = 0; t < THREADS; t++) {
+            final int seed = t;
+            new Thread() {
+                public void run() {
+                    Random random = new Random(seed);
+                    try {
+                        for (int i = 0; i < OPERATIONS / THREADS; i++) {
+                            StandardSession session = sessions[random.nextInt(SESSIONS)];
+                            if (random.nextInt(4) == 0) {
+                                store.load(session.getIdInternal());
+                            } else {
+                                synchronized (session) {
+                                    store.save(session);
+                                }
+                            }
+                        }
+                    } catch (Exception e) {
+                        errors.incrementAndGet();
+                        e.printStackTrace();
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            }.start();
+        }
+        latch.await();
+        store.stop();
+        long time = (System.nanoTime() - start) / 1000000L;
+
+        System.out.println("writeDelay=" + writeDelay + " threads=" + THREADS + " operations="
+                + OPERATIONS + " time=" + time + "ms throughput="
+                + (OPERATIONS * 1000L / Math.max(time, 1)) + "/s errors=" + errors.get());
+    }
+
+}
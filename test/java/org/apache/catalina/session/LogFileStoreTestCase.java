@@ -0,0 +1,303 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.catalina.session;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.catalina.core.StandardContext;
+
+public class LogFileStoreTestCase extends TestCase {
+
+    /**
+     * Construct a new instance of this test case.
+     *
+     * @param name Name of the test case
+     */
+    public LogFileStoreTestCase(String name) {
+        super(name);
+    }
+
+    /**
+     * Return the tests included in this test suite.
+     */
+    public static Test suite() {
+        return (new TestSuite(LogFileStoreTestCase.class));
+    }
+
+    protected File directory;
+    protected PersistentManager manager;
+
+    public void setUp() throws Exception {
+        directory = File.createTempFile("logFileStore", "");
+        directory.delete();
+        directory.mkdirs();
+        manager = new PersistentManager();
+        manager.setContainer(new StandardContext());
+    }
+
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        for (int i = 0; i < files.length; i++) {
+            files[i].delete();
+        }
+        directory.delete();
+    }
+
+    protected LogFileStore createStore() throws Exception {
+        LogFileStore store = new LogFileStore();
+        store.setManager(manager);
+        store.setDirectory(directory.getAbsolutePath());
+        store.setShardCount(2);
+        store.setSegmentSize(4096);
+        store.setCompactionInterval(0);
+        store.start();
+        return store;
+    }
+
+    protected StandardSession createSession(String id, String value) {
+        StandardSession session = new StandardSession(manager);
+        session.setValid(true);
+        session.setCreationTime(System.currentTimeMillis());
+        session.setMaxInactiveInterval(1800);
+        session.id = id;
+        session.setAttribute("value", value, false);
+        return session;
+    }
+
+    protected String value(LogFileStore store, String id) throws Exception {
+        StandardSession session = (StandardSession) store.load(id);
+        return (session == null) ? null : (String) session.getAttribute("value");
+    }
+
+    public void testSaveLoadRemove() throws Exception {
+        LogFileStore store = createStore();
+        for (int i = 0; i < 100; i++) {
+            store.save(createSession("session" + i, "value" + i));
+        }
+        store.save(createSession("session5", "updated"));
+        store.remove("session7");
+        assertEquals(99, store.getSize());
+        assertEquals(99, store.keys().length);
+        assertEquals("value4", value(store, "session4"));
+        assertEquals("updated", value(store, "session5"));
+        assertNull(value(store, "session7"));
+        assertTrue(store.getSegmentCount() > 2);
+        store.stop();
+    }
+
+    public void testRecovery() throws Exception {
+        LogFileStore store = createStore();
+        for (int i = 0; i < 50; i++) {
+            store.save(createSession("session" + i, "value" + i));
+        }
+        store.save(createSession("session5", "updated"));
+        store.remove("session7");
+        store.stop();
+
+        // Simulate an incomplete write at the end of a segment
+        File[] files = directory.listFiles();
+        RandomAccessFile file = new RandomAccessFile(files[0], "rw");
+        file.seek(file.length());
+        file.writeInt(1000);
+        file.writeLong(12L);
+        file.close();
+
+        store = createStore();
+        assertEquals(49, store.getSize());
+        assertEquals("value4", value(store, "session4"));
+        assertEquals("updated", value(store, "session5"));
+        assertNull(value(store, "session7"));
+        store.save(createSession("session51", "value51"));
+        assertEquals("value51", value(store, "session51"));
+        store.stop();
+    }
+
+    public void testDamagedSegment() throws Exception {
+        LogFileStore store = createStore();
+        for (int i = 0; i < 100; i++) {
+            store.save(createSession("session" + i, "value" + i));
+        }
+        store.stop();
+
+        // Damage the first record of the oldest segment, which is not the
+        // last segment of its shard
+        File[] files = directory.listFiles();
+        File oldest = null;
+        long oldestGeneration = Long.MAX_VALUE;
+        for (int i = 0; i < files.length; i++) {
+            String name = files[i].getName();
+            long generation = Long.parseLong(name.substring(name.lastIndexOf('-') + 1,
+                    name.length() - LogFileStore.FILE_EXT.length()));
+            if (generation < oldestGeneration) {
+                oldest = files[i];
+                oldestGeneration = generation;
+            }
+        }
+        long length = oldest.length();
+        RandomAccessFile file = new RandomAccessFile(oldest, "rw");
+        file.seek(30);
+        int b = file.read();
+        file.seek(30);
+        file.write(b ^ 0xff);
+        file.close();
+
+        // Only the damaged record is lost, and the segment is kept
+        store = createStore();
+        assertEquals(99, store.getSize());
+        assertEquals(length, oldest.length());
+        int found = 0;
+        for (int i = 0; i < 100; i++) {
+            if (value(store, "session" + i) != null) {
+                found++;
+            }
+        }
+        assertEquals(99, found);
+        store.stop();
+    }
+
+    public void testCompaction() throws Exception {
+        LogFileStore store = createStore();
+        for (int j = 0; j < 10; j++) {
+            for (int i = 0; i < 20; i++) {
+                store.save(createSession("session" + i, "value" + i + "-" + j));
+            }
+        }
+        store.remove("session3");
+        int segments = store.getSegmentCount();
+        store.compact();
+        assertTrue(store.getSegmentCount() < segments);
+        assertEquals(19, store.getSize());
+        assertEquals("value4-9", value(store, "session4"));
+        assertNull(value(store, "session3"));
+        store.stop();
+
+        store = createStore();
+        assertEquals(19, store.getSize());
+        assertEquals("value4-9", value(store, "session4"));
+        assertNull(value(store, "session3"));
+        store.stop();
+    }
+
+    public void testDeltas() throws Exception {
+        manager.setMaxDeltaSaves(3);
+        manager.setStore(createStore());
+        LogFileStore store = (LogFileStore) manager.getStore();
+        StandardSession session = createSession("session1", "value1");
+        session.setAttribute("removed", "removed", false);
+        manager.storeSave(session);
+        assertEquals(0, session.storedDeltas);
+        session.setAttribute("value", "value2", false);
+        session.removeAttribute("removed", false);
+        manager.storeSave(session);
+        session.setAttribute("counter", Integer.valueOf(3), false);
+        manager.storeSave(session);
+        assertEquals(2, session.storedDeltas);
+        assertEquals(1, manager.getFullSaves());
+        assertEquals(2, manager.getDeltaSaves());
+
+        StandardSession loaded = (StandardSession) store.load("session1");
+        assertEquals("value2", loaded.getAttribute("value"));
+        assertEquals(Integer.valueOf(3), loaded.getAttribute("counter"));
+        assertNull(loaded.getAttribute("removed"));
+        assertEquals(2, loaded.storedDeltas);
+
+        // Filler sessions so that the segment of the session is compacted
+        LogFileStore.Segment segment = store.index.get("session1").segment;
+        for (int i = 0; i < 200; i++) {
+            store.save(createSession("filler" + i, "value" + i));
+        }
+        for (int i = 0; i < 200; i++) {
+            store.remove("filler" + i);
+        }
+        store.compact();
+        assertNotSame(segment, store.index.get("session1").segment);
+        assertEquals("value2", value(store, "session1"));
+        store.stop();
+
+        store = createStore();
+        loaded = (StandardSession) store.load("session1");
+        assertEquals("value2", loaded.getAttribute("value"));
+        assertEquals(Integer.valueOf(3), loaded.getAttribute("counter"));
+        assertNull(loaded.getAttribute("removed"));
+
+        // The next saves are deltas until maxDeltaSaves is reached
+        manager.setStore(store);
+        loaded.setAttribute("value", "value3", false);
+        manager.storeSave(loaded);
+        assertEquals(3, loaded.storedDeltas);
+        manager.storeSave(loaded);
+        assertEquals(0, loaded.storedDeltas);
+        assertEquals(2, manager.getFullSaves());
+        assertEquals("value3", value(store, "session1"));
+        store.stop();
+    }
+
+    /**
+     * Store whose appends of deltas fail on demand.
+     */
+    protected static class FailingLogFileStore extends LogFileStore {
+        protected boolean fail = false;
+        protected Location append(Shard shard, String id, long recordSequence,
+                long lastAccessed, int maxInactive, byte type, byte[] data)
+                throws IOException {
+            if (fail && type == TYPE_DELTA) {
+                throw new IOException("Failed append");
+            }
+            return super.append(shard, id, recordSequence, lastAccessed,
+                    maxInactive, type, data);
+        }
+    }
+
+    public void testFailedDelta() throws Exception {
+        FailingLogFileStore store = new FailingLogFileStore();
+        store.setManager(manager);
+        store.setDirectory(directory.getAbsolutePath());
+        store.setCompactionInterval(0);
+        store.start();
+        manager.setMaxDeltaSaves(3);
+        manager.setStore(store);
+        StandardSession session = createSession("session1", "value1");
+        manager.storeSave(session);
+
+        session.setAttribute("value", "value2", false);
+        store.fail = true;
+        try {
+            manager.storeSave(session);
+            fail();
+        } catch (IOException e) {
+            // Expected
+        }
+        assertEquals(-1, session.storedDeltas);
+        assertTrue(session.dirtyAttributes.contains("value"));
+
+        // The changes of the failed delta are written by a full save
+        store.fail = false;
+        manager.storeSave(session);
+        assertEquals(0, session.storedDeltas);
+        assertEquals(2, manager.getFullSaves());
+        assertEquals("value2", value(store, "session1"));
+        store.stop();
+    }
+
+}
@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.catalina.session;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.catalina.core.StandardContext;
+
+/**
+ * Concurrency benchmark of the session access bookkeeping, with many threads
+ * accessing a single session as a request would, and then expiring sessions
+ * concurrently to update the statistics of the manager.
+ */
+public class SessionAccessBenchmark {
+
+    protected static final int THREADS = Integer.getInteger("benchmark.threads", 64).intValue();
+    protected static final int OPERATIONS = Integer.getInteger("benchmark.operations", 10000000).intValue();
+    protected static final int SESSIONS = Integer.getInteger("benchmark.sessions", 100000).intValue();
+
+    public static void main(String[] args) throws Exception {
+        StandardContext context = new StandardContext();
+        context.setName("/benchmark");
+        StandardManager manager = new StandardManager();
+        manager.setContainer(context);
+
+        for (int i = 0; i < 3; i++) {
+            access(manager);
+        }
+        expire(manager);
+    }
+
+    protected static StandardSession createSession(StandardManager manager, String id) {
+        StandardSession session = new StandardSession(manager);
+        session.setValid(true);
+        session.setCreationTime(System.currentTimeMillis());
+        session.setMaxInactiveInterval(1800);
+        session.id = id;
+        manager.add(session);
+        return session;
+    }
+
+    protected static void access(StandardManager manager) throws Exception {
+        final StandardSession session = createSession(manager, "popular");
+        session.setAttribute("user", "kiosk", false);
+
+        final AtomicLong errors = new AtomicLong();
+        long time = run(new Runnable() {
+            public void run() {
+                for (int i = 0; i < OPERATIONS / THREADS; i++) {
+                    session.access();
+                    if (!session.isValid() || session.getAttribute("user") == null) {
+                        errors.incrementAndGet();
+                    }
+                    session.endAccess();
+                }
+            }
+        });
+        manager.remove(session);
+
+        System.out.println("access threads=" + THREADS + " operations=" + OPERATIONS
+                + " time=" + time + "ms throughput="
+                + (OPERATIONS * 1000L / Math.max(time, 1)) + "/s errors=" + errors.get());
+    }
+
+    protected static void expire(StandardManager manager) throws Exception {
+        final StandardSession[] sessions = new StandardSession[SESSIONS];
+        for (int i = 0; i < SESSIONS; i++) {
+            sessions[i] = createSession(manager, "session" + i);
+        }
+
+        long time = run(new Runnable() {
+            int next = 0;
+            public void run() {
+                int n;
+                synchronized (this) {
+                    n = next++;
+                }
+                for (int i = n; i < SESSIONS; i += THREADS) {
+                    sessions[i].expire();
+                }
+            }
+        });
+
+        System.out.println("expire threads=" + THREADS + " sessions=" + SESSIONS
+                + " time=" + time + "ms throughput="
+                + (SESSIONS * 1000L / Math.max(time, 1)) + "/s expired="
+                + manager.getExpiredSessions());
+    }
+
+    protected static long run(final Runnable task) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch latch = new CountDownLatch(THREADS);
+        for (int t = 0; t < THREADS; t++) {
+            new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        task.run();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            }.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        latch.await();
+        return (System.nanoTime() - begin) / 1000000L;
+    }
+
+}
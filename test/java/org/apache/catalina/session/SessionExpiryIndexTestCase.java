@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.catalina.session;
+
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.catalina.core.StandardContext;
+
+public class SessionExpiryIndexTestCase extends TestCase {
+
+    /**
+     * Construct a new instance of this test case.
+     *
+     * @param name Name of the test case
+     */
+    public SessionExpiryIndexTestCase(String name) {
+        super(name);
+    }
+
+    /**
+     * Return the tests included in this test suite.
+     */
+    public static Test suite() {
+        return (new TestSuite(SessionExpiryIndexTestCase.class));
+    }
+
+    public void testPollOrder() {
+        SessionExpiryIndex index = new SessionExpiryIndex(1000L);
+        StandardSession[] sessions = new StandardSession[10];
+        for (int i = 0; i < sessions.length; i++) {
+            sessions[i] = new StandardSession(null);
+            index.schedule(sessions[i], 10000L + i * 1000L);
+        }
+        assertEquals(10, index.getSize());
+        assertTrue(index.poll(9999L).isEmpty());
+        List<StandardSession> due = index.poll(12500L);
+        assertEquals(3, due.size());
+        assertTrue(due.contains(sessions[0]));
+        assertTrue(due.contains(sessions[2]));
+        assertFalse(due.contains(sessions[3]));
+        assertEquals(7, index.getSize());
+        assertEquals(-1, sessions[0].expiryIndexKey);
+    }
+
+    public void testRescheduleAndRemove() {
+        SessionExpiryIndex index = new SessionExpiryIndex(1000L);
+        StandardSession session1 = new StandardSession(null);
+        StandardSession session2 = new StandardSession(null);
+        index.reschedule(session1, 5000L);
+        assertEquals(0, index.getSize());
+        index.schedule(session1, 5000L);
+        index.schedule(session2, 5000L);
+        index.reschedule(session1, 20000L);
+        index.remove(session2);
+        assertEquals(1, index.getSize());
+        assertTrue(index.poll(10000L).isEmpty());
+        // Sessions are never scheduled in a bucket which was already polled
+        index.schedule(session2, 1000L);
+        assertTrue(index.poll(10000L).isEmpty());
+        assertEquals(1, index.poll(11000L).size());
+        assertEquals(1, index.poll(20000L).size());
+        assertEquals(0, index.getSize());
+        index.schedule(session1, Long.MAX_VALUE);
+        assertEquals(0, index.getSize());
+    }
+
+    public void testInfiniteThenFiniteInterval() {
+        PersistentManager manager = new PersistentManager();
+        manager.setContainer(new StandardContext());
+        StandardSession session = new StandardSession(manager);
+        session.setValid(true);
+        session.setCreationTime(System.currentTimeMillis() - 10000L);
+        session.setMaxInactiveInterval(-1);
+        session.setId("session");
+        assertEquals(-1, session.expiryIndexKey);
+
+        // The session is indexed once it can expire
+        session.setMaxInactiveInterval(1);
+        assertTrue(session.expiryIndexKey != -1);
+        manager.processExpires();
+        assertFalse(session.isValidInternal());
+        assertEquals(0, manager.getActiveSessions());
+
+        // A session which is not active is not indexed again
+        session.setMaxInactiveInterval(-1);
+        session.setMaxInactiveInterval(1);
+        assertEquals(-1, session.expiryIndexKey);
+    }
+
+    public void testExpiredStatistics() {
+        PersistentManager manager = new PersistentManager();
+        manager.setContainer(new StandardContext());
+        for (int i = 0; i < 2; i++) {
+            StandardSession session = new StandardSession(manager);
+            session.setValid(true);
+            session.setCreationTime(System.currentTimeMillis() - (i + 1) * 10000L);
+            session.setMaxInactiveInterval(1);
+            session.setId("session" + i);
+        }
+        manager.processExpires();
+        assertEquals(0, manager.getActiveSessions());
+        // Each expiration is counted once
+        assertEquals(2, manager.getExpiredSessions());
+        assertEquals(20, manager.getSessionMaxAliveTime());
+        assertEquals(15, manager.getSessionAverageAliveTime());
+
+        // Resetting the count does not change the average
+        manager.setExpiredSessions(0);
+        assertEquals(15, manager.getSessionAverageAliveTime());
+    }
+
+}
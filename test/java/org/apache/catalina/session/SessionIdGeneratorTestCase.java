@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.catalina.session;
+
+import java.util.HashSet;
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class SessionIdGeneratorTestCase extends TestCase {
+
+    /**
+     * Construct a new instance of this test case.
+     *
+     * @param name Name of the test case
+     */
+    public SessionIdGeneratorTestCase(String name) {
+        super(name);
+    }
+
+    /**
+     * Return the tests included in this test suite.
+     */
+    public static Test suite() {
+        return (new TestSuite(SessionIdGeneratorTestCase.class));
+    }
+
+    public void testEncode() throws Exception {
+        byte[] bytes = new byte[] { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 };
+        String id = new String(ManagerBase.encode(bytes));
+        assertEquals(16, id.length());
+        assertEquals(id + ".node1", new String(ManagerBase.encode(bytes, "node1")));
+    }
+
+    public void testGenerate() throws Exception {
+        SessionIdGenerator generator = new SessionIdGenerator(18, 4, 0);
+        HashSet<String> ids = new HashSet<String>();
+        for (int i = 0; i < 1000; i++) {
+            String id = generator.generateSessionId(new Random(), "node1");
+            assertEquals(24 + 6, id.length());
+            assertTrue(id.endsWith(".node1"));
+            assertTrue(ids.add(id));
+        }
+        assertEquals(0, generator.getQueueDepth());
+    }
+
+    public void testQueue() throws Exception {
+        SessionIdGenerator generator = new SessionIdGenerator(18, 0, 16);
+        HashSet<String> ids = new HashSet<String>();
+        assertTrue(ids.add(generator.generateSessionId(null, null)));
+        for (int i = 0; i < 100 && generator.getQueueDepth() < 16; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(16, generator.getQueueDepth());
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(ids.add(generator.generateSessionId(null, null)));
+        }
+        generator.stop();
+        assertEquals(0, generator.getQueueDepth());
+        assertTrue(ids.add(generator.generateSessionId(null, null)));
+    }
+
+}
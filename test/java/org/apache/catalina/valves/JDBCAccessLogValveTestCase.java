@@ -0,0 +1,229 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.catalina.valves;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.catalina.core.StandardContext;
+
+/**
+ * Tests of the batched mode of the JDBC access log valve against an
+ * embedded database. The driver and URL are given using the
+ * <code>test.driver</code> and <code>test.url</code> system properties, and
+ * default to an in memory Derby database, which must be in the classpath.
+ * The URL given by <code>test.missingUrl</code> must refer to a database
+ * which cannot be opened.
+ */
+public class JDBCAccessLogValveTestCase extends TestCase {
+
+    protected static final String DRIVER =
+        System.getProperty("test.driver", "org.apache.derby.jdbc.EmbeddedDriver");
+    protected static final String URL =
+        System.getProperty("test.url", "jdbc:derby:memory:accesslog;create=true");
+    protected static final String MISSING_URL =
+        System.getProperty("test.missingUrl", "jdbc:derby:memory:missing");
+
+    /**
+     * Construct a new instance of this test case.
+     *
+     * @param name Name of the test case
+     */
+    public JDBCAccessLogValveTestCase(String name) {
+        super(name);
+    }
+
+    /**
+     * Return the tests included in this test suite.
+     */
+    public static Test suite() {
+        return (new TestSuite(JDBCAccessLogValveTestCase.class));
+    }
+
+    protected File spool;
+
+    public void setUp() throws Exception {
+        spool = File.createTempFile("accesslog", ".spool");
+        spool.delete();
+        execute("CREATE TABLE access (remoteHost VARCHAR(64), userName VARCHAR(64), "
+                + "ts TIMESTAMP, query VARCHAR(255), status INT, bytes INT)");
+    }
+
+    public void tearDown() throws Exception {
+        spool.delete();
+        execute("DROP TABLE access");
+    }
+
+    protected static Connection connect() throws Exception {
+        Driver driver = (Driver) Class.forName(DRIVER).newInstance();
+        return driver.connect(URL, new Properties());
+    }
+
+    protected static void execute(String sql) throws Exception {
+        Connection conn = connect();
+        Statement stmt = conn.createStatement();
+        try {
+            stmt.execute(sql);
+        } catch (SQLException e) {
+            // Already created or dropped
+        }
+        stmt.close();
+        conn.close();
+    }
+
+    protected static int countRows() throws Exception {
+        Connection conn = connect();
+        Statement stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM access");
+        rs.next();
+        int count = rs.getInt(1);
+        rs.close();
+        stmt.close();
+        conn.close();
+        return count;
+    }
+
+    protected JDBCAccessLogValve createValve(String url) {
+        JDBCAccessLogValve valve = new JDBCAccessLogValve();
+        valve.setContainer(new StandardContext());
+        valve.setDriverName(DRIVER);
+        valve.setConnectionURL(url);
+        valve.setTimestampField("ts");
+        valve.setBatch(true);
+        valve.setBatchSize(10);
+        valve.setBatchDelay(50);
+        valve.setSpoolFile(spool.getAbsolutePath());
+        return valve;
+    }
+
+    protected static List<JDBCAccessLogValve.AccessLogRecord> createRecords(int count) {
+        List<JDBCAccessLogValve.AccessLogRecord> records =
+            new ArrayList<JDBCAccessLogValve.AccessLogRecord>();
+        for (int i = 0; i < count; i++) {
+            records.add(new JDBCAccessLogValve.AccessLogRecord("127.0.0.1", "user",
+                    System.currentTimeMillis(), "/page" + i, 200, i, null, null,
+                    null, null));
+        }
+        return records;
+    }
+
+    public void testBatch() throws Exception {
+        JDBCAccessLogValve valve = createValve(URL);
+        valve.start();
+        List<JDBCAccessLogValve.AccessLogRecord> records = createRecords(25);
+        for (int i = 0; i < records.size(); i++) {
+            assertTrue(valve.queue.offer(records.get(i)));
+        }
+        valve.stop();
+        assertEquals(25, valve.getWrittenCount());
+        assertEquals(0, valve.getSpooledCount());
+        assertEquals(0, valve.getDroppedCount());
+        assertEquals(25, countRows());
+    }
+
+    public void testSpoolReplay() throws Exception {
+        // The records are spooled while the database cannot be opened
+        JDBCAccessLogValve valve = createValve(MISSING_URL);
+        valve.flush(createRecords(5));
+        assertEquals(5, valve.getSpooledCount());
+        assertEquals(0, valve.getWrittenCount());
+        assertTrue(spool.length() > 0);
+
+        // The spool is replayed once the database is available
+        valve = createValve(URL);
+        valve.flush(createRecords(3));
+        assertEquals(8, valve.getWrittenCount());
+        assertFalse(spool.exists());
+        assertEquals(8, countRows());
+        valve.close();
+    }
+
+    public void testUnreadableSpool() throws Exception {
+        JDBCAccessLogValve valve = createValve(MISSING_URL);
+        valve.flush(createRecords(5));
+
+        // A truncated record
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(spool, true));
+        out.writeBoolean(true);
+        out.writeInt(100);
+        out.write(new byte[] { 'a', 'b' });
+        out.close();
+
+        // The spool is set aside, and the new records are written
+        valve = createValve(URL);
+        valve.flush(createRecords(2));
+        assertEquals(2, valve.getWrittenCount());
+        assertFalse(spool.exists());
+        File[] corrupt = spool.getParentFile().listFiles();
+        int found = 0;
+        for (int i = 0; i < corrupt.length; i++) {
+            if (corrupt[i].getName().startsWith(spool.getName())
+                    && corrupt[i].getName().endsWith(".corrupt")) {
+                found++;
+                corrupt[i].delete();
+            }
+        }
+        assertEquals(1, found);
+        assertEquals(2, countRows());
+        valve.close();
+    }
+
+    public void testLongValue() throws Exception {
+        StringBuilder query = new StringBuilder();
+        for (int i = 0; i < 70000; i++) {
+            query.append('\u00e9');
+        }
+        List<JDBCAccessLogValve.AccessLogRecord> records =
+            new ArrayList<JDBCAccessLogValve.AccessLogRecord>();
+        records.add(new JDBCAccessLogValve.AccessLogRecord("127.0.0.1", null,
+                System.currentTimeMillis(), query.toString(), 200, 0, null,
+                null, null, null));
+        records.addAll(createRecords(1));
+
+        // Values which do not fit writeUTF are spooled entirely
+        JDBCAccessLogValve valve = createValve(MISSING_URL);
+        valve.flush(records);
+        assertEquals(2, valve.getSpooledCount());
+        DataInputStream in = new DataInputStream(new FileInputStream(spool));
+        try {
+            JDBCAccessLogValve.AccessLogRecord record =
+                JDBCAccessLogValve.AccessLogRecord.read(in);
+            assertEquals(query.toString(), record.query);
+            assertNull(record.user);
+            assertEquals("/page0", JDBCAccessLogValve.AccessLogRecord.read(in).query);
+        } finally {
+            in.close();
+        }
+    }
+
+}
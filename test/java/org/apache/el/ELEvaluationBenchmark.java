@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.el;
+
+import javax.el.ArrayELResolver;
+import javax.el.BeanELResolver;
+import javax.el.CompositeELResolver;
+import javax.el.ELContext;
+import javax.el.ExpressionFactory;
+import javax.el.ListELResolver;
+import javax.el.MapELResolver;
+import javax.el.ResourceBundleELResolver;
+import javax.el.ValueExpression;
+
+import org.apache.el.lang.ELCompiler;
+import org.apache.jasper.el.ELContextImpl;
+
+/**
+ * Benchmark of the evaluation of property chains, arithmetic and method calls,
+ * interpreted and compiled. The compiled tier is enabled by this benchmark
+ * unless the <code>org.apache.el.lang.COMPILE_THRESHOLD</code> system property
+ * is set.
+ */
+public class ELEvaluationBenchmark {
+
+    protected static final int ITERATIONS = Integer.getInteger("benchmark.iterations", 10000000).intValue();
+    protected static final int ROUNDS = Integer.getInteger("benchmark.rounds", 5).intValue();
+
+    protected static final String[] EXPRESSIONS = new String[] {
+        "${bean.name}",
+        "${bean.next.next.name}",
+        "${bean['next'].count}",
+        "${bean.count * 2 + bean.next.count}",
+        "${bean.concat(bean.name, bean.count)}"
+    };
+
+    public static class Bean {
+        protected Bean next;
+        public String getName() {
+            return "bean";
+        }
+        public int getCount() {
+            return 42;
+        }
+        public Bean getNext() {
+            return next;
+        }
+        public String concat(String s, int i) {
+            return s;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (System.getProperty("org.apache.el.lang.COMPILE_THRESHOLD") == null) {
+            System.setProperty("org.apache.el.lang.COMPILE_THRESHOLD", "1000");
+        }
+        ExpressionFactory factory = new ExpressionFactoryImpl();
+        Bean bean = new Bean();
+        bean.next = new Bean();
+        bean.next.next = new Bean();
+
+        ELContext interpreted = createContext(factory, bean);
+        ELContext compiled = createContext(factory, bean);
+        ELCompiler.setStandardResolver(compiled, new ELCompiler.Cache());
+
+        for (int i = 0; i < EXPRESSIONS.length; i++) {
+            ValueExpression expression =
+                factory.createValueExpression(compiled, EXPRESSIONS[i], Object.class);
+            for (int round = 0; round < ROUNDS; round++) {
+                long interpretedTime = run(expression, interpreted);
+                long compiledTime = run(expression, compiled);
+                System.out.println(EXPRESSIONS[i] + " round=" + round
+                        + " iterations=" + ITERATIONS
+                        + " interpreted=" + interpretedTime + "ms compiled="
+                        + compiledTime + "ms");
+            }
+        }
+    }
+
+    protected static ELContext createContext(ExpressionFactory factory, Bean bean) {
+        CompositeELResolver resolver = new CompositeELResolver();
+        resolver.add(new MapELResolver());
+        resolver.add(new ResourceBundleELResolver());
+        resolver.add(new ListELResolver());
+        resolver.add(new ArrayELResolver());
+        resolver.add(new BeanELResolver());
+        ELContext context = new ELContextImpl(resolver);
+        context.getVariableMapper().setVariable("bean",
+                factory.createValueExpression(bean, Bean.class));
+        return context;
+    }
+
+    protected static long run(ValueExpression expression, ELContext context) {
+        Object result = null;
+        long begin = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            result = expression.getValue(context);
+        }
+        if (result == null) {
+            throw new IllegalStateException();
+        }
+        return (System.nanoTime() - begin) / 1000000L;
+    }
+
+}
@@ -0,0 +1,218 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.el.lang;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.el.ArrayELResolver;
+import javax.el.BeanELResolver;
+import javax.el.CompositeELResolver;
+import javax.el.ELContext;
+import javax.el.ELException;
+import javax.el.ELResolver;
+import javax.el.ExpressionFactory;
+import javax.el.ListELResolver;
+import javax.el.MapELResolver;
+import javax.el.ResourceBundleELResolver;
+import javax.el.ValueExpression;
+
+import org.apache.el.ExpressionFactoryImpl;
+import org.apache.jasper.el.ELContextImpl;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class ELCompilerTestCase extends TestCase {
+
+    static {
+        if (System.getProperty("org.apache.el.lang.COMPILE_THRESHOLD") == null) {
+            System.setProperty("org.apache.el.lang.COMPILE_THRESHOLD", "2");
+        }
+    }
+
+    /**
+     * Construct a new instance of this test case.
+     *
+     * @param name Name of the test case
+     */
+    public ELCompilerTestCase(String name) {
+        super(name);
+    }
+
+    /**
+     * Return the tests included in this test suite.
+     */
+    public static Test suite() {
+        return (new TestSuite(ELCompilerTestCase.class));
+    }
+
+    public static class Bean {
+        public String getName() {
+            return "bean";
+        }
+        public int getCount() {
+            return 42;
+        }
+        public Bean getNext() {
+            return this;
+        }
+        public String getFailure() {
+            throw new IllegalStateException("failure");
+        }
+        public String concat(String s, int i) {
+            return s + i;
+        }
+    }
+
+    public interface Named {
+        public String getName();
+    }
+
+    static class HiddenBean implements Named {
+        public String getName() {
+            return "hidden";
+        }
+    }
+
+    protected static ELContext createContext() {
+        CompositeELResolver resolver = new CompositeELResolver();
+        resolver.add(new MapELResolver());
+        resolver.add(new ResourceBundleELResolver());
+        resolver.add(new ListELResolver());
+        resolver.add(new ArrayELResolver());
+        resolver.add(new BeanELResolver());
+        ELContext context = new ELContextImpl(resolver);
+        ELCompiler.setStandardResolver(context, new ELCompiler.Cache());
+        return context;
+    }
+
+    public void testStandardResolver() throws Exception {
+        ELContext context = createContext();
+        assertTrue(ELCompiler.isStandardResolver(context));
+        assertFalse(ELCompiler.isStandardResolver(
+                new ELContextImpl(new BeanELResolver())));
+    }
+
+    public void testProperty() throws Exception {
+        ELContext context = createContext();
+        ELResolver resolver = context.getELResolver();
+        ELCompiler.PropertyCache cache = new ELCompiler.PropertyCache("name");
+        assertEquals("bean", cache.getValue(context, resolver, new Bean()));
+        assertTrue(context.isPropertyResolved());
+        assertEquals("hidden", cache.getValue(context, resolver, new HiddenBean()));
+        ELCompiler.PropertyCache count = new ELCompiler.PropertyCache("count");
+        assertEquals(Integer.valueOf(42), count.getValue(context, resolver, new Bean()));
+
+        // Maps are resolved by the resolver
+        Map<String, String> map = new HashMap<String, String>();
+        map.put("name", "map");
+        assertEquals("map", cache.getValue(context, resolver, map));
+    }
+
+    public void testMiss() throws Exception {
+        ELContext context = createContext();
+        ELResolver resolver = context.getELResolver();
+        ELCompiler.PropertyCache cache = new ELCompiler.PropertyCache("name");
+        Map<String, String> map = new HashMap<String, String>();
+        map.put("name", "map");
+
+        // A class without a handle is recorded once, and then resolved
+        // without being looked up again
+        for (int i = 0; i < 3; i++) {
+            assertEquals("map", cache.getValue(context, resolver, map));
+        }
+        assertEquals(1, cache.size());
+        ELCompiler.PropertyCache missing = new ELCompiler.PropertyCache("missing");
+        for (int i = 0; i < 3; i++) {
+            try {
+                missing.getValue(context, resolver, new Bean());
+                fail();
+            } catch (ELException e) {
+                // Expected
+            }
+        }
+        assertEquals(1, missing.size());
+        assertEquals("bean", cache.getValue(context, resolver, new Bean()));
+        assertEquals(2, cache.size());
+
+        ELCompiler.MethodCache method = new ELCompiler.MethodCache("get", 1);
+        for (int i = 0; i < 3; i++) {
+            assertEquals("map", method.invoke(context, resolver, map,
+                    new Object[] { "name" }));
+        }
+        assertEquals(1, method.size());
+    }
+
+    public void testException() throws Exception {
+        ELContext context = createContext();
+        ELCompiler.PropertyCache cache = new ELCompiler.PropertyCache("failure");
+        try {
+            cache.getValue(context, context.getELResolver(), new Bean());
+            fail();
+        } catch (ELException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    public void testMethod() throws Exception {
+        ELContext context = createContext();
+        ELCompiler.MethodCache cache = new ELCompiler.MethodCache("concat", 2);
+        assertEquals("a1", cache.invoke(context, context.getELResolver(),
+                new Bean(), new Object[] { "a", "1" }));
+        assertTrue(context.isPropertyResolved());
+    }
+
+    public void testMegamorphic() throws Exception {
+        ELContext context = createContext();
+        ELResolver resolver = context.getELResolver();
+        ELCompiler.PropertyCache cache = new ELCompiler.PropertyCache("class");
+        Object[] bases = new Object[] { new Bean(), new HiddenBean(),
+                new Object(), "s", Integer.valueOf(1), Long.valueOf(1) };
+        for (int i = 0; i < bases.length; i++) {
+            assertSame(bases[i].getClass(), cache.getValue(context, resolver, bases[i]));
+        }
+    }
+
+    public void testApplications() throws Exception {
+        ExpressionFactory factory = new ExpressionFactoryImpl();
+        ELContext first = createContext();
+        first.getVariableMapper().setVariable("bean",
+                factory.createValueExpression(new Bean(), Bean.class));
+        ValueExpression expression =
+            factory.createValueExpression(first, "${bean.next.name}", Object.class);
+        for (int i = 0; i <= ELCompiler.COMPILE_THRESHOLD; i++) {
+            assertEquals("bean", expression.getValue(first));
+        }
+        assertEquals(1, ELCompiler.getCache(first).size());
+
+        // The compiled steps and the evaluation counts are kept by the
+        // application which uses them
+        ELContext second = createContext();
+        assertEquals(0, ELCompiler.getCache(second).size());
+        for (int i = 0; i < ELCompiler.COMPILE_THRESHOLD; i++) {
+            assertEquals("bean", expression.getValue(second));
+            assertEquals(0, ELCompiler.getCache(second).size());
+        }
+        assertEquals("bean", expression.getValue(second));
+        assertEquals(1, ELCompiler.getCache(second).size());
+        assertNull(ELCompiler.getCache(new ELContextImpl(new BeanELResolver())));
+    }
+
+}
@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jasper.compiler;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+import org.apache.catalina.deploy.jsp.FunctionInfo;
+import org.apache.catalina.deploy.jsp.TagLibraryInfo;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class ELOptimizerTestCase extends TestCase {
+
+    /**
+     * Construct a new instance of this test case.
+     *
+     * @param name Name of the test case
+     */
+    public ELOptimizerTestCase(String name) {
+        super(name);
+    }
+
+    /**
+     * Return the tests included in this test suite.
+     */
+    public static Test suite() {
+        return (new TestSuite(ELOptimizerTestCase.class));
+    }
+
+    /**
+     * Web application with the pages of the precompilation test.
+     */
+    protected PrecompileTestCase webapp;
+
+    protected void setUp() throws Exception {
+        webapp = new PrecompileTestCase("webapp");
+        webapp.setUp();
+        TagLibraryInfo taglib = new TagLibraryInfo();
+        taglib.setTlibversion("1.0");
+        taglib.setJspversion("2.1");
+        taglib.setShortname("m");
+        taglib.addFunctionInfo(createFunction("abs", "java.lang.Math",
+                "int abs(int)"));
+        taglib.addFunctionInfo(createFunction("max", "java.lang.Math",
+                "long max(long, long)"));
+        taglib.addFunctionInfo(createFunction("forName", "java.lang.Class",
+                "java.lang.Class forName(java.lang.String)"));
+        webapp.tagLibraries.put("/WEB-INF/math.tld", taglib);
+    }
+
+    protected static FunctionInfo createFunction(String name,
+            String functionClass, String signature) {
+        FunctionInfo function = new FunctionInfo();
+        function.setName(name);
+        function.setFunctionClass(functionClass);
+        function.setFunctionSignature(signature);
+        return function;
+    }
+
+    protected void tearDown() throws Exception {
+        webapp.tearDown();
+    }
+
+    /**
+     * Compile a page and return the generated Java source.
+     */
+    protected String generate(String content) throws Exception {
+        webapp.write("a.jsp", "<%@ taglib prefix=\"m\" uri=\"/WEB-INF/math.tld\" %>"
+                + content);
+        webapp.initParameters.setProperty("keepgenerated", "true");
+        webapp.precompile().destroy();
+        File java = new File(webapp.scratch, "org/apache/jsp/a_jsp.java");
+        Reader reader = new InputStreamReader(new FileInputStream(java), "UTF-8");
+        StringBuilder source = new StringBuilder();
+        char[] buf = new char[4096];
+        int n;
+        while ((n = reader.read(buf)) > 0) {
+            source.append(buf, 0, n);
+        }
+        reader.close();
+        return source.toString();
+    }
+
+    public void testConstants() throws Exception {
+        String source = generate("<p>${'literal'} ${1 + 2} ${true ? 'a' : 'b'}"
+                + " ${2 > 1} ${null}</p>");
+        assertEquals(-1, source.indexOf("proprietaryEvaluate"));
+        assertTrue(source.indexOf("<p>literal 3 a true </p>") >= 0);
+    }
+
+    public void testImplicitObjects() throws Exception {
+        String source = generate("${param.a}${header['User-Agent']}"
+                + "${requestScope.b}${pageScope.c}${applicationScope.d}");
+        assertEquals(-1, source.indexOf("proprietaryEvaluate"));
+        assertTrue(source.indexOf("_jspx_page_context.getRequest().getParameter(\"a\")") >= 0);
+        assertTrue(source.indexOf(".getHeader(\"User-Agent\")") >= 0);
+        assertTrue(source.indexOf("_jspx_page_context.getRequest().getAttribute(\"b\")") >= 0);
+        assertTrue(source.indexOf("_jspx_page_context.getAttribute(\"c\")") >= 0);
+        assertTrue(source.indexOf("_jspx_page_context.getServletContext().getAttribute(\"d\")") >= 0);
+    }
+
+    public void testFunctions() throws Exception {
+        String source = generate("${m:abs(param.a)} ${m:max(1, m:abs(-2))}");
+        assertEquals(-1, source.indexOf("proprietaryEvaluate"));
+        assertEquals(-1, source.indexOf("_jspx_fnmap"));
+        assertTrue(source.indexOf("{ int _jspx_el0 = ((java.lang.Integer) "
+                + "_el_expressionfactory.coerceToType(_jspx_page_context"
+                + ".getRequest().getParameter(\"a\"), int.class)).intValue(); "
+                + "java.lang.Object _jspx_el1; try { _jspx_el1 = "
+                + "java.lang.Math.abs(_jspx_el0); } catch (java.lang.Throwable _jspx_e) "
+                + "{ throw new javax.el.ELException(\"Problems calling function "
+                + "'m:abs'\", _jspx_e); } out.print((String) _el_expressionfactory"
+                + ".coerceToType(_jspx_el1, String.class)); }") >= 0);
+        assertTrue(source.indexOf("long _jspx_el0 = ((java.lang.Long) "
+                + "_el_expressionfactory.coerceToType(java.lang.Long.valueOf(1L)"
+                + ", long.class)).longValue(); ") >= 0);
+        assertTrue(source.indexOf("_jspx_el4 = java.lang.Math.max(_jspx_el0, "
+                + "_jspx_el3); ") >= 0);
+    }
+
+    public void testCheckedException() throws Exception {
+        // The exceptions of the method are wrapped like the others
+        String source = generate("${m:forName('a')}");
+        assertEquals(-1, source.indexOf("proprietaryEvaluate"));
+        assertTrue(source.indexOf("_jspx_el1 = java.lang.Class.forName(_jspx_el0); "
+                + "} catch (java.lang.Throwable _jspx_e) { throw new "
+                + "javax.el.ELException(\"Problems calling function 'm:forName'\"") >= 0);
+    }
+
+    public void testInterpreted() throws Exception {
+        // Beans and other identifiers
+        String source = generate("${param.a.length}${foo}${sessionScope.a}");
+        assertEquals(3, source.split("proprietaryEvaluate").length - 1);
+    }
+
+    public void testDisabled() throws Exception {
+        webapp.initParameters.setProperty("optimizeEL", "false");
+        String source = generate("${1 + 2}${param.a}");
+        assertEquals(2, source.split("proprietaryEvaluate").length - 1);
+    }
+
+}
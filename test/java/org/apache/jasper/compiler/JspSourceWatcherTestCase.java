@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jasper.compiler;
+
+import java.util.Collections;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class JspSourceWatcherTestCase extends TestCase {
+
+    /**
+     * Construct a new instance of this test case.
+     *
+     * @param name Name of the test case
+     */
+    public JspSourceWatcherTestCase(String name) {
+        super(name);
+    }
+
+    /**
+     * Return the tests included in this test suite.
+     */
+    public static Test suite() {
+        return (new TestSuite(JspSourceWatcherTestCase.class));
+    }
+
+    /**
+     * Web application with the pages of the precompilation test.
+     */
+    protected PrecompileTestCase webapp;
+
+    protected void setUp() throws Exception {
+        webapp = new PrecompileTestCase("webapp");
+        webapp.setUp();
+    }
+
+    protected void tearDown() throws Exception {
+        webapp.tearDown();
+    }
+
+    /**
+     * Wait until the specified number of pages have been compiled.
+     */
+    protected static void waitForCount(int count) throws Exception {
+        for (int i = 0; i < 200
+                && PrecompileTestCase.CountingCompiler.count.get() < count; i++) {
+            Thread.sleep(50);
+        }
+    }
+
+    public void testWatch() throws Exception {
+        webapp.initParameters.setProperty("watchSources", "true");
+        JspRuntimeContext rctxt = webapp.precompile();
+        try {
+            assertTrue(rctxt.isWatchingSources());
+            assertEquals(3, PrecompileTestCase.CountingCompiler.count.get());
+            rctxt.watch("/a.jsp", null);
+            rctxt.watch("/dir/b.jsp", Collections.singletonList("/dir/c.jspf"));
+
+            // A change of an included file compiles the page which includes it
+            webapp.write("dir/c.jspf", "<p>Changed</p>");
+            webapp.touch();
+            waitForCount(4);
+            assertEquals(4, PrecompileTestCase.CountingCompiler.count.get());
+
+            // Pages which are not loaded are not watched
+            webapp.write("WEB-INF/d.jsp", "<html>Changed</html>");
+            webapp.write("a.jsp", "<html>Changed</html>");
+            webapp.touch();
+            waitForCount(6);
+            Thread.sleep(500);
+            assertEquals(5, PrecompileTestCase.CountingCompiler.count.get());
+        } finally {
+            rctxt.destroy();
+        }
+    }
+
+    public void testNotWatching() throws Exception {
+        JspRuntimeContext rctxt = webapp.precompile();
+        assertFalse(rctxt.isWatchingSources());
+        rctxt.destroy();
+    }
+
+}
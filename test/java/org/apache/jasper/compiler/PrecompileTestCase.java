@@ -0,0 +1,242 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jasper.compiler;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+
+import org.apache.catalina.Globals;
+import org.apache.jasper.EmbeddedServletOptions;
+import org.apache.jasper.Options;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class PrecompileTestCase extends TestCase {
+
+    /**
+     * Construct a new instance of this test case.
+     *
+     * @param name Name of the test case
+     */
+    public PrecompileTestCase(String name) {
+        super(name);
+    }
+
+    /**
+     * Return the tests included in this test suite.
+     */
+    public static Test suite() {
+        return (new TestSuite(PrecompileTestCase.class));
+    }
+
+    /**
+     * Compiler which generates the Java source, and counts the pages it
+     * would compile, storing an empty class file.
+     */
+    public static class CountingCompiler extends Compiler {
+        protected static final AtomicInteger count = new AtomicInteger();
+        protected void generateClass(String[] smap) throws Exception {
+            count.incrementAndGet();
+            new FileOutputStream(ctxt.getClassFileName()).close();
+        }
+    }
+
+    protected File base;
+    protected File scratch;
+    protected Properties initParameters;
+    protected HashMap<Object, Object> tagLibraries;
+
+    protected void setUp() throws Exception {
+        base = File.createTempFile("webapp", "");
+        base.delete();
+        new File(base, "dir").mkdirs();
+        new File(base, "WEB-INF").mkdirs();
+        scratch = File.createTempFile("work", "");
+        scratch.delete();
+        scratch.mkdirs();
+        write("a.jsp", "<html>${param.a}</html>");
+        write("dir/b.jsp", "<html><%@ include file=\"c.jspf\" %></html>");
+        write("dir/c.jspf", "<p>Included</p>");
+        write("WEB-INF/d.jsp", "<html>d</html>");
+        write("index.html", "<html>index</html>");
+        CountingCompiler.count.set(0);
+        tagLibraries = new HashMap<Object, Object>();
+        initParameters = new Properties();
+        initParameters.setProperty("precompile", "true");
+        initParameters.setProperty("scratchdir", scratch.getPath());
+        initParameters.setProperty("compilerClassName",
+                CountingCompiler.class.getName());
+    }
+
+    protected void tearDown() throws Exception {
+        delete(base);
+        delete(scratch);
+    }
+
+    protected void write(String path, String content) throws Exception {
+        Writer writer = new OutputStreamWriter(
+                new FileOutputStream(new File(base, path)), "ISO-8859-1");
+        writer.write(content);
+        writer.close();
+    }
+
+    protected void touch() {
+        long time = System.currentTimeMillis() + 60000;
+        new File(base, "a.jsp").setLastModified(time);
+        new File(base, "dir/b.jsp").setLastModified(time);
+        new File(base, "dir/c.jspf").setLastModified(time);
+        new File(base, "WEB-INF/d.jsp").setLastModified(time);
+    }
+
+    protected static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (int i = 0; i < files.length; i++) {
+                delete(files[i]);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Configuration of a JSP servlet for the web application directory.
+     */
+    protected ServletConfig createConfig() {
+        final Object context = Proxy.newProxyInstance(
+                PrecompileTestCase.class.getClassLoader(),
+                new Class[] { ServletContext.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                            throws Exception {
+                        String name = method.getName();
+                        if (name.equals("getResourcePaths")) {
+                            File[] files = new File(base, (String) args[0]).listFiles();
+                            if (files == null) {
+                                return null;
+                            }
+                            Set<String> paths = new HashSet<String>();
+                            for (int i = 0; i < files.length; i++) {
+                                paths.add(args[0] + files[i].getName()
+                                        + (files[i].isDirectory() ? "/" : ""));
+                            }
+                            return paths;
+                        } else if (name.equals("getResource")) {
+                            File file = new File(base, (String) args[0]);
+                            return file.exists() ? file.toURI().toURL() : null;
+                        } else if (name.equals("getResourceAsStream")) {
+                            File file = new File(base, (String) args[0]);
+                            return file.isFile() ? file.toURI().toURL().openStream()
+                                    : (InputStream) null;
+                        } else if (name.equals("getAttribute")) {
+                            if (Globals.JSP_PROPERTY_GROUPS.equals(args[0])) {
+                                return new HashMap<Object, Object>();
+                            } else if (Globals.JSP_TAG_LIBRARIES.equals(args[0])) {
+                                return tagLibraries;
+                            } else if (Globals.SERVLET_VERSION.equals(args[0])) {
+                                return "2.5";
+                            }
+                            return null;
+                        } else if (name.equals("getRealPath")) {
+                            return new File(base, (String) args[0]).getPath();
+                        } else if (name.equals("getMajorVersion")) {
+                            return Integer.valueOf(2);
+                        } else if (name.equals("getMinorVersion")) {
+                            return Integer.valueOf(5);
+                        } else if (name.equals("hashCode")) {
+                            return Integer.valueOf(System.identityHashCode(proxy));
+                        } else if (name.equals("equals")) {
+                            return Boolean.valueOf(proxy == args[0]);
+                        } else if (method.getReturnType() == Enumeration.class) {
+                            return Collections.enumeration(Collections.EMPTY_LIST);
+                        }
+                        return null;
+                    }
+                });
+        return (ServletConfig) Proxy.newProxyInstance(
+                PrecompileTestCase.class.getClassLoader(),
+                new Class[] { ServletConfig.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getServletContext")) {
+                            return context;
+                        } else if (method.getName().equals("getServletName")) {
+                            return "jsp";
+                        } else if (method.getName().equals("getInitParameter")) {
+                            return initParameters.getProperty((String) args[0]);
+                        } else if (method.getName().equals("getInitParameterNames")) {
+                            return Collections.enumeration(Collections.EMPTY_LIST);
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    protected JspRuntimeContext precompile() {
+        ServletConfig config = createConfig();
+        Options options =
+            new EmbeddedServletOptions(config, config.getServletContext());
+        assertTrue(options.getPrecompile());
+        JspRuntimeContext rctxt =
+            new JspRuntimeContext(config.getServletContext(), options);
+        rctxt.precompile(config);
+        return rctxt;
+    }
+
+    public void testPrecompile() throws Exception {
+        JspRuntimeContext rctxt = precompile();
+        assertEquals(3, CountingCompiler.count.get());
+        assertEquals(3, rctxt.getJspCount());
+        assertNotNull(rctxt.getWrapper("/a.jsp"));
+        assertNotNull(rctxt.getWrapper("/dir/b.jsp"));
+        assertNotNull(rctxt.getWrapper("/WEB-INF/d.jsp"));
+        assertNull(rctxt.getWrapper("/dir/c.jspf"));
+    }
+
+    public void testUnchangedSources() throws Exception {
+        precompile();
+        assertEquals(3, CountingCompiler.count.get());
+
+        // Deploy the same pages again
+        touch();
+        precompile();
+        assertEquals(3, CountingCompiler.count.get());
+
+        // Change an included file
+        write("dir/c.jspf", "<p>Changed</p>");
+        touch();
+        precompile();
+        assertEquals(4, CountingCompiler.count.get());
+    }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jasper.compiler;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+
+import javax.servlet.ServletContext;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import org.apache.jasper.Options;
+import org.apache.jasper.servlet.JasperLoader;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class SharedClassLoaderTestCase extends TestCase {
+
+    /**
+     * Construct a new instance of this test case.
+     *
+     * @param name Name of the test case
+     */
+    public SharedClassLoaderTestCase(String name) {
+        super(name);
+    }
+
+    /**
+     * Return the tests included in this test suite.
+     */
+    public static Test suite() {
+        return (new TestSuite(SharedClassLoaderTestCase.class));
+    }
+
+    protected File scratch;
+
+    protected void setUp() throws Exception {
+        scratch = File.createTempFile("work", "");
+        scratch.delete();
+        new File(scratch, "org/apache/jsp").mkdirs();
+        compile("a_jsp");
+        compile("b_jsp");
+    }
+
+    protected void tearDown() throws Exception {
+        PrecompileTestCase.delete(scratch);
+    }
+
+    /**
+     * Compile an empty class of the specified name in the JSP package.
+     */
+    protected void compile(String name) throws Exception {
+        File source = new File(scratch, "org/apache/jsp/" + name + ".java");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(source),
+                "ISO-8859-1");
+        writer.write("package org.apache.jsp; public class " + name + " {}");
+        writer.close();
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        assertEquals(0, compiler.run(null, null, null, source.getPath()));
+    }
+
+    /**
+     * Proxy returning default values for all the methods of an interface.
+     */
+    protected static Object createProxy(Class<?> type) {
+        return Proxy.newProxyInstance(
+                SharedClassLoaderTestCase.class.getClassLoader(),
+                new Class[] { type }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getReturnType() == Boolean.TYPE) {
+                            return Boolean.FALSE;
+                        } else if (method.getReturnType() == Integer.TYPE) {
+                            return Integer.valueOf(0);
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    public void testGenerations() throws Exception {
+        JspRuntimeContext rctxt = new JspRuntimeContext(
+                (ServletContext) createProxy(ServletContext.class),
+                (Options) createProxy(Options.class));
+        URL baseUrl = scratch.toURI().toURL();
+
+        JasperLoader loader = rctxt.getJspLoader(baseUrl);
+        assertSame(loader, rctxt.getJspLoader(baseUrl));
+        Class<?> a = loader.loadClass("org.apache.jsp.a_jsp");
+        assertSame(loader, a.getClassLoader());
+        assertSame(a, rctxt.getJspLoader(baseUrl).loadClass("org.apache.jsp.a_jsp"));
+        assertEquals(1, rctxt.getJspLoaderCount());
+
+        // A class which has not been loaded yet keeps the generation
+        rctxt.classCompiled("org.apache.jsp.b_jsp");
+        assertSame(loader, rctxt.getJspLoader(baseUrl));
+        Class<?> b = loader.loadClass("org.apache.jsp.b_jsp");
+
+        // A loaded class starts a new generation
+        compile("a_jsp");
+        rctxt.classCompiled("org.apache.jsp.a_jsp");
+        JasperLoader next = rctxt.getJspLoader(baseUrl);
+        assertNotSame(loader, next);
+        assertEquals(2, rctxt.getJspLoaderCount());
+        Class<?> a2 = next.loadClass("org.apache.jsp.a_jsp");
+        assertNotSame(a, a2);
+        assertSame(next, a2.getClassLoader());
+        assertSame(b, loader.loadClass("org.apache.jsp.b_jsp"));
+    }
+
+}
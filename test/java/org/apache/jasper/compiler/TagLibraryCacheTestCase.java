@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jasper.compiler;
+
+import java.io.File;
+
+import javax.servlet.ServletConfig;
+
+import org.apache.catalina.deploy.jsp.TagFileInfo;
+import org.apache.catalina.deploy.jsp.TagLibraryInfo;
+import org.apache.jasper.EmbeddedServletOptions;
+import org.apache.jasper.Options;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class TagLibraryCacheTestCase extends TestCase {
+
+    /**
+     * Construct a new instance of this test case.
+     *
+     * @param name Name of the test case
+     */
+    public TagLibraryCacheTestCase(String name) {
+        super(name);
+    }
+
+    /**
+     * Return the tests included in this test suite.
+     */
+    public static Test suite() {
+        return (new TestSuite(TagLibraryCacheTestCase.class));
+    }
+
+    /**
+     * Web application with the pages of the precompilation test.
+     */
+    protected PrecompileTestCase webapp;
+
+    protected void setUp() throws Exception {
+        webapp = new PrecompileTestCase("webapp");
+        webapp.setUp();
+        new File(webapp.base, "WEB-INF/tags").mkdirs();
+        webapp.write("WEB-INF/tags/hello.tag",
+                "<%@ attribute name=\"name\" required=\"true\" %>Hello ${name}");
+        webapp.tagLibraries.put("/WEB-INF/t.tld", createTagLibrary());
+        String taglib = "<%@ taglib prefix=\"t\" uri=\"/WEB-INF/t.tld\" %>";
+        webapp.write("a.jsp", taglib + "<html>a</html>");
+        webapp.write("dir/b.jsp", taglib + "<html>b</html>");
+        webapp.write("WEB-INF/d.jsp", "<%@ taglib prefix=\"u\" uri=\"/WEB-INF/t.tld\" %>d");
+        webapp.initParameters.setProperty("modificationTestInterval", "0");
+    }
+
+    protected static TagLibraryInfo createTagLibrary() {
+        TagLibraryInfo taglib = new TagLibraryInfo();
+        taglib.setTlibversion("1.0");
+        taglib.setJspversion("2.1");
+        taglib.setShortname("t");
+        TagFileInfo tagFile = new TagFileInfo();
+        tagFile.setName("hello");
+        tagFile.setPath("/WEB-INF/tags/hello.tag");
+        taglib.addTagFileInfo(tagFile);
+        return taglib;
+    }
+
+    protected void tearDown() throws Exception {
+        webapp.tearDown();
+    }
+
+    /**
+     * Compile the pages of the web application with the specified options.
+     */
+    protected void precompile(Options options) {
+        ServletConfig config = webapp.createConfig();
+        JspRuntimeContext rctxt =
+            new JspRuntimeContext(config.getServletContext(), options);
+        rctxt.precompile(config);
+        rctxt.destroy();
+    }
+
+    protected Options createOptions() {
+        ServletConfig config = webapp.createConfig();
+        return new EmbeddedServletOptions(config, config.getServletContext());
+    }
+
+    public void testCache() throws Exception {
+        Options options = createOptions();
+        assertTrue(options.isCaching());
+        precompile(options);
+        assertEquals(3, PrecompileTestCase.CountingCompiler.count.get());
+        assertEquals(1, options.getCache().size());
+        TagLibraryInfoImpl cached =
+            (TagLibraryInfoImpl) options.getCache().get("/WEB-INF/t.tld");
+        assertEquals(1, cached.getTagFiles().length);
+        assertEquals("name", cached.getTagFile("hello").getTagInfo()
+                .getAttributes()[0].getName());
+        assertEquals(1, cached.getTagLibraryInfos().length);
+
+        // The unchanged tag library is reused
+        webapp.write("a.jsp", "<%@ taglib prefix=\"t\" uri=\"/WEB-INF/t.tld\" %>a");
+        webapp.touch();
+        precompile(options);
+        assertEquals(4, PrecompileTestCase.CountingCompiler.count.get());
+        assertSame(cached, options.getCache().get("/WEB-INF/t.tld"));
+    }
+
+    public void testModifiedTagFile() throws Exception {
+        Options options = createOptions();
+        precompile(options);
+        TagLibraryInfoImpl cached =
+            (TagLibraryInfoImpl) options.getCache().get("/WEB-INF/t.tld");
+
+        webapp.write("WEB-INF/tags/hello.tag",
+                "<%@ attribute name=\"other\" %>Hello ${other}");
+        new File(webapp.base, "WEB-INF/tags/hello.tag").setLastModified(
+                System.currentTimeMillis() + 60000);
+        webapp.write("a.jsp", "<%@ taglib prefix=\"t\" uri=\"/WEB-INF/t.tld\" %>a");
+        webapp.touch();
+        precompile(options);
+        TagLibraryInfoImpl modified =
+            (TagLibraryInfoImpl) options.getCache().get("/WEB-INF/t.tld");
+        assertNotSame(cached, modified);
+        assertEquals("other", modified.getTagFile("hello").getTagInfo()
+                .getAttributes()[0].getName());
+    }
+
+    public void testModifiedTagLibrary() throws Exception {
+        Options options = createOptions();
+        precompile(options);
+        TagLibraryInfoImpl cached =
+            (TagLibraryInfoImpl) options.getCache().get("/WEB-INF/t.tld");
+
+        // The TLDs are scanned again by the container
+        webapp.tagLibraries.put("/WEB-INF/t.tld", createTagLibrary());
+        webapp.write("a.jsp", "<%@ taglib prefix=\"t\" uri=\"/WEB-INF/t.tld\" %>a");
+        webapp.touch();
+        precompile(options);
+        assertNotSame(cached, options.getCache().get("/WEB-INF/t.tld"));
+    }
+
+    public void testDisabled() throws Exception {
+        webapp.initParameters.setProperty("cacheTagLibraries", "false");
+        Options options = createOptions();
+        assertFalse(options.isCaching());
+        precompile(options);
+        assertEquals(3, PrecompileTestCase.CountingCompiler.count.get());
+        assertTrue(options.getCache().isEmpty());
+    }
+
+}
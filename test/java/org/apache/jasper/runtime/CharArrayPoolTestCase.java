@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jasper.runtime;
+
+import java.io.StringWriter;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class CharArrayPoolTestCase extends TestCase {
+
+    /**
+     * Construct a new instance of this test case.
+     *
+     * @param name Name of the test case
+     */
+    public CharArrayPoolTestCase(String name) {
+        super(name);
+    }
+
+    /**
+     * Return the tests included in this test suite.
+     */
+    public static Test suite() {
+        return (new TestSuite(CharArrayPoolTestCase.class));
+    }
+
+    public void testSizeClasses() {
+        CharArrayPool pool = new CharArrayPool(512, 4096, 4);
+        assertEquals(512, pool.allocate(1).length);
+        assertEquals(512, pool.allocate(512).length);
+        assertEquals(1024, pool.allocate(513).length);
+        assertEquals(4096, pool.allocate(4096).length);
+        assertEquals(4, pool.getAllocated());
+        assertEquals(4097, pool.allocate(4097).length);
+        assertEquals(1, pool.getOversized());
+    }
+
+    public void testReuse() {
+        CharArrayPool pool = new CharArrayPool(512, 4096, 4);
+        char[] a = pool.allocate(600);
+        char[] b = pool.allocate(600);
+        pool.release(a);
+        pool.release(b);
+        char[] c = pool.allocate(1000);
+        assertTrue(c == a || c == b);
+        assertEquals(1, pool.getReused());
+        assertEquals(1024, pool.getRetainedSize());
+
+        // Arrays which do not belong to a size class are ignored
+        pool.release(new char[1000]);
+        pool.release(new char[8192]);
+        assertEquals(1024, pool.getRetainedSize());
+        assertEquals(0, pool.getDiscarded());
+    }
+
+    public void testMaxRetained() {
+        CharArrayPool pool = new CharArrayPool(512, 4096, 2);
+        char[][] arrays = new char[3][];
+        for (int i = 0; i < arrays.length; i++) {
+            arrays[i] = pool.allocate(512);
+        }
+        for (int i = 0; i < arrays.length; i++) {
+            pool.release(arrays[i]);
+        }
+        assertEquals(1, pool.getDiscarded());
+        assertEquals(1024, pool.getRetainedSize());
+    }
+
+    public void testTrim() {
+        CharArrayPool pool = new CharArrayPool(512, 4096, 8);
+        char[][] arrays = new char[4][];
+        for (int i = 0; i < arrays.length; i++) {
+            arrays[i] = pool.allocate(512);
+        }
+        for (int i = 0; i < arrays.length; i++) {
+            pool.release(arrays[i]);
+        }
+        assertEquals(4 * 512, pool.getRetainedSize());
+
+        // The high water mark of the previous period is kept
+        pool.trim();
+        assertEquals(4 * 512, pool.getRetainedSize());
+
+        // Only one array has been used at a time since then
+        for (int i = 0; i < 3; i++) {
+            pool.release(pool.allocate(512));
+        }
+        pool.trim();
+        assertEquals(512, pool.getRetainedSize());
+        assertEquals(0, pool.getDiscarded());
+
+        // Releases beyond the limit are discarded until the next trim
+        arrays[0] = pool.allocate(512);
+        arrays[1] = pool.allocate(512);
+        pool.release(arrays[0]);
+        pool.release(arrays[1]);
+        assertEquals(1, pool.getDiscarded());
+        pool.trim();
+        arrays[0] = pool.allocate(512);
+        arrays[1] = pool.allocate(512);
+        pool.release(arrays[0]);
+        pool.release(arrays[1]);
+        assertEquals(2 * 512, pool.getRetainedSize());
+    }
+
+    public void testCharBuffer() throws Exception {
+        CharBuffer buffer = new CharBuffer(512);
+        StringBuilder expected = new StringBuilder();
+        for (int round = 0; round < 3; round++) {
+            expected.setLength(0);
+            for (int i = 0; i < 1000; i++) {
+                String s = "line " + i + " of round " + round + "\n";
+                buffer.buffer(s, 0, s.length());
+                expected.append(s);
+            }
+            buffer.buffer('!');
+            expected.append('!');
+            assertEquals(expected.length(), buffer.size());
+            assertEquals(expected.toString(), buffer.toString());
+            assertEquals(expected.toString(), new String(buffer.toArray()));
+            StringWriter writer = new StringWriter();
+            buffer.writeOut(writer);
+            assertEquals(expected.toString(), writer.toString());
+            if (round == 1) {
+                buffer.recycle();
+            } else {
+                buffer.clear();
+            }
+            assertEquals(0, buffer.size());
+        }
+    }
+
+}
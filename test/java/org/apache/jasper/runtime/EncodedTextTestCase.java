@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jasper.runtime;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.servlet.ServletResponse;
+
+import org.apache.catalina.connector.CoyoteWriter;
+import org.apache.catalina.connector.OutputBuffer;
+import org.apache.coyote.Response;
+import org.apache.tomcat.util.buf.ByteChunk;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class EncodedTextTestCase extends TestCase {
+
+    /**
+     * Construct a new instance of this test case.
+     *
+     * @param name Name of the test case
+     */
+    public EncodedTextTestCase(String name) {
+        super(name);
+    }
+
+    /**
+     * Return the tests included in this test suite.
+     */
+    public static Test suite() {
+        return (new TestSuite(EncodedTextTestCase.class));
+    }
+
+    protected static final String TEXT =
+        "<p>\u00e9t\u00e9 \u20ac \ud834\udd1e</p>\n<table><tr><td>cell</td></tr></table>\n";
+
+    /**
+     * Response writing to a byte array, using a Catalina writer.
+     */
+    protected static class TestResponse implements InvocationHandler {
+        protected ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        protected OutputBuffer ob = new OutputBuffer();
+        protected CoyoteWriter writer = new CoyoteWriter(ob);
+        public TestResponse(String encoding) {
+            Response coyoteResponse = new Response();
+            coyoteResponse.setCharacterEncoding(encoding);
+            coyoteResponse.setOutputBuffer(new org.apache.coyote.OutputBuffer() {
+                public int doWrite(ByteChunk chunk, Response response)
+                        throws IOException {
+                    bytes.write(chunk.getBuffer(), chunk.getStart(), chunk.getLength());
+                    return chunk.getLength();
+                }
+            });
+            ob.setResponse(coyoteResponse);
+        }
+        public Object invoke(Object proxy, Method method, Object[] args)
+                throws IOException {
+            if (method.getName().equals("getWriter")) {
+                // As done by the Catalina response
+                ob.checkConverter();
+                return writer;
+            }
+            throw new UnsupportedOperationException(method.getName());
+        }
+        public ServletResponse getResponse() {
+            return (ServletResponse) Proxy.newProxyInstance(
+                    getClass().getClassLoader(),
+                    new Class[] { ServletResponse.class }, this);
+        }
+    }
+
+    protected static TestResponse write(String encoding, int bufferSize)
+            throws Exception {
+        TestResponse response = new TestResponse(encoding);
+        JspWriterImpl out = new JspWriterImpl(response.getResponse(), bufferSize, true);
+        EncodedText text = new EncodedText(TEXT, "UTF-8");
+        out.write("<html>\u00e9");
+        text.write(out);
+        out.write(1234);
+        text.write(out);
+        out.write("</html>");
+        out.flush();
+        return response;
+    }
+
+    protected static String expected() {
+        return "<html>\u00e9" + TEXT + (char) 1234 + TEXT + "</html>";
+    }
+
+    public void testEncode() throws Exception {
+        assertEquals(TEXT, new String(new EncodedText(TEXT, "UTF-8").getBytes(), "UTF-8"));
+        assertNull(new EncodedText(TEXT, "ISO-8859-1").getBytes());
+        assertNull(new EncodedText(TEXT, "unknown").getBytes());
+    }
+
+    public void testUnbuffered() throws Exception {
+        TestResponse response = write("UTF-8", 0);
+        assertEquals(expected(), new String(response.bytes.toByteArray(), "UTF-8"));
+        assertEquals(2 * TEXT.getBytes("UTF-8").length, response.ob.getBytesWritten());
+    }
+
+    public void testBuffered() throws Exception {
+        TestResponse response = write("UTF-8", 16);
+        assertEquals(expected(), new String(response.bytes.toByteArray(), "UTF-8"));
+        assertEquals(2 * TEXT.getBytes("UTF-8").length, response.ob.getBytesWritten());
+
+        // The text fits in the buffer
+        response = write("UTF-8", 8192);
+        assertEquals(expected(), new String(response.bytes.toByteArray(), "UTF-8"));
+        assertEquals(0, response.ob.getBytesWritten());
+    }
+
+    public void testOtherEncoding() throws Exception {
+        TestResponse response = write("UTF-16BE", 0);
+        assertEquals(expected(), new String(response.bytes.toByteArray(), "UTF-16BE"));
+        assertEquals(0, response.ob.getBytesWritten());
+    }
+
+}
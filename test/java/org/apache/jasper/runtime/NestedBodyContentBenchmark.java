@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jasper.runtime;
+
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+
+/**
+ * Benchmark of the rendering of pages with deeply nested body tags, where
+ * each tag writes its body content to the enclosing one, as done by the
+ * generated code and the page contexts. The time, the garbage collections
+ * and the metrics of the character array pool are reported. Run it with
+ * <code>-Dorg.apache.jasper.runtime.CharArrayPool.USE_POOL=false</code>
+ * to compare with unpooled buffers.
+ */
+public class NestedBodyContentBenchmark {
+
+    protected static final int PAGES = Integer.getInteger("benchmark.pages", 20000).intValue();
+    protected static final int DEPTH = Integer.getInteger("benchmark.depth", 16).intValue();
+    protected static final int TEXT_SIZE = Integer.getInteger("benchmark.textSize", 1024).intValue();
+
+    public static void main(String[] args) throws Exception {
+        StringBuilder text = new StringBuilder(TEXT_SIZE);
+        while (text.length() < TEXT_SIZE) {
+            text.append("<div class=\"item\">Nested body content</div>\n");
+        }
+        text.setLength(TEXT_SIZE);
+        for (int round = 0; round < 5; round++) {
+            CharArrayPool pool = CharArrayPool.getInstance();
+            long allocated = pool.getAllocated();
+            long reused = pool.getReused();
+            long collections = getCollectionCount();
+            long time = run(text.toString());
+            System.out.println("round=" + round + " pages=" + PAGES + " depth="
+                    + DEPTH + " pool=" + CharArrayPool.USE_POOL + " time="
+                    + time + "ms gc=" + (getCollectionCount() - collections)
+                    + " allocated=" + (pool.getAllocated() - allocated)
+                    + " reused=" + (pool.getReused() - reused)
+                    + " retained=" + (pool.getRetainedSize() / 1024) + "KC");
+        }
+    }
+
+    protected static long run(String text) throws Exception {
+        BodyContentImpl base = new BodyContentImpl(null);
+        base.setWriter(new Writer() {
+            public void write(char[] cbuf, int off, int len) {
+            }
+            public void flush() {
+            }
+            public void close() {
+            }
+        });
+        BodyContentImpl[] outs = new BodyContentImpl[DEPTH];
+        long begin = System.nanoTime();
+        for (int i = 0; i < PAGES; i++) {
+            // Page context: push the bodies of the nested tags
+            for (int d = 0; d < DEPTH; d++) {
+                if (outs[d] == null) {
+                    outs[d] = new BodyContentImpl(d == 0 ? base : outs[d - 1]);
+                }
+                outs[d].setWriter(null);
+            }
+            // Each tag writes its text and the body of the inner tag
+            for (int d = DEPTH - 1; d >= 0; d--) {
+                outs[d].write(text);
+                outs[d].print(i);
+                if (d < DEPTH - 1) {
+                    outs[d + 1].writeOut(outs[d]);
+                }
+            }
+            outs[0].writeOut(base);
+            // Page context release
+            for (int d = 0; d < DEPTH; d++) {
+                outs[d].recycle();
+            }
+        }
+        return (System.nanoTime() - begin) / 1000000L;
+    }
+
+    protected static long getCollectionCount() {
+        long count = 0;
+        Iterator<GarbageCollectorMXBean> collectors =
+            ManagementFactory.getGarbageCollectorMXBeans().iterator();
+        while (collectors.hasNext()) {
+            count += collectors.next().getCollectionCount();
+        }
+        return count;
+    }
+
+}
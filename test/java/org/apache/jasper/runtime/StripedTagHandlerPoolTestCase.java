@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jasper.runtime;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.jsp.tagext.Tag;
+import javax.servlet.jsp.tagext.TagSupport;
+
+import org.apache.tomcat.InstanceManager;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class StripedTagHandlerPoolTestCase extends TestCase {
+
+    /**
+     * Construct a new instance of this test case.
+     *
+     * @param name Name of the test case
+     */
+    public StripedTagHandlerPoolTestCase(String name) {
+        super(name);
+    }
+
+    /**
+     * Return the tests included in this test suite.
+     */
+    public static Test suite() {
+        return (new TestSuite(StripedTagHandlerPoolTestCase.class));
+    }
+
+    public static class TestTag extends TagSupport {
+        protected static AtomicInteger instances = new AtomicInteger();
+        protected AtomicInteger users = new AtomicInteger();
+        protected volatile boolean released = false;
+        public TestTag() {
+            instances.incrementAndGet();
+        }
+        public void release() {
+            released = true;
+        }
+    }
+
+    /**
+     * Configuration with the given pool options, and an instance manager
+     * which only instantiates classes.
+     */
+    protected static ServletConfig createConfig(final String className,
+            final String maxSize) {
+        final Object instanceManager = Proxy.newProxyInstance(
+                StripedTagHandlerPoolTestCase.class.getClassLoader(),
+                new Class[] { InstanceManager.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                            throws Exception {
+                        if (method.getName().equals("newInstance")
+                                && args[0] instanceof Class) {
+                            return ((Class<?>) args[0]).newInstance();
+                        }
+                        return null;
+                    }
+                });
+        final Object context = Proxy.newProxyInstance(
+                StripedTagHandlerPoolTestCase.class.getClassLoader(),
+                new Class[] { ServletContext.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getAttribute")
+                                && InstanceManager.class.getName().equals(args[0])) {
+                            return instanceManager;
+                        }
+                        return null;
+                    }
+                });
+        return (ServletConfig) Proxy.newProxyInstance(
+                StripedTagHandlerPoolTestCase.class.getClassLoader(),
+                new Class[] { ServletConfig.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getServletContext")) {
+                            return context;
+                        } else if (method.getName().equals("getInitParameter")) {
+                            if (TagHandlerPool.OPTION_TAGPOOL.equals(args[0])) {
+                                return className;
+                            } else if (TagHandlerPool.OPTION_MAXSIZE.equals(args[0])) {
+                                return maxSize;
+                            }
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    public void testSelect() throws Exception {
+        TagHandlerPool pool = TagHandlerPool.getTagHandlerPool(
+                createConfig(StripedTagHandlerPool.class.getName(), "2"));
+        assertTrue(pool instanceof StripedTagHandlerPool);
+    }
+
+    public void testReuse() throws Exception {
+        StripedTagHandlerPool pool = (StripedTagHandlerPool) TagHandlerPool.getTagHandlerPool(
+                createConfig(StripedTagHandlerPool.class.getName(), "2"));
+        int instances = TestTag.instances.get();
+        Tag tag1 = pool.get(TestTag.class);
+        Tag tag2 = pool.get(TestTag.class);
+        Tag tag3 = pool.get(TestTag.class);
+        assertEquals(instances + 3, TestTag.instances.get());
+        pool.reuse(tag1);
+        pool.reuse(tag2);
+        // The stripe of this thread is full
+        pool.reuse(tag3);
+        assertTrue(((TestTag) tag3).released);
+        assertFalse(((TestTag) tag1).released);
+
+        Tag tag = pool.get(TestTag.class);
+        assertTrue(tag == tag1 || tag == tag2);
+        assertEquals(instances + 3, TestTag.instances.get());
+
+        pool.release();
+        assertTrue(((TestTag) (tag == tag1 ? tag2 : tag1)).released);
+    }
+
+    public void testConcurrent() throws Exception {
+        final StripedTagHandlerPool pool = (StripedTagHandlerPool) TagHandlerPool.getTagHandlerPool(
+                createConfig(StripedTagHandlerPool.class.getName(), "4"));
+        final AtomicInteger errors = new AtomicInteger();
+        int instances = TestTag.instances.get();
+        Thread[] threads = new Thread[16];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < 10000; j++) {
+                            TestTag tag = (TestTag) pool.get(TestTag.class);
+                            if (tag.users.incrementAndGet() != 1) {
+                                errors.incrementAndGet();
+                            }
+                            tag.users.decrementAndGet();
+                            pool.reuse(tag);
+                        }
+                    } catch (Exception e) {
+                        errors.incrementAndGet();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+        }
+        assertEquals(0, errors.get());
+        // Most handlers are reused
+        assertTrue(TestTag.instances.get() - instances < 80000);
+    }
+
+}
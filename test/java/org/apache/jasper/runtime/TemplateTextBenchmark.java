@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jasper.runtime;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.servlet.ServletResponse;
+
+import org.apache.catalina.connector.CoyoteWriter;
+import org.apache.catalina.connector.OutputBuffer;
+import org.apache.coyote.Response;
+import org.apache.tomcat.util.buf.ByteChunk;
+
+/**
+ * Benchmark of the rendering of a large page, with its template text written
+ * as characters, or as encoded template text, to a Catalina response whose
+ * content is discarded.
+ */
+public class TemplateTextBenchmark {
+
+    protected static final int PAGES = Integer.getInteger("benchmark.pages", 20000).intValue();
+    protected static final int CHUNKS = Integer.getInteger("benchmark.chunks", 16).intValue();
+    protected static final int CHUNK_SIZE = Integer.getInteger("benchmark.chunkSize", 16384).intValue();
+    protected static final String ENCODING = System.getProperty("benchmark.encoding", "UTF-8");
+
+    public static void main(String[] args) throws Exception {
+        String[] texts = new String[CHUNKS];
+        EncodedText[] encodedTexts = new EncodedText[CHUNKS];
+        for (int i = 0; i < CHUNKS; i++) {
+            texts[i] = createText(i);
+            encodedTexts[i] = new EncodedText(texts[i], ENCODING);
+        }
+        int[] bufferSizes = new int[] { 0, 8192 };
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < bufferSizes.length; i++) {
+                long chars = run(texts, null, bufferSizes[i]);
+                long encoded = run(texts, encodedTexts, bufferSizes[i]);
+                System.out.println("round=" + round + " pages=" + PAGES
+                        + " size=" + (CHUNKS * CHUNK_SIZE) + " buffer="
+                        + bufferSizes[i] + " chars=" + chars + "ms encoded="
+                        + encoded + "ms");
+            }
+        }
+    }
+
+    protected static String createText(int n) {
+        StringBuilder text = new StringBuilder(CHUNK_SIZE);
+        while (text.length() < CHUNK_SIZE) {
+            text.append("<tr class=\"row\"><td>Item ").append(n)
+                .append("</td><td>Description of the item</td></tr>\n");
+        }
+        text.setLength(CHUNK_SIZE);
+        return text.toString();
+    }
+
+    protected static long run(String[] texts, EncodedText[] encodedTexts,
+            int bufferSize) throws Exception {
+        final OutputBuffer ob = new OutputBuffer();
+        final CoyoteWriter writer = new CoyoteWriter(ob);
+        Response coyoteResponse = new Response();
+        coyoteResponse.setOutputBuffer(new org.apache.coyote.OutputBuffer() {
+            public int doWrite(ByteChunk chunk, Response response) {
+                return chunk.getLength();
+            }
+        });
+        ServletResponse response = (ServletResponse) Proxy.newProxyInstance(
+                TemplateTextBenchmark.class.getClassLoader(),
+                new Class[] { ServletResponse.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                            throws IOException {
+                        ob.checkConverter();
+                        return writer;
+                    }
+                });
+        long begin = System.nanoTime();
+        for (int i = 0; i < PAGES; i++) {
+            coyoteResponse.recycle();
+            coyoteResponse.setCharacterEncoding(ENCODING);
+            ob.recycle();
+            ob.setResponse(coyoteResponse);
+            JspWriterImpl out = new JspWriterImpl(response, bufferSize, true);
+            for (int j = 0; j < texts.length; j++) {
+                if (encodedTexts == null) {
+                    out.write(texts[j]);
+                } else {
+                    encodedTexts[j].write(out);
+                }
+                out.print(i);
+            }
+            out.flush();
+        }
+        return (System.nanoTime() - begin) / 1000000L;
+    }
+
+}
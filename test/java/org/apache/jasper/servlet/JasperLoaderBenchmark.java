@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.jasper.servlet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+/**
+ * Benchmark of the loading of the classes of many JSP pages, with one
+ * JasperLoader per page, or with a JasperLoader shared by all the pages.
+ * The time to load and instantiate the pages, and the growth of the class
+ * metadata memory pool and of the heap are reported.
+ */
+public class JasperLoaderBenchmark {
+
+    protected static final int PAGES = Integer.getInteger("benchmark.pages", 2000).intValue();
+
+    public static void main(String[] args) throws Exception {
+        File scratch = File.createTempFile("work", "");
+        scratch.delete();
+        File dir = new File(scratch, "org/apache/jsp");
+        dir.mkdirs();
+        List<String> sources = new ArrayList<String>();
+        sources.add("-cp");
+        sources.add(System.getProperty("java.class.path"));
+        for (int i = 0; i < PAGES; i++) {
+            File source = new File(dir, "page" + i + "_jsp.java");
+            Writer writer = new OutputStreamWriter(
+                    new FileOutputStream(source), "ISO-8859-1");
+            writer.write("package org.apache.jsp;\n"
+                    + "public final class page" + i + "_jsp extends org.apache.jasper.runtime.HttpJspBase {\n"
+                    + "  public void _jspService(javax.servlet.http.HttpServletRequest request,\n"
+                    + "      javax.servlet.http.HttpServletResponse response) throws java.io.IOException {\n"
+                    + "    response.getWriter().write(\"<html><body>Page " + i + "</body></html>\");\n"
+                    + "  }\n"
+                    + "}\n");
+            writer.close();
+            sources.add(source.getPath());
+        }
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler.run(null, null, null, sources.toArray(new String[0])) != 0) {
+            throw new IllegalStateException("Compilation failed");
+        }
+        URL baseUrl = scratch.toURI().toURL();
+
+        for (int round = 0; round < 3; round++) {
+            run(baseUrl, false, round);
+            run(baseUrl, true, round);
+        }
+    }
+
+    protected static void run(URL baseUrl, boolean shared, int round)
+            throws Exception {
+        ClassLoader parent = JasperLoaderBenchmark.class.getClassLoader();
+        List<Object> pages = new ArrayList<Object>(PAGES);
+        long metadata = getMetadataUsage();
+        long heap = getHeapUsage();
+        long begin = System.nanoTime();
+        JasperLoader sharedLoader = null;
+        if (shared) {
+            sharedLoader = new JasperLoader(new URL[] { baseUrl }, parent,
+                    null, null);
+        }
+        for (int i = 0; i < PAGES; i++) {
+            JasperLoader loader = sharedLoader;
+            if (loader == null) {
+                loader = new JasperLoader(new URL[] { baseUrl }, parent,
+                        null, null);
+            }
+            pages.add(loader.loadClass("org.apache.jsp.page" + i + "_jsp")
+                    .newInstance());
+        }
+        long time = (System.nanoTime() - begin) / 1000000L;
+        metadata = getMetadataUsage() - metadata;
+        heap = getHeapUsage() - heap;
+        System.out.println("round=" + round + " pages=" + PAGES + " shared="
+                + shared + " time=" + time + "ms metadata="
+                + (metadata / 1024) + "KB heap=" + (heap / 1024) + "KB");
+        pages.clear();
+    }
+
+    /**
+     * Return the memory used by the heap, after a garbage collection.
+     */
+    protected static long getHeapUsage() {
+        System.gc();
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Return the memory used by class metadata, after a garbage collection.
+     */
+    protected static long getMetadataUsage() {
+        System.gc();
+        System.gc();
+        long used = 0;
+        Iterator<MemoryPoolMXBean> pools =
+            ManagementFactory.getMemoryPoolMXBeans().iterator();
+        while (pools.hasNext()) {
+            MemoryPoolMXBean pool = pools.next();
+            if (pool.getName().indexOf("Metaspace") >= 0
+                    || pool.getName().indexOf("Perm Gen") >= 0) {
+                used += pool.getUsage().getUsed();
+            }
+        }
+        return used;
+    }
+
+}
@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.naming.resources;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class MappedResourceCacheTestCase extends TestCase {
+
+    /**
+     * Construct a new instance of this test case.
+     *
+     * @param name Name of the test case
+     */
+    public MappedResourceCacheTestCase(String name) {
+        super(name);
+    }
+
+    /**
+     * Return the tests included in this test suite.
+     */
+    public static Test suite() {
+        return (new TestSuite(MappedResourceCacheTestCase.class));
+    }
+
+    protected File directory;
+
+    public void setUp() throws Exception {
+        directory = File.createTempFile("mappedResourceCache", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        for (int i = 0; i < files.length; i++) {
+            files[i].delete();
+        }
+        directory.delete();
+    }
+
+    protected File write(String name, int length, int seed) throws IOException {
+        File file = new File(directory, name);
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (i + seed);
+        }
+        FileOutputStream os = new FileOutputStream(file);
+        try {
+            os.write(bytes);
+        } finally {
+            os.close();
+        }
+        return file;
+    }
+
+    protected MappedResourceCache.MappedEntry acquire(MappedResourceCache cache, File file) {
+        return cache.acquire(file.getAbsolutePath(), file.lastModified(), file.length());
+    }
+
+    protected void assertContent(MappedResourceCache.MappedEntry entry, int start, int end,
+            int seed) {
+        ByteBuffer buffer = entry.getBuffer(start, end);
+        assertEquals(end - start + 1, buffer.remaining());
+        for (int i = start; i <= end; i++) {
+            assertEquals((byte) (i + seed), buffer.get());
+        }
+    }
+
+    public void testAcquire() throws Exception {
+        MappedResourceCache cache = new MappedResourceCache(100000);
+        File file = write("a.bin", 10000, 0);
+        MappedResourceCache.MappedEntry entry = acquire(cache, file);
+        assertNotNull(entry);
+        assertContent(entry, 0, 9999, 0);
+        assertContent(entry, 100, 199, 0);
+        entry.release();
+
+        assertSame(entry, acquire(cache, file));
+        entry.release();
+        assertEquals(1, cache.getMapCount());
+        assertEquals(1, cache.getHitsCount());
+        assertEquals(10000, cache.getSize());
+
+        // Empty files and files larger than the cache are not mapped
+        assertNull(acquire(cache, write("empty.bin", 0, 0)));
+        assertNull(acquire(cache, write("large.bin", 100001, 0)));
+        cache.clear();
+        assertEquals(0, cache.getSize());
+    }
+
+    public void testInvalidation() throws Exception {
+        MappedResourceCache cache = new MappedResourceCache(100000);
+        File file = write("a.bin", 10000, 0);
+        MappedResourceCache.MappedEntry entry = acquire(cache, file);
+        entry.release();
+
+        // A different length or modification date replaces the mapping
+        file = write("a.bin", 12000, 7);
+        file.setLastModified(file.lastModified() + 2000);
+        MappedResourceCache.MappedEntry updated = acquire(cache, file);
+        assertNotSame(entry, updated);
+        assertContent(updated, 0, 11999, 7);
+        updated.release();
+        assertEquals(2, cache.getMapCount());
+        assertEquals(12000, cache.getSize());
+        assertEquals(0, entry.references.get());
+
+        // A file which no longer matches its attributes is not mapped
+        assertNull(cache.acquire(file.getAbsolutePath(), file.lastModified() + 1000, 100));
+    }
+
+    public void testUnmap() throws Exception {
+        MappedResourceCache cache = new MappedResourceCache(15000);
+        File first = write("a.bin", 10000, 0);
+        File second = write("b.bin", 10000, 3);
+        MappedResourceCache.MappedEntry entry = acquire(cache, first);
+
+        // The evicted mapping is kept until the request using it is done
+        MappedResourceCache.MappedEntry other = acquire(cache, second);
+        other.release();
+        assertEquals(10000, cache.getSize());
+        assertEquals(1, entry.references.get());
+        assertContent(entry, 0, 9999, 0);
+        entry.release();
+        assertEquals(0, entry.references.get());
+        assertFalse(entry.acquire());
+
+        // The evicted file is mapped again on the next request
+        entry = acquire(cache, first);
+        assertContent(entry, 0, 9999, 0);
+        entry.release();
+        assertEquals(3, cache.getMapCount());
+        assertEquals(1, other.references.get() + entry.references.get());
+        cache.clear();
+        assertEquals(0, entry.references.get());
+
+        // Mapped buffers are released without waiting for their collection,
+        // other buffers are left to the collector
+        FileChannel channel = FileChannel.open(second.toPath(), StandardOpenOption.READ);
+        MappedByteBuffer buffer = null;
+        try {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, second.length());
+        } finally {
+            channel.close();
+        }
+        assertTrue(MappedResourceCache.unmap(buffer));
+        assertFalse(MappedResourceCache.unmap(ByteBuffer.allocate(16)));
+    }
+
+}
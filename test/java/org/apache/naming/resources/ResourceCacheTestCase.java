@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.naming.resources;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class ResourceCacheTestCase extends TestCase {
+
+    /**
+     * Construct a new instance of this test case.
+     *
+     * @param name Name of the test case
+     */
+    public ResourceCacheTestCase(String name) {
+        super(name);
+    }
+
+    /**
+     * Return the tests included in this test suite.
+     */
+    public static Test suite() {
+        return (new TestSuite(ResourceCacheTestCase.class));
+    }
+
+    public void testLoadUnload() {
+        ResourceCache cache = new ResourceCache();
+        cache.setCacheMaxSize(1000);
+        access(cache, "/a", 10);
+        assertNotNull(cache.lookup("/a"));
+        assertEquals(10, cache.getCacheSize());
+        assertTrue(cache.unload("/a"));
+        assertNull(cache.lookup("/a"));
+        assertEquals(0, cache.getCacheSize());
+    }
+
+    public void testNotFound() {
+        ResourceCache cache = new ResourceCache();
+        CacheEntry entry = entry("/missing", 1);
+        entry.exists = false;
+        cache.load(entry);
+        assertSame(entry, cache.lookup("/missing"));
+        assertEquals(1, cache.getCacheSize());
+        assertTrue(cache.unload("/missing"));
+        assertEquals(0, cache.getCacheSize());
+    }
+
+    public void testSizeBound() {
+        ResourceCache cache = new ResourceCache();
+        cache.setCacheMaxSize(1000);
+        for (int i = 0; i < 10000; i++) {
+            access(cache, "/file" + i, 1 + (i % 20));
+        }
+        assertTrue(cache.getCacheSize() <= 1000);
+        assertTrue(cache.getEntriesCount() > 0);
+        assertEquals(20000, cache.getAccessCount());
+    }
+
+    public void testScanResistance() {
+        ResourceCache cache = new ResourceCache();
+        cache.setCacheMaxSize(1000);
+        for (int n = 0; n < 20; n++) {
+            for (int i = 0; i < 50; i++) {
+                access(cache, "/hot/" + i, 10);
+            }
+        }
+        for (int i = 0; i < 100000; i++) {
+            access(cache, "/scan/" + i, 10);
+        }
+        int hits = 0;
+        for (int i = 0; i < 50; i++) {
+            if (cache.lookup("/hot/" + i) != null) {
+                hits++;
+            }
+        }
+        assertTrue("Only " + hits + " hot entries remaining", hits >= 45);
+        assertTrue(cache.getRejectedCount() > 0);
+    }
+
+    public void testRejectionWithoutEviction() {
+        ResourceCache cache = new ResourceCache();
+        cache.setCacheMaxSize(100);
+        cache.setWindowPercent(10);
+        access(cache, "/cold", 30);
+        access(cache, "/hot", 50);
+        for (int i = 0; i < 9; i++) {
+            cache.lookup("/hot");
+        }
+        for (int i = 0; i < 4; i++) {
+            cache.lookup("/candidate");
+        }
+        // The candidate is more frequent than the first victim, but not than
+        // the second one, so nothing is evicted
+        access(cache, "/candidate", 50);
+        assertNull(cache.lookup("/candidate"));
+        assertNotNull(cache.lookup("/cold"));
+        assertNotNull(cache.lookup("/hot"));
+        assertEquals(0, cache.getEvictionCount());
+        assertEquals(1, cache.getRejectedCount());
+    }
+
+    protected static CacheEntry entry(String name, int size) {
+        CacheEntry entry = new CacheEntry();
+        entry.name = name;
+        entry.size = size;
+        return entry;
+    }
+
+    protected static void access(ResourceCache cache, String name, int size) {
+        if (cache.lookup(name) == null) {
+            synchronized (cache) {
+                if ((cache.lookup(name) == null) && cache.allocate(size)) {
+                    cache.load(entry(name, size));
+                }
+            }
+        }
+    }
+
+}
@@ -23,6 +23,10 @@
 
 package org.jboss.web.rewrite;
 
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
@@ -152,6 +156,78 @@ public class RewriteTestCase extends TestCase {
         assertEquals("/about/", result);
     }
     
+    public void testLiteralPrefix() {
+        assertEquals("/foo/", RewriteRule.literalPrefix("^/foo/(.*)"));
+        assertEquals("/foo.html", RewriteRule.literalPrefix("^/foo\\.html$"));
+        assertEquals("/fo", RewriteRule.literalPrefix("/foo?bar"));
+        assertEquals("/u", RewriteRule.literalPrefix("^/u\\d+"));
+        assertNull(RewriteRule.literalPrefix("^/foo|^/bar"));
+        assertNull(RewriteRule.literalPrefix("^(/foo)"));
+        
+        RewriteRule rule = new RewriteRule();
+        rule.setPatternString("^/~([^/]+)/?(.*)");
+        rule.setSubstitutionString("/u/$1/$2");
+        rule.parse(null);
+        assertTrue(rule.mayMatch("/~user/foo"));
+        assertFalse(rule.mayMatch("/u/user"));
+        
+        rule = new RewriteRule();
+        rule.setPatternString("^/FOO/(.*)");
+        rule.setSubstitutionString("/bar/$1");
+        rule.setNocase(true);
+        rule.parse(null);
+        assertTrue(rule.mayMatch("/foo/bar"));
+    }
+    
+    public void testCacheable() {
+        Set<String> variables = new HashSet<String>();
+        
+        RewriteRule rule = new RewriteRule();
+        rule.setPatternString("^/(.*)");
+        rule.setSubstitutionString("http://fully.qualified.domain.name/$1");
+        RewriteCond cond = new RewriteCond();
+        cond.setTestString("%{HTTP_HOST}");
+        cond.setCondPattern("!^fully\\.qualified\\.domain\\.name");
+        rule.addCondition(cond);
+        rule.parse(null);
+        assertTrue(rule.isCacheable(RewriteValve.CACHEABLE_VARIABLES, variables));
+        assertTrue(variables.contains("HTTP_HOST"));
+        
+        rule = new RewriteRule();
+        rule.setPatternString("^/(.*)");
+        rule.setSubstitutionString("/$1");
+        cond = new RewriteCond();
+        cond.setTestString("%{HTTP:User-Agent}");
+        cond.setCondPattern("^Mozilla.*");
+        rule.addCondition(cond);
+        rule.parse(null);
+        assertFalse(rule.isCacheable(RewriteValve.CACHEABLE_VARIABLES, variables));
+    }
+    
+    public void testCacheEviction() {
+        RewriteValve valve = new RewriteValve();
+        valve.setCacheSize(2);
+        ConcurrentHashMap<String, RewriteValve.RewriteOutcome> outcomes =
+            new ConcurrentHashMap<String, RewriteValve.RewriteOutcome>();
+        RewriteValve.RewriteOutcome used = new RewriteValve.RewriteOutcome("/a", "host", false, null);
+        RewriteValve.RewriteOutcome unused = new RewriteValve.RewriteOutcome("/b", "host", false, null);
+        valve.cache(outcomes, "a", used);
+        valve.cache(outcomes, "b", unused);
+        used.used = true;
+        
+        // The outcome which has not been used is evicted
+        valve.cache(outcomes, "c", new RewriteValve.RewriteOutcome("/c", "host", false, null));
+        assertEquals(2, outcomes.size());
+        assertSame(used, outcomes.get("a"));
+        assertNull(outcomes.get("b"));
+        
+        // Once every outcome has been passed over, one is evicted anyway
+        outcomes.get("c").used = true;
+        valve.cache(outcomes, "d", new RewriteValve.RewriteOutcome("/d", "host", false, null));
+        assertEquals(2, outcomes.size());
+        assertNotNull(outcomes.get("d"));
+    }
+    
     public void testParsing() {
         Object result = null;
         String test = null;